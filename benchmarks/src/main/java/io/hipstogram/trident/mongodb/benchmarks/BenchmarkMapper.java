@@ -0,0 +1,72 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.hipstogram.trident.mongodb.mappers.MongoDBRowMapper;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Query;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import storm.trident.tuple.TridentTuple;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps keys to documents {_id: key, value: count, padding: "..."}, the padding
+ * setting the document size
+ * @author Andrés Sánchez
+ */
+public class BenchmarkMapper implements MongoDBRowMapper<List<Object>, Long>
+{
+    // Padding of every document
+    private final String padding;
+
+    /**
+     * Create a new mapper
+     * @param docBytes Approximate document size in bytes
+     */
+    public BenchmarkMapper(int docBytes) {
+        char[] chars = new char[Math.max(0, docBytes - 48)];
+        Arrays.fill(chars, 'x');
+        this.padding = new String(chars);
+    }
+
+    @Override
+    public CRUDOperation map(List<Object> key, Long value) {
+        return new Upsert(new BasicDBObject("_id", key.get(0)),
+                new BasicDBObject("$set", new BasicDBObject("value", value).append("padding", padding)));
+    }
+
+    @Override
+    public CRUDOperation map(TridentTuple tuple) {
+        return new Upsert(new BasicDBObject("_id", tuple.getValue(0)),
+                new BasicDBObject("$inc", new BasicDBObject("value", tuple.getLong(1)))
+                        .append("$set", new BasicDBObject("padding", padding)));
+    }
+
+    @Override
+    public Query retrieve(List<Object> key) {
+        return new Query(new BasicDBObject("_id", key.get(0)));
+    }
+
+    @Override
+    public Long getValue(DBObject doc) {
+        Object value = doc.get("value");
+        return value == null ? null : ((Number) value).longValue();
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import backtype.storm.metric.api.*;
+import backtype.storm.task.IMetricsContext;
+
+/**
+ * Metrics context that registers nothing
+ * @author Andrés Sánchez
+ */
+public class BenchmarkMetrics implements IMetricsContext
+{
+    @Override
+    public <T extends IMetric> T registerMetric(String name, T metric, int timeBucketSizeInSecs) {
+        return metric;
+    }
+
+    @Override
+    public ReducedMetric registerMetric(String name, IReducer reducer, int timeBucketSizeInSecs) {
+        return new ReducedMetric(reducer);
+    }
+
+    @Override
+    public CombinedMetric registerMetric(String name, ICombiner combiner, int timeBucketSizeInSecs) {
+        return new CombinedMetric(combiner);
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import io.hipstogram.trident.mongodb.codec.DocumentCodec;
+import io.hipstogram.trident.mongodb.codec.JavaCodec;
+import io.hipstogram.trident.mongodb.codec.KryoCodec;
+import io.hipstogram.trident.mongodb.codec.ValueCodec;
+import io.hipstogram.trident.mongodb.collection.ProjectedDecoderFactory;
+import io.hipstogram.trident.mongodb.mappers.CodecRowMapper;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import org.bson.BSON;
+import org.openjdk.jmh.annotations.*;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.StateType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of an opaque map state document {_id, v} with every value codec.
+ * The value is a count or a map of 10 counts.
+ * Run with "-prof gc" for the allocation per document.
+ * @author Andrés Sánchez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+    @Param({"verbose", "compact", "kryo", "java"})
+    public String codec;
+
+    @Param({"count", "map"})
+    public String value;
+
+    private CodecRowMapper<OpaqueValue> mapper;
+    private OpaqueValue opaque;
+    private byte[] document;
+    private DBDecoder decoder;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ValueCodec<OpaqueValue> valueCodec;
+        if ("verbose".equals(codec)) {
+            valueCodec = DocumentCodec.verbose(StateType.OPAQUE);
+        } else if ("compact".equals(codec)) {
+            valueCodec = DocumentCodec.compact(StateType.OPAQUE);
+        } else if ("kryo".equals(codec)) {
+            valueCodec = new KryoCodec<OpaqueValue>(HashMap.class);
+        } else {
+            valueCodec = new JavaCodec<OpaqueValue>();
+        }
+        mapper = new CodecRowMapper<OpaqueValue>(valueCodec);
+
+        if ("count".equals(value)) {
+            opaque = new OpaqueValue(1234567L, 42L, 41L);
+        } else {
+            Map<String, Long> curr = new HashMap<String, Long>();
+            Map<String, Long> prev = new HashMap<String, Long>();
+            for (int i = 0; i < 10; i++) {
+                curr.put("country-" + i, 1000L + i);
+                prev.put("country-" + i, 999L + i);
+            }
+            opaque = new OpaqueValue(1234567L, curr, prev);
+        }
+
+        document = encode();
+        decoder = new ProjectedDecoderFactory(mapper.getFields()).create();
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        // The stored document is the upsert query with the $set fields
+        Upsert upsert = (Upsert) mapper.map(Arrays.<Object>asList("key-42"), opaque);
+        BasicDBObject doc = new BasicDBObject(upsert.getQuery());
+        doc.putAll((DBObject) upsert.getStatement().get("$set"));
+        return BSON.encode(doc);
+    }
+
+    @Benchmark
+    public OpaqueValue decode() {
+        return mapper.getValue(decoder.decode(document, (DBCollection) null));
+    }
+}
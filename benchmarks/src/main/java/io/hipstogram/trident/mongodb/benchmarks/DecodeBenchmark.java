@@ -0,0 +1,67 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DefaultDBDecoder;
+import io.hipstogram.trident.mongodb.collection.ProjectedDecoderFactory;
+import org.bson.BSON;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a stored document {_id, value, history: [{at, count}, ...]} whose value is
+ * read by a mapper, with the driver decoder or with the projected one reading only "value".
+ * Run with "-prof gc" for the allocation per document.
+ * @author Andrés Sánchez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark
+{
+    @Param({"0", "100", "1000"})
+    public int historyLength;
+
+    @Param({"false", "true"})
+    public boolean projected;
+
+    private byte[] document;
+    private DBDecoder decoder;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BasicDBList history = new BasicDBList();
+        for (int i = 0; i < historyLength; i++) {
+            history.add(new BasicDBObject("at", 1400000000000L + i).append("count", i));
+        }
+        document = BSON.encode(new BasicDBObject("_id", "key-42").append("value", 42L).append("history", history));
+        decoder = projected ? new ProjectedDecoderFactory("value").create() : new DefaultDBDecoder();
+    }
+
+    @Benchmark
+    public Object decode() {
+        return decoder.decode(document, (DBCollection) null).get("value");
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import java.util.*;
+
+/**
+ * Draws keys from a Zipf distribution, uniform when the skew is 0
+ * @author Andrés Sánchez
+ */
+public class KeyGenerator
+{
+    // Cumulative probability of every key, null for uniform keys
+    private final double[] cdf;
+
+    // Number of keys
+    private final int keys;
+
+    private final Random random;
+
+    /**
+     * Create a new key generator
+     * @param keys Number of distinct keys
+     * @param skew Zipf exponent, 0 for uniform keys
+     * @param seed Random seed
+     */
+    public KeyGenerator(int keys, double skew, long seed) {
+        this.keys = keys;
+        this.random = new Random(seed);
+        if (skew <= 0) {
+            this.cdf = null;
+        } else {
+            this.cdf = new double[keys];
+            double total = 0;
+            for (int i = 0; i < keys; i++) {
+                total += 1.0 / Math.pow(i + 1, skew);
+                cdf[i] = total;
+            }
+            for (int i = 0; i < keys; i++) cdf[i] /= total;
+        }
+    }
+
+    /**
+     * Draw a key
+     * @return Key index, 0 is the hottest
+     */
+    public int next() {
+        if (cdf == null) return random.nextInt(keys);
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(keys - 1, index >= 0 ? index : -index - 1);
+    }
+
+    /**
+     * Draw a batch of distinct keys, as Trident groups a batch by key
+     * @param size Number of keys, at most the number of distinct keys
+     * @return Keys as single element lists
+     */
+    public List<List<Object>> batch(int size) {
+        Set<Integer> drawn = new LinkedHashSet<Integer>();
+        while (drawn.size() < Math.min(size, keys)) drawn.add(next());
+        List<List<Object>> batch = new ArrayList<List<Object>>(drawn.size());
+        for (Integer key : drawn) batch.add(Collections.<Object>singletonList("key-" + key));
+        return batch;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import backtype.storm.Config;
+import io.hipstogram.trident.mongodb.MongoDBMapState;
+import io.hipstogram.trident.mongodb.collection.FaultInjectingCollection;
+import io.hipstogram.trident.mongodb.collection.InMemoryCollection;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MongoDBMapState.multiGet and multiPut of one Trident batch. Throughput is in batches,
+ * sample time gives the per-batch latency distribution. Run with "-prof gc" for the
+ * allocation rate.
+ * @author Andrés Sánchez
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapStateBenchmark
+{
+    // Number of pre-generated batches
+    private static final int BATCHES = 64;
+
+    @Param({"100", "1000"})
+    public int batchSize;
+
+    @Param({"0", "0.99"})
+    public double skew;
+
+    @Param({"64", "1024"})
+    public int docBytes;
+
+    @Param({"0", "200"})
+    public long latencyMicros;
+
+    @Param({"false", "true"})
+    public boolean batchReads;
+
+    @Param({"100000"})
+    public int keys;
+
+    private MongoDBMapState<Long> state;
+    private List<List<List<Object>>> batches;
+    private List<List<Long>> values;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<String, Object> configuration = new HashMap<String, Object>();
+        configuration.put(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS, 60);
+
+        MongoDBMapState.Options<Long> options = new MongoDBMapState.Options<Long>();
+        options.db = "benchmarks";
+        options.collection = "map-state";
+        options.batchReads = batchReads;
+
+        state = new MongoDBMapState<Long>(new SimulatedClient(new FaultInjectingCollection(new InMemoryCollection("benchmarks"), latencyMicros, 0)),
+                new BenchmarkMapper(docBytes), options, configuration);
+        state.registerMetrics(configuration, new BenchmarkMetrics());
+
+        KeyGenerator generator = new KeyGenerator(keys, skew, 42);
+        batches = new ArrayList<List<List<Object>>>(BATCHES);
+        values = new ArrayList<List<Long>>(BATCHES);
+        for (int i = 0; i < BATCHES; i++) {
+            List<List<Object>> batch = generator.batch(batchSize);
+            List<Long> batchValues = new ArrayList<Long>(batch.size());
+            for (int j = 0; j < batch.size(); j++) batchValues.add((long) j);
+            batches.add(batch);
+            values.add(batchValues);
+            // Reads find every key
+            state.multiPut(batch, batchValues);
+        }
+    }
+
+    @Benchmark
+    public List<Long> multiGet() {
+        return state.multiGet(batches.get(nextBatch()));
+    }
+
+    @Benchmark
+    public void multiPut() {
+        int batch = nextBatch();
+        state.multiPut(batches.get(batch), values.get(batch));
+    }
+
+    private int nextBatch() {
+        next = (next + 1) % BATCHES;
+        return next;
+    }
+}
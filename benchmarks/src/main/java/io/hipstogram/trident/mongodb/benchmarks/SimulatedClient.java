@@ -0,0 +1,46 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import io.hipstogram.trident.mongodb.MongoDBClient;
+import io.hipstogram.trident.mongodb.MongoDBStateFactory;
+import io.hipstogram.trident.mongodb.collection.MongoDBCollection;
+
+import java.util.Collections;
+
+/**
+ * A client whose collections are all the same in-process collection
+ * @author Andrés Sánchez
+ */
+public class SimulatedClient extends MongoDBClient
+{
+    // In-process collection
+    private final MongoDBCollection collection;
+
+    /**
+     * Create a new simulated client
+     * @param collection Collection returned for every db/collection name
+     */
+    public SimulatedClient(MongoDBCollection collection) {
+        super(Collections.singletonMap(MongoDBStateFactory.MONGODB_HOSTS, "localhost"));
+        this.collection = collection;
+    }
+
+    @Override
+    public MongoDBCollection getMongoDBCollection(String dbName, String collName) {
+        return collection;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import backtype.storm.tuple.Fields;
+import io.hipstogram.trident.mongodb.MongoDBState;
+import io.hipstogram.trident.mongodb.MongoDBStateFactory;
+import io.hipstogram.trident.mongodb.MongoDBStateUpdater;
+import io.hipstogram.trident.mongodb.collection.FaultInjectingCollection;
+import io.hipstogram.trident.mongodb.collection.InMemoryCollection;
+import org.openjdk.jmh.annotations.*;
+import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MongoDBStateUpdater.updateState and MongoDBState.commit of one Trident batch, measured
+ * apart. Throughput is in batches, sample time gives the per-batch latency distribution.
+ * Run with "-prof gc" for the allocation rate.
+ * @author Andrés Sánchez
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark
+{
+    // Number of pre-generated batches
+    private static final int BATCHES = 64;
+
+    /**
+     * A state, an updater and pre-generated batches of tuples
+     */
+    @State(Scope.Thread)
+    public abstract static class Fixture {
+        @Param({"100", "1000"})
+        public int batchSize;
+
+        @Param({"0", "0.99"})
+        public double skew;
+
+        @Param({"64", "1024"})
+        public int docBytes;
+
+        @Param({"0", "200"})
+        public long latencyMicros;
+
+        @Param({"false", "true"})
+        public boolean coalesce;
+
+        @Param({"100000"})
+        public int keys;
+
+        MongoDBState state;
+        MongoDBStateUpdater<List<Object>, Long> updater;
+        List<List<TridentTuple>> batches;
+        long txid = 0;
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void setupTrial() {
+            Map<String, Object> configuration = new HashMap<String, Object>();
+            configuration.put(MongoDBStateFactory.MONGODB_DB, "benchmarks");
+            configuration.put(MongoDBStateFactory.MONGODB_COLLECTION, "state");
+
+            MongoDBState.Options options = new MongoDBState.Options();
+            options.coalesce = coalesce;
+            state = new MongoDBState(new SimulatedClient(new FaultInjectingCollection(new InMemoryCollection("benchmarks"), latencyMicros, 0)), options, configuration);
+            updater = new MongoDBStateUpdater<List<Object>, Long>(new BenchmarkMapper(docBytes));
+
+            // Keys may repeat inside a batch, as tuples are not grouped before a partitionPersist
+            TridentTupleView.FreshOutputFactory factory = new TridentTupleView.FreshOutputFactory(new Fields("key", "count"));
+            KeyGenerator generator = new KeyGenerator(keys, skew, 42);
+            batches = new ArrayList<List<TridentTuple>>(BATCHES);
+            for (int i = 0; i < BATCHES; i++) {
+                List<TridentTuple> tuples = new ArrayList<TridentTuple>(batchSize);
+                for (int j = 0; j < batchSize; j++) {
+                    tuples.add(factory.create(Arrays.<Object>asList("key-" + generator.next(), 1L)));
+                }
+                batches.add(tuples);
+            }
+        }
+
+        List<TridentTuple> nextBatch() {
+            next = (next + 1) % BATCHES;
+            return batches.get(next);
+        }
+    }
+
+    /**
+     * An empty state, committed after every invocation
+     */
+    public static class Empty extends Fixture {
+        @TearDown(Level.Invocation)
+        public void commit() {
+            state.commit(txid++);
+        }
+    }
+
+    /**
+     * A state holding a batch of operations before every invocation
+     */
+    public static class Buffered extends Fixture {
+        @Setup(Level.Invocation)
+        public void fill() {
+            updater.updateState(state, nextBatch(), null);
+        }
+    }
+
+    @Benchmark
+    public void updateState(Empty fixture) {
+        fixture.updater.updateState(fixture.state, fixture.nextBatch(), null);
+    }
+
+    @Benchmark
+    public void commit(Buffered fixture) {
+        fixture.state.commit(fixture.txid++);
+    }
+}
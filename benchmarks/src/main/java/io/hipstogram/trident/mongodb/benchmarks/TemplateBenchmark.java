@@ -0,0 +1,101 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.benchmarks;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBEncoder;
+import com.mongodb.DefaultDBEncoder;
+import io.hipstogram.trident.mongodb.operation.OperationTemplate;
+import io.hipstogram.trident.mongodb.operation.TemplateEncoder;
+import io.hipstogram.trident.mongodb.operation.TemplateOperation;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import org.bson.io.PoolOutputBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-tuple cost of an upsert {_id: key}, {$inc: {count: n}, $set: {updatedAt: ...}}: building
+ * it, estimating its size and encoding it, from plain documents or bound from a template, with
+ * the driver encoder (update commands) or the template one (inserts and legacy writes).
+ * Run with "-prof gc" for the allocation per tuple.
+ * @author Andrés Sánchez
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemplateBenchmark
+{
+    // Number of pre-generated keys
+    private static final int KEYS = 1024;
+
+    private final OperationTemplate template = OperationTemplate.upsert(
+            new BasicDBObject("_id", OperationTemplate.SLOT),
+            new BasicDBObject("$inc", new BasicDBObject("count", OperationTemplate.SLOT))
+                    .append("$set", new BasicDBObject("updatedAt", OperationTemplate.SLOT)));
+
+    private final DBEncoder driverEncoder = new DefaultDBEncoder();
+    private final DBEncoder templateEncoder = TemplateEncoder.FACTORY.create();
+    private final PoolOutputBuffer buffer = new PoolOutputBuffer();
+    private final String[] keys = new String[KEYS];
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int i = 0; i < KEYS; i++) keys[i] = "key-" + i;
+    }
+
+    @Benchmark
+    public int plain() {
+        int i = nextKey();
+        Upsert upsert = new Upsert(new BasicDBObject("_id", keys[i]),
+                new BasicDBObject("$inc", new BasicDBObject("count", (long) i))
+                        .append("$set", new BasicDBObject("updatedAt", 1400000000000L + i)));
+        buffer.reset();
+        driverEncoder.writeObject(buffer, upsert.getQuery());
+        driverEncoder.writeObject(buffer, upsert.getStatement());
+        return upsert.getSize() + buffer.size();
+    }
+
+    @Benchmark
+    public int templateDriverEncoder() {
+        int i = nextKey();
+        TemplateOperation upsert = template.bind(keys[i], (long) i, 1400000000000L + i);
+        buffer.reset();
+        driverEncoder.writeObject(buffer, upsert.getQuery());
+        driverEncoder.writeObject(buffer, upsert.getStatement());
+        return upsert.getSize() + buffer.size();
+    }
+
+    @Benchmark
+    public int templateEncoder() {
+        int i = nextKey();
+        TemplateOperation upsert = template.bind(keys[i], (long) i, 1400000000000L + i);
+        buffer.reset();
+        templateEncoder.writeObject(buffer, upsert.getQuery());
+        templateEncoder.writeObject(buffer, upsert.getStatement());
+        return upsert.getSize() + buffer.size();
+    }
+
+    private int nextKey() {
+        next = (next + 1) % KEYS;
+        return next;
+    }
+}
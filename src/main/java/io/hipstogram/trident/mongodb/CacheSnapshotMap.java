@@ -0,0 +1,280 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.hipstogram.trident.mongodb.cache.CacheSnapshot;
+import io.hipstogram.trident.mongodb.cache.MapStateCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.trident.state.Serializer;
+import storm.trident.state.map.IBackingMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backing map that answers cache misses from the cache snapshot of a previous run. A snapshot
+ * entry is only used once the txid stored in MongoDB for its key, read with a projection of
+ * that field alone, is the one of the entry, or the key is still missing. Other keys are read
+ * from the delegate. The snapshot is dropped once every entry was looked up, or after a number
+ * of batches, so that later misses no longer pay for the txid read. The cache is written to a
+ * new snapshot every few minutes of writes, when the map is closed and when the JVM shuts down.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class CacheSnapshotMap<T> implements IBackingMap<T>
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(CacheSnapshotMap.class);
+
+    // Backing map
+    private final IBackingMap<T> delegate;
+
+    // State, for the txid reads
+    private final MongoDBMapState<T> state;
+
+    // Snapshot file
+    private final File file;
+
+    // Value serializer
+    private final Serializer<T> serializer;
+
+    // Field holding the txid in the documents, may be dotted
+    private final String txidField;
+
+    // Time between two snapshots
+    private final long snapshotIntervalMillis;
+
+    // Snapshot of the previous run, null once there is none or it was dropped
+    private volatile CacheSnapshot<T> snapshot;
+
+    // Batches left before the snapshot is dropped
+    private int batchesLeft;
+
+    // Txid of the last batch written
+    private long lastTxid = CacheSnapshot.ABSENT;
+
+    // Cache to write snapshots of
+    private MapStateCache<T> cache;
+
+    // Writes a snapshot on JVM shutdown
+    private final Runnable shutdownSnapshot = new Runnable() {
+        public void run() {
+            snapshot();
+        }
+    };
+
+    // Time of the last snapshot
+    private long lastSnapshotMillis = System.currentTimeMillis();
+
+    // Last txid known to be committed: the one before the batch being written
+    private volatile long committedTxid = CacheSnapshot.ABSENT;
+
+    // Entries used and rejected
+    private long restored = 0;
+    private long rejected = 0;
+
+    /**
+     * Create a new snapshot map, mapping the snapshot of a previous run if there is one
+     * @param delegate Backing map
+     * @param state State under the backing map
+     * @param file Snapshot file
+     * @param serializer Value serializer
+     * @param txidField Field holding the txid in the documents
+     * @param snapshotIntervalMillis Time between two snapshots
+     * @param restoreBatches Number of batches after which the snapshot of the previous run is dropped
+     */
+    public CacheSnapshotMap(IBackingMap<T> delegate, MongoDBMapState<T> state, File file, Serializer<T> serializer,
+                            String txidField, long snapshotIntervalMillis, int restoreBatches) {
+        this.delegate = delegate;
+        this.state = state;
+        this.file = file;
+        this.serializer = serializer;
+        this.txidField = txidField;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.batchesLeft = restoreBatches;
+        try {
+            snapshot = CacheSnapshot.open(file, serializer);
+            if (snapshot != null) {
+                LOG.info("Mapped cache snapshot [{}] of [{}] entries", file, snapshot.size());
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot map cache snapshot " + file + ", ignoring it", e);
+        }
+    }
+
+    /**
+     * Set the cache to write snapshots of, and write one when the JVM shuts down
+     * @param cache Cache over this map
+     */
+    public void setCache(MapStateCache<T> cache) {
+        this.cache = cache;
+        ShutdownSnapshots.register(file, shutdownSnapshot);
+    }
+
+    /**
+     * Write a last snapshot, and no longer on JVM shutdown
+     */
+    public void close() {
+        ShutdownSnapshots.unregister(file, shutdownSnapshot);
+        snapshot();
+    }
+
+    @Override
+    public List<T> multiGet(List<List<Object>> keys) {
+        CacheSnapshot<T> snapshot = this.snapshot;
+        if (snapshot == null) {
+            return delegate.multiGet(keys);
+        }
+
+        List<List<Object>> candidates = new ArrayList<List<Object>>();
+        List<CacheSnapshot.Entry<T>> entries = new ArrayList<CacheSnapshot.Entry<T>>();
+        List<Integer> positions = new ArrayList<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            CacheSnapshot.Entry<T> entry = snapshot.get(keys.get(i));
+            if (entry != null) {
+                candidates.add(keys.get(i));
+                entries.add(entry);
+                positions.add(i);
+            }
+        }
+
+        List<T> values = new ArrayList<T>(Collections.<T>nCopies(keys.size(), null));
+        boolean[] done = new boolean[keys.size()];
+        if (!candidates.isEmpty()) {
+            List<DBObject> docs = state.findDocuments(candidates, new BasicDBObject(txidField, 1));
+            for (int i = 0; i < candidates.size(); i++) {
+                CacheSnapshot.Entry<T> entry = entries.get(i);
+                DBObject doc = docs.get(i);
+                Object stored = doc == null ? null : field(doc, txidField);
+                boolean valid = doc == null
+                        ? entry.getTxid() == CacheSnapshot.ABSENT
+                        : stored instanceof Number && ((Number) stored).longValue() == entry.getTxid();
+                if (valid) {
+                    values.set(positions.get(i), entry.getValue());
+                    done[positions.get(i)] = true;
+                }
+            }
+        }
+
+        List<List<Object>> rest = new ArrayList<List<Object>>();
+        List<Integer> restPositions = new ArrayList<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (!done[i]) {
+                rest.add(keys.get(i));
+                restPositions.add(i);
+            }
+        }
+        synchronized (this) {
+            restored += keys.size() - rest.size();
+            rejected += candidates.size() - (keys.size() - rest.size());
+            if (restored + rejected >= snapshot.size()) {
+                drop("every entry was looked up");
+            }
+        }
+        if (!rest.isEmpty()) {
+            List<T> fetched = delegate.multiGet(rest);
+            for (int i = 0; i < rest.size(); i++) values.set(restPositions.get(i), fetched.get(i));
+        }
+        return values;
+    }
+
+    @Override
+    public void multiPut(List<List<Object>> keys, List<T> values) {
+        // Batches are committed in order, so every earlier one is
+        long txid = CacheSnapshot.ABSENT;
+        for (T value : values) txid = Math.max(txid, CacheSnapshot.txid(value));
+        if (txid != CacheSnapshot.ABSENT) committedTxid = txid - 1;
+        synchronized (this) {
+            if (txid != CacheSnapshot.ABSENT && txid != lastTxid) {
+                lastTxid = txid;
+                if (--batchesLeft <= 0) drop("its batches are over");
+            }
+        }
+
+        if (cache != null && System.currentTimeMillis() - lastSnapshotMillis >= snapshotIntervalMillis) {
+            snapshot();
+        }
+        delegate.multiPut(keys, values);
+    }
+
+    /**
+     * Write the cache entries of committed batches to the snapshot file
+     */
+    public synchronized void snapshot() {
+        if (cache == null) return;
+        long start = System.currentTimeMillis();
+        lastSnapshotMillis = start;
+        try {
+            int written = CacheSnapshot.write(file, cache.entries(), serializer, committedTxid);
+            LOG.debug("Wrote [{}] cache entries to [{}] in [{}] ms", new Object[]{written, file, System.currentTimeMillis() - start});
+        } catch (IOException e) {
+            LOG.warn("Cannot write cache snapshot " + file, e);
+        }
+    }
+
+    /**
+     * Stop answering misses from the snapshot of the previous run
+     */
+    private synchronized void drop(String reason) {
+        if (snapshot == null) return;
+        snapshot = null;
+        LOG.info("Dropped cache snapshot [{}], {}: [{}] entries used, [{}] rejected", new Object[]{file, reason, restored, rejected});
+    }
+
+    /**
+     * Check whether misses are still answered from the snapshot of the previous run
+     * @return False once there is no snapshot or it was dropped
+     */
+    public boolean isRestoring() {
+        return snapshot != null;
+    }
+
+    /**
+     * Get the number of snapshot entries used
+     * @return Entries whose txid matched
+     */
+    public synchronized long getRestoredCount() {
+        return restored;
+    }
+
+    /**
+     * Get the number of snapshot entries rejected
+     * @return Entries whose txid did not match
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Get the value of a (possibly dotted) field of a document
+     */
+    static Object field(DBObject doc, String field) {
+        if (doc.containsField(field)) return doc.get(field);
+        Object current = doc;
+        for (String part : field.split("\\.")) {
+            if (!(current instanceof DBObject)) return null;
+            current = ((DBObject) current).get(part);
+        }
+        return current;
+    }
+}
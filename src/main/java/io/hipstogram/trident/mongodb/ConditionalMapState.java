@@ -0,0 +1,269 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Update;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.trident.state.CombinerValueUpdater;
+import storm.trident.state.StateType;
+import storm.trident.state.ValueUpdater;
+import storm.trident.state.map.MapState;
+
+import java.util.*;
+
+/**
+ * A transactional or opaque map state for additive combiner aggregations (Count, Sum) whose
+ * batches are written without reading the keys first. The txid of the last batch is stored next
+ * to the value, and every key gets a single upsert that only matches if that txid differs from
+ * the one of the batch:
+ * <ul>
+ *   <li>Transactional: {value: $inc delta, txid: $set txid}. A replayed batch does not match,
+ *       its upsert fails on the duplicate _id and the key is left as it is.</li>
+ *   <li>Opaque: {value: $inc delta, txid: $set txid, delta: $set delta}. The previous value of
+ *       OpaqueValue is the value minus the stored delta. A replayed batch, which may hold other
+ *       tuples, does not match either; those keys fall back to a read and a conditional update
+ *       of the value to previous + delta.</li>
+ * </ul>
+ * As with {@link IncrementMapState}, the combiner must add its values up and multiUpdate only
+ * returns the values it had to read, nulls for the others.
+ * @author Andrés Sánchez
+ */
+public class ConditionalMapState<T> implements MapState<T>
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(ConditionalMapState.class);
+
+    // Backing state, for the queries and the bulks
+    private final MongoDBMapState<T> state;
+
+    // Transactional or opaque
+    private final StateType type;
+
+    // Stored fields
+    private final String valueField;
+    private final String txidField;
+    private final String deltaField;
+
+    // Whether the key queries of the mapper are on a unique index other than _id
+    private final boolean uniqueKeyIndex;
+
+    // Whether the key queries were checked to be on _id
+    private volatile boolean checked = false;
+
+    // Txid of the batch in progress
+    private Long currTx;
+
+    /**
+     * Create a new conditional map state
+     * @param state Backing state, with the increment field of its options holding the value
+     * @param type Transactional or opaque
+     */
+    public ConditionalMapState(MongoDBMapState<T> state, StateType type) {
+        if (type != StateType.TRANSACTIONAL && type != StateType.OPAQUE) {
+            throw new IllegalArgumentException("Conditional updates need a transactional or opaque state, not " + type);
+        }
+        MongoDBMapState.Options<?> options = state.getOptions();
+        if (options.incrementField == null) {
+            throw new IllegalArgumentException("Conditional updates need an increment field");
+        }
+        this.state = state;
+        this.type = type;
+        this.valueField = options.incrementField;
+        this.txidField = options.txidField;
+        this.deltaField = options.deltaField;
+        this.uniqueKeyIndex = options.uniqueKeyIndex;
+    }
+
+    @Override
+    public void beginCommit(Long txid) {
+        currTx = txid;
+    }
+
+    @Override
+    public void commit(Long txid) {
+        currTx = null;
+    }
+
+    @Override
+    public List<T> multiGet(List<List<Object>> keys) {
+        List<DBObject> docs = state.findDocuments(keys, projection());
+        List<T> values = new ArrayList<T>(keys.size());
+        for (DBObject doc : docs) {
+            values.add(doc == null ? null : value(valueAt(doc, currTx)));
+        }
+        return values;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List<T> multiUpdate(List<List<Object>> keys, List<ValueUpdater> updaters) {
+        List<Number> deltas = new ArrayList<Number>(updaters.size());
+        for (ValueUpdater<?> updater : updaters) {
+            if (!(updater instanceof CombinerValueUpdater)) {
+                throw new UnsupportedOperationException("Conditional states only support combiner aggregations, not "
+                        + updater.getClass().getName());
+            }
+            // With nothing stored, a combiner updater returns the partial aggregate of the batch
+            Object delta = updater.update(null);
+            if (delta != null && !(delta instanceof Number)) {
+                throw new IllegalArgumentException("Conditional states need numeric aggregates, not " + delta.getClass().getName());
+            }
+            deltas.add((Number) delta);
+        }
+
+        List<CRUDOperation> operations = new ArrayList<CRUDOperation>(keys.size());
+        List<Integer> positions = new ArrayList<Integer>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Number delta = deltas.get(i);
+            if (delta == null) continue;
+            BasicDBObject query = query(keys.get(i));
+            query.put(txidField, new BasicDBObject("$ne", currTx));
+            BasicDBObject set = new BasicDBObject(txidField, currTx);
+            if (type == StateType.OPAQUE) set.put(deltaField, delta);
+            operations.add(new Upsert(query, new BasicDBObject("$set", set).append("$inc", new BasicDBObject(valueField, delta))));
+            positions.add(i);
+        }
+
+        List<T> values = new ArrayList<T>(Collections.<T>nCopies(keys.size(), null));
+        Set<Integer> conflicts = state.writeUnordered(operations);
+        if (conflicts.isEmpty()) {
+            return values;
+        }
+
+        // Keys already written by this txid
+        List<List<Object>> conflicted = new ArrayList<List<Object>>(conflicts.size());
+        for (int index : conflicts) conflicted.add(keys.get(positions.get(index)));
+        LOG.debug("Reading [{}] keys written before by txid [{}]", conflicted.size(), currTx);
+        List<DBObject> docs = state.findDocuments(conflicted, projection());
+
+        List<CRUDOperation> fixes = new ArrayList<CRUDOperation>();
+        int next = 0;
+        for (int index : conflicts) {
+            int position = positions.get(index);
+            DBObject doc = docs.get(next++);
+            if (doc == null || !currTx.equals(toLong(doc.get(txidField)))) {
+                throw new IllegalStateException("Key " + keys.get(position) + " conflicted on txid " + currTx + " but holds " + doc);
+            }
+            if (type == StateType.TRANSACTIONAL) {
+                values.set(position, value(doc.get(valueField)));
+            } else {
+                Number value = add(valueAt(doc, currTx), deltas.get(position));
+                BasicDBObject query = query(keys.get(position));
+                query.put(txidField, currTx);
+                fixes.add(new Update(query, new BasicDBObject("$set",
+                        new BasicDBObject(valueField, value).append(deltaField, deltas.get(position)))));
+                values.set(position, value(value));
+            }
+        }
+        if (!state.writeUnordered(fixes).isEmpty()) {
+            throw new IllegalStateException("Updates of replayed keys failed on a duplicate key");
+        }
+        return values;
+    }
+
+    @Override
+    public void multiPut(List<List<Object>> keys, List<T> values) {
+        List<DBObject> docs = type == StateType.OPAQUE ? state.findDocuments(keys, projection()) : null;
+        List<CRUDOperation> operations = new ArrayList<CRUDOperation>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Number value = (Number) values.get(i);
+            BasicDBObject set = new BasicDBObject(txidField, currTx).append(valueField, value);
+            if (type == StateType.OPAQUE) {
+                // Keep the previous value as value - delta
+                DBObject doc = docs.get(i);
+                Number previous = doc == null ? null : valueAt(doc, currTx);
+                set.put(deltaField, previous == null ? value : subtract(value, previous));
+            }
+            operations.add(new Upsert(query(keys.get(i)), new BasicDBObject("$set", set)));
+        }
+        if (!state.writeUnordered(operations).isEmpty()) {
+            throw new IllegalStateException("Puts failed on a duplicate key");
+        }
+    }
+
+    /**
+     * Get the value a batch sees: for opaque states, the previous one if the batch wrote it
+     */
+    private Number valueAt(DBObject doc, Long txid) {
+        Number value = (Number) doc.get(valueField);
+        if (type == StateType.OPAQUE && txid != null && txid.equals(toLong(doc.get(txidField)))) {
+            Number delta = (Number) doc.get(deltaField);
+            return value == null || delta == null ? null : subtract(value, delta);
+        }
+        return value;
+    }
+
+    /**
+     * Values are the stored numbers, whatever type the topology declares
+     */
+    @SuppressWarnings("unchecked")
+    private T value(Object stored) {
+        return (T) stored;
+    }
+
+    private BasicDBObject query(List<Object> key) {
+        BasicDBObject query = new BasicDBObject(state.getMapper().retrieve(key).getQuery());
+        if (!checked && !uniqueKeyIndex) {
+            // Mappers only tell their query shape for a key, so the first one is checked before any write
+            Object id = query.get("_id");
+            if (query.size() != 1 || id == null || isOperator(id)) {
+                throw new IllegalArgumentException("Conditional updates need key queries that match a single _id, or"
+                        + " uniqueKeyIndex set when they are on another unique index, not " + query);
+            }
+            checked = true;
+        }
+        return query;
+    }
+
+    private static boolean isOperator(Object value) {
+        if (!(value instanceof DBObject)) return false;
+        for (String key : ((DBObject) value).keySet()) {
+            if (key.startsWith("$")) return true;
+        }
+        return false;
+    }
+
+    private DBObject projection() {
+        BasicDBObject projection = new BasicDBObject(valueField, 1).append(txidField, 1);
+        if (type == StateType.OPAQUE) projection.append(deltaField, 1);
+        return projection;
+    }
+
+    private static Long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : null;
+    }
+
+    private static Number add(Number a, Number b) {
+        if (a == null) return b;
+        if (isIntegral(a) && isIntegral(b)) return a.longValue() + b.longValue();
+        return a.doubleValue() + b.doubleValue();
+    }
+
+    private static Number subtract(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) return a.longValue() - b.longValue();
+        return a.doubleValue() - b.doubleValue();
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+}
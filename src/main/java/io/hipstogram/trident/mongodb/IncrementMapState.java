@@ -0,0 +1,85 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import storm.trident.state.CombinerValueUpdater;
+import storm.trident.state.ValueUpdater;
+import storm.trident.state.map.MapState;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A non-transactional map state for additive combiner aggregations (Count, Sum) that never
+ * reads before writing: the partial aggregate of every key in the batch is added to the stored
+ * value with a $inc upsert, in unordered bulks. Reads only happen on queries. The combiner must
+ * add its values up, as $inc does, and the updated values are not known: multiUpdate returns
+ * nulls, so the new values stream of persistentAggregate carries nulls as well.
+ * @author Andrés Sánchez
+ */
+public class IncrementMapState<T> implements MapState<T>
+{
+    // Backing state, for the queries and the bulks
+    private final MongoDBMapState<T> state;
+
+    /**
+     * Create a new increment map state
+     * @param state Backing state, with an increment field in its options
+     */
+    public IncrementMapState(MongoDBMapState<T> state) {
+        this.state = state;
+    }
+
+    @Override
+    public List<T> multiGet(List<List<Object>> keys) {
+        return state.multiGet(keys);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List<T> multiUpdate(List<List<Object>> keys, List<ValueUpdater> updaters) {
+        List<Number> deltas = new ArrayList<Number>(updaters.size());
+        for (ValueUpdater<?> updater : updaters) {
+            if (!(updater instanceof CombinerValueUpdater)) {
+                throw new UnsupportedOperationException("Increment states only support combiner aggregations, not "
+                        + updater.getClass().getName());
+            }
+            // With nothing stored, a combiner updater returns the partial aggregate of the batch
+            Object delta = updater.update(null);
+            if (delta != null && !(delta instanceof Number)) {
+                throw new IllegalArgumentException("Increment states need numeric aggregates, not " + delta.getClass().getName());
+            }
+            deltas.add((Number) delta);
+        }
+        state.multiIncrement(keys, deltas);
+        return Collections.<T>nCopies(keys.size(), null);
+    }
+
+    @Override
+    public void multiPut(List<List<Object>> keys, List<T> values) {
+        state.multiPut(keys, values);
+    }
+
+    @Override
+    public void beginCommit(Long txid) {
+    }
+
+    @Override
+    public void commit(Long txid) {
+    }
+}
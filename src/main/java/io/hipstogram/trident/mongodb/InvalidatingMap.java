@@ -0,0 +1,489 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import backtype.storm.metric.api.IMetric;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.hipstogram.trident.mongodb.cache.MapStateCache;
+import io.hipstogram.trident.mongodb.collection.ChangeFeed;
+import io.hipstogram.trident.mongodb.collection.Documents;
+import io.hipstogram.trident.mongodb.collection.FeedGapException;
+import org.bson.types.BSONTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.TransactionalValue;
+import storm.trident.state.map.IBackingMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backing map that keeps a cache over it consistent with the writes of other writers. The
+ * keys passing through it, which are the ones the cache holds, are indexed by the _id their
+ * query looks up, and a background thread reads the change feed of the collection and
+ * invalidates the cached keys of the changed documents. Keys whose query is not an _id
+ * equality are invalidated on every change.
+ * <p>
+ * Changes made by this map are skipped: the cache already holds their values. Those are the
+ * changed documents that still hold, in the txid field, the txid of the last opaque or
+ * transactional value this map wrote to them, which is checked with a query reading the txid
+ * only. Other writers of the same keys must write other txids. Non-transactional values have
+ * no txid, so every change of their keys invalidates them.
+ * <p>
+ * The thread resumes from the position of the last change read after a failed poll. The
+ * whole cache is invalidated when the feed no longer holds the changes after that position,
+ * when it lags too far behind, and while it cannot be read for that long. The value of a
+ * read or write may be cached just after an invalidation of its key, so invalidated keys,
+ * and the keys of reads and writes that ran across an invalidation, are invalidated again
+ * on the next poll.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class InvalidatingMap<T> implements IBackingMap<T>, IMetric
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(InvalidatingMap.class);
+
+    // Time changed _ids are remembered to find racing reads and writes
+    private static final long RACE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Longest wait between two failed polls
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    // Backing map
+    private final IBackingMap<T> delegate;
+
+    // State, for the _ids of the keys
+    private final MongoDBMapState<T> state;
+
+    // Change feed of the collection
+    private final ChangeFeed feed;
+
+    // Name of the feed, for the logs
+    private final String name;
+
+    // Field holding the txid in the documents
+    private final String txidField;
+
+    // Time between two polls that found no more changes
+    private final long pollMillis;
+
+    // Maximum number of changes per poll
+    private final int batchSize;
+
+    // Lag of the feed above which the whole cache is invalidated
+    private final long maxLagMillis;
+
+    // Maximum number of indexed keys
+    private final int maxKeys;
+
+    // Invalidated cache
+    private volatile MapStateCache<T> cache;
+
+    // Cached keys by _id, least recently used first
+    private final LinkedHashMap<Object, List<Object>> index;
+
+    // Cached keys without an _id
+    private final Set<List<Object>> unindexed = new LinkedHashSet<List<Object>>();
+
+    // Txid of the last value written by this map, by _id, oldest first
+    private final LinkedHashMap<Object, Long> written;
+
+    // Changed _ids of the race window, by time of the change, oldest first
+    private final LinkedHashMap<Object, Long> recent = new LinkedHashMap<Object, Long>();
+
+    // Changes before this time are no longer remembered
+    private long forgottenNanos = System.nanoTime();
+
+    // Time of the last change
+    private long lastChangeNanos = System.nanoTime();
+
+    // Keys to invalidate again on the next poll
+    private List<List<Object>> raced = new ArrayList<List<Object>>();
+
+    // Position of the last change read
+    private volatile BSONTimestamp position;
+
+    // Lag of the feed at the last poll
+    private volatile long lagMillis = 0;
+
+    // Counts, and their values at the last report
+    private long invalidated = 0;
+    private long fullInvalidations = 0;
+    private long reportedInvalidated = 0;
+    private long reportedFullInvalidations = 0;
+
+    // Background reader
+    private Thread reader;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new invalidating map, reading the feed from its latest change
+     * @param delegate Backing map
+     * @param state State under the backing map
+     * @param feed Change feed of the collection
+     * @param name Name of the feed, for the logs
+     * @param txidField Field holding the txid in the documents
+     * @param pollMillis Time between two polls that found no more changes
+     * @param batchSize Maximum number of changes per poll
+     * @param maxLagMillis Lag of the feed above which the whole cache is invalidated
+     * @param maxKeys Maximum number of indexed keys; the cache keeps no more keys than this
+     */
+    public InvalidatingMap(IBackingMap<T> delegate, MongoDBMapState<T> state, ChangeFeed feed, String name,
+                           String txidField, long pollMillis, int batchSize, long maxLagMillis, int maxKeys) {
+        this.delegate = delegate;
+        this.state = state;
+        this.feed = feed;
+        this.name = name;
+        this.txidField = txidField;
+        this.pollMillis = pollMillis;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxLagMillis = maxLagMillis;
+        this.maxKeys = Math.max(1, maxKeys);
+        this.index = new LinkedHashMap<Object, List<Object>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, List<Object>> eldest) {
+                if (size() <= InvalidatingMap.this.maxKeys) return false;
+                // Keys that are no longer indexed cannot stay cached, once the cache has them
+                raced.add(eldest.getValue());
+                return true;
+            }
+        };
+        this.written = new LinkedHashMap<Object, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Long> eldest) {
+                return size() > InvalidatingMap.this.maxKeys;
+            }
+        };
+        // Changes made from now on reach the cache
+        this.position = feed.latest();
+    }
+
+    /**
+     * Set the invalidated cache and start reading the feed
+     * @param cache Cache over this map
+     */
+    public synchronized void setCache(MapStateCache<T> cache) {
+        this.cache = cache;
+        reader = new DaemonThreadFactory("mongodb-invalidation").newThread(new Runnable() {
+            @Override
+            public void run() {
+                runReader();
+            }
+        });
+        reader.start();
+    }
+
+    @Override
+    public List<T> multiGet(List<List<Object>> keys) {
+        long start = System.nanoTime();
+        List<Object> ids = index(keys);
+        List<T> values = delegate.multiGet(keys);
+        checkRaces(keys, ids, start);
+        return values;
+    }
+
+    @Override
+    public void multiPut(List<List<Object>> keys, List<T> values) {
+        long start = System.nanoTime();
+        List<Object> ids = index(keys);
+        recordWrites(ids, values);
+        delegate.multiPut(keys, values);
+        checkRaces(keys, ids, start);
+    }
+
+    /**
+     * Stop reading the feed
+     */
+    public void close() {
+        closed = true;
+        Thread reader;
+        synchronized (this) {
+            reader = this.reader;
+        }
+        if (reader != null) reader.interrupt();
+    }
+
+    /**
+     * Get the position of the last change read
+     * @return Resume position
+     */
+    public BSONTimestamp getPosition() {
+        return position;
+    }
+
+    /**
+     * Report the invalidated keys and full invalidations since the last report, the lag of
+     * the feed and the number of indexed keys
+     */
+    @Override
+    public synchronized Object getValueAndReset() {
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("invalidatedCount", invalidated - reportedInvalidated);
+        value.put("fullInvalidationCount", fullInvalidations - reportedFullInvalidations);
+        value.put("lagMillis", lagMillis);
+        value.put("indexedKeys", index.size() + unindexed.size());
+        reportedInvalidated = invalidated;
+        reportedFullInvalidations = fullInvalidations;
+        return value;
+    }
+
+    /**
+     * Index keys before they are read or written
+     * @return The normalized _ids of the keys, null for keys without one
+     */
+    private List<Object> index(List<List<Object>> keys) {
+        List<Object> ids = new ArrayList<Object>(keys.size());
+        for (List<Object> key : keys) {
+            Object id = state.filterId(key);
+            ids.add(id == null ? null : Documents.normalize(id));
+        }
+        synchronized (this) {
+            for (int i = 0; i < keys.size(); i++) {
+                Object id = ids.get(i);
+                if (id != null) {
+                    index.put(id, keys.get(i));
+                } else if (unindexed.add(keys.get(i)) && unindexed.size() > maxKeys) {
+                    Iterator<List<Object>> eldest = unindexed.iterator();
+                    raced.add(eldest.next());
+                    eldest.remove();
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Remember the txids of the values about to be written
+     */
+    private synchronized void recordWrites(List<Object> ids, List<T> values) {
+        for (int i = 0; i < ids.size(); i++) {
+            Object id = ids.get(i);
+            if (id == null) continue;
+            Long txid = txid(values.get(i));
+            written.remove(id);
+            if (txid != null) written.put(id, txid);
+        }
+    }
+
+    /**
+     * Find the changed _ids whose documents still hold the txid this map last wrote to them
+     * @return Normalized _ids of the changes made by this map
+     */
+    private Set<Object> ownWrites(List<ChangeFeed.Change> changes) {
+        if (txidField == null || changes.isEmpty()) return Collections.emptySet();
+        List<Object> ids = new ArrayList<Object>();
+        List<List<Object>> keys = new ArrayList<List<Object>>();
+        List<Long> txids = new ArrayList<Long>();
+        synchronized (this) {
+            Set<Object> seen = new HashSet<Object>();
+            for (ChangeFeed.Change change : changes) {
+                if (change.getId() == null) continue;
+                Object id = Documents.normalize(change.getId());
+                Long txid = written.get(id);
+                List<Object> key = txid == null ? null : index.get(id);
+                if (key != null && seen.add(id)) {
+                    ids.add(id);
+                    keys.add(key);
+                    txids.add(txid);
+                }
+            }
+        }
+        if (keys.isEmpty()) return Collections.emptySet();
+
+        Set<Object> own = new HashSet<Object>();
+        List<DBObject> docs = state.findDocuments(keys, new BasicDBObject(txidField, 1));
+        for (int i = 0; i < keys.size(); i++) {
+            Object stored = docs.get(i) == null ? null : CacheSnapshotMap.field(docs.get(i), txidField);
+            if (stored instanceof Number && ((Number) stored).longValue() == txids.get(i)) {
+                own.add(ids.get(i));
+            }
+        }
+        return own;
+    }
+
+    /**
+     * Find the keys of a read or write started at a given time that were invalidated since
+     */
+    private synchronized void checkRaces(List<List<Object>> keys, List<Object> ids, long start) {
+        if (lastChangeNanos - start < 0) return;
+        boolean forgotten = forgottenNanos - start >= 0;
+        for (int i = 0; i < keys.size(); i++) {
+            Object id = ids.get(i);
+            Long changed = id == null ? null : recent.get(id);
+            if (forgotten || id == null || (changed != null && changed - start >= 0)) {
+                raced.add(keys.get(i));
+            }
+        }
+    }
+
+    /**
+     * Read the feed until the map is closed
+     */
+    private void runReader() {
+        int failures = 0;
+        long lastPollMillis = System.currentTimeMillis();
+        while (!closed) {
+            long waitMillis = pollMillis;
+            try {
+                invalidateRaced();
+                List<ChangeFeed.Change> changes = feed.poll(position, batchSize);
+                Set<Object> own = ownWrites(changes);
+                lastPollMillis = System.currentTimeMillis();
+                failures = 0;
+                invalidate(changes, own);
+                if (changes.size() >= batchSize) {
+                    lagMillis = lastPollMillis - changes.get(changes.size() - 1).getPosition().getTime() * 1000L;
+                    if (lagMillis > maxLagMillis) {
+                        fallBack("the feed is " + lagMillis + " ms behind");
+                    }
+                    // More changes are waiting
+                    waitMillis = 0;
+                } else {
+                    lagMillis = 0;
+                }
+            } catch (FeedGapException e) {
+                fallBack(e.getMessage());
+            } catch (RuntimeException e) {
+                failures++;
+                if (failures == 1) {
+                    LOG.warn("Cannot read the changes of " + name + ", resuming from " + position, e);
+                }
+                if (System.currentTimeMillis() - lastPollMillis > maxLagMillis) {
+                    // The cache may be stale for as long as the feed is down
+                    invalidateAll();
+                }
+                waitMillis = Math.min(MAX_BACKOFF_MILLIS, pollMillis << Math.min(failures, 10));
+            }
+
+            if (waitMillis > 0) {
+                try {
+                    Thread.sleep(waitMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidate the cached keys of a list of changes and move past them
+     * @param changes Changes read from the feed
+     * @param own Normalized _ids of the changes made by this map, which are skipped
+     */
+    private synchronized void invalidate(List<ChangeFeed.Change> changes, Set<Object> own) {
+        if (changes.isEmpty()) return;
+        long now = System.nanoTime();
+        boolean foreign = false;
+        for (ChangeFeed.Change change : changes) {
+            if (change.getId() == null) {
+                LOG.info("Every document of {} may have changed, invalidating the cache", name);
+                invalidateAll();
+                foreign = true;
+                continue;
+            }
+            Object id = Documents.normalize(change.getId());
+            if (own.contains(id)) continue;
+            foreign = true;
+            recent.remove(id);
+            recent.put(id, now);
+            List<Object> key = index.get(id);
+            if (key != null) {
+                cache.invalidate(key);
+                raced.add(key);
+                invalidated++;
+            }
+        }
+        if (foreign) {
+            for (List<Object> key : unindexed) {
+                cache.invalidate(key);
+                raced.add(key);
+                invalidated++;
+            }
+            lastChangeNanos = now;
+        }
+        position = changes.get(changes.size() - 1).getPosition();
+
+        Iterator<Map.Entry<Object, Long>> oldest = recent.entrySet().iterator();
+        while (oldest.hasNext()) {
+            long changed = oldest.next().getValue();
+            if (now - changed < RACE_WINDOW_NANOS) break;
+            forgottenNanos = changed;
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Invalidate the keys of racing reads and writes
+     */
+    private synchronized void invalidateRaced() {
+        for (List<Object> key : raced) {
+            cache.invalidate(key);
+        }
+        raced = new ArrayList<List<Object>>();
+    }
+
+    /**
+     * Invalidate the whole cache and read the feed from its latest change
+     */
+    private void fallBack(String reason) {
+        LOG.warn("Invalidating the cache of {}: {}", name, reason);
+        try {
+            position = feed.latest();
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot read the latest change of " + name, e);
+        }
+        invalidateAll();
+    }
+
+    /**
+     * Invalidate the whole cache, or the keys of this collection in a shared cache. Reads and
+     * writes in progress are all racing.
+     */
+    private synchronized void invalidateAll() {
+        cache.clear();
+        index.clear();
+        unindexed.clear();
+        written.clear();
+        recent.clear();
+        forgottenNanos = System.nanoTime();
+        lastChangeNanos = forgottenNanos;
+        fullInvalidations++;
+    }
+
+    /**
+     * Get the txid of an opaque or transactional value
+     * @return The txid, null for other values
+     */
+    private static Long txid(Object value) {
+        if (value instanceof OpaqueValue) return ((OpaqueValue<?>) value).getCurrTxid();
+        if (value instanceof TransactionalValue) return ((TransactionalValue<?>) value).getTxid();
+        return null;
+    }
+}
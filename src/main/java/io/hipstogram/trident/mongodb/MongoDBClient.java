@@ -18,15 +18,18 @@ package io.hipstogram.trident.mongodb;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.MongoClient;
-import com.mongodb.ServerAddress;
+import io.hipstogram.trident.mongodb.collection.CollectionProvider;
+import io.hipstogram.trident.mongodb.collection.DriverCollection;
+import io.hipstogram.trident.mongodb.collection.FaultInjectingCollection;
+import io.hipstogram.trident.mongodb.collection.MongoDBCollection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.net.UnknownHostException;
 import java.util.*;
 
 /**
- * A MongoDB Client
+ * A MongoDB Client. Clients with the same hosts and connection settings share a single
+ * driver client and connection pool in the worker (see {@link SharedClients}).
  * @author Andrés Sánchez
  */
 public class MongoDBClient
@@ -43,8 +46,15 @@ public class MongoDBClient
     // MongoDB hosts
     private String[] hosts;
 
-    // A MongoDB client (MongoDB Java API)
-    private MongoClient client;
+    // Reference to the shared MongoDB client (MongoDB Java API), null with a provider or once closed
+    private SharedClients.Entry client;
+
+    // Collections used instead of the driver ones, null for the driver
+    private CollectionProvider provider;
+
+    // Injected latency and failure rate of every collection
+    private long injectedLatencyMicros;
+    private double injectedFailureRate;
 
     /**
      * Create a new instance of a MongoDBClient
@@ -52,7 +62,27 @@ public class MongoDBClient
      */
     public MongoDBClient(Map configuration) {
         String hostProperty = (String) configuration.get(MongoDBStateFactory.MONGODB_HOSTS);
-        hosts = hostProperty.split(",");
+        if (hostProperty != null) {
+            hosts = hostProperty.split(",");
+        }
+
+        String providerClass = (String) configuration.get(MongoDBStateFactory.MONGODB_COLLECTION_PROVIDER);
+        if (providerClass != null) {
+            try {
+                provider = (CollectionProvider) Class.forName(providerClass).getDeclaredConstructor().newInstance();
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot create collection provider " + providerClass, e);
+            }
+        } else if (hosts == null) {
+            throw new IllegalArgumentException(MongoDBStateFactory.MONGODB_HOSTS + " is not set");
+        }
+
+        injectedLatencyMicros = toNumber(configuration.get(MongoDBStateFactory.MONGODB_INJECT_LATENCY_MICROS)).longValue();
+        injectedFailureRate = toNumber(configuration.get(MongoDBStateFactory.MONGODB_INJECT_FAILURE_RATE)).doubleValue();
+
+        if (provider == null) {
+            client = SharedClients.acquire(configuration);
+        }
     }
 
     /**
@@ -66,6 +96,33 @@ public class MongoDBClient
         return getClient().getDB(dbName).getCollection(collName);
     }
 
+    /**
+     * Get the collection the states use, given a set of properties
+     * @param configuration Set of properties
+     * @return The specified collection
+     */
+    public MongoDBCollection getMongoDBCollection(Map<?, ?> configuration) {
+        String dbName = (String) configuration.get(MongoDBStateFactory.MONGODB_DB);
+        String collName = (String) configuration.get(MongoDBStateFactory.MONGODB_COLLECTION);
+        return getMongoDBCollection(dbName, collName);
+    }
+
+    /**
+     * Get the collection the states use. Override to run the states against another implementation.
+     * @param dbName Name of the database
+     * @param collName Name of the collection
+     * @return The specified collection
+     */
+    public MongoDBCollection getMongoDBCollection(String dbName, String collName) {
+        MongoDBCollection coll = provider != null
+                ? provider.getCollection(dbName, collName)
+                : new DriverCollection(getDB(dbName).getCollection(collName));
+        if (injectedLatencyMicros > 0 || injectedFailureRate > 0) {
+            coll = new FaultInjectingCollection(coll, injectedLatencyMicros, injectedFailureRate);
+        }
+        return coll;
+    }
+
     /**
      * Get an DB object to access a specific database
      * @param dbName Name of the database
@@ -81,20 +138,36 @@ public class MongoDBClient
         return db;
     }
 
+    /**
+     * Read a numeric property, which may come as a number or a string
+     * @param value Property value
+     * @return The number, 0 if the property is not set
+     */
+    private static Number toNumber(Object value) {
+        if (value instanceof Number) return (Number) value;
+        if (value != null) return Double.valueOf(value.toString());
+        return 0;
+    }
+
+    /**
+     * Release the shared client. The last client to release it closes its connections.
+     */
+    public synchronized void close() {
+        if (client != null) {
+            client.release();
+            client = null;
+            databases.clear();
+        }
+    }
+
     /**
      * Get a MongoDB client (MongoDB Java API)
      * @return A MongoDB client
      */
     private MongoClient getClient() {
         if (client == null) {
-            try {
-                List<ServerAddress> addresses = new LinkedList<ServerAddress>();
-                for (String host : hosts) addresses.add(new ServerAddress(host));
-                client = new MongoClient(addresses);
-            } catch (UnknownHostException e) {
-                e.printStackTrace();
-            }
+            throw new IllegalStateException(provider != null ? "Collections come from " + provider.getClass().getName() : "Client is closed");
         }
-        return client;
+        return client.get();
     }
 }
@@ -18,23 +18,41 @@ package io.hipstogram.trident.mongodb;
 import backtype.storm.Config;
 import backtype.storm.metric.api.CountMetric;
 import backtype.storm.task.IMetricsContext;
+import backtype.storm.topology.FailedException;
 import com.mongodb.*;
+import io.hipstogram.trident.mongodb.bulk.BulkChunker;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+import io.hipstogram.trident.mongodb.cache.CachePolicy;
+import io.hipstogram.trident.mongodb.cache.KeyFilter;
+import io.hipstogram.trident.mongodb.collection.BulkWriteErrorsException;
+import io.hipstogram.trident.mongodb.collection.ChangeFeed;
+import io.hipstogram.trident.mongodb.collection.MongoDBCollection;
+import io.hipstogram.trident.mongodb.collection.MongoDBCursor;
+import io.hipstogram.trident.mongodb.collection.ProjectedDecoderFactory;
+import io.hipstogram.trident.mongodb.collection.WriteCounts;
+import io.hipstogram.trident.mongodb.metrics.BulkMetrics;
+import io.hipstogram.trident.mongodb.metrics.HistogramMetric;
 import io.hipstogram.trident.mongodb.mappers.MongoDBRowMapper;
+import io.hipstogram.trident.mongodb.mappers.ProjectedRowMapper;
 import io.hipstogram.trident.mongodb.operation.CRUDOperation;
 import io.hipstogram.trident.mongodb.operation.Query;
+import io.hipstogram.trident.mongodb.operation.QueryBatch;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import io.hipstogram.trident.mongodb.tracing.BatchTrace;
+import io.hipstogram.trident.mongodb.tracing.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import storm.trident.state.OpaqueValue;
+import storm.trident.state.Serializer;
 import storm.trident.state.StateFactory;
 import storm.trident.state.StateType;
 import storm.trident.state.TransactionalValue;
 import storm.trident.state.map.IBackingMap;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * MongoDB Map State
@@ -47,7 +65,7 @@ public class MongoDBMapState<T> implements IBackingMap<T>
     private static final Logger LOG = LoggerFactory.getLogger(MongoDBMapState.class);
 
     // MongoDB Mapper
-    private MongoDBRowMapper mapper;
+    private MongoDBRowMapper<List<Object>, T> mapper;
 
     // MongoDB Client
     private MongoDBClient client;
@@ -58,13 +76,44 @@ public class MongoDBMapState<T> implements IBackingMap<T>
     // Set of properties
     private Map configuration;
 
-    // Collection
-    private DBCollection coll;
+    // Collection, resolved on first use: a shared client is only connected then, and its
+    // pool is sized to the states of the worker created by that time
+    private volatile MongoDBCollection coll;
+
+    // Collection view for queries, with the read preference of the state
+    private volatile MongoDBCollection reads;
+
+    // Read preference of the queries, null for the collection default
+    private ReadPreference readPreference;
+
+    // Executor for sliced calls, null when running on the caller thread only
+    private ExecutorService executor;
+
+    // Decoder for the fields read by the mapper, null to decode whole documents
+    private ProjectedDecoderFactory decoder;
+
+    // Decoders for the mapper fields plus the fields of batched queries, by field list
+    private ConcurrentMap<List<String>, ProjectedDecoderFactory> batchDecoders =
+            new ConcurrentHashMap<List<String>, ProjectedDecoderFactory>();
 
     // Metrics for storm metrics registering
     private CountMetric _mreads;
     private CountMetric _mwrites;
     private CountMetric _mexceptions;
+    private HistogramMetric multiGetLatency = new HistogramMetric();
+    private HistogramMetric multiPutLatency = new HistogramMetric();
+    private HistogramMetric findLatency = new HistogramMetric();
+    private HistogramMetric mapLatency = new HistogramMetric();
+    private HistogramMetric multiGetKeys = new HistogramMetric();
+    private HistogramMetric multiPutKeys = new HistogramMetric();
+    private BulkMetrics bulkMetrics = new BulkMetrics();
+
+    // Tracer, null when tracing is off
+    private Tracer tracer;
+
+    // Filter of the _ids known to exist, null to look every key up
+    private KeyFilter keyFilter;
+    private CountMetric _mfiltered = new CountMetric();
 
     // MongoDB Options class
     public static class Options<T> implements Serializable {
@@ -72,6 +121,49 @@ public class MongoDBMapState<T> implements IBackingMap<T>
         public String globalKey = "globalkey";
         public String db = "test";
         public String collection = "mycollection";
+        public boolean batchReads = false;
+        public int readBatchSize = 500;
+        public int parallelism = 1;
+        public int minSliceSize = 100;
+        public BulkWriteOptions writeOptions = new BulkWriteOptions();
+        public int maxBatchSize = 1000;
+        public long maxBatchBytes = 8 * 1024 * 1024;
+        public CachePolicy cachePolicy = CachePolicy.CACHED_MAP;
+        public long cacheMaxBytes = 64 * 1024 * 1024;
+        public long cacheTtlMillis = 0;
+        public boolean cacheOffHeap = false;
+        public Serializer<T> cacheSerializer = null;
+        public boolean sharedCache = false;
+        public boolean writeBehind = false;
+        public long writeBehindIntervalMillis = 1000;
+        public int writeBehindFlushKeys = 1000;
+        public int writeBehindMaxPending = 10000;
+        public long traceSlowMillis = 0;
+        public int traceBufferSize = 32;
+        public String readPreference = null;
+        public String readPreferenceTags = null;
+        public long maxStalenessMillis = 0;
+        public String incrementField = null;
+        public String txidField = "txid";
+        public String deltaField = "delta";
+        public boolean uniqueKeyIndex = false;
+        public long keyFilterExpectedKeys = 0;
+        public double keyFilterFalsePositiveRate = 0.01;
+        public String keyFilterDir = null;
+        public long keyFilterSnapshotIntervalMillis = 60000;
+        public String warmUpDir = null;
+        public int warmUpMaxKeys = 100000;
+        public long warmUpMaxMillis = 10000;
+        public long warmUpMaxBytes = 0;
+        public long warmUpSnapshotIntervalMillis = 60000;
+        public String cacheSnapshotDir = null;
+        public long cacheSnapshotIntervalMillis = 300000;
+        public int cacheSnapshotRestoreBatches = 100;
+        public boolean cacheInvalidation = false;
+        public long invalidationPollMillis = 100;
+        public int invalidationBatchSize = 1000;
+        public long invalidationMaxLagMillis = 30000;
+        public int invalidationMaxKeys = 1000000;
     }
 
     /**
@@ -84,10 +176,134 @@ public class MongoDBMapState<T> implements IBackingMap<T>
     public MongoDBMapState(MongoDBClient client, MongoDBRowMapper mapper, Options<?> options, Map configuration)
     {
         this.client = client;
-        this.mapper = mapper;
+        this.mapper = typed(mapper);
         this.options = options;
         this.configuration = configuration;
-        this.coll = client.getDB(options.db).getCollection(options.collection);
+        this.readPreference = readPreference(options);
+        if (options.parallelism > 1) {
+            this.executor = Executors.newFixedThreadPool(options.parallelism, new DaemonThreadFactory("mongodb-map-state"));
+        }
+        if (mapper instanceof ProjectedRowMapper) {
+            this.decoder = new ProjectedDecoderFactory(((ProjectedRowMapper) mapper).getFields());
+        }
+    }
+
+    /**
+     * Set the read preference of the queries, replacing the one in the options
+     * @param readPreference Read preference
+     */
+    public synchronized void setReadPreference(ReadPreference readPreference) {
+        this.readPreference = readPreference;
+        this.reads = null;
+    }
+
+    /**
+     * Release the executor of sliced calls and the reference to the shared client, which is
+     * closed with the last state of the worker using it. The state cannot be used afterwards.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        client.close();
+    }
+
+    /**
+     * Get the read preference set in some options
+     * @param options Options with a read preference name and, optionally, tag sets like
+     *                "dc:east,rack:1;dc:west", tried in order. An empty tag set matches any member.
+     * @return A read preference, null if the options have none
+     */
+    public static ReadPreference readPreference(Options<?> options) {
+        if (options.readPreference == null) {
+            return null;
+        }
+        if (options.readPreferenceTags == null) {
+            return ReadPreference.valueOf(options.readPreference);
+        }
+        List<DBObject> tagSets = new ArrayList<DBObject>();
+        for (String tagSet : options.readPreferenceTags.split(";", -1)) {
+            BasicDBObject tags = new BasicDBObject();
+            for (String tag : tagSet.split(",")) {
+                if (tag.trim().isEmpty()) continue;
+                int colon = tag.indexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Tags must be name:value pairs: " + options.readPreferenceTags);
+                }
+                tags.put(tag.substring(0, colon).trim(), tag.substring(colon + 1).trim());
+            }
+            tagSets.add(tags);
+        }
+        return ReadPreference.valueOf(options.readPreference, tagSets.get(0),
+                tagSets.subList(1, tagSets.size()).toArray(new DBObject[tagSets.size() - 1]));
+    }
+
+    /**
+     * Skip the lookups of keys a filter knows to be absent. A filter that was not restored
+     * from disk is filled with every _id of the collection first.
+     * Must be called before registering the metrics.
+     * @param keyFilter Filter of the _ids that exist
+     */
+    public void setKeyFilter(KeyFilter keyFilter) {
+        if (!keyFilter.isRestored()) {
+            long start = System.currentTimeMillis();
+            long count = 0;
+            MongoDBCursor ids = reads().find(new BasicDBObject(), new BasicDBObject("_id", 1),
+                    new ProjectedDecoderFactory(new String[]{"_id"}));
+            try {
+                while (ids.hasNext()) {
+                    keyFilter.add(ids.next().get("_id"));
+                    count++;
+                }
+            } finally {
+                ids.close();
+            }
+            try {
+                keyFilter.snapshot();
+            } catch (IOException e) {
+                LOG.warn("Cannot write key filter snapshot", e);
+            }
+            LOG.info("Loaded [{}] _ids of [{}] into the key filter in [{}] ms",
+                    new Object[]{count, options.db + "." + options.collection, System.currentTimeMillis() - start});
+        }
+        this.keyFilter = keyFilter;
+    }
+
+    /**
+     * Add keys to the key filter, on disk as well, before they are written
+     */
+    private void addToKeyFilter(List<List<Object>> keys) {
+        if (keyFilter == null) return;
+        for (List<Object> key : keys) {
+            Object id = filterId(key);
+            if (id != null) keyFilter.add(id);
+        }
+        keyFilter.flush();
+    }
+
+    /**
+     * Get the _id the query of a key looks up
+     * @param key Key
+     * @return The _id, or null if the query is not an _id equality
+     */
+    Object filterId(List<Object> key) {
+        BasicDBObject query = mapper.retrieve(key).getQuery();
+        if (query.size() != 1) return null;
+        Object id = query.get("_id");
+        if (id instanceof DBObject && !(id instanceof List)) {
+            for (String field : ((DBObject) id).keySet()) {
+                if (field.startsWith("$")) return null;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Enable batch tracing. Must be called before registering the metrics.
+     * @param tracer Tracer of this state
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
     }
 
     /**
@@ -100,6 +316,46 @@ public class MongoDBMapState<T> implements IBackingMap<T>
         _mreads = context.registerMetric("mongodb/readCount", new CountMetric(), bucketSize);
         _mwrites = context.registerMetric("mongodb/writeCount", new CountMetric(), bucketSize);
         _mexceptions = context.registerMetric("mongodb/exceptionCount", new CountMetric(), bucketSize);
+        context.registerMetric("mongodb/multiGetLatency", multiGetLatency, bucketSize);
+        context.registerMetric("mongodb/multiPutLatency", multiPutLatency, bucketSize);
+        context.registerMetric("mongodb/findLatency", findLatency, bucketSize);
+        context.registerMetric("mongodb/mapLatency", mapLatency, bucketSize);
+        context.registerMetric("mongodb/multiGetKeys", multiGetKeys, bucketSize);
+        context.registerMetric("mongodb/multiPutKeys", multiPutKeys, bucketSize);
+        bulkMetrics.register(context, bucketSize);
+        if (keyFilter != null) {
+            context.registerMetric("mongodb/filteredReads", _mfiltered, bucketSize);
+        }
+        if (tracer != null) {
+            context.registerMetric("mongodb/slowBatches", tracer, bucketSize);
+        }
+    }
+
+    /**
+     * Create a StateFactory for additive combiner aggregations that only writes $inc upserts
+     * @param mapper Row Mapper, used for the queries of the keys and for reads
+     * @param incrementField Field holding the aggregate
+     * @return An increment StateFactory
+     * @see IncrementMapState
+     */
+    public static StateFactory increments(MongoDBRowMapper mapper, String incrementField) {
+        Options<Object> options = new Options<Object>();
+        options.incrementField = incrementField;
+        return increments(mapper, options);
+    }
+
+    /**
+     * Create a StateFactory for additive combiner aggregations that only writes $inc upserts
+     * @param mapper Row Mapper, used for the queries of the keys and for reads
+     * @param opts Options for MongoDB, with an increment field
+     * @return An increment StateFactory
+     * @see IncrementMapState
+     */
+    public static StateFactory increments(MongoDBRowMapper mapper, Options<Object> opts) {
+        if (opts.incrementField == null) {
+            throw new IllegalArgumentException("Increment states need an increment field");
+        }
+        return new MongoDBMapStateFactory(mapper, StateType.NON_TRANSACTIONAL, opts);
     }
 
     /**
@@ -164,56 +420,589 @@ public class MongoDBMapState<T> implements IBackingMap<T>
 
     @Override
     public List<T> multiGet(List<List<Object>> keys) {
+        long start = System.nanoTime();
+        multiGetKeys.record(keys.size());
+        final BatchTrace trace = tracer == null ? null : tracer.current();
         try {
-            List<T> values = new ArrayList<T>();
+            // Keys the filter knows to be absent are not looked up
+            List<List<Object>> lookups = keys;
+            List<Integer> positions = null;
+            if (keyFilter != null) {
+                lookups = new ArrayList<List<Object>>(keys.size());
+                positions = new ArrayList<Integer>(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    Object id = filterId(keys.get(i));
+                    if (id == null || keyFilter.mightContain(id)) {
+                        lookups.add(keys.get(i));
+                        positions.add(i);
+                    }
+                }
+                _mfiltered.incrBy(keys.size() - lookups.size());
+            }
+
+            List<T> values;
+            if (lookups.isEmpty()) {
+                values = new ArrayList<T>();
+            } else if (isSliced(lookups.size())) {
+                values = inSlices(lookups.size(), new Slice<T>() {
+                    public List<T> run(List<List<Object>> keys, List<T> values) {
+                        return doMultiGet(keys, trace);
+                    }
+                }, lookups, null);
+            } else {
+                values = doMultiGet(lookups, trace);
+            }
+
+            if (positions != null) {
+                List<T> found = values;
+                values = new ArrayList<T>(Collections.<T>nCopies(keys.size(), null));
+                for (int i = 0; i < found.size(); i++) values.set(positions.get(i), found.get(i));
+            }
+
+            _mreads.incrBy(values.size());
+            LOG.debug("Retrieving the following keys: {} with values: {}", keys, values);
+            return values;
+        } catch (Exception e) {
+            _mexceptions.incr();
+            LOG.error("Failed to retrieve {} keys", keys.size(), e);
+            throw failed(e);
+        } finally {
+            multiGetLatency.recordSince(start);
+            if (trace != null) trace.phase("backingGet", System.nanoTime() - start);
+        }
+    }
 
-            for (List<Object> rowKey : keys) {
-                Query operation = mapper.retrieve(rowKey);
+    /**
+     * Retrieve the values of a list of keys
+     * @param keys List of keys
+     * @param trace Batch in progress, may be null
+     * @return Values in key order
+     */
+    private List<T> doMultiGet(List<List<Object>> keys, BatchTrace trace) {
+        if (options.batchReads) {
+            return multiGetBatched(keys, trace);
+        }
 
-                DBCursor results = coll.find(operation.getQuery(), operation.getProjection());
+        List<T> values = new ArrayList<T>(keys.size());
 
-                Iterator<DBObject> docIter = results.iterator();
+        for (List<Object> rowKey : keys) {
+            Query operation = mapper.retrieve(rowKey);
+
+            long start = System.nanoTime();
+            MongoDBCursor results = reads().find(operation.getQuery(), operation.getProjection(), decoder);
+            try {
                 DBObject doc;
-                if (results != null && docIter.hasNext() && (doc = docIter.next()) != null) {
-                    if (docIter.hasNext()) {
+                if (results.hasNext() && (doc = results.next()) != null) {
+                    if (results.hasNext()) {
                         LOG.error("Found non-unique value for key [{}]", rowKey);
+                        values.add(null);
                     } else {
-                        values.add((T) mapper.getValue(doc));
+                        values.add(mapper.getValue(doc));
                     }
                 } else {
                     values.add(null);
                 }
+            } finally {
+                results.close();
+                findLatency.recordSince(start);
+                if (trace != null) trace.call("find", operation.getQuery(), System.nanoTime() - start);
             }
-
+        }
+        return values;
+    }
+    /**
+     * Retrieve the values of a list of keys using a few merged queries, whatever the options say
+     * @param keys List of keys
+     * @return Values in key order, null for missing keys
+     */
+    List<T> multiGetBatched(List<List<Object>> keys) {
+        long start = System.nanoTime();
+        try {
+            List<T> values = multiGetBatched(keys, null);
             _mreads.incrBy(values.size());
-            LOG.debug("Retrieving the following keys: {} with values: {}", keys, values);
             return values;
-        } catch (Exception e) {
-            e.printStackTrace();
-            //throw new IllegalStateException("Impossible to reach this code");
-            return new ArrayList<T>();
+        } finally {
+            multiGetLatency.recordSince(start);
+        }
+    }
+
+    /**
+     * Retrieve the values of a list of keys using a few merged queries
+     * @param keys List of keys
+     * @param trace Batch in progress, may be null
+     * @return Values in key order, null for missing keys
+     */
+    private List<T> multiGetBatched(List<List<Object>> keys, BatchTrace trace) {
+        List<T> values = new ArrayList<T>(keys.size());
+        List<Query> batchable = new ArrayList<Query>(keys.size());
+        List<Integer> positions = new ArrayList<Integer>(keys.size());
+
+        // Queries with operators cannot be matched back to their keys, so they go one by one
+        for (int i = 0; i < keys.size(); i++) {
+            Query operation = mapper.retrieve(keys.get(i));
+            values.add(null);
+            if (QueryBatch.canBatch(operation)) {
+                batchable.add(operation);
+                positions.add(i);
+            } else {
+                values.set(i, findOne(keys.get(i), operation, trace));
+            }
+        }
+
+        QueryBatch batch = new QueryBatch(batchable);
+        DBDecoderFactory batchDecoder = decoderFor(batch.getFields());
+        int[] found = new int[batch.size()];
+        int chunkSize = Math.max(1, options.readBatchSize);
+        for (int from = 0; from < batch.size(); from += chunkSize) {
+            int to = Math.min(batch.size(), from + chunkSize);
+            Query chunk = batch.merge(from, to);
+
+            long start = System.nanoTime();
+            MongoDBCursor results = reads().find(chunk.getQuery(), chunk.getProjection(), batchDecoder);
+            try {
+                while (results.hasNext()) {
+                    DBObject doc = results.next();
+                    for (int index : batch.match(doc, from, to)) {
+                        int position = positions.get(index);
+                        if (++found[index] > 1) {
+                            LOG.error("Found non-unique value for key [{}]", keys.get(position));
+                            values.set(position, null);
+                        } else {
+                            values.set(position, mapper.getValue(doc));
+                        }
+                    }
+                }
+            } finally {
+                results.close();
+                findLatency.recordSince(start);
+                if (trace != null) trace.call("find", chunk.getQuery(), System.nanoTime() - start);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Retrieve the value of a single key
+     * @param rowKey Key
+     * @param operation Query for the key
+     * @param trace Batch in progress, may be null
+     * @return Value, or null if it is missing or not unique
+     */
+    private T findOne(List<Object> rowKey, Query operation, BatchTrace trace) {
+        long start = System.nanoTime();
+        MongoDBCursor results = reads().find(operation.getQuery(), operation.getProjection(), decoder);
+        try {
+            if (!results.hasNext()) return null;
+            DBObject doc = results.next();
+            if (results.hasNext()) {
+                LOG.error("Found non-unique value for key [{}]", rowKey);
+                return null;
+            }
+            return doc == null ? null : mapper.getValue(doc);
+        } finally {
+            results.close();
+            findLatency.recordSince(start);
+            if (trace != null) trace.call("find", operation.getQuery(), System.nanoTime() - start);
         }
     }
 
+    /**
+     * Get a decoder for the mapper fields plus the fields batched queries are matched by
+     * @param queried Queried fields
+     * @return A decoder, or null to decode whole documents
+     */
+    private DBDecoderFactory decoderFor(Set<String> queried) {
+        if (decoder == null) {
+            return null;
+        }
+        String[] declared = decoder.getFields();
+        List<String> fields = new ArrayList<String>(Arrays.asList(declared));
+        for (String field : queried) {
+            if (!fields.contains(field)) fields.add(field);
+        }
+        if (fields.size() == declared.length) {
+            return decoder;
+        }
+        ProjectedDecoderFactory batchDecoder = batchDecoders.get(fields);
+        if (batchDecoder == null) {
+            batchDecoder = new ProjectedDecoderFactory(fields.toArray(new String[fields.size()]));
+            batchDecoders.putIfAbsent(fields, batchDecoder);
+        }
+        return batchDecoder;
+    }
+
     @Override
     public void multiPut(List<List<Object>> keys, List<T> values) {
         LOG.debug("Putting the following keys: {} with values: {}", keys, values);
+        long start = System.nanoTime();
+        multiPutKeys.record(keys.size());
+        final BatchTrace trace = tracer == null ? null : tracer.current();
         try {
-            BulkWriteOperation builder = coll.initializeOrderedBulkOperation();
+            addToKeyFilter(keys);
+            if (isSliced(keys.size())) {
+                inSlices(keys.size(), new Slice<Void>() {
+                    public List<Void> run(List<List<Object>> keys, List<T> values) {
+                        doMultiPut(keys, values, trace);
+                        return Collections.emptyList();
+                    }
+                }, keys, values);
+            } else {
+                doMultiPut(keys, values, trace);
+            }
+
+            _mwrites.incrBy(keys.size());
+        } catch (Exception e) {
+            _mexceptions.incr();
+            LOG.error("Failed to put {} keys", keys.size(), e);
+            throw failed(e);
+        } finally {
+            multiPutLatency.recordSince(start);
+            if (trace != null) trace.phase("backingPut", System.nanoTime() - start);
+        }
+    }
 
-            // Retrieve the mapping statement for the key,val pair
+    /**
+     * Add deltas to the values of a list of keys with $inc upserts on the increment field, without
+     * reading them first. Documents are found by the query of the mapper, which must be made of
+     * equalities for the upsert to create missing documents with their key fields. Upserts that
+     * lose an insert race to another writer fail on a duplicate key; they alone are retried, and
+     * then update the inserted documents. Other failures, and retries that fail again, are
+     * thrown so that the batch is replayed, at the cost of counting twice what was written.
+     * @param keys List of keys
+     * @param deltas Amount to add to every key, null to leave it as it is
+     */
+    public void multiIncrement(List<List<Object>> keys, List<? extends Number> deltas) {
+        if (options.incrementField == null) {
+            throw new IllegalStateException("No increment field set in the options");
+        }
+        LOG.debug("Incrementing the following keys: {} by: {}", keys, deltas);
+        long start = System.nanoTime();
+        multiPutKeys.record(keys.size());
+        BatchTrace trace = tracer == null ? null : tracer.current();
+        try {
+            addToKeyFilter(keys);
+            List<CRUDOperation> operations = new ArrayList<CRUDOperation>(keys.size());
+            long mapStart = System.nanoTime();
             for (int i = 0; i < keys.size(); i++) {
-                List<Object> key = keys.get(i);
-                T val = values.get(i);
-                CRUDOperation operation = mapper.map(key, val);
-                operation.addToBulkOperation(builder);
+                Number delta = deltas.get(i);
+                if (delta == null) continue;
+                BasicDBObject query = mapper.retrieve(keys.get(i)).getQuery();
+                operations.add(new Upsert(query, new BasicDBObject("$inc", new BasicDBObject(options.incrementField, delta))));
             }
+            mapLatency.recordSince(mapStart);
+            if (trace != null) trace.phase("map", System.nanoTime() - mapStart);
 
-            builder.execute();
+            // Increments commute, so bulks need not stop at the first failure
+            Set<Integer> duplicates = writeUnordered(operations, trace);
+            if (!duplicates.isEmpty()) {
+                // The other increments were applied: only the upserts that lost a race are written again
+                List<CRUDOperation> retries = new ArrayList<CRUDOperation>(duplicates.size());
+                for (int index : duplicates) retries.add(operations.get(index));
+                LOG.debug("Retrying {} upserts that raced with another writer", retries.size());
+                if (!writeUnordered(retries, trace).isEmpty()) {
+                    throw new MongoException(BulkWriteOptions.DUPLICATE_KEY, "Concurrent upserts of the same key");
+                }
+            }
+            _mwrites.incrBy(operations.size());
+        } catch (RuntimeException e) {
+            _mexceptions.incr();
+            throw e;
+        } finally {
+            multiPutLatency.recordSince(start);
+            if (trace != null) trace.phase("backingPut", System.nanoTime() - start);
+        }
+    }
 
-            _mwrites.incrBy(keys.size());
-        } catch (Exception e) {
-            LOG.error("Exception {} caught.", e);
+    /**
+     * Write operations in unordered bulks, as part of the batch in progress
+     * @param operations Operations
+     * @return Indexes of the operations that failed on a duplicate key
+     * @see #writeUnordered(List, BatchTrace)
+     */
+    Set<Integer> writeUnordered(List<? extends CRUDOperation> operations) {
+        long start = System.nanoTime();
+        multiPutKeys.record(operations.size());
+        BatchTrace trace = tracer == null ? null : tracer.current();
+        try {
+            Set<Integer> duplicates = writeUnordered(operations, trace);
+            _mwrites.incrBy(operations.size() - duplicates.size());
+            return duplicates;
+        } catch (RuntimeException e) {
+            _mexceptions.incr();
+            throw e;
+        } finally {
+            multiPutLatency.recordSince(start);
+            if (trace != null) trace.phase("backingPut", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Write operations in unordered bulks bounded by maxBatchSize and maxBatchBytes
+     * @param operations Operations
+     * @param trace Batch in progress, may be null
+     * @return Indexes of the operations that failed on a duplicate key
+     * @throws MongoException Any other write failure, or a duplicate key in a bulk of several
+     *         operations when the collection does not tell which ones failed
+     */
+    Set<Integer> writeUnordered(List<? extends CRUDOperation> operations, BatchTrace trace) {
+        BulkWriteOptions writeOptions = new BulkWriteOptions();
+        writeOptions.ordered = false;
+        writeOptions.w = options.writeOptions.w;
+        writeOptions.journal = options.writeOptions.journal;
+        writeOptions.wtimeout = options.writeOptions.wtimeout;
+
+        Set<Integer> duplicates = new TreeSet<Integer>();
+        BulkChunker chunker = new BulkChunker(options.maxBatchSize, options.maxBatchBytes);
+        for (BulkChunker.Chunk chunk : chunker.split(operations)) {
+            long start = System.nanoTime();
+            try {
+                WriteCounts counts = writeOptions.write(collection(), chunk.getOperations());
+                bulkMetrics.record(chunk.size(), chunk.getBytes(), start, counts);
+            } catch (BulkWriteException e) {
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (error.getCode() != BulkWriteOptions.DUPLICATE_KEY) throw e;
+                    duplicates.add(chunk.getFrom() + error.getIndex());
+                }
+                if (e.getWriteConcernError() != null) throw e;
+            } catch (BulkWriteErrorsException e) {
+                for (int i = 0; i < e.getIndexes().size(); i++) {
+                    if (e.getCodes().get(i) != BulkWriteOptions.DUPLICATE_KEY) throw e;
+                    duplicates.add(chunk.getFrom() + e.getIndexes().get(i));
+                }
+            } catch (MongoException e) {
+                // Retrying every operation of the bulk would apply the others twice
+                if (e.getCode() != BulkWriteOptions.DUPLICATE_KEY || chunk.size() != 1) throw e;
+                duplicates.add(chunk.getFrom());
+            } finally {
+                if (trace != null) trace.bulk("bulk", chunk.getOperations(), System.nanoTime() - start);
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Find the documents of a list of keys, in merged queries of readBatchSize keys when
+     * the queries of the mapper allow it
+     * @param keys List of keys
+     * @param projection Fields to return
+     * @return Documents in key order, null for missing or non-unique keys
+     */
+    List<DBObject> findDocuments(List<List<Object>> keys, DBObject projection) {
+        BatchTrace trace = tracer == null ? null : tracer.current();
+        List<DBObject> docs = new ArrayList<DBObject>(Collections.<DBObject>nCopies(keys.size(), null));
+        List<Query> batchable = new ArrayList<Query>(keys.size());
+        List<Integer> positions = new ArrayList<Integer>(keys.size());
+
+        for (int i = 0; i < keys.size(); i++) {
+            Query query = new Query(mapper.retrieve(keys.get(i)).getQuery(), new BasicDBObject(projection.toMap()));
+            if (QueryBatch.canBatch(query)) {
+                batchable.add(query);
+                positions.add(i);
+                continue;
+            }
+            long start = System.nanoTime();
+            MongoDBCursor results = reads().find(query.getQuery(), query.getProjection());
+            try {
+                DBObject doc = results.hasNext() ? results.next() : null;
+                if (doc != null && results.hasNext()) {
+                    LOG.error("Found non-unique value for key [{}]", keys.get(i));
+                    doc = null;
+                }
+                docs.set(i, doc);
+            } finally {
+                results.close();
+                findLatency.recordSince(start);
+                if (trace != null) trace.call("find", query.getQuery(), System.nanoTime() - start);
+            }
+        }
+
+        QueryBatch batch = new QueryBatch(batchable);
+        int[] found = new int[batch.size()];
+        int chunkSize = Math.max(1, options.readBatchSize);
+        for (int from = 0; from < batch.size(); from += chunkSize) {
+            int to = Math.min(batch.size(), from + chunkSize);
+            Query chunk = batch.merge(from, to);
+            long start = System.nanoTime();
+            MongoDBCursor results = reads().find(chunk.getQuery(), chunk.getProjection());
+            try {
+                while (results.hasNext()) {
+                    DBObject doc = results.next();
+                    for (int index : batch.match(doc, from, to)) {
+                        int position = positions.get(index);
+                        if (++found[index] > 1) {
+                            LOG.error("Found non-unique value for key [{}]", keys.get(position));
+                            docs.set(position, null);
+                        } else {
+                            docs.set(position, doc);
+                        }
+                    }
+                }
+            } finally {
+                results.close();
+                findLatency.recordSince(start);
+                if (trace != null) trace.call("find", chunk.getQuery(), System.nanoTime() - start);
+            }
         }
+        _mreads.incrBy(keys.size());
+        return docs;
+    }
+
+    /**
+     * Get the row mapper
+     * @return Row mapper
+     */
+    MongoDBRowMapper<List<Object>, T> getMapper() {
+        return mapper;
+    }
+
+    /**
+     * Type a row mapper, which maps the Trident keys of a state to its values
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static <T> MongoDBRowMapper<List<Object>, T> typed(MongoDBRowMapper mapper) {
+        return mapper;
+    }
+
+    /**
+     * Get the options
+     * @return Options of this state
+     */
+    Options<?> getOptions() {
+        return options;
+    }
+
+    /**
+     * Get the collection, connecting the client on first use
+     */
+    private MongoDBCollection collection() {
+        MongoDBCollection coll = this.coll;
+        if (coll == null) {
+            synchronized (this) {
+                if (this.coll == null) {
+                    this.coll = client.getMongoDBCollection(options.db, options.collection);
+                }
+                coll = this.coll;
+            }
+        }
+        return coll;
+    }
+
+    /**
+     * Get the collection view for queries, connecting the client on first use
+     */
+    private MongoDBCollection reads() {
+        MongoDBCollection reads = this.reads;
+        if (reads == null) {
+            synchronized (this) {
+                if (this.reads == null) {
+                    this.reads = readPreference == null ? collection()
+                            : collection().withReadPreference(readPreference, options.maxStalenessMillis);
+                }
+                reads = this.reads;
+            }
+        }
+        return reads;
+    }
+
+    /**
+     * Get the feed of the changes made to the collection by any writer
+     * @return Change feed
+     */
+    ChangeFeed changes() {
+        return collection().changes();
+    }
+
+    /**
+     * Write a list of key,val pairs in bulk operations bounded by maxBatchSize and maxBatchBytes
+     * @param keys List of keys
+     * @param values List of values
+     * @param trace Batch in progress, may be null
+     */
+    private void doMultiPut(List<List<Object>> keys, List<T> values, BatchTrace trace) {
+        List<CRUDOperation> operations = new ArrayList<CRUDOperation>(keys.size());
+
+        // Retrieve the mapping statement for the key,val pair
+        long mapStart = System.nanoTime();
+        for (int i = 0; i < keys.size(); i++) {
+            List<Object> key = keys.get(i);
+            T val = values.get(i);
+            operations.add(mapper.map(key, val));
+        }
+        mapLatency.recordSince(mapStart);
+        if (trace != null) trace.phase("map", System.nanoTime() - mapStart);
+
+        BulkChunker chunker = new BulkChunker(options.maxBatchSize, options.maxBatchBytes);
+        for (BulkChunker.Chunk chunk : chunker.split(operations)) {
+            long start = System.nanoTime();
+            WriteCounts counts = options.writeOptions.write(collection(), chunk.getOperations());
+            bulkMetrics.record(chunk.size(), chunk.getBytes(), start, counts);
+            if (trace != null) trace.bulk("bulk", chunk.getOperations(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Check whether a call should be split across the executor
+     * @param size Number of keys
+     * @return True if there is more than one slice
+     */
+    private boolean isSliced(int size) {
+        return executor != null && size >= 2 * Math.max(1, options.minSliceSize);
+    }
+
+    /**
+     * Run a call in concurrent slices of keys and merge the results in key order.
+     * If any slice fails, the remaining ones are cancelled and the whole call fails.
+     * @param size Number of keys
+     * @param slice Work to do for every slice
+     * @param keys List of keys
+     * @param values List of values, or null
+     * @return Merged results
+     * @throws Exception The failure of the first failed slice
+     */
+    private <R> List<R> inSlices(int size, final Slice<R> slice, final List<List<Object>> keys, final List<T> values)
+            throws Exception {
+        int slices = Math.min(options.parallelism, size / Math.max(1, options.minSliceSize));
+        int sliceSize = (size + slices - 1) / slices;
+
+        List<Future<List<R>>> futures = new ArrayList<Future<List<R>>>(slices);
+        for (int from = 0; from < size; from += sliceSize) {
+            final int start = from;
+            final int end = Math.min(size, from + sliceSize);
+            futures.add(executor.submit(new Callable<List<R>>() {
+                public List<R> call() throws Exception {
+                    return slice.run(keys.subList(start, end), values == null ? null : values.subList(start, end));
+                }
+            }));
+        }
+
+        List<R> results = new ArrayList<R>(size);
+        try {
+            for (Future<List<R>> future : futures) {
+                results.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            for (Future<List<R>> future : futures) future.cancel(true);
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        return results;
+    }
+
+    /**
+     * Wrap a failure so Trident fails and replays the batch instead of killing the worker
+     * @param e Failure
+     * @return The failure itself if it already is a FailedException
+     */
+    private static FailedException failed(Exception e) {
+        return e instanceof FailedException ? (FailedException) e : new FailedException(e);
+    }
+
+    /**
+     * A slice of a sliced call
+     * @param <R> Result type
+     */
+    private abstract class Slice<R> {
+        abstract List<R> run(List<List<Object>> keys, List<T> values) throws Exception;
     }
 }
@@ -15,14 +15,22 @@
 
 package io.hipstogram.trident.mongodb;
 
+import backtype.storm.Config;
 import backtype.storm.task.IMetricsContext;
 import backtype.storm.tuple.Values;
+import com.mongodb.ReadPreference;
+import io.hipstogram.trident.mongodb.cache.*;
 import io.hipstogram.trident.mongodb.mappers.MongoDBRowMapper;
-import storm.trident.state.State;
-import storm.trident.state.StateFactory;
-import storm.trident.state.StateType;
+import io.hipstogram.trident.mongodb.mappers.ProjectedRowMapper;
+import io.hipstogram.trident.mongodb.tracing.Tracer;
+import io.hipstogram.trident.mongodb.tracing.TracingMapState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.trident.state.*;
 import storm.trident.state.map.*;
 
+import java.io.File;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -32,7 +40,9 @@ import java.util.Map;
 public class MongoDBMapStateFactory implements StateFactory {
     private static final long serialVersionUID = 1L;
 
-    private MongoDBClient clientFactory;
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(MongoDBMapStateFactory.class);
+
     private StateType stateType;
     private MongoDBMapState.Options<?> options;
     private MongoDBRowMapper mapper;
@@ -58,28 +68,188 @@ public class MongoDBMapStateFactory implements StateFactory {
      * @return A new state
      */
     public State makeState(Map configuration, IMetricsContext metrics, int partitionIndex, int numPartitions) {
+        // Every state holds a reference to the worker client for its hosts
+        MongoDBMapState<Object> state = new MongoDBMapState<Object>(new MongoDBClient(configuration), mapper, options, configuration);
+        if (stateType != StateType.NON_TRANSACTIONAL) {
+            // Stored txids must be read back as they were last written
+            if (options.readPreference != null && !ReadPreference.primary().equals(ReadPreference.valueOf(options.readPreference))) {
+                LOG.warn("{} states read from the primary, ignoring read preference [{}]", stateType, options.readPreference);
+            }
+            state.setReadPreference(ReadPreference.primary());
+        }
+        Tracer tracer = null;
+        if (options.traceSlowMillis > 0) {
+            tracer = new Tracer(options.db + "." + options.collection, partitionIndex,
+                    options.traceSlowMillis, options.traceBufferSize);
+            state.setTracer(tracer);
+        }
+        if (options.keyFilterExpectedKeys > 0) {
+            File file = null;
+            if (options.keyFilterDir != null) {
+                File dir = new File(options.keyFilterDir);
+                dir.mkdirs();
+                // Keys only move between partitions when their number changes
+                file = new File(dir, options.db + "." + options.collection + "-" + partitionIndex + "-of-" + numPartitions + ".keys");
+            }
+            state.setKeyFilter(new KeyFilter(options.keyFilterExpectedKeys, options.keyFilterFalsePositiveRate,
+                    file, options.keyFilterSnapshotIntervalMillis, file == null ? null : state.changes()));
+        }
+        state.registerMetrics(configuration, metrics);
 
-        if (clientFactory == null) {
-            clientFactory = new MongoDBClient(configuration);
+        if (options.incrementField != null) {
+            // Increments are written without reading the keys, so there is nothing to cache
+            MapState<Object> increments = stateType == StateType.NON_TRANSACTIONAL
+                    ? new IncrementMapState<Object>(state)
+                    : new ConditionalMapState<Object>(state, stateType);
+            SnapshottableMap<Object> snapshottable = new SnapshottableMap<Object>(increments, new Values(options.globalKey));
+            return tracer == null ? snapshottable : new TracingMapState<Object>(snapshottable, tracer);
         }
 
-        MongoDBMapState state = new MongoDBMapState(clientFactory, mapper, options, configuration);
-        state.registerMetrics(configuration, metrics);
+        IBackingMap<Object> backingMap = state;
+        if (options.writeBehind) {
+            if (stateType == StateType.NON_TRANSACTIONAL) {
+                backingMap = new WriteBehindMap<Object>(state, options.writeBehindIntervalMillis,
+                        options.writeBehindFlushKeys, options.writeBehindMaxPending);
+            } else {
+                LOG.warn("Write-behind is only supported by non-transactional states, ignoring it");
+            }
+        }
+
+        WarmUpMap<Object> warmUp = null;
+        if (options.warmUpDir != null) {
+            File dir = new File(options.warmUpDir);
+            dir.mkdirs();
+            File file = new File(dir, options.db + "." + options.collection + "-" + partitionIndex + "-of-" + numPartitions + ".hot");
+            warmUp = new WarmUpMap<Object>(backingMap, state, file, options.warmUpMaxKeys, options.warmUpSnapshotIntervalMillis);
+            backingMap = warmUp;
+        }
+
+        CacheSnapshotMap<Object> snapshotMap = null;
+        if (options.cacheSnapshotDir != null) {
+            if (stateType == StateType.NON_TRANSACTIONAL || options.cachePolicy == CachePolicy.CACHED_MAP) {
+                // Only txids tell whether a snapshot value is still the stored one
+                LOG.warn("Cache snapshots need a transactional or opaque state and a weighted cache, ignoring cacheSnapshotDir");
+            } else {
+                File dir = new File(options.cacheSnapshotDir);
+                dir.mkdirs();
+                File file = new File(dir, options.db + "." + options.collection + "-" + partitionIndex + "-of-" + numPartitions + ".cache");
+                snapshotMap = new CacheSnapshotMap<Object>(backingMap, state, file, serializer(),
+                        options.txidField, options.cacheSnapshotIntervalMillis, options.cacheSnapshotRestoreBatches);
+                backingMap = snapshotMap;
+            }
+        }
 
-        CachedMap cachedMap = new CachedMap(state, options.localCacheSize);
+        InvalidatingMap<Object> invalidating = null;
+        if (options.cacheInvalidation) {
+            if (options.cachePolicy == CachePolicy.CACHED_MAP) {
+                LOG.warn("Cache invalidation needs a weighted cache, ignoring it");
+            } else {
+                invalidating = new InvalidatingMap<Object>(backingMap, state, state.changes(), options.db + "." + options.collection,
+                        options.txidField, options.invalidationPollMillis, options.invalidationBatchSize,
+                        options.invalidationMaxLagMillis, options.invalidationMaxKeys);
+                backingMap = invalidating;
+            }
+        }
+
+        IBackingMap<Object> cachedMap;
+        MapStateCache<Object> cache = null;
+        if (options.cachePolicy == CachePolicy.CACHED_MAP) {
+            cachedMap = new CachedMap<Object>(backingMap, options.localCacheSize);
+        } else {
+            cache = makeCache();
+            int bucketSize = (Integer) (configuration.get(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS));
+            metrics.registerMetric("mongodb/cache", new CacheMetric(cache), bucketSize);
+            cachedMap = new CachingMap<Object>(backingMap, cache);
+        }
+
+        if (snapshotMap != null) {
+            snapshotMap.setCache(cache);
+        }
+        if (invalidating != null) {
+            int bucketSize = (Integer) (configuration.get(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS));
+            metrics.registerMetric("mongodb/invalidation", invalidating, bucketSize);
+            invalidating.setCache(cache);
+        }
+
+        if (warmUp != null) {
+            warmUp.preload(cachedMap, cache, Math.max(1, options.readBatchSize), options.warmUpMaxMillis, options.warmUpMaxBytes);
+        }
+
+        SnapshottableMap<Object> snapshottable = new SnapshottableMap<Object>(build(cachedMap), new Values(options.globalKey));
+        return tracer == null ? snapshottable : new TracingMapState<Object>(snapshottable, tracer);
+    }
 
-        MapState mapState;
+    /**
+     * Wrap a backing map in the Trident map state of the state type
+     * @param cachedMap Backing map, holding opaque or transactional values as the state type says
+     * @return A map state
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private MapState<Object> build(IBackingMap<Object> cachedMap) {
         if (stateType == StateType.NON_TRANSACTIONAL) {
-            mapState = NonTransactionalMap.build(cachedMap);
+            return NonTransactionalMap.build(cachedMap);
         } else if (stateType == StateType.OPAQUE) {
-            mapState = OpaqueMap.build(cachedMap);
+            return OpaqueMap.build((IBackingMap) cachedMap);
         } else if (stateType == StateType.TRANSACTIONAL) {
-            mapState = TransactionalMap.build(cachedMap);
+            return TransactionalMap.build((IBackingMap) cachedMap);
         } else {
             throw new RuntimeException("Unknown state type: " + stateType);
         }
+    }
+
+    /**
+     * Create the cache configured in the options
+     * @return A weight-bounded cache
+     */
+    private MapStateCache<Object> makeCache() {
+        if (options.sharedCache) {
+            if (options.cacheOffHeap) {
+                LOG.warn("The worker cache is kept on the heap, ignoring cacheOffHeap");
+            }
+            return SharedCaches.forCollection(options.db, options.collection, cachedValueType(),
+                    options.cachePolicy, options.cacheMaxBytes, options.cacheTtlMillis);
+        }
+
+        OffHeapStore<Object> offHeap = null;
+        if (options.cacheOffHeap) {
+            offHeap = new OffHeapStore<Object>(serializer(), options.cacheMaxBytes);
+        }
+        if (options.cachePolicy == CachePolicy.TINY_LFU) {
+            return new TinyLfuCache<Object>(options.cacheMaxBytes, options.cacheTtlMillis, offHeap);
+        }
+        return new LruCache<Object>(options.cacheMaxBytes, options.cacheTtlMillis, offHeap);
+    }
+
+    /**
+     * Identify the values this state keeps in the worker cache
+     * @return State type, mapper class and the fields it reads
+     */
+    private String cachedValueType() {
+        StringBuilder valueType = new StringBuilder(stateType.name()).append('/').append(mapper.getClass().getName());
+        if (mapper instanceof ProjectedRowMapper) {
+            valueType.append(Arrays.toString(((ProjectedRowMapper) mapper).getFields()));
+        }
+        return valueType.toString();
+    }
 
-        return new SnapshottableMap(mapState, new Values(options.globalKey));
+    /**
+     * Get the serializer for off-heap cache values
+     * @return The configured serializer, or a JSON one for the state type
+     */
+    @SuppressWarnings("unchecked")
+    private Serializer<Object> serializer() {
+        // Every serializer writes the values the state type stores
+        Serializer<?> serializer;
+        if (options.cacheSerializer != null) {
+            serializer = options.cacheSerializer;
+        } else if (stateType == StateType.OPAQUE) {
+            serializer = new JSONOpaqueSerializer();
+        } else if (stateType == StateType.TRANSACTIONAL) {
+            serializer = new JSONTransactionalSerializer();
+        } else {
+            serializer = new JSONNonTransactionalSerializer();
+        }
+        return (Serializer<Object>) serializer;
     }
 
 }
@@ -15,15 +15,30 @@
 
 package io.hipstogram.trident.mongodb;
 
+import backtype.storm.Config;
+import backtype.storm.metric.api.CountMetric;
+import backtype.storm.task.IMetricsContext;
 import com.mongodb.*;
+import io.hipstogram.trident.mongodb.bulk.BulkChunker;
+import io.hipstogram.trident.mongodb.bulk.BulkPipeline;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+import io.hipstogram.trident.mongodb.collection.MongoDBCollection;
+import io.hipstogram.trident.mongodb.collection.WriteCounts;
+import io.hipstogram.trident.mongodb.metrics.BulkMetrics;
+import io.hipstogram.trident.mongodb.metrics.HistogramMetric;
 import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.OperationCoalescer;
+import io.hipstogram.trident.mongodb.tracing.BatchTrace;
+import io.hipstogram.trident.mongodb.tracing.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import storm.trident.state.State;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
 
 public class MongoDBState implements State
 {
@@ -33,27 +48,60 @@ public class MongoDBState implements State
     // Default batch size
     private static final int DEFAULT_MAX_BATCH_SIZE = 100;
 
+    // Default batch size in bytes
+    private static final long DEFAULT_MAX_BATCH_BYTES = 8 * 1024 * 1024;
+
     // A MongoDB client
     private MongoDBClient client;
 
     // A set of properties
     private Map configuration;
 
-    // The actual batch size
-    private int maxBatchSize;
+    // Options
+    private Options options;
+
+    // MongoDB State Options class
+    public static class Options implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        public long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+        public BulkWriteOptions writeOptions = new BulkWriteOptions();
+        public boolean coalesce = false;
+        public int maxBufferedOperations = 10000;
+        public long maxBufferedBytes = 16 * 1024 * 1024;
+        public int pipelineDepth = 1;
+        public long traceSlowMillis = 0;
+        public int traceBufferSize = 32;
+    }
+
+    // Pipeline for concurrent chunks, null when chunks are written one after another
+    private BulkPipeline pipeline;
 
     // List with a MongoDB operations
     List<CRUDOperation> operations = new ArrayList<CRUDOperation>();
 
+    // Estimated size of the buffered operations
+    private long bufferedBytes = 0;
+
+    // Operations added since the last commit
+    private int batchOperations = 0;
+
+    // Metrics, only published once registered
+    private BulkMetrics bulkMetrics = new BulkMetrics();
+    private HistogramMetric commitLatency = new HistogramMetric();
+    private HistogramMetric operationsPerBatch = new HistogramMetric();
+    private CountMetric exceptions = new CountMetric();
+
+    // Tracer, null when tracing is off
+    private Tracer tracer;
+
     /**
      * Create a new MongoDB State
      * @param client A MongoDB client
      * @param configuration A set of properties
      */
     public MongoDBState(MongoDBClient client, Map configuration) {
-        this.client = client;
-        this.configuration = configuration;
-        this.maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        this(client, new Options(), configuration);
     }
 
     /**
@@ -63,9 +111,60 @@ public class MongoDBState implements State
      * @param configuration A set of properties
      */
     public MongoDBState(MongoDBClient client, int maxBatchSize, Map configuration) {
+        this(client, new Options(), configuration);
+        this.options.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Create a new MongoDB State
+     * @param client A MongoDB client
+     * @param options Options for MongoDB
+     * @param configuration A set of properties
+     */
+    public MongoDBState(MongoDBClient client, Options options, Map<?, ?> configuration) {
         this.client = client;
+        this.options = options;
         this.configuration = configuration;
-        this.maxBatchSize = maxBatchSize;
+        if (options.pipelineDepth > 1) {
+            if (options.writeOptions.ordered) {
+                // Concurrent chunks could apply a later operation before an earlier one
+                throw new IllegalArgumentException("Pipelined commits need unordered writes, set writeOptions.ordered to false");
+            }
+            this.pipeline = new BulkPipeline(Executors.newFixedThreadPool(options.pipelineDepth,
+                    new DaemonThreadFactory("mongodb-state")), options.pipelineDepth);
+        }
+    }
+
+    /**
+     * Enable batch tracing. Must be called before registering the metrics.
+     * @param tracer Tracer of this state
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Get the batch in progress
+     * @return The traced batch, or null when tracing is off or outside a batch
+     */
+    public BatchTrace getTrace() {
+        return tracer == null ? null : tracer.current();
+    }
+
+    /**
+     * Register Metrics in Storm
+     * @param conf A set of properties
+     * @param context Metrics context
+     */
+    public void registerMetrics(Map<?, ?> conf, IMetricsContext context) {
+        int bucketSize = (Integer) (conf.get(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS));
+        bulkMetrics.register(context, bucketSize);
+        context.registerMetric("mongodb/commitLatency", commitLatency, bucketSize);
+        context.registerMetric("mongodb/operationsPerBatch", operationsPerBatch, bucketSize);
+        context.registerMetric("mongodb/exceptionCount", exceptions, bucketSize);
+        if (tracer != null) {
+            context.registerMetric("mongodb/slowBatches", tracer, bucketSize);
+        }
     }
 
     /**
@@ -74,10 +173,26 @@ public class MongoDBState implements State
      */
     public void addOperation(CRUDOperation operation) {
         this.operations.add(operation);
+        this.bufferedBytes += operation.getSize();
+        this.batchOperations++;
+        if (isBufferFull()) {
+            LOG.debug("Flushing [{}] buffered operations ([{}] bytes) before commit", operations.size(), bufferedBytes);
+            flush();
+        }
+    }
+
+    /**
+     * Check whether the operation buffer reached any of its caps
+     * @return True if the buffer must be flushed
+     */
+    private boolean isBufferFull() {
+        return (options.maxBufferedOperations > 0 && operations.size() >= options.maxBufferedOperations)
+                || (options.maxBufferedBytes > 0 && bufferedBytes >= options.maxBufferedBytes);
     }
 
     /**
-     * Execute a MongoDB statement
+     * Execute a MongoDB statement. It always runs against the driver collection,
+     * whatever collection provider is configured.
      * @param statement A CRUD statement
      * @return The result of the operation
      */
@@ -85,27 +200,97 @@ public class MongoDBState implements State
         return client.getCollection(configuration).find(statement);
     }
 
+    /**
+     * Release the pipeline workers and the reference to the shared client, which is closed
+     * with the last state of the worker using it. The state cannot be used afterwards.
+     */
+    public void close() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+        client.close();
+    }
+
     @Override
     public void beginCommit(Long txid) {
+        // Operations left by a batch that failed before its commit must not leak into this one
+        clear();
+        batchOperations = 0;
+        if (tracer != null) {
+            tracer.begin(txid);
+        }
     }
 
     @Override
     public void commit(Long txid) {
         LOG.debug("Commiting [{}]", txid);
-        DBCollection coll = client.getCollection(configuration);
-        BulkWriteOperation builder = coll.initializeOrderedBulkOperation();
-
-        int i = 0;
-        for(CRUDOperation operation : this.operations) {
-            operation.addToBulkOperation(builder);
-            i++;
-            if(i >= this.maxBatchSize) {
-                builder.execute();
-                builder = coll.initializeOrderedBulkOperation();
-                i = 0;
+        long start = System.nanoTime();
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            exceptions.incr();
+            throw e;
+        } finally {
+            commitLatency.recordSince(start);
+            operationsPerBatch.record(batchOperations);
+            batchOperations = 0;
+            if (tracer != null) {
+                BatchTrace trace = tracer.current();
+                if (trace != null) trace.phase("commit", System.nanoTime() - start);
+                tracer.end();
+            }
+        }
+    }
+
+    /**
+     * Write the buffered operations in chunks of at most maxBatchSize operations
+     * and maxBatchBytes bytes, and empty the buffer, even if writing fails
+     */
+    private void flush() {
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            write();
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * Write the buffered operations
+     */
+    private void write() {
+        MongoDBCollection coll = client.getMongoDBCollection(configuration);
+        BatchTrace trace = getTrace();
+
+        List<CRUDOperation> pending = this.operations;
+        if (options.coalesce) {
+            long start = System.nanoTime();
+            pending = OperationCoalescer.coalesce(pending);
+            LOG.debug("Coalesced [{}] operations into [{}]", this.operations.size(), pending.size());
+            if (trace != null) trace.phase("coalesce", System.nanoTime() - start);
+        }
+
+        BulkChunker chunker = new BulkChunker(options.maxBatchSize, options.maxBatchBytes);
+        List<BulkChunker.Chunk> chunks = chunker.split(pending);
+        if (pipeline != null) {
+            pipeline.write(coll, options.writeOptions, chunks, bulkMetrics, trace);
+        } else {
+            for (BulkChunker.Chunk chunk : chunks) {
+                long start = System.nanoTime();
+                WriteCounts counts = options.writeOptions.write(coll, chunk.getOperations());
+                bulkMetrics.record(chunk.size(), chunk.getBytes(), start, counts);
+                if (trace != null) trace.bulk("bulk", chunk.getOperations(), System.nanoTime() - start);
             }
         }
+    }
 
-        builder.execute();
+    /**
+     * Empty the operation buffer
+     */
+    private void clear() {
+        operations = new ArrayList<CRUDOperation>();
+        bufferedBytes = 0;
     }
 }
@@ -16,6 +16,7 @@
 package io.hipstogram.trident.mongodb;
 
 import backtype.storm.task.IMetricsContext;
+import io.hipstogram.trident.mongodb.tracing.Tracer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import storm.trident.state.State;
@@ -33,6 +34,16 @@ public class MongoDBStateFactory implements StateFactory
     public static final String MONGODB_HOSTS = "mongodb.hosts";
     public static final String MONGODB_DB = "mongodb.db";
     public static final String MONGODB_COLLECTION = "mongodb.coll";
+    public static final String MONGODB_COLLECTION_PROVIDER = "mongodb.collection.provider";
+    public static final String MONGODB_INJECT_LATENCY_MICROS = "mongodb.inject.latency.micros";
+    public static final String MONGODB_INJECT_FAILURE_RATE = "mongodb.inject.failure.rate";
+    public static final String MONGODB_CONNECTIONS_PER_HOST = "mongodb.connections.per.host";
+    public static final String MONGODB_CONNECTIONS_PER_EXECUTOR = "mongodb.connections.per.executor";
+    public static final String MONGODB_WAIT_QUEUE_MULTIPLE = "mongodb.wait.queue.multiple";
+    public static final String MONGODB_CONNECT_TIMEOUT_MILLIS = "mongodb.connect.timeout.millis";
+    public static final String MONGODB_SOCKET_TIMEOUT_MILLIS = "mongodb.socket.timeout.millis";
+    public static final String MONGODB_MAX_WAIT_TIME_MILLIS = "mongodb.max.wait.time.millis";
+    public static final String MONGODB_READ_PREFERENCE = "mongodb.read.preference";
 
     // Serialization
     private static final long serialVersionUID = 1L;
@@ -40,16 +51,34 @@ public class MongoDBStateFactory implements StateFactory
     // Logger
     private static final Logger LOG = LoggerFactory.getLogger(MongoDBStateFactory.class);
 
-    // A MongoDB client
-    private static MongoDBClient client;
+    // Options for the created states
+    private MongoDBState.Options options;
+
+    /**
+     * Create a new StateFactory for MongoDB with default options
+     */
+    public MongoDBStateFactory() {
+        this(new MongoDBState.Options());
+    }
+
+    /**
+     * Create a new StateFactory for MongoDB
+     * @param options Options for the created states
+     */
+    public MongoDBStateFactory(MongoDBState.Options options) {
+        this.options = options;
+    }
 
     @Override
     public State makeState(Map configuration, IMetricsContext metrics, int partitionIndex, int numPartitions) {
-        // worth synchronizing here?
-        if (client == null) {
-            client = new MongoDBClient(configuration);
-        }
         LOG.debug("Creating State for partition [{}] of [{}]", new Object[]{partitionIndex, numPartitions});
-        return new MongoDBState(MongoDBStateFactory.client, configuration);
+        // Every state holds a reference to the worker client for its hosts
+        MongoDBState state = new MongoDBState(new MongoDBClient(configuration), options, configuration);
+        if (options.traceSlowMillis > 0) {
+            state.setTracer(new Tracer(configuration.get(MONGODB_DB) + "." + configuration.get(MONGODB_COLLECTION),
+                    partitionIndex, options.traceSlowMillis, options.traceBufferSize));
+        }
+        state.registerMetrics(configuration, metrics);
+        return state;
     }
 }
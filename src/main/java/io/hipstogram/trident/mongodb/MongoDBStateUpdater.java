@@ -18,6 +18,7 @@ package io.hipstogram.trident.mongodb;
 import com.mongodb.BasicDBObject;
 import io.hipstogram.trident.mongodb.mappers.MongoDBRowMapper;
 import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.tracing.BatchTrace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import storm.trident.operation.TridentCollector;
@@ -45,6 +46,9 @@ public class MongoDBStateUpdater<K, V> implements StateUpdater<MongoDBState>
     // MongoDB Mapper
     private MongoDBRowMapper<K,V> mapper = null;
 
+    // State updated by this updater, closed on cleanup
+    private transient MongoDBState state;
+
     /**
      * Create a new instance of MongoDBStateUpdater
      * @param mapper MongoDB Row Mapper
@@ -60,13 +64,23 @@ public class MongoDBStateUpdater<K, V> implements StateUpdater<MongoDBState>
 
     @Override
     public void cleanup() {
+        if (state != null) {
+            state.close();
+            state = null;
+        }
     }
 
     @Override
     public void updateState(MongoDBState state, List<TridentTuple> tuples, TridentCollector collector) {
+        this.state = state;
+        BatchTrace trace = state.getTrace();
+        long start = trace == null ? 0 : System.nanoTime();
         for (TridentTuple tuple : tuples) {
             CRUDOperation operation = this.mapper.map(tuple);
             state.addOperation(operation);
         }
+        if (trace != null) {
+            trace.phase("updateState", System.nanoTime() - start);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,232 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * Holds the MongoDB clients shared by every state of a worker JVM, one per host list and
+ * connection settings. Clients are reference counted: every {@link MongoDBClient} holds a
+ * reference until it is closed, and the last one to close shuts its client down. A client
+ * is only connected on first use, so its pool is sized to the executors that share it by
+ * then. Clients still open when the JVM exits are closed by a shutdown hook.
+ * @author Andrés Sánchez
+ */
+public class SharedClients
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(SharedClients.class);
+
+    // Default number of connections per host of every executor
+    public static final int DEFAULT_CONNECTIONS_PER_EXECUTOR = 2;
+
+    // Shared clients by key
+    private static final Map<String, Entry> clients = new HashMap<String, Entry>();
+
+    // Whether the shutdown hook is registered
+    private static boolean hooked = false;
+
+    private SharedClients() {}
+
+    /**
+     * Get a reference to the client for a set of properties
+     * @param configuration Set of properties
+     * @return A reference, to be released once
+     */
+    public static synchronized Entry acquire(Map<?, ?> configuration) {
+        Settings settings = new Settings(configuration);
+        Entry entry = clients.get(settings.key);
+        if (entry == null) {
+            entry = new Entry(settings);
+            clients.put(settings.key, entry);
+        }
+        entry.references++;
+        if (!hooked) {
+            Runtime.getRuntime().addShutdownHook(new Thread("mongodb-clients-shutdown") {
+                @Override
+                public void run() {
+                    closeAll();
+                }
+            });
+            hooked = true;
+        }
+        return entry;
+    }
+
+    /**
+     * Get the number of clients currently shared
+     * @return Number of clients
+     */
+    public static synchronized int size() {
+        return clients.size();
+    }
+
+    /**
+     * Close every client, whatever its reference count
+     */
+    public static synchronized void closeAll() {
+        for (Entry entry : clients.values()) {
+            entry.close();
+        }
+        clients.clear();
+    }
+
+    /**
+     * Release a reference, closing the client if it was the last one
+     */
+    private static synchronized void release(Entry entry) {
+        if (entry.references == 0) return;
+        if (--entry.references == 0 && clients.get(entry.settings.key) == entry) {
+            clients.remove(entry.settings.key);
+            entry.close();
+        }
+    }
+
+    /**
+     * A shared client
+     */
+    public static class Entry
+    {
+        // Connection settings
+        private final Settings settings;
+
+        // Number of open references
+        private int references = 0;
+
+        // The client, once connected
+        private MongoClient client;
+
+        private Entry(Settings settings) {
+            this.settings = settings;
+        }
+
+        /**
+         * Get the client, connecting it on first use
+         * @return A MongoDB client
+         */
+        public MongoClient get() {
+            synchronized (SharedClients.class) {
+                if (client == null) {
+                    if (references == 0) {
+                        throw new IllegalStateException("MongoDB client for " + settings.key + " is closed");
+                    }
+                    MongoClientOptions options = settings.build(references);
+                    LOG.info("Connecting to [{}] with [{}] connections per host for [{}] executors",
+                            new Object[]{settings.key, options.getConnectionsPerHost(), references});
+                    try {
+                        client = new MongoClient(settings.addresses(), options);
+                    } catch (UnknownHostException e) {
+                        throw new IllegalArgumentException("Unknown MongoDB host in " + settings.key, e);
+                    }
+                }
+                return client;
+            }
+        }
+
+        /**
+         * Release this reference
+         */
+        public void release() {
+            SharedClients.release(this);
+        }
+
+        private void close() {
+            if (client != null) {
+                LOG.debug("Closing MongoDB client [{}]", settings.key);
+                client.close();
+                client = null;
+            }
+        }
+    }
+
+    /**
+     * Connection settings read from the topology configuration
+     */
+    private static class Settings
+    {
+        private final List<String> hosts;
+        private final int connectionsPerHost;
+        private final int connectionsPerExecutor;
+        private final int waitQueueMultiple;
+        private final int connectTimeout;
+        private final int socketTimeout;
+        private final int maxWaitTime;
+        private final String readPreference;
+        private final String key;
+
+        Settings(Map<?, ?> configuration) {
+            String hostProperty = (String) configuration.get(MongoDBStateFactory.MONGODB_HOSTS);
+            hosts = new ArrayList<String>();
+            for (String host : hostProperty.split(",")) {
+                if (!host.trim().isEmpty()) hosts.add(host.trim());
+            }
+            Collections.sort(hosts);
+
+            connectionsPerHost = intValue(configuration, MongoDBStateFactory.MONGODB_CONNECTIONS_PER_HOST, 0);
+            connectionsPerExecutor = intValue(configuration, MongoDBStateFactory.MONGODB_CONNECTIONS_PER_EXECUTOR, DEFAULT_CONNECTIONS_PER_EXECUTOR);
+            waitQueueMultiple = intValue(configuration, MongoDBStateFactory.MONGODB_WAIT_QUEUE_MULTIPLE, 0);
+            connectTimeout = intValue(configuration, MongoDBStateFactory.MONGODB_CONNECT_TIMEOUT_MILLIS, -1);
+            socketTimeout = intValue(configuration, MongoDBStateFactory.MONGODB_SOCKET_TIMEOUT_MILLIS, -1);
+            maxWaitTime = intValue(configuration, MongoDBStateFactory.MONGODB_MAX_WAIT_TIME_MILLIS, -1);
+            readPreference = (String) configuration.get(MongoDBStateFactory.MONGODB_READ_PREFERENCE);
+            if (readPreference != null) {
+                // Fail on the first state rather than on the first read
+                ReadPreference.valueOf(readPreference);
+            }
+
+            key = hosts + "?connectionsPerHost=" + connectionsPerHost + "&connectionsPerExecutor=" + connectionsPerExecutor
+                    + "&waitQueueMultiple=" + waitQueueMultiple + "&connectTimeout=" + connectTimeout
+                    + "&socketTimeout=" + socketTimeout + "&maxWaitTime=" + maxWaitTime + "&readPreference=" + readPreference;
+        }
+
+        /**
+         * Build the client options
+         * @param executors Number of executors sharing the client
+         */
+        MongoClientOptions build(int executors) {
+            MongoClientOptions.Builder builder = MongoClientOptions.builder()
+                    .connectionsPerHost(connectionsPerHost > 0 ? connectionsPerHost : Math.max(1, connectionsPerExecutor * executors));
+            if (waitQueueMultiple > 0) builder.threadsAllowedToBlockForConnectionMultiplier(waitQueueMultiple);
+            if (connectTimeout >= 0) builder.connectTimeout(connectTimeout);
+            if (socketTimeout >= 0) builder.socketTimeout(socketTimeout);
+            if (maxWaitTime >= 0) builder.maxWaitTime(maxWaitTime);
+            if (readPreference != null) builder.readPreference(ReadPreference.valueOf(readPreference));
+            return builder.build();
+        }
+
+        List<ServerAddress> addresses() throws UnknownHostException {
+            List<ServerAddress> addresses = new ArrayList<ServerAddress>(hosts.size());
+            for (String host : hosts) addresses.add(new ServerAddress(host));
+            return addresses;
+        }
+
+        private static int intValue(Map<?, ?> configuration, String property, int defaultValue) {
+            Object value = configuration.get(property);
+            if (value instanceof Number) return ((Number) value).intValue();
+            if (value != null) return Integer.parseInt(value.toString().trim());
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the local snapshots of every state of a worker JVM from a single shutdown hook.
+ * Snapshots are registered by file: a state created again for the same partition replaces
+ * the one it succeeds, which is no longer held, so the hook never pins more than one map
+ * and cache per file.
+ * @author Andrés Sánchez
+ */
+class ShutdownSnapshots
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(ShutdownSnapshots.class);
+
+    // Snapshot writers by file
+    private static final Map<File, Runnable> snapshots = new LinkedHashMap<File, Runnable>();
+
+    // Whether the shutdown hook is registered
+    private static boolean hooked = false;
+
+    private ShutdownSnapshots() {}
+
+    /**
+     * Write a snapshot when the JVM shuts down, instead of the one registered for the same file
+     * @param file Snapshot file
+     * @param snapshot Writes the snapshot
+     */
+    static synchronized void register(File file, Runnable snapshot) {
+        snapshots.put(file.getAbsoluteFile(), snapshot);
+        if (!hooked) {
+            Runtime.getRuntime().addShutdownHook(new Thread("mongodb-snapshots-shutdown") {
+                @Override
+                public void run() {
+                    writeAll();
+                }
+            });
+            hooked = true;
+        }
+    }
+
+    /**
+     * Stop writing a snapshot on shutdown, unless another one replaced it
+     * @param file Snapshot file
+     * @param snapshot Writer given to {@link #register(File, Runnable)}
+     */
+    static synchronized void unregister(File file, Runnable snapshot) {
+        File key = file.getAbsoluteFile();
+        if (snapshots.get(key) == snapshot) {
+            snapshots.remove(key);
+        }
+    }
+
+    /**
+     * Get the number of snapshots written on shutdown
+     * @return Number of files
+     */
+    static synchronized int size() {
+        return snapshots.size();
+    }
+
+    /**
+     * Write every registered snapshot
+     */
+    static void writeAll() {
+        List<Runnable> writers;
+        synchronized (ShutdownSnapshots.class) {
+            writers = new ArrayList<Runnable>(snapshots.values());
+        }
+        for (Runnable writer : writers) {
+            try {
+                writer.run();
+            } catch (RuntimeException e) {
+                LOG.warn("Cannot write a snapshot on shutdown", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import io.hipstogram.trident.mongodb.cache.MapStateCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.trident.state.map.IBackingMap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Backing map that remembers the keys read and written most recently and keeps them in a
+ * local file, so that a restarted state can load them into its cache before its first batch.
+ * The file is rewritten every few seconds of writes, when the map is closed and when the JVM
+ * shuts down.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class WarmUpMap<T> implements IBackingMap<T>
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(WarmUpMap.class);
+
+    // Backing map
+    private final IBackingMap<T> delegate;
+
+    // State, for the batched reads of the warm-up
+    private final MongoDBMapState<T> state;
+
+    // Hot keys file
+    private final File file;
+
+    // Maximum number of remembered keys
+    private final int maxKeys;
+
+    // Time between two writes of the file
+    private final long snapshotIntervalMillis;
+
+    // Remembered keys, least recently used first
+    private final LinkedHashMap<List<Object>, Boolean> recent;
+
+    // Whether reads are part of the warm-up
+    private boolean preloading = false;
+
+    // Time of the last write of the file
+    private long lastSnapshotMillis = System.currentTimeMillis();
+
+    // Writes the file on JVM shutdown
+    private final Runnable shutdownSnapshot;
+
+    /**
+     * Create a new warm-up map
+     * @param delegate Backing map
+     * @param state State under the backing map
+     * @param file Hot keys file
+     * @param maxKeys Maximum number of remembered keys
+     * @param snapshotIntervalMillis Time between two writes of the file
+     */
+    public WarmUpMap(IBackingMap<T> delegate, MongoDBMapState<T> state, File file, final int maxKeys, long snapshotIntervalMillis) {
+        this.delegate = delegate;
+        this.state = state;
+        this.file = file;
+        this.maxKeys = maxKeys;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.recent = new LinkedHashMap<List<Object>, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Boolean> eldest) {
+                return size() > maxKeys;
+            }
+        };
+        this.shutdownSnapshot = new Runnable() {
+            public void run() {
+                snapshot();
+            }
+        };
+        ShutdownSnapshots.register(file, shutdownSnapshot);
+    }
+
+    @Override
+    public List<T> multiGet(List<List<Object>> keys) {
+        if (preloading) {
+            // Nothing is buffered yet, so the state can be read directly with merged queries
+            return state.multiGetBatched(keys);
+        }
+        remember(keys);
+        return delegate.multiGet(keys);
+    }
+
+    @Override
+    public void multiPut(List<List<Object>> keys, List<T> values) {
+        remember(keys);
+        delegate.multiPut(keys, values);
+        if (System.currentTimeMillis() - lastSnapshotMillis >= snapshotIntervalMillis) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Load the keys of the file into a cache, most recent first, in batched reads. Stops at
+     * the first budget reached; the keys left are read by the batches as usual.
+     * @param cachedMap Cached map over this one, which caches what it reads
+     * @param cache Cache of the cached map, to check the memory budget. Null for no memory budget.
+     * @param chunkSize Keys per read
+     * @param maxMillis Time budget
+     * @param maxBytes Memory budget, 0 for none
+     * @return Number of loaded keys
+     */
+    public int preload(IBackingMap<T> cachedMap, MapStateCache<?> cache, int chunkSize, long maxMillis, long maxBytes) {
+        List<List<Object>> keys = readKeys();
+        if (keys.isEmpty()) return 0;
+
+        long start = System.currentTimeMillis();
+        int loaded = 0;
+        String stop = "all keys loaded";
+        preloading = true;
+        try {
+            for (int from = 0; from < keys.size(); from += chunkSize) {
+                if (System.currentTimeMillis() - start >= maxMillis) {
+                    stop = "time budget reached";
+                    break;
+                }
+                if (cache != null && maxBytes > 0 && cache.weight() >= maxBytes) {
+                    stop = "memory budget reached";
+                    break;
+                }
+                List<List<Object>> chunk = keys.subList(from, Math.min(keys.size(), from + chunkSize));
+                cachedMap.multiGet(new ArrayList<List<Object>>(chunk));
+                loaded += chunk.size();
+            }
+        } catch (RuntimeException e) {
+            stop = "failed: " + e;
+        } finally {
+            preloading = false;
+        }
+        LOG.info("Warmed up the cache with [{}] of [{}] keys from [{}] in [{}] ms, {}",
+                new Object[]{loaded, keys.size(), file, System.currentTimeMillis() - start, stop});
+        return loaded;
+    }
+
+    /**
+     * Write the remembered keys to the file a last time, and no longer on JVM shutdown
+     */
+    public void close() {
+        ShutdownSnapshots.unregister(file, shutdownSnapshot);
+        snapshot();
+    }
+
+    /**
+     * Write the remembered keys to the file, most recent first
+     */
+    public void snapshot() {
+        List<List<Object>> keys;
+        synchronized (recent) {
+            keys = new ArrayList<List<Object>>(recent.keySet());
+            lastSnapshotMillis = System.currentTimeMillis();
+        }
+        Collections.reverse(keys);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+            try {
+                out.writeObject(keys);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp + " to " + file);
+            }
+            LOG.debug("Wrote [{}] hot keys to [{}]", keys.size(), file);
+        } catch (IOException e) {
+            LOG.warn("Cannot write hot keys to " + file, e);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Remember the keys read or written by a batch
+     */
+    private void remember(List<List<Object>> keys) {
+        synchronized (recent) {
+            for (List<Object> key : keys) {
+                recent.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Read the keys of the file, which are remembered again
+     */
+    private List<List<Object>> readKeys() {
+        if (!file.isFile()) return Collections.emptyList();
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                @SuppressWarnings("unchecked")
+                List<List<Object>> keys = (List<List<Object>>) in.readObject();
+                if (keys.size() > maxKeys) keys = keys.subList(0, maxKeys);
+                List<List<Object>> oldestFirst = new ArrayList<List<Object>>(keys);
+                Collections.reverse(oldestFirst);
+                remember(oldestFirst);
+                return keys;
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            LOG.warn("Cannot read hot keys from " + file + ", starting cold", e);
+            return Collections.emptyList();
+        }
+    }
+}
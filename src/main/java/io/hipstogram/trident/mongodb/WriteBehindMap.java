@@ -0,0 +1,300 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.trident.state.map.IBackingMap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Backing map that buffers writes in memory and writes them to the delegate from a
+ * background thread, every few milliseconds or as soon as enough keys are dirty.
+ * Repeated writes of a key are coalesced, and reads see buffered values before the
+ * delegate. Writers block while the buffer is full, and the buffer is flushed when the
+ * map is closed or the JVM shuts down. After a failed flush, the next one waits for the
+ * interval, doubled on every further failure, however many keys are dirty. Buffered values are lost if the worker dies, so
+ * this map is only meant for non-transactional states.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class WriteBehindMap<T> implements IBackingMap<T>
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindMap.class);
+
+    // Longest wait between two failed flushes, unless the interval is longer
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    // Backing map
+    private final IBackingMap<T> delegate;
+
+    // Time between flushes in milliseconds
+    private final long intervalMillis;
+
+    // Number of dirty keys that triggers a flush
+    private final int flushKeys;
+
+    // Maximum number of dirty keys before writers block
+    private final int maxPending;
+
+    // Guards the buffers
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition flushNeeded = lock.newCondition();
+
+    // Serializes writes to the delegate
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Values waiting to be written
+    private LinkedHashMap<List<Object>, T> dirty = new LinkedHashMap<List<Object>, T>();
+
+    // Values being written
+    private Map<List<Object>, T> inFlight = new LinkedHashMap<List<Object>, T>();
+
+    // Background flusher
+    private final Thread flusher;
+
+    // Flushes the buffer on JVM shutdown
+    private final Thread shutdownHook;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new write-behind map
+     * @param delegate Backing map
+     * @param intervalMillis Time between flushes in milliseconds
+     * @param flushKeys Number of dirty keys that triggers a flush
+     * @param maxPending Maximum number of dirty keys before writers block
+     */
+    public WriteBehindMap(IBackingMap<T> delegate, long intervalMillis, int flushKeys, int maxPending) {
+        this.delegate = delegate;
+        this.intervalMillis = intervalMillis;
+        this.flushKeys = Math.max(1, flushKeys);
+        this.maxPending = Math.max(this.flushKeys, maxPending);
+
+        this.flusher = new DaemonThreadFactory("mongodb-write-behind").newThread(new Runnable() {
+            @Override
+            public void run() {
+                runFlusher();
+            }
+        });
+        this.shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+        flusher.start();
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    @Override
+    public List<T> multiGet(List<List<Object>> keys) {
+        List<T> values = new ArrayList<T>(keys.size());
+        List<List<Object>> missing = new ArrayList<List<Object>>();
+        List<Integer> positions = new ArrayList<Integer>();
+
+        lock.lock();
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                List<Object> key = keys.get(i);
+                if (dirty.containsKey(key)) {
+                    values.add(dirty.get(key));
+                } else if (inFlight.containsKey(key)) {
+                    values.add(inFlight.get(key));
+                } else {
+                    values.add(null);
+                    missing.add(key);
+                    positions.add(i);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (!missing.isEmpty()) {
+            List<T> fetched = delegate.multiGet(missing);
+            for (int i = 0; i < missing.size(); i++) {
+                values.set(positions.get(i), fetched.get(i));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void multiPut(List<List<Object>> keys, List<T> values) {
+        if (closed) {
+            throw new IllegalStateException("Write-behind map is closed");
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                List<Object> key = keys.get(i);
+                while (dirty.size() >= maxPending && !dirty.containsKey(key)) {
+                    flushNeeded.signal();
+                    notFull.awaitUninterruptibly();
+                }
+                dirty.put(key, values.get(i));
+            }
+            if (dirty.size() >= flushKeys) {
+                flushNeeded.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write every buffered value to the delegate on the calling thread
+     */
+    public void flush() {
+        while (writeOnce()) {
+            // Writers may have added keys in the meantime
+        }
+    }
+
+    /**
+     * Stop the flusher and write every buffered value
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        lock.lock();
+        try {
+            flushNeeded.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Already shutting down
+        }
+    }
+
+    /**
+     * Get the number of values waiting to be written
+     * @return Number of buffered keys
+     */
+    public int getPending() {
+        lock.lock();
+        try {
+            return dirty.size() + inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runFlusher() {
+        int failures = 0;
+        while (!closed) {
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis(failures));
+                long remaining;
+                // After a failure the keys are dirty again, and the wait is not cut short
+                while (!closed && (failures > 0 || dirty.size() < flushKeys) && (remaining = deadline - System.nanoTime()) > 0) {
+                    flushNeeded.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            if (!closed) {
+                try {
+                    writeOnce();
+                    failures = 0;
+                } catch (RuntimeException e) {
+                    failures++;
+                    LOG.warn("Write-behind flush failed, retrying in " + waitMillis(failures) + " ms", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the wait before the next flush
+     * @param failures Number of flushes that failed in a row
+     */
+    private long waitMillis(int failures) {
+        if (failures == 0) {
+            return intervalMillis;
+        }
+        return Math.min(Math.max(intervalMillis, MAX_BACKOFF_MILLIS), intervalMillis << Math.min(failures - 1, 20));
+    }
+
+    /**
+     * Write the current dirty keys. On failure they are buffered again, unless
+     * they were overwritten in the meantime.
+     * @return True if something was written
+     */
+    private boolean writeOnce() {
+        writeLock.lock();
+        try {
+            lock.lock();
+            try {
+                if (dirty.isEmpty()) {
+                    return false;
+                }
+                inFlight = dirty;
+                dirty = new LinkedHashMap<List<Object>, T>();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            boolean written = false;
+            try {
+                delegate.multiPut(new ArrayList<List<Object>>(inFlight.keySet()), new ArrayList<T>(inFlight.values()));
+                written = true;
+            } finally {
+                lock.lock();
+                try {
+                    if (!written) {
+                        for (Map.Entry<List<Object>, T> entry : inFlight.entrySet()) {
+                            if (!dirty.containsKey(entry.getKey())) {
+                                dirty.put(entry.getKey(), entry.getValue());
+                            }
+                        }
+                    }
+                    inFlight = new LinkedHashMap<List<Object>, T>();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.bulk;
+
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a list of operations into bulk chunks bounded both by number of operations
+ * and by estimated encoded size. An operation bigger than the byte budget gets a chunk
+ * of its own, so the server reports it instead of the chunker dropping it.
+ * @author Andrés Sánchez
+ */
+public class BulkChunker
+{
+    // Bytes added by the write command around every operation ({q: .., u: .., upsert: ..} and array index)
+    public static final int OPERATION_OVERHEAD = 32;
+
+    // Maximum number of operations per chunk
+    private int maxOperations;
+
+    // Maximum estimated size per chunk
+    private long maxBytes;
+
+    /**
+     * Create a new chunker
+     * @param maxOperations Maximum number of operations per chunk, 0 for no limit
+     * @param maxBytes Maximum estimated size in bytes per chunk, 0 for no limit
+     */
+    public BulkChunker(int maxOperations, long maxBytes) {
+        this.maxOperations = maxOperations > 0 ? maxOperations : Integer.MAX_VALUE;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    }
+
+    /**
+     * Split a list of operations
+     * @param operations Operations, in execution order
+     * @return Consecutive chunks covering every operation
+     */
+    public List<Chunk> split(List<? extends CRUDOperation> operations) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        int from = 0;
+        long bytes = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            long size = operations.get(i).getSize() + OPERATION_OVERHEAD;
+            int count = i - from;
+            if (count > 0 && (count >= maxOperations || bytes + size > maxBytes)) {
+                chunks.add(new Chunk(operations, from, i, bytes));
+                from = i;
+                bytes = 0;
+            }
+            bytes += size;
+        }
+        if (from < operations.size()) {
+            chunks.add(new Chunk(operations, from, operations.size(), bytes));
+        }
+        return chunks;
+    }
+
+    /**
+     * A range of operations written in a single bulk
+     */
+    public static class Chunk {
+        private List<? extends CRUDOperation> operations;
+        private int from;
+        private int to;
+        private long bytes;
+
+        Chunk(List<? extends CRUDOperation> operations, int from, int to, long bytes) {
+            this.operations = operations;
+            this.from = from;
+            this.to = to;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Get the operations of this chunk
+         * @return A view of the original list
+         */
+        public List<? extends CRUDOperation> getOperations() {
+            return operations.subList(from, to);
+        }
+
+        /**
+         * Get the index of the first operation
+         * @return Index in the original list (inclusive)
+         */
+        public int getFrom() {
+            return from;
+        }
+
+        /**
+         * Get the index after the last operation
+         * @return Index in the original list (exclusive)
+         */
+        public int getTo() {
+            return to;
+        }
+
+        /**
+         * Get the estimated encoded size of this chunk
+         * @return Size in bytes
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Get the number of operations
+         * @return Number of operations
+         */
+        public int size() {
+            return to - from;
+        }
+    }
+}
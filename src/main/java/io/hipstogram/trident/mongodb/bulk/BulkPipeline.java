@@ -0,0 +1,144 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.bulk;
+
+import io.hipstogram.trident.mongodb.collection.BulkWriter;
+import io.hipstogram.trident.mongodb.collection.MongoDBCollection;
+import io.hipstogram.trident.mongodb.collection.WriteCounts;
+import io.hipstogram.trident.mongodb.metrics.BulkMetrics;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.tracing.BatchTrace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Writes bulk chunks with a bounded number of them in flight. The next chunk is built on the
+ * calling thread while the previous ones are executed by the workers. Once a chunk fails no
+ * further chunks are submitted, and the failed and skipped ranges are reported together.
+ * @author Andrés Sánchez
+ */
+public class BulkPipeline
+{
+    // Workers executing the chunks
+    private ExecutorService executor;
+
+    // Maximum number of chunks in flight
+    private int maxInFlight;
+
+    /**
+     * Create a new pipeline
+     * @param executor Workers executing the chunks
+     * @param maxInFlight Maximum number of chunks in flight
+     */
+    public BulkPipeline(ExecutorService executor, int maxInFlight) {
+        this.executor = executor;
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Stop the workers once the chunks in flight are written
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Write a list of chunks and wait until all of them are acknowledged
+     * @param coll Collection
+     * @param writeOptions Bulk options
+     * @param chunks Chunks to write
+     * @param metrics Metrics recording every executed chunk, may be null
+     * @param trace Batch recording every executed chunk, may be null
+     * @throws BulkPipelineException If any chunk failed
+     */
+    public void write(final MongoDBCollection coll, final BulkWriteOptions writeOptions, List<BulkChunker.Chunk> chunks,
+                      final BulkMetrics metrics, final BatchTrace trace) {
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final List<BulkPipelineException.Failure> failures = new ArrayList<BulkPipelineException.Failure>();
+        List<Future<?>> futures = new ArrayList<Future<?>>(chunks.size());
+
+        int next = 0;
+        try {
+            for (; next < chunks.size(); next++) {
+                final BulkChunker.Chunk chunk = chunks.get(next);
+                final BulkWriter writer = coll.newBulkWriter(writeOptions);
+                for (CRUDOperation operation : chunk.getOperations()) {
+                    writer.add(operation);
+                }
+
+                inFlight.acquire();
+                synchronized (failures) {
+                    if (!failures.isEmpty()) {
+                        inFlight.release();
+                        break;
+                    }
+                }
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            long start = System.nanoTime();
+                            WriteCounts counts = writer.execute();
+                            if (metrics != null) {
+                                metrics.record(chunk.size(), chunk.getBytes(), start, counts);
+                            }
+                            if (trace != null) {
+                                trace.bulk("bulk", chunk.getOperations(), System.nanoTime() - start);
+                            }
+                        } catch (RuntimeException e) {
+                            synchronized (failures) {
+                                failures.add(new BulkPipelineException.Failure(chunk.getFrom(), chunk.getTo(), e));
+                            }
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing bulk chunks", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unexpected bulk chunk error", e.getCause());
+        }
+
+        if (!failures.isEmpty()) {
+            List<BulkPipelineException.Failure> report = new ArrayList<BulkPipelineException.Failure>(failures);
+            for (int i = next; i < chunks.size(); i++) {
+                report.add(new BulkPipelineException.Failure(chunks.get(i).getFrom(), chunks.get(i).getTo(), null));
+            }
+            throw new BulkPipelineException(sorted(report));
+        }
+    }
+
+    /**
+     * Sort failures by operation range
+     */
+    private static List<BulkPipelineException.Failure> sorted(List<BulkPipelineException.Failure> failures) {
+        List<BulkPipelineException.Failure> sorted = new ArrayList<BulkPipelineException.Failure>(failures.size());
+        for (BulkPipelineException.Failure failure : failures) {
+            int i = sorted.size();
+            while (i > 0 && sorted.get(i - 1).getFrom() > failure.getFrom()) i--;
+            sorted.add(i, failure);
+        }
+        return sorted;
+    }
+}
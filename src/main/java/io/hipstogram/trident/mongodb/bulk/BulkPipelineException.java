@@ -0,0 +1,97 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.bulk;
+
+import java.util.List;
+
+/**
+ * Thrown when one or more chunks of a pipelined write fail
+ * @author Andrés Sánchez
+ */
+public class BulkPipelineException extends RuntimeException
+{
+    // Serialization
+    private static final long serialVersionUID = 1L;
+
+    // Failed or skipped chunks
+    private List<Failure> failures;
+
+    /**
+     * Create a new exception
+     * @param failures Failed or skipped chunks, in operation order
+     */
+    public BulkPipelineException(List<Failure> failures) {
+        super(describe(failures), firstCause(failures));
+        this.failures = failures;
+    }
+
+    /**
+     * Get the chunks that were not written
+     * @return Failed or skipped chunks, in operation order
+     */
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    private static String describe(List<Failure> failures) {
+        StringBuilder message = new StringBuilder("Bulk write failed for operations");
+        for (Failure failure : failures) {
+            message.append(" [").append(failure.getFrom()).append(", ").append(failure.getTo()).append(")");
+            message.append(failure.getCause() == null ? " (skipped)" : "");
+        }
+        return message.toString();
+    }
+
+    private static Throwable firstCause(List<Failure> failures) {
+        for (Failure failure : failures) {
+            if (failure.getCause() != null) return failure.getCause();
+        }
+        return null;
+    }
+
+    /**
+     * A range of operations that was not written
+     */
+    public static class Failure {
+        private int from;
+        private int to;
+        private Throwable cause;
+
+        /**
+         * Create a new failure
+         * @param from First operation (inclusive)
+         * @param to Last operation (exclusive)
+         * @param cause Error of the chunk, or null if the chunk was skipped after an earlier failure
+         */
+        public Failure(int from, int to, Throwable cause) {
+            this.from = from;
+            this.to = to;
+            this.cause = cause;
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public int getTo() {
+            return to;
+        }
+
+        public Throwable getCause() {
+            return cause;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.bulk;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.WriteConcern;
+import io.hipstogram.trident.mongodb.collection.BulkWriter;
+import io.hipstogram.trident.mongodb.collection.MongoDBCollection;
+import io.hipstogram.trident.mongodb.collection.WriteCounts;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Options for MongoDB bulk writes
+ * @author Andrés Sánchez
+ */
+public class BulkWriteOptions implements Serializable
+{
+    // Serialization
+    private static final long serialVersionUID = 1L;
+
+    // Server error code of a write failing on a duplicate key
+    public static final int DUPLICATE_KEY = 11000;
+
+    // Ordered bulks stop at the first error, unordered ones go on and may be applied in any order
+    public boolean ordered = true;
+
+    // Write concern: number of nodes, "majority" or a tag set name. Null to use the collection default
+    public String w = null;
+
+    // Wait for the journal commit. False to use the collection default
+    public boolean journal = false;
+
+    // Write concern timeout in milliseconds, 0 to use the collection default
+    public int wtimeout = 0;
+
+    /**
+     * Create a new bulk operation for a collection
+     * @param coll MongoDB collection
+     * @return An ordered or unordered bulk operation
+     */
+    public BulkWriteOperation initialize(DBCollection coll) {
+        return ordered ? coll.initializeOrderedBulkOperation() : coll.initializeUnorderedBulkOperation();
+    }
+
+    /**
+     * Write a list of operations in a single bulk
+     * @param coll Collection
+     * @param operations Operations, in execution order
+     * @return Document counts reported by the server
+     */
+    public WriteCounts write(MongoDBCollection coll, List<? extends CRUDOperation> operations) {
+        BulkWriter writer = coll.newBulkWriter(this);
+        for (CRUDOperation operation : operations) {
+            writer.add(operation);
+        }
+        return writer.execute();
+    }
+
+    /**
+     * Execute a bulk operation with the configured write concern
+     * @param coll Collection the bulk operation was created for
+     * @param bulk Bulk operation
+     * @return The result of the bulk operation
+     */
+    public BulkWriteResult execute(DBCollection coll, BulkWriteOperation bulk) {
+        return bulk.execute(getWriteConcern(coll.getWriteConcern()));
+    }
+
+    /**
+     * Get the write concern of a collection with the configured fields set over it
+     * @param base Write concern of the collection
+     * @return The base write concern, or a copy with w, journal and timeout overridden
+     */
+    public WriteConcern getWriteConcern(WriteConcern base) {
+        if (w == null && !journal && wtimeout == 0) {
+            return base;
+        }
+        Object baseW = base.getWObject();
+        String w = this.w != null ? this.w : baseW == null ? "1" : baseW.toString();
+        int wtimeout = this.wtimeout != 0 ? this.wtimeout : base.getWtimeout();
+        boolean journal = this.journal || base.getJ();
+        try {
+            return new WriteConcern(Integer.parseInt(w), wtimeout, base.getFsync(), journal);
+        } catch (NumberFormatException e) {
+            return new WriteConcern(w, wtimeout, base.getFsync(), journal);
+        }
+    }
+}
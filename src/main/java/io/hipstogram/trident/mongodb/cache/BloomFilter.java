@@ -0,0 +1,128 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over 64-bit key hashes. The k bit positions of a key are derived from the two
+ * halves of its hash (Kirsch-Mitzenmacher). Keys can be added and looked up concurrently.
+ * @author Andrés Sánchez
+ */
+class BloomFilter
+{
+    // Bits, 64 per long
+    private final AtomicLongArray bits;
+
+    // Number of bits
+    private final long numBits;
+
+    // Number of bit positions per key
+    private final int numHashes;
+
+    /**
+     * Create a filter sized for a number of keys
+     * @param expectedKeys Expected number of keys
+     * @param falsePositiveRate Share of absent keys reported as present once full, between 0 and 1
+     */
+    BloomFilter(long expectedKeys, double falsePositiveRate) {
+        this(numBits(expectedKeys, falsePositiveRate), numHashes(expectedKeys, numBits(expectedKeys, falsePositiveRate)));
+    }
+
+    /**
+     * Create an empty filter
+     * @param numBits Number of bits
+     * @param numHashes Number of bit positions per key
+     */
+    BloomFilter(long numBits, int numHashes) {
+        long words = (numBits + 63) >>> 6;
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter too large: " + numBits + " bits");
+        }
+        this.bits = new AtomicLongArray((int) words);
+        this.numBits = words << 6;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Add a key
+     * @param hash 64-bit hash of the key
+     */
+    void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(word);
+                if ((current & mask) != 0) break;
+            } while (!bits.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    /**
+     * Check whether a key may have been added
+     * @param hash 64-bit hash of the key
+     * @return False if the key was never added
+     */
+    boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 1; i <= numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    long getNumBits() {
+        return numBits;
+    }
+
+    int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Write the bits
+     */
+    void writeTo(DataOutputStream out) throws IOException {
+        for (int i = 0; i < bits.length(); i++) out.writeLong(bits.get(i));
+    }
+
+    /**
+     * Read bits written by a filter of the same size
+     */
+    void readFrom(DataInputStream in) throws IOException {
+        for (int i = 0; i < bits.length(); i++) bits.set(i, in.readLong());
+    }
+
+    static long numBits(long expectedKeys, double falsePositiveRate) {
+        double rate = Math.min(Math.max(falsePositiveRate, Double.MIN_VALUE), 0.5);
+        return Math.max(64, (long) Math.ceil(-Math.max(1, expectedKeys) * Math.log(rate) / (Math.log(2) * Math.log(2))));
+    }
+
+    static int numHashes(long expectedKeys, long numBits) {
+        return Math.max(1, (int) Math.round((double) numBits / Math.max(1, expectedKeys) * Math.log(2)));
+    }
+}
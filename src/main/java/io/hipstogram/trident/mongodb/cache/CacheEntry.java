@@ -0,0 +1,75 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import java.util.List;
+
+/**
+ * An entry of a map state cache
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class CacheEntry<T>
+{
+    // Key of the entry
+    final List<Object> key;
+
+    // Value, null when it is stored off-heap
+    T value;
+
+    // Estimated size in bytes
+    int weight;
+
+    // Expiration time in milliseconds, 0 if it never expires
+    long expiresAt;
+
+    // Off-heap location and length, -1 when the value is on the heap
+    long address = -1;
+    int length;
+
+    // Queue of the eviction policy holding this entry
+    int queue;
+
+    // Links of the eviction policy queue
+    CacheEntry<T> prev;
+    CacheEntry<T> next;
+
+    /**
+     * Create a new entry
+     * @param key Key
+     * @param value Value
+     */
+    CacheEntry(List<Object> key, T value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    /**
+     * Get the key
+     * @return Key
+     */
+    public List<Object> getKey() {
+        return key;
+    }
+
+    /**
+     * Get the cached value
+     * @return Value, may be null as missing keys are cached too
+     */
+    public T getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import backtype.storm.metric.api.IMetric;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storm metric publishing the hit, miss and eviction counts and the hit ratio of a
+ * cache since the last report, along with its current size and weight
+ * @author Andrés Sánchez
+ */
+public class CacheMetric implements IMetric
+{
+    // Reported cache
+    private final MapStateCache<?> cache;
+
+    // Counts at the last report
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Create a new cache metric
+     * @param cache Reported cache
+     */
+    public CacheMetric(MapStateCache<?> cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        long currentHits = cache.getHitCount();
+        long currentMisses = cache.getMissCount();
+        long currentEvictions = cache.getEvictionCount();
+
+        Map<String, Object> value = new HashMap<String, Object>();
+        value.put("hitCount", currentHits - hits);
+        value.put("missCount", currentMisses - misses);
+        value.put("evictionCount", currentEvictions - evictions);
+        long lookups = (currentHits - hits) + (currentMisses - misses);
+        value.put("hitRatio", lookups == 0 ? 0.0 : (double) (currentHits - hits) / lookups);
+        value.put("size", cache.size());
+        value.put("weight", cache.weight());
+
+        hits = currentHits;
+        misses = currentMisses;
+        evictions = currentEvictions;
+        return value;
+    }
+}
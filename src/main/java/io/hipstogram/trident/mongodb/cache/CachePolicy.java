@@ -0,0 +1,30 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+/**
+ * Eviction policies for the map state cache
+ * @author Andrés Sánchez
+ */
+public enum CachePolicy
+{
+    // Trident's CachedMap, bounded by number of entries only
+    CACHED_MAP,
+    // Least recently used, bounded by weight
+    LRU,
+    // Window TinyLFU, bounded by weight
+    TINY_LFU
+}
@@ -0,0 +1,298 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.cache;
+
+import org.bson.BSON;
+import org.bson.BasicBSONObject;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.Serializer;
+import storm.trident.state.TransactionalValue;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A read-only snapshot of the entries of a transactional or opaque map state cache, in a
+ * memory-mapped file. Every entry keeps the txid of its value, so it can be checked against
+ * the txid stored in MongoDB before it is trusted. Lookups hash the BSON encoding of the key
+ * into an open addressing index and compare keys in place; only the values read are copied.
+ * <pre>
+ * header: int magic, int version, int slots, int count, long created millis, long file length
+ * index:  slots x (long key hash, 0 if empty; long entry offset)
+ * data:   count x (int key length, key BSON, long txid, int value length or -1, value bytes)
+ * </pre>
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class CacheSnapshot<T>
+{
+    // File format
+    private static final int MAGIC = 0x4d43534e;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int SLOT_BYTES = 16;
+
+    // Txid of the keys known to be missing
+    public static final long ABSENT = -1;
+
+    // Mapped file
+    private final MappedByteBuffer buffer;
+
+    // Value serializer
+    private final Serializer<T> serializer;
+
+    // Number of index slots, a power of two
+    private final int slots;
+
+    // Number of entries
+    private final int count;
+
+    // Creation time
+    private final long createdMillis;
+
+    private CacheSnapshot(MappedByteBuffer buffer, Serializer<T> serializer) throws IOException {
+        this.buffer = buffer;
+        this.serializer = serializer;
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a cache snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported cache snapshot version " + buffer.getInt(4));
+        }
+        this.slots = buffer.getInt(8);
+        this.count = buffer.getInt(12);
+        this.createdMillis = buffer.getLong(16);
+        if (buffer.getLong(24) != buffer.capacity() || Integer.bitCount(slots) != 1
+                || HEADER_BYTES + (long) slots * SLOT_BYTES > buffer.capacity()) {
+            throw new IOException("Truncated or corrupt cache snapshot");
+        }
+    }
+
+    /**
+     * Map a snapshot file
+     * @param file Snapshot file
+     * @param serializer Serializer the values were written with
+     * @return The snapshot, or null if the file does not exist
+     * @throws IOException If the file cannot be read or is not a valid snapshot
+     */
+    public static <T> CacheSnapshot<T> open(File file, Serializer<T> serializer) throws IOException {
+        if (!file.isFile()) return null;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid once the channel is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new CacheSnapshot<T>(buffer, serializer);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Write the entries of a cache to a snapshot file, replacing it atomically. Entries with
+     * values of another type than OpaqueValue or TransactionalValue, which cannot be checked,
+     * and the entries of batches that may not be committed yet are left out: a replayed opaque
+     * batch may write other values with the same txid.
+     * @param file Snapshot file
+     * @param entries Cache entries
+     * @param serializer Value serializer
+     * @param committedTxid Last txid known to be committed
+     * @return Number of written entries
+     * @throws IOException If the file cannot be written
+     */
+    public static <T> int write(File file, List<CacheEntry<T>> entries, Serializer<T> serializer,
+                                long committedTxid) throws IOException {
+        List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+        List<byte[]> values = new ArrayList<byte[]>(entries.size());
+        List<Long> txids = new ArrayList<Long>(entries.size());
+        for (CacheEntry<T> entry : entries) {
+            T value = entry.getValue();
+            long txid = txid(value);
+            if (value != null && (txid == ABSENT || txid > committedTxid)) continue;
+            keys.add(encode(entry.getKey()));
+            values.add(value == null ? null : serializer.serialize(value));
+            txids.add(txid);
+        }
+
+        int slots = 16;
+        while (slots < 2 * keys.size()) slots <<= 1;
+        long[] hashes = new long[slots];
+        long[] offsets = new long[slots];
+        long offset = HEADER_BYTES + (long) slots * SLOT_BYTES;
+        for (int i = 0; i < keys.size(); i++) {
+            long hash = hash(keys.get(i));
+            int slot = (int) hash & (slots - 1);
+            while (hashes[slot] != 0) slot = (slot + 1) & (slots - 1);
+            hashes[slot] = hash;
+            offsets[slot] = offset;
+            offset += 4 + keys.get(i).length + 8 + 4 + (values.get(i) == null ? 0 : values.get(i).length);
+        }
+        if (offset > Integer.MAX_VALUE) {
+            throw new IOException("Cache snapshot too large to be mapped: " + offset + " bytes");
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(slots);
+            out.writeInt(keys.size());
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(offset);
+            for (int slot = 0; slot < slots; slot++) {
+                out.writeLong(hashes[slot]);
+                out.writeLong(offsets[slot]);
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                byte[] value = values.get(i);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeLong(txids.get(i));
+                out.writeInt(value == null ? -1 : value.length);
+                if (value != null) out.write(value);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot rename " + temp + " to " + file);
+        }
+        return keys.size();
+    }
+
+    /**
+     * Look up a key
+     * @param key Key
+     * @return The entry, or null if the snapshot does not hold the key
+     */
+    public Entry<T> get(List<Object> key) {
+        byte[] encoded = encode(key);
+        long hash = hash(encoded);
+        int slot = (int) hash & (slots - 1);
+        for (int probes = 0; probes < slots; probes++, slot = (slot + 1) & (slots - 1)) {
+            int position = HEADER_BYTES + slot * SLOT_BYTES;
+            long slotHash = buffer.getLong(position);
+            if (slotHash == 0) return null;
+            if (slotHash != hash) continue;
+            int offset = (int) buffer.getLong(position + 8);
+            if (!keyEquals(offset, encoded)) continue;
+
+            int txidAt = offset + 4 + encoded.length;
+            long txid = buffer.getLong(txidAt);
+            int length = buffer.getInt(txidAt + 8);
+            if (length < 0) return new Entry<T>(txid, null);
+            byte[] value = new byte[length];
+            ByteBuffer view = buffer.duplicate();
+            view.position(txidAt + 12);
+            view.get(value);
+            return new Entry<T>(txid, serializer.deserialize(value));
+        }
+        return null;
+    }
+
+    /**
+     * Get the number of entries
+     * @return Number of entries
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get the creation time
+     * @return Time the snapshot was written, in milliseconds
+     */
+    public long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    /**
+     * Get the txid of a cached value
+     * @return The txid, ABSENT for values that carry none
+     */
+    public static long txid(Object value) {
+        if (value instanceof OpaqueValue) {
+            Long txid = ((OpaqueValue) value).getCurrTxid();
+            return txid == null ? ABSENT : txid;
+        }
+        if (value instanceof TransactionalValue) {
+            Long txid = ((TransactionalValue) value).getTxid();
+            return txid == null ? ABSENT : txid;
+        }
+        return ABSENT;
+    }
+
+    private boolean keyEquals(int offset, byte[] key) {
+        if (buffer.getInt(offset) != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + 4 + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private static byte[] encode(List<Object> key) {
+        return BSON.encode(new BasicBSONObject("k", key));
+    }
+
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        // 0 marks empty slots
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * An entry of a snapshot
+     * @param <T> Value type
+     */
+    public static class Entry<T>
+    {
+        private final long txid;
+        private final T value;
+
+        Entry(long txid, T value) {
+            this.txid = txid;
+            this.value = value;
+        }
+
+        /**
+         * Get the txid the value was written by
+         * @return Txid, ABSENT if the key was missing
+         */
+        public long getTxid() {
+            return txid;
+        }
+
+        /**
+         * Get the value
+         * @return Value, null if the key was missing
+         */
+        public T getValue() {
+            return value;
+        }
+    }
+}
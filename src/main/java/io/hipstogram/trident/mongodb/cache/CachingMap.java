@@ -0,0 +1,101 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import storm.trident.state.map.IBackingMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backing map that serves reads from a {@link MapStateCache} and only asks the
+ * delegate for the keys that are not cached. Writes go to both.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class CachingMap<T> implements IBackingMap<T>
+{
+    // Cache
+    private final MapStateCache<T> cache;
+
+    // Backing map
+    private final IBackingMap<T> delegate;
+
+    /**
+     * Create a new caching map
+     * @param delegate Backing map
+     * @param cache Cache
+     */
+    public CachingMap(IBackingMap<T> delegate, MapStateCache<T> cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public List<T> multiGet(List<List<Object>> keys) {
+        List<T> values = new ArrayList<T>(keys.size());
+        List<List<Object>> missing = new ArrayList<List<Object>>();
+        List<Integer> positions = new ArrayList<Integer>();
+
+        for (int i = 0; i < keys.size(); i++) {
+            CacheEntry<T> entry = cache.get(keys.get(i));
+            if (entry != null) {
+                values.add(entry.getValue());
+            } else {
+                values.add(null);
+                missing.add(keys.get(i));
+                positions.add(i);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            List<T> fetched = delegate.multiGet(missing);
+            if (fetched.size() != missing.size()) {
+                throw new IllegalStateException("Backing map returned " + fetched.size() + " values for " + missing.size() + " keys");
+            }
+            for (int i = 0; i < missing.size(); i++) {
+                values.set(positions.get(i), fetched.get(i));
+                // A concurrent write may have cached a newer value since the read
+                cache.putIfAbsent(missing.get(i), fetched.get(i));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void multiPut(List<List<Object>> keys, List<T> values) {
+        try {
+            delegate.multiPut(keys, values);
+        } catch (RuntimeException e) {
+            // Some values may have been written, drop them all so they are read again
+            for (List<Object> key : keys) {
+                cache.invalidate(key);
+            }
+            throw e;
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            cache.put(keys.get(i), values.get(i));
+        }
+    }
+
+    /**
+     * Get the cache
+     * @return Cache
+     */
+    public MapStateCache<T> getCache() {
+        return cache;
+    }
+}
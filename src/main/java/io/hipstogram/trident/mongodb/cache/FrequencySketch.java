@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+/**
+ * Count-min sketch of 4-bit counters estimating how often keys were seen.
+ * Counters are halved periodically so the estimation follows recent history.
+ * @author Andrés Sánchez
+ */
+class FrequencySketch
+{
+    // Seeds of the four hash functions
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    // Counters, 16 per long
+    private final long[] table;
+
+    // Mask of table indexes
+    private final int mask;
+
+    // Number of increments before halving
+    private final int sampleSize;
+
+    // Increments since the last halving
+    private int additions = 0;
+
+    /**
+     * Create a new sketch
+     * @param expectedEntries Expected number of distinct keys in the cache
+     */
+    FrequencySketch(long expectedEntries) {
+        int size = 64;
+        while (size < expectedEntries && size < (1 << 24)) size <<= 1;
+        this.table = new long[size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * Count an occurrence of a key
+     * @param hash Hash of the key
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = index(hash, i);
+            int shift = shift(hash, i);
+            if (((table[index] >>> shift) & 0xfL) != 0xfL) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) reset();
+    }
+
+    /**
+     * Estimate how often a key was seen
+     * @param hash Hash of the key
+     * @return Estimated frequency, from 0 to 15
+     */
+    int frequency(int hash) {
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            frequency = Math.min(frequency, (int) ((table[index(hash, i)] >>> shift(hash, i)) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * Spread a key hash code
+     * @param hashCode Key hash code
+     * @return Spread hash
+     */
+    static int spread(int hashCode) {
+        int h = hashCode * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private int index(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int shift(int hash, int i) {
+        return (((hash >>> (i << 3)) & 0xf)) << 2;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+        }
+        additions /= 2;
+    }
+}
@@ -0,0 +1,375 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.cache;
+
+import io.hipstogram.trident.mongodb.collection.ChangeFeed;
+import io.hipstogram.trident.mongodb.collection.Documents;
+import io.hipstogram.trident.mongodb.collection.FeedGapException;
+import org.bson.BSON;
+import org.bson.BasicBSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Bloom filter of the _ids known to exist in a collection, to answer lookups of new keys
+ * without a query. Numbers are hashed by value, as MongoDB compares them, in embedded _ids
+ * too. The filter can be kept on local disk as a snapshot of its bits plus a journal of the
+ * hashes added since, which is written before the documents themselves so that a restarted
+ * filter never misses a key that may exist. Snapshots hold the change feed position they were
+ * written at, and a restored filter adds the _ids changed since then by any writer; when the
+ * feed no longer holds them, the filter is filled from the collection again.
+ * @author Andrés Sánchez
+ */
+public class KeyFilter
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(KeyFilter.class);
+
+    // Snapshot header
+    private static final int MAGIC = 0x4b464c54;
+    private static final int VERSION = 2;
+
+    // Changes read at once when catching up with the change feed
+    private static final int CATCH_UP_BATCH = 1000;
+
+    // Hash seeds by _id type
+    private static final long LONG_SEED = 0x9ae16a3b2f90404fL;
+    private static final long DOUBLE_SEED = 0xc3a5c85c97cb3127L;
+    private static final long STRING_SEED = 0xcbf29ce484222325L;
+    private static final long BYTES_SEED = 0xb492b66fbe98f273L;
+    private static final long ARRAY_SEED = 0x9ddfea08eb382d69L;
+    private static final long DOCUMENT_SEED = 0xe7037ed1a0b428dbL;
+
+    // Filter bits
+    private BloomFilter filter;
+
+    // Change feed of the collection, null when kept in memory only
+    private final ChangeFeed feed;
+
+    // Snapshot and journal files, null when kept in memory only
+    private final File snapshot;
+    private final File journal;
+
+    // Time between two snapshots
+    private final long snapshotIntervalMillis;
+
+    // Open journal, null when kept in memory only
+    private DataOutputStream journalOut;
+
+    // Time of the last snapshot
+    private long lastSnapshotMillis;
+
+    // Whether the filter was restored from disk
+    private boolean restored = false;
+
+    /**
+     * Create an empty filter kept in memory
+     * @param expectedKeys Expected number of keys
+     * @param falsePositiveRate Share of absent keys reported as present once full
+     */
+    public KeyFilter(long expectedKeys, double falsePositiveRate) {
+        this(expectedKeys, falsePositiveRate, null, 0, null);
+    }
+
+    /**
+     * Create a filter kept on disk, restoring it from a previous snapshot and journal if they
+     * were written with the same size and the change feed still holds the changes made since.
+     * The caller fills it when {@link #isRestored()} is false.
+     * @param expectedKeys Expected number of keys
+     * @param falsePositiveRate Share of absent keys reported as present once full
+     * @param file Snapshot file; the journal goes next to it. Null to keep the filter in memory.
+     * @param snapshotIntervalMillis Minimum time between two snapshots
+     * @param feed Change feed of the collection, required with a file
+     */
+    public KeyFilter(long expectedKeys, double falsePositiveRate, File file, long snapshotIntervalMillis, ChangeFeed feed) {
+        if (file != null && feed == null) {
+            throw new IllegalArgumentException("Key filters kept on disk need the change feed of their collection");
+        }
+        this.filter = new BloomFilter(expectedKeys, falsePositiveRate);
+        this.feed = feed;
+        this.snapshot = file;
+        this.journal = file == null ? null : new File(file.getPath() + ".journal");
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.lastSnapshotMillis = System.currentTimeMillis();
+        if (file != null) {
+            restored = restore();
+            if (!restored) {
+                // Bits read before the restore failed must not stay
+                this.filter = new BloomFilter(expectedKeys, falsePositiveRate);
+                // Keys added from now on must not be mixed with an older journal
+                journal.delete();
+            }
+            try {
+                journalOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open key filter journal " + journal, e);
+            }
+        }
+    }
+
+    /**
+     * Check whether an _id may exist
+     * @param id _id value
+     * @return False if the _id was never added
+     */
+    public boolean mightContain(Object id) {
+        return filter.mightContain(hash(id));
+    }
+
+    /**
+     * Add an _id. With a journal, it only reaches the disk on {@link #flush()}.
+     * @param id _id value
+     */
+    public void add(Object id) {
+        long hash = hash(id);
+        filter.add(hash);
+        if (journalOut != null) {
+            synchronized (this) {
+                try {
+                    journalOut.writeLong(hash);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot write key filter journal " + journal, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the journal to disk, and a new snapshot if the last one is old enough
+     */
+    public synchronized void flush() {
+        if (journalOut == null) return;
+        try {
+            journalOut.flush();
+            if (System.currentTimeMillis() - lastSnapshotMillis >= snapshotIntervalMillis) {
+                snapshot();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write key filter journal " + journal, e);
+        }
+    }
+
+    /**
+     * Write a snapshot of the filter and start a new journal
+     * @throws IOException If the snapshot cannot be written
+     */
+    public synchronized void snapshot() throws IOException {
+        if (snapshot == null) return;
+        long start = System.currentTimeMillis();
+        // Taken before the bits, so that a restore reads again what is added meanwhile
+        BSONTimestamp position = watermark();
+        File temp = new File(snapshot.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(filter.getNumBits());
+            out.writeInt(filter.getNumHashes());
+            out.writeBoolean(position != null);
+            if (position != null) {
+                out.writeInt(position.getTime());
+                out.writeInt(position.getInc());
+            }
+            filter.writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(snapshot)) {
+            throw new IOException("Cannot rename " + temp + " to " + snapshot);
+        }
+        journalOut.close();
+        journalOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, false)));
+        lastSnapshotMillis = System.currentTimeMillis();
+        LOG.debug("Wrote key filter snapshot [{}] in [{}] ms", snapshot, lastSnapshotMillis - start);
+    }
+
+    /**
+     * Check whether the filter was restored from disk
+     * @return True if it was, false if it is empty
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    /**
+     * Get the number of bits of the filter
+     * @return Number of bits
+     */
+    public long getNumBits() {
+        return filter.getNumBits();
+    }
+
+    /**
+     * Restore the snapshot and replay the journal
+     */
+    private boolean restore() {
+        if (!snapshot.isFile()) return false;
+        try {
+            BSONTimestamp position = null;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 1 << 16));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION
+                        || in.readLong() != filter.getNumBits() || in.readInt() != filter.getNumHashes()) {
+                    LOG.info("Key filter snapshot [{}] has another format or size, ignoring it", snapshot);
+                    return false;
+                }
+                if (in.readBoolean()) {
+                    position = new BSONTimestamp(in.readInt(), in.readInt());
+                }
+                filter.readFrom(in);
+            } finally {
+                in.close();
+            }
+
+            long replayed = 0;
+            if (journal.isFile()) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 1 << 16));
+                try {
+                    // A partial last hash is a write cut short, whose documents were not written either
+                    for (long i = journal.length() / 8; i > 0; i--, replayed++) {
+                        filter.add(in.readLong());
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            if (position == null) {
+                LOG.info("Key filter snapshot [{}] has no change feed position, ignoring it", snapshot);
+                return false;
+            }
+            long changed = catchUp(position);
+            if (changed < 0) return false;
+            LOG.info("Restored key filter [{}] with [{}] journaled keys and [{}] changed since", new Object[]{snapshot, replayed, changed});
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Cannot read key filter snapshot " + snapshot + ", ignoring it", e);
+            return false;
+        }
+    }
+
+    /**
+     * Add the _ids changed after a position of the change feed
+     * @return Number of changes read, -1 if the feed no longer holds them or some change may
+     *         have touched every document
+     */
+    private long catchUp(BSONTimestamp position) {
+        long changed = 0;
+        try {
+            while (true) {
+                List<ChangeFeed.Change> changes = feed.poll(position, CATCH_UP_BATCH);
+                for (ChangeFeed.Change change : changes) {
+                    if (change.getId() == null) {
+                        LOG.info("Collection of key filter [{}] was changed as a whole, ignoring the snapshot", snapshot);
+                        return -1;
+                    }
+                    filter.add(hash(change.getId()));
+                    position = change.getPosition();
+                    changed++;
+                }
+                if (changes.size() < CATCH_UP_BATCH) return changed;
+            }
+        } catch (FeedGapException e) {
+            LOG.info("Changes made since key filter snapshot [{}] are gone, ignoring it: {}", snapshot, e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Get the position of the last change of the collection
+     * @return A position, null if the feed cannot be read
+     */
+    private BSONTimestamp watermark() {
+        try {
+            return feed.latest();
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot read the change feed position of key filter " + snapshot + ", it will be filled again on restart", e);
+            return null;
+        }
+    }
+
+    /**
+     * Hash an _id to 64 bits
+     * @param id _id value
+     * @return Hash
+     */
+    public static long hash(Object id) {
+        return hashNormalized(Documents.normalize(id));
+    }
+
+    /**
+     * Hash a value returned by {@link Documents#normalize(Object)}, whose numbers are longs or
+     * doubles and whose embedded documents are lists of their fields and values, in order
+     */
+    private static long hashNormalized(Object value) {
+        if (value instanceof Long) {
+            return mix((Long) value ^ LONG_SEED);
+        }
+        if (value instanceof Double) {
+            return mix(Double.doubleToLongBits((Double) value) ^ DOUBLE_SEED);
+        }
+        if (value instanceof String) {
+            String s = (String) value;
+            long h = STRING_SEED;
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * 0x100000001b3L;
+            }
+            return mix(h);
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            boolean document = Documents.isNormalizedDocument(value);
+            long h = document ? DOCUMENT_SEED : ARRAY_SEED;
+            for (int i = document ? 1 : 0; i < list.size(); i++) {
+                h = (h ^ hashNormalized(list.get(i))) * 0x100000001b3L;
+            }
+            return mix(h);
+        }
+        byte[] bytes;
+        if (value instanceof ObjectId) {
+            bytes = ((ObjectId) value).toByteArray();
+        } else if (value instanceof ByteBuffer) {
+            ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+            bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+        } else {
+            bytes = BSON.encode(new BasicBSONObject("", value));
+        }
+        long h = BYTES_SEED;
+        for (byte b : bytes) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Finalization mix of MurmurHash3
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
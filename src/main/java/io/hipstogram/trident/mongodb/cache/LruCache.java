@@ -0,0 +1,57 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+/**
+ * Least recently used cache, bounded by weight
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class LruCache<T> extends WeightedCache<T>
+{
+    // Entries, most recently used first
+    private final Queue<T> queue = new Queue<T>();
+
+    /**
+     * Create a new LRU cache
+     * @param maxWeight Maximum total weight in bytes
+     * @param ttlMillis Time to live in milliseconds, 0 for no expiration
+     * @param offHeap Off-heap value store, or null to keep values on the heap
+     */
+    public LruCache(long maxWeight, long ttlMillis, OffHeapStore<T> offHeap) {
+        super(maxWeight, ttlMillis, offHeap);
+    }
+
+    @Override
+    protected void onInsert(CacheEntry<T> entry) {
+        queue.addFirst(entry);
+    }
+
+    @Override
+    protected void onAccess(CacheEntry<T> entry) {
+        queue.moveToFront(entry);
+    }
+
+    @Override
+    protected void onRemove(CacheEntry<T> entry) {
+        queue.remove(entry);
+    }
+
+    @Override
+    protected CacheEntry<T> victim() {
+        return queue.last();
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import java.util.List;
+
+/**
+ * A cache for map state values. Missing keys are cached too, with a null value.
+ * Implementations must be thread-safe.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public interface MapStateCache<T>
+{
+    /**
+     * Look up a key
+     * @param key Key
+     * @return The cached entry, or null if the key is not cached
+     */
+    public CacheEntry<T> get(List<Object> key);
+
+    /**
+     * Cache a value, replacing any previous value of the key
+     * @param key Key
+     * @param value Value, may be null
+     */
+    public void put(List<Object> key, T value);
+
+    /**
+     * Cache a value read from the backing store, unless the key was cached in the meantime.
+     * A value cached by a concurrent write is newer than the one read, and is kept.
+     * @param key Key
+     * @param value Value, may be null
+     */
+    public void putIfAbsent(List<Object> key, T value);
+
+    /**
+     * Remove a key
+     * @param key Key
+     */
+    public void invalidate(List<Object> key);
+
+    /**
+     * Remove every key
+     */
+    public void clear();
+
+    /**
+     * Get a copy of the live entries, values included
+     * @return Cached entries, in no particular order
+     */
+    public List<CacheEntry<T>> entries();
+
+    /**
+     * Get the number of cached keys
+     * @return Number of entries
+     */
+    public int size();
+
+    /**
+     * Get the total weight of the cached entries
+     * @return Estimated size in bytes
+     */
+    public long weight();
+
+    public long getHitCount();
+
+    public long getMissCount();
+
+    public long getEvictionCount();
+}
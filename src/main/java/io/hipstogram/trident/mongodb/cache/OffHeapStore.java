@@ -0,0 +1,243 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import storm.trident.state.Serializer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores serialized cache values in direct memory, outside the garbage collected heap.
+ * Memory is taken in chunks and split into power-of-two blocks, with a free list per
+ * block size. A chunk serves a single block size until all its blocks are released, then
+ * it can be reused for any size. Values bigger than a chunk are not stored. Not thread-safe,
+ * callers must synchronize.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class OffHeapStore<T>
+{
+    // Smallest block size (64 bytes)
+    private static final int MIN_BLOCK_SHIFT = 6;
+
+    // Biggest chunk size (1 MB)
+    private static final int MAX_CHUNK_SHIFT = 20;
+
+    // Value serializer
+    private final Serializer<T> serializer;
+
+    // Maximum memory taken for chunks
+    private final long maxBytes;
+
+    // Size of every chunk
+    private final int chunkSize;
+
+    // Allocated chunks
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    // Size class of every chunk (-1 while empty) and its number of blocks in use
+    private int[] chunkClass = new int[16];
+    private int[] chunkBlocks = new int[16];
+
+    // Empty chunks, reusable by any size class
+    private final List<Integer> emptyChunks = new ArrayList<Integer>();
+
+    // Free blocks per size class, as stacks of addresses
+    private final long[][] free;
+    private final int[] freeCount;
+
+    // Chunk being split and next unused offset in it, per size class
+    private final int[] current;
+    private final int[] bump;
+
+    /**
+     * Create a new off-heap store
+     * @param serializer Value serializer
+     * @param maxBytes Maximum direct memory to use
+     */
+    public OffHeapStore(Serializer<T> serializer, long maxBytes) {
+        this.serializer = serializer;
+        this.maxBytes = maxBytes;
+        int chunkShift = MAX_CHUNK_SHIFT;
+        while (chunkShift > MIN_BLOCK_SHIFT && (1L << chunkShift) > maxBytes) chunkShift--;
+        this.chunkSize = 1 << chunkShift;
+
+        int classes = chunkShift - MIN_BLOCK_SHIFT + 1;
+        this.free = new long[classes][];
+        this.freeCount = new int[classes];
+        this.current = new int[classes];
+        this.bump = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new long[16];
+            current[i] = -1;
+        }
+    }
+
+    /**
+     * Serialize a value
+     * @param value Value
+     * @return Bytes to store with {@link #write(CacheEntry, byte[])}
+     */
+    byte[] serialize(T value) {
+        return serializer.serialize(value);
+    }
+
+    /**
+     * Store a serialized value in an entry
+     * @param entry Cache entry, its address and length are set
+     * @param bytes Serialized value
+     * @return False if there is no room for the value
+     */
+    boolean write(CacheEntry<T> entry, byte[] bytes) {
+        int sizeClass = sizeClass(bytes.length);
+        if (sizeClass < 0) return false;
+
+        long address = allocate(sizeClass);
+        if (address < 0) return false;
+
+        ByteBuffer chunk = chunks.get(chunk(address)).duplicate();
+        chunk.position(offset(address));
+        chunk.put(bytes);
+        entry.address = address;
+        entry.length = bytes.length;
+        entry.value = null;
+        return true;
+    }
+
+    /**
+     * Read and deserialize the value of an entry
+     * @param entry Cache entry stored by this store
+     * @return Value
+     */
+    T read(CacheEntry<T> entry) {
+        byte[] bytes = new byte[entry.length];
+        ByteBuffer chunk = chunks.get(chunk(entry.address)).duplicate();
+        chunk.position(offset(entry.address));
+        chunk.get(bytes);
+        return serializer.deserialize(bytes);
+    }
+
+    /**
+     * Release the memory of an entry
+     * @param entry Cache entry stored by this store
+     */
+    void release(CacheEntry<T> entry) {
+        if (entry.address < 0) return;
+        int chunk = chunk(entry.address);
+        int sizeClass = chunkClass[chunk];
+        if (freeCount[sizeClass] == free[sizeClass].length) {
+            long[] grown = new long[free[sizeClass].length * 2];
+            System.arraycopy(free[sizeClass], 0, grown, 0, freeCount[sizeClass]);
+            free[sizeClass] = grown;
+        }
+        free[sizeClass][freeCount[sizeClass]++] = entry.address;
+        entry.address = -1;
+        if (--chunkBlocks[chunk] == 0) reclaim(chunk);
+    }
+
+    /**
+     * Get the memory a value would use
+     * @param length Serialized length of the value
+     * @return Block size in bytes, or -1 if the value can never be stored
+     */
+    int blockSize(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass < 0 || chunkSize > maxBytes) return -1;
+        return 1 << (sizeClass + MIN_BLOCK_SHIFT);
+    }
+
+    /**
+     * Get the direct memory taken so far
+     * @return Bytes allocated in chunks
+     */
+    public long getAllocatedBytes() {
+        return (long) chunks.size() * chunkSize;
+    }
+
+    private long allocate(int sizeClass) {
+        if (freeCount[sizeClass] > 0) {
+            long address = free[sizeClass][--freeCount[sizeClass]];
+            chunkBlocks[chunk(address)]++;
+            return address;
+        }
+        int blockSize = 1 << (sizeClass + MIN_BLOCK_SHIFT);
+        if (current[sizeClass] < 0 || bump[sizeClass] + blockSize > chunkSize) {
+            int chunk = emptyChunk();
+            if (chunk < 0) return -1;
+            chunkClass[chunk] = sizeClass;
+            current[sizeClass] = chunk;
+            bump[sizeClass] = 0;
+        }
+        long address = ((long) current[sizeClass] << 32) | bump[sizeClass];
+        bump[sizeClass] += blockSize;
+        chunkBlocks[current[sizeClass]]++;
+        return address;
+    }
+
+    /**
+     * Get an empty chunk, reusing a released one before allocating a new one
+     * @return Chunk index, or -1 if no more memory can be taken
+     */
+    private int emptyChunk() {
+        if (!emptyChunks.isEmpty()) {
+            return emptyChunks.remove(emptyChunks.size() - 1);
+        }
+        if (getAllocatedBytes() + chunkSize > maxBytes) return -1;
+        chunks.add(ByteBuffer.allocateDirect(chunkSize));
+        int chunk = chunks.size() - 1;
+        if (chunk == chunkClass.length) {
+            int[] grownClass = new int[chunk * 2];
+            int[] grownBlocks = new int[chunk * 2];
+            System.arraycopy(chunkClass, 0, grownClass, 0, chunk);
+            System.arraycopy(chunkBlocks, 0, grownBlocks, 0, chunk);
+            chunkClass = grownClass;
+            chunkBlocks = grownBlocks;
+        }
+        return chunk;
+    }
+
+    /**
+     * Take a chunk whose blocks were all released away from its size class
+     */
+    private void reclaim(int chunk) {
+        int sizeClass = chunkClass[chunk];
+        long[] blocks = free[sizeClass];
+        int kept = 0;
+        for (int i = 0; i < freeCount[sizeClass]; i++) {
+            if (chunk(blocks[i]) != chunk) blocks[kept++] = blocks[i];
+        }
+        freeCount[sizeClass] = kept;
+        if (current[sizeClass] == chunk) current[sizeClass] = -1;
+        chunkClass[chunk] = -1;
+        emptyChunks.add(chunk);
+    }
+
+    private int sizeClass(int length) {
+        int sizeClass = 0;
+        while ((1 << (sizeClass + MIN_BLOCK_SHIFT)) < length) sizeClass++;
+        return sizeClass < free.length ? sizeClass : -1;
+    }
+
+    private static int chunk(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
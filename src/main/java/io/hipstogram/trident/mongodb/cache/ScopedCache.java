@@ -0,0 +1,157 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A view of a shared cache for the keys of a single namespace, such as a db/collection pair.
+ * Sizes and statistics are those of the shared cache, clearing it only removes the keys of the namespace.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class ScopedCache<T> implements MapStateCache<T>
+{
+    // Shared cache
+    private final MapStateCache<Object> shared;
+
+    // Namespace of the keys
+    private final String namespace;
+
+    /**
+     * Create a new scoped cache
+     * @param shared Shared cache
+     * @param namespace Namespace of the keys
+     */
+    public ScopedCache(MapStateCache<Object> shared, String namespace) {
+        this.shared = shared;
+        this.namespace = namespace;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public CacheEntry<T> get(List<Object> key) {
+        return (CacheEntry<T>) shared.get(new ScopedKey(namespace, key));
+    }
+
+    @Override
+    public void put(List<Object> key, T value) {
+        shared.put(new ScopedKey(namespace, key), value);
+    }
+
+    @Override
+    public void putIfAbsent(List<Object> key, T value) {
+        shared.putIfAbsent(new ScopedKey(namespace, key), value);
+    }
+
+    @Override
+    public void invalidate(List<Object> key) {
+        shared.invalidate(new ScopedKey(namespace, key));
+    }
+
+    /**
+     * Remove every key of this namespace, leaving the other namespaces cached
+     */
+    @Override
+    public void clear() {
+        for (CacheEntry<Object> entry : shared.entries()) {
+            if (entry.key instanceof ScopedKey && namespace.equals(((ScopedKey) entry.key).namespace)) {
+                shared.invalidate(entry.key);
+            }
+        }
+    }
+
+    /**
+     * Get a copy of the entries of this namespace
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<CacheEntry<T>> entries() {
+        List<CacheEntry<T>> entries = new ArrayList<CacheEntry<T>>();
+        for (CacheEntry<Object> entry : shared.entries()) {
+            if (entry.key instanceof ScopedKey && namespace.equals(((ScopedKey) entry.key).namespace)) {
+                entries.add(new CacheEntry<T>(((ScopedKey) entry.key).key, (T) entry.value));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public int size() {
+        return shared.size();
+    }
+
+    @Override
+    public long weight() {
+        return shared.weight();
+    }
+
+    @Override
+    public long getHitCount() {
+        return shared.getHitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return shared.getMissCount();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return shared.getEvictionCount();
+    }
+
+    /**
+     * A key prefixed by its namespace
+     */
+    private static class ScopedKey extends AbstractList<Object> {
+        private final String namespace;
+        private final List<Object> key;
+        private final int hash;
+
+        ScopedKey(String namespace, List<Object> key) {
+            this.namespace = namespace;
+            this.key = key;
+            this.hash = 31 * namespace.hashCode() + key.hashCode();
+        }
+
+        @Override
+        public Object get(int index) {
+            return index == 0 ? namespace : key.get(index - 1);
+        }
+
+        @Override
+        public int size() {
+            return key.size() + 1;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof ScopedKey) {
+                ScopedKey other = (ScopedKey) o;
+                return hash == other.hash && namespace.equals(other.namespace) && key.equals(other.key);
+            }
+            return super.equals(o);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cache split into independently locked segments, so that many threads can use it at
+ * the same time. Keys are routed to a segment by hash, and every segment gets an equal
+ * share of the total weight.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class SegmentedCache<T> implements MapStateCache<T>
+{
+    // Segments, a power of two
+    private final MapStateCache<T>[] segments;
+
+    /**
+     * Create a new segmented cache
+     * @param policy Eviction policy of every segment
+     * @param maxWeight Maximum total weight in bytes
+     * @param ttlMillis Time to live in milliseconds, 0 for no expiration
+     * @param concurrency Expected number of concurrent threads
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public SegmentedCache(CachePolicy policy, long maxWeight, long ttlMillis, int concurrency) {
+        int count = 1;
+        while (count < concurrency) count <<= 1;
+        // Generic arrays cannot be created, every segment holds values of T
+        this.segments = new MapStateCache[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = policy == CachePolicy.TINY_LFU
+                    ? new TinyLfuCache<T>(maxWeight / count, ttlMillis, null)
+                    : new LruCache<T>(maxWeight / count, ttlMillis, null);
+        }
+    }
+
+    @Override
+    public CacheEntry<T> get(List<Object> key) {
+        return segment(key).get(key);
+    }
+
+    @Override
+    public void put(List<Object> key, T value) {
+        segment(key).put(key, value);
+    }
+
+    @Override
+    public void putIfAbsent(List<Object> key, T value) {
+        segment(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public void invalidate(List<Object> key) {
+        segment(key).invalidate(key);
+    }
+
+    @Override
+    public void clear() {
+        for (MapStateCache<T> segment : segments) segment.clear();
+    }
+
+    @Override
+    public List<CacheEntry<T>> entries() {
+        List<CacheEntry<T>> entries = new ArrayList<CacheEntry<T>>();
+        for (MapStateCache<T> segment : segments) entries.addAll(segment.entries());
+        return entries;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (MapStateCache<T> segment : segments) size += segment.size();
+        return size;
+    }
+
+    @Override
+    public long weight() {
+        long weight = 0;
+        for (MapStateCache<T> segment : segments) weight += segment.weight();
+        return weight;
+    }
+
+    @Override
+    public long getHitCount() {
+        long hits = 0;
+        for (MapStateCache<T> segment : segments) hits += segment.getHitCount();
+        return hits;
+    }
+
+    @Override
+    public long getMissCount() {
+        long misses = 0;
+        for (MapStateCache<T> segment : segments) misses += segment.getMissCount();
+        return misses;
+    }
+
+    @Override
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (MapStateCache<T> segment : segments) evictions += segment.getEvictionCount();
+        return evictions;
+    }
+
+    private MapStateCache<T> segment(List<Object> key) {
+        return segments[FrequencySketch.spread(key.hashCode()) & (segments.length - 1)];
+    }
+}
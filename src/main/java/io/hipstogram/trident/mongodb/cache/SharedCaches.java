@@ -0,0 +1,69 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the cache shared by every map state of a worker JVM
+ * @author Andrés Sánchez
+ */
+public class SharedCaches
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(SharedCaches.class);
+
+    // Number of segments of the shared cache
+    private static final int CONCURRENCY = 16;
+
+    // The worker cache
+    private static MapStateCache<Object> cache;
+
+    private SharedCaches() {}
+
+    /**
+     * Get the worker cache, creating it on first use. The first state to ask sets its
+     * policy and bounds, later states share it as it is.
+     * @param policy Eviction policy
+     * @param maxWeight Maximum total weight in bytes
+     * @param ttlMillis Time to live in milliseconds, 0 for no expiration
+     * @return The worker cache
+     */
+    public static synchronized MapStateCache<Object> get(CachePolicy policy, long maxWeight, long ttlMillis) {
+        if (cache == null) {
+            LOG.debug("Creating worker cache [{}] of [{}] bytes", policy, maxWeight);
+            cache = new SegmentedCache<Object>(policy, maxWeight, ttlMillis, CONCURRENCY);
+        }
+        return cache;
+    }
+
+    /**
+     * Get a view of the worker cache for the values of a collection. States on the same
+     * collection only share entries when they store the same kind of value.
+     * @param db Database name
+     * @param collection Collection name
+     * @param valueType Identifies how values are stored and held, e.g. the state type and mapper
+     * @param policy Eviction policy, if the cache does not exist yet
+     * @param maxWeight Maximum total weight in bytes, if the cache does not exist yet
+     * @param ttlMillis Time to live in milliseconds, if the cache does not exist yet
+     * @return A cache for the keys of the collection
+     */
+    public static <T> MapStateCache<T> forCollection(String db, String collection, String valueType,
+                                                     CachePolicy policy, long maxWeight, long ttlMillis) {
+        return new ScopedCache<T>(get(policy, maxWeight, ttlMillis), db + "/" + collection + "/" + valueType);
+    }
+}
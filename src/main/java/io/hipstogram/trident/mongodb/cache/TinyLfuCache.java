@@ -0,0 +1,122 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+/**
+ * Window TinyLFU cache, bounded by weight. New entries go to a small LRU window; entries
+ * leaving the window compete with the main space's eviction candidate and are only kept
+ * if their key has been seen more often. The main space is a segmented LRU whose
+ * protected segment holds entries read at least twice.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class TinyLfuCache<T> extends WeightedCache<T>
+{
+    // Queues of the entries
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // Average entry weight assumed to size the frequency sketch
+    private static final int AVERAGE_WEIGHT = 256;
+
+    private final Queue<T> window = new Queue<T>();
+    private final Queue<T> probation = new Queue<T>();
+    private final Queue<T> protectedQueue = new Queue<T>();
+
+    // Maximum weight of the window and of the protected segment
+    private final long maxWindow;
+    private final long maxProtected;
+
+    // Key access frequencies
+    private final FrequencySketch sketch;
+
+    /**
+     * Create a new W-TinyLFU cache
+     * @param maxWeight Maximum total weight in bytes
+     * @param ttlMillis Time to live in milliseconds, 0 for no expiration
+     * @param offHeap Off-heap value store, or null to keep values on the heap
+     */
+    public TinyLfuCache(long maxWeight, long ttlMillis, OffHeapStore<T> offHeap) {
+        super(maxWeight, ttlMillis, offHeap);
+        this.maxWindow = Math.max(1, maxWeight / 100);
+        this.maxProtected = (maxWeight - maxWindow) * 4 / 5;
+        this.sketch = new FrequencySketch(maxWeight / AVERAGE_WEIGHT);
+    }
+
+    @Override
+    protected void onInsert(CacheEntry<T> entry) {
+        sketch.increment(hash(entry));
+        entry.queue = WINDOW;
+        window.addFirst(entry);
+        while (window.weight > maxWindow && window.last() != entry) {
+            CacheEntry<T> candidate = window.last();
+            window.remove(candidate);
+            candidate.queue = PROBATION;
+            probation.addFirst(candidate);
+        }
+    }
+
+    @Override
+    protected void onAccess(CacheEntry<T> entry) {
+        sketch.increment(hash(entry));
+        if (entry.queue == WINDOW) {
+            window.moveToFront(entry);
+        } else if (entry.queue == PROBATION) {
+            probation.remove(entry);
+            entry.queue = PROTECTED;
+            protectedQueue.addFirst(entry);
+            while (protectedQueue.weight > maxProtected && protectedQueue.last() != entry) {
+                CacheEntry<T> demoted = protectedQueue.last();
+                protectedQueue.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.addFirst(demoted);
+            }
+        } else {
+            protectedQueue.moveToFront(entry);
+        }
+    }
+
+    @Override
+    protected void onRemove(CacheEntry<T> entry) {
+        queue(entry).remove(entry);
+    }
+
+    @Override
+    protected CacheEntry<T> victim() {
+        CacheEntry<T> candidate = probation.first();
+        CacheEntry<T> victim = probation.last();
+        if (candidate != null && candidate != victim) {
+            // The newest probation entry came from the window: admit it only if it is more popular
+            return sketch.frequency(hash(candidate)) > sketch.frequency(hash(victim)) ? victim : candidate;
+        }
+        if (victim != null) return victim;
+        if (protectedQueue.last() != null) return protectedQueue.last();
+        return window.last();
+    }
+
+    private Queue<T> queue(CacheEntry<T> entry) {
+        switch (entry.queue) {
+            case WINDOW: return window;
+            case PROBATION: return probation;
+            default: return protectedQueue;
+        }
+    }
+
+    private static int hash(CacheEntry<?> entry) {
+        return FrequencySketch.spread(entry.key.hashCode());
+    }
+}
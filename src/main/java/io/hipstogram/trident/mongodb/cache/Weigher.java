@@ -0,0 +1,91 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import org.bson.BSONObject;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.TransactionalValue;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Rough estimation of the heap used by cached keys and values
+ * @author Andrés Sánchez
+ */
+public class Weigher
+{
+    // Object header plus reference
+    private static final int OBJECT = 16;
+
+    // Bytes per map or collection entry on top of its contents
+    private static final int ENTRY = 32;
+
+    // Maximum depth walked, deeper contents are counted as a single object
+    private static final int MAX_DEPTH = 8;
+
+    private Weigher() {}
+
+    /**
+     * Estimate the size of an object graph
+     * @param value An object, may be null
+     * @return Estimated size in bytes
+     */
+    public static int weigh(Object value) {
+        return weigh(value, 0);
+    }
+
+    private static int weigh(Object value, int depth) {
+        if (value == null) return 0;
+        if (depth > MAX_DEPTH) return OBJECT;
+        if (value instanceof String) return 40 + 2 * ((String) value).length();
+        if (value instanceof Number || value instanceof Boolean || value instanceof Character) return OBJECT + 8;
+        if (value instanceof byte[]) return OBJECT + ((byte[]) value).length;
+        if (value instanceof OpaqueValue) {
+            OpaqueValue<?> opaque = (OpaqueValue<?>) value;
+            return OBJECT + 24 + weigh(opaque.getCurrTxid(), depth + 1)
+                    + weigh(opaque.getCurr(), depth + 1) + weigh(opaque.getPrev(), depth + 1);
+        }
+        if (value instanceof TransactionalValue) {
+            TransactionalValue<?> transactional = (TransactionalValue<?>) value;
+            return OBJECT + 16 + weigh(transactional.getTxid(), depth + 1) + weigh(transactional.getVal(), depth + 1);
+        }
+        if (value instanceof Map) {
+            int size = OBJECT + 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += ENTRY + weigh(entry.getKey(), depth + 1) + weigh(entry.getValue(), depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof BSONObject) {
+            BSONObject doc = (BSONObject) value;
+            int size = OBJECT + 48;
+            for (String key : doc.keySet()) size += ENTRY + weigh(key, depth + 1) + weigh(doc.get(key), depth + 1);
+            return size;
+        }
+        if (value instanceof Collection) {
+            int size = OBJECT + 24;
+            for (Object element : (Collection<?>) value) size += 8 + weigh(element, depth + 1);
+            return size;
+        }
+        if (value instanceof Object[]) {
+            int size = OBJECT + 8;
+            for (Object element : (Object[]) value) size += 8 + weigh(element, depth + 1);
+            return size;
+        }
+        return OBJECT + 16;
+    }
+}
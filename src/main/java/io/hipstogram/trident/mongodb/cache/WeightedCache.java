@@ -0,0 +1,264 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A weight-bounded cache for map state values with optional expiration and off-heap storage.
+ * Subclasses provide the eviction policy by keeping entries in intrusive queues.
+ * All operations are thread-safe.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public abstract class WeightedCache<T> implements MapStateCache<T>
+{
+    // Maximum total weight
+    protected final long maxWeight;
+
+    // Time to live in milliseconds, 0 for no expiration
+    private final long ttlMillis;
+
+    // Off-heap value store, null to keep values on the heap
+    private final OffHeapStore<T> offHeap;
+
+    // Entries by key
+    private final Map<List<Object>, CacheEntry<T>> entries = new HashMap<List<Object>, CacheEntry<T>>();
+
+    // Current total weight
+    private long weight = 0;
+
+    // Statistics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a new cache
+     * @param maxWeight Maximum total weight in bytes
+     * @param ttlMillis Time to live in milliseconds, 0 for no expiration
+     * @param offHeap Off-heap value store, or null to keep values on the heap
+     */
+    protected WeightedCache(long maxWeight, long ttlMillis, OffHeapStore<T> offHeap) {
+        this.maxWeight = maxWeight;
+        this.ttlMillis = ttlMillis;
+        this.offHeap = offHeap;
+    }
+
+    @Override
+    public synchronized CacheEntry<T> get(List<Object> key) {
+        CacheEntry<T> entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (entry.expiresAt != 0 && entry.expiresAt <= System.currentTimeMillis()) {
+            remove(entry);
+            evictions.incrementAndGet();
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        onAccess(entry);
+        return offHeap == null ? entry : new CacheEntry<T>(key, offHeap.read(entry));
+    }
+
+    @Override
+    public synchronized void put(List<Object> key, T value) {
+        CacheEntry<T> previous = entries.get(key);
+        if (previous != null) remove(previous);
+
+        CacheEntry<T> entry = new CacheEntry<T>(key, value);
+        entry.weight = Weigher.weigh(key) + 48;
+        byte[] bytes = null;
+        if (offHeap != null && value != null) {
+            bytes = offHeap.serialize(value);
+            int blockSize = offHeap.blockSize(bytes.length);
+            if (blockSize < 0) return;
+            entry.weight += blockSize;
+        } else {
+            entry.weight += Weigher.weigh(value);
+        }
+        // Values that can never fit are dropped before evicting anything for them
+        if (entry.weight > maxWeight) return;
+        if (bytes != null && !writeOffHeap(entry, bytes)) return;
+        if (ttlMillis > 0) entry.expiresAt = System.currentTimeMillis() + ttlMillis;
+
+        entries.put(key, entry);
+        weight += entry.weight;
+        onInsert(entry);
+
+        while (weight > maxWeight) {
+            CacheEntry<T> victim = victim();
+            if (victim == null) break;
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+    }
+
+    @Override
+    public synchronized void putIfAbsent(List<Object> key, T value) {
+        CacheEntry<T> entry = entries.get(key);
+        if (entry != null && (entry.expiresAt == 0 || entry.expiresAt > System.currentTimeMillis())) return;
+        put(key, value);
+    }
+
+    @Override
+    public synchronized void invalidate(List<Object> key) {
+        CacheEntry<T> entry = entries.get(key);
+        if (entry != null) remove(entry);
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (CacheEntry<T> entry : new ArrayList<CacheEntry<T>>(entries.values())) {
+            remove(entry);
+        }
+    }
+
+    @Override
+    public synchronized List<CacheEntry<T>> entries() {
+        long now = System.currentTimeMillis();
+        List<CacheEntry<T>> copies = new ArrayList<CacheEntry<T>>(entries.size());
+        for (CacheEntry<T> entry : entries.values()) {
+            if (entry.expiresAt != 0 && entry.expiresAt <= now) continue;
+            copies.add(new CacheEntry<T>(entry.key, offHeap == null ? entry.value : offHeap.read(entry)));
+        }
+        return copies;
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized long weight() {
+        return weight;
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Store a value off-heap, evicting entries while there is no room for it
+     */
+    private boolean writeOffHeap(CacheEntry<T> entry, byte[] bytes) {
+        while (!offHeap.write(entry, bytes)) {
+            CacheEntry<T> victim = victim();
+            if (victim == null) return false;
+            remove(victim);
+            evictions.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Remove an entry from the cache and its policy queue
+     */
+    private void remove(CacheEntry<T> entry) {
+        entries.remove(entry.key);
+        weight -= entry.weight;
+        onRemove(entry);
+        release(entry);
+    }
+
+    private void release(CacheEntry<T> entry) {
+        if (offHeap != null) offHeap.release(entry);
+    }
+
+    /**
+     * Called when an entry is added
+     * @param entry New entry
+     */
+    protected abstract void onInsert(CacheEntry<T> entry);
+
+    /**
+     * Called when an entry is read
+     * @param entry Read entry
+     */
+    protected abstract void onAccess(CacheEntry<T> entry);
+
+    /**
+     * Called when an entry is removed or evicted, it must be unlinked from its queue
+     * @param entry Removed entry
+     */
+    protected abstract void onRemove(CacheEntry<T> entry);
+
+    /**
+     * Choose the next entry to evict
+     * @return An entry, or null if the cache is empty
+     */
+    protected abstract CacheEntry<T> victim();
+
+    /**
+     * An intrusive doubly linked queue of entries, most recent first
+     */
+    protected static class Queue<T> {
+        private final CacheEntry<T> head = new CacheEntry<T>(null, null);
+        long weight = 0;
+
+        Queue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        void addFirst(CacheEntry<T> entry) {
+            entry.next = head.next;
+            entry.prev = head;
+            head.next.prev = entry;
+            head.next = entry;
+            weight += entry.weight;
+        }
+
+        void remove(CacheEntry<T> entry) {
+            entry.prev.next = entry.next;
+            entry.next.prev = entry.prev;
+            entry.prev = null;
+            entry.next = null;
+            weight -= entry.weight;
+        }
+
+        void moveToFront(CacheEntry<T> entry) {
+            remove(entry);
+            addFirst(entry);
+        }
+
+        CacheEntry<T> first() {
+            return head.next == head ? null : head.next;
+        }
+
+        CacheEntry<T> last() {
+            return head.prev == head ? null : head.prev;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.codec;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.StateType;
+import storm.trident.state.TransactionalValue;
+
+/**
+ * Stores opaque and transactional values as embedded documents, {txid, curr, prev} and
+ * {txid, val} with the verbose names or {t, c, p} and {t, v} with the compact ones, and
+ * non-transactional values as they are. Stored documents can be queried and updated in
+ * place, e.g. the txid of the compact layout of a value field "v" is "v.t".
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class DocumentCodec<T> implements ValueCodec<T>
+{
+    // Serialization
+    private static final long serialVersionUID = 1L;
+
+    // State type of the values
+    private final StateType type;
+
+    // Field names of the txid, the current or transactional value, and the previous value
+    private final String txidField;
+    private final String currField;
+    private final String prevField;
+
+    /**
+     * Create a new document codec
+     * @param type State type of the values
+     * @param txidField Field of the txid
+     * @param currField Field of the current value of opaque values, or of transactional values
+     * @param prevField Field of the previous value of opaque values, left out when null
+     */
+    public DocumentCodec(StateType type, String txidField, String currField, String prevField) {
+        this.type = type;
+        this.txidField = txidField;
+        this.currField = currField;
+        this.prevField = prevField;
+    }
+
+    /**
+     * Get a codec with the field names of the Trident value classes
+     * @param type State type of the values
+     * @return A codec writing {txid, curr, prev} or {txid, val}
+     */
+    public static <T> DocumentCodec<T> verbose(StateType type) {
+        return new DocumentCodec<T>(type, "txid", type == StateType.OPAQUE ? "curr" : "val", "prev");
+    }
+
+    /**
+     * Get a codec with one-letter field names
+     * @param type State type of the values
+     * @return A codec writing {t, c, p} or {t, v}
+     */
+    public static <T> DocumentCodec<T> compact(StateType type) {
+        return new DocumentCodec<T>(type, "t", type == StateType.OPAQUE ? "c" : "v", "p");
+    }
+
+    @Override
+    public Object encode(T value) {
+        if (type == StateType.OPAQUE) {
+            OpaqueValue<?> opaque = (OpaqueValue<?>) value;
+            BasicDBObject doc = new BasicDBObject(txidField, opaque.getCurrTxid()).append(currField, opaque.getCurr());
+            if (opaque.getPrev() != null) doc.append(prevField, opaque.getPrev());
+            return doc;
+        } else if (type == StateType.TRANSACTIONAL) {
+            TransactionalValue<?> transactional = (TransactionalValue<?>) value;
+            return new BasicDBObject(txidField, transactional.getTxid()).append(currField, transactional.getVal());
+        }
+        return value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(Object stored) {
+        // T is an opaque or transactional value as the state type says
+        if (type == StateType.OPAQUE) {
+            DBObject doc = (DBObject) stored;
+            return (T) new OpaqueValue<Object>(txid(doc), doc.get(currField), doc.get(prevField));
+        } else if (type == StateType.TRANSACTIONAL) {
+            DBObject doc = (DBObject) stored;
+            return (T) new TransactionalValue<Object>(txid(doc), doc.get(currField));
+        }
+        return (T) stored;
+    }
+
+    private Long txid(DBObject doc) {
+        Object txid = doc.get(txidField);
+        return txid == null ? null : ((Number) txid).longValue();
+    }
+}
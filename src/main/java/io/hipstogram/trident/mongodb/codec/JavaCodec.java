@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.codec;
+
+import org.bson.types.Binary;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.TransactionalValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Stores values as a single binary field written by Java serialization, for values of
+ * classes that are Serializable but neither BSON nor Kryo can write as they are. It is the
+ * largest and slowest codec. Opaque and transactional values, which are not Serializable,
+ * are written as a holder of their fields.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class JavaCodec<T> implements ValueCodec<T>
+{
+    // Serialization
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Object encode(T value) {
+        Object written = value;
+        if (value instanceof OpaqueValue) {
+            OpaqueValue<?> opaque = (OpaqueValue<?>) value;
+            written = new Holder(true, opaque.getCurrTxid(), opaque.getCurr(), opaque.getPrev());
+        } else if (value instanceof TransactionalValue) {
+            TransactionalValue<?> transactional = (TransactionalValue<?>) value;
+            written = new Holder(false, transactional.getTxid(), transactional.getVal(), null);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(written);
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot serialize " + value, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(Object stored) {
+        byte[] bytes = stored instanceof Binary ? ((Binary) stored).getData() : (byte[]) stored;
+        Object read;
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            read = in.readObject();
+            in.close();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot deserialize a value of " + bytes.length + " bytes", e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Cannot deserialize a value of " + bytes.length + " bytes", e);
+        }
+
+        if (read instanceof Holder) {
+            Holder holder = (Holder) read;
+            read = holder.opaque
+                    ? new OpaqueValue<Object>(holder.txid, holder.curr, holder.prev)
+                    : new TransactionalValue<Object>(holder.txid, holder.curr);
+        }
+        return (T) read;
+    }
+
+    /**
+     * Fields of an opaque or transactional value
+     */
+    private static class Holder implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        final boolean opaque;
+        final Long txid;
+        final Object curr;
+        final Object prev;
+
+        Holder(boolean opaque, Long txid, Object curr, Object prev) {
+            this.opaque = opaque;
+            this.txid = txid;
+            this.curr = curr;
+            this.prev = prev;
+        }
+    }
+}
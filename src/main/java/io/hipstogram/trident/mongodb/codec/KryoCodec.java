@@ -0,0 +1,142 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.codec;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.bson.types.Binary;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.TransactionalValue;
+
+/**
+ * Stores values as a single binary field written by Kryo, the serializer Storm ships with.
+ * Txids and integers are variable-length, and registered classes are written as a small
+ * id instead of their name. Every reader and writer of a collection must register the same
+ * classes in the same order. Stored values cannot be queried.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class KryoCodec<T> implements ValueCodec<T>
+{
+    // Serialization
+    private static final long serialVersionUID = 1L;
+
+    // Initial size of the output buffers
+    private static final int BUFFER_SIZE = 256;
+
+    // Classes registered after the Trident value classes, in order
+    private final Class<?>[] registrations;
+
+    // Kryo instances and output buffers, which are not thread-safe
+    private transient ThreadLocal<Kryo> kryos;
+    private transient ThreadLocal<Output> outputs;
+
+    /**
+     * Create a new Kryo codec
+     * @param registrations Classes of the values to register, in order
+     */
+    public KryoCodec(Class<?>... registrations) {
+        this.registrations = registrations;
+    }
+
+    @Override
+    public Object encode(T value) {
+        Output output = output();
+        output.clear();
+        kryo().writeClassAndObject(output, value);
+        return output.toBytes();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(Object stored) {
+        byte[] bytes = stored instanceof Binary ? ((Binary) stored).getData() : (byte[]) stored;
+        return (T) kryo().readClassAndObject(new Input(bytes));
+    }
+
+    private Kryo kryo() {
+        if (kryos == null) {
+            kryos = new ThreadLocal<Kryo>() {
+                @Override
+                protected Kryo initialValue() {
+                    Kryo kryo = new Kryo();
+                    // Values are trees, there are no references to track
+                    kryo.setReferences(false);
+                    kryo.register(OpaqueValue.class, new OpaqueValueSerializer());
+                    kryo.register(TransactionalValue.class, new TransactionalValueSerializer());
+                    for (Class<?> registration : registrations) {
+                        kryo.register(registration);
+                    }
+                    return kryo;
+                }
+            };
+        }
+        return kryos.get();
+    }
+
+    private Output output() {
+        if (outputs == null) {
+            outputs = new ThreadLocal<Output>() {
+                @Override
+                protected Output initialValue() {
+                    return new Output(BUFFER_SIZE, -1);
+                }
+            };
+        }
+        return outputs.get();
+    }
+
+    /**
+     * Writes an opaque value as its txid and its current and previous values
+     */
+    private static class OpaqueValueSerializer extends Serializer<OpaqueValue<Object>>
+    {
+        @Override
+        public void write(Kryo kryo, Output output, OpaqueValue<Object> value) {
+            output.writeLong(value.getCurrTxid(), true);
+            kryo.writeClassAndObject(output, value.getCurr());
+            kryo.writeClassAndObject(output, value.getPrev());
+        }
+
+        @Override
+        public OpaqueValue<Object> read(Kryo kryo, Input input, Class<OpaqueValue<Object>> type) {
+            long txid = input.readLong(true);
+            Object curr = kryo.readClassAndObject(input);
+            return new OpaqueValue<Object>(txid, curr, kryo.readClassAndObject(input));
+        }
+    }
+
+    /**
+     * Writes a transactional value as its txid and its value
+     */
+    private static class TransactionalValueSerializer extends Serializer<TransactionalValue<Object>>
+    {
+        @Override
+        public void write(Kryo kryo, Output output, TransactionalValue<Object> value) {
+            output.writeLong(value.getTxid(), true);
+            kryo.writeClassAndObject(output, value.getVal());
+        }
+
+        @Override
+        public TransactionalValue<Object> read(Kryo kryo, Input input, Class<TransactionalValue<Object>> type) {
+            long txid = input.readLong(true);
+            return new TransactionalValue<Object>(txid, kryo.readClassAndObject(input));
+        }
+    }
+}
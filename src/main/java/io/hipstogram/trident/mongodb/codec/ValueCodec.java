@@ -0,0 +1,42 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.codec;
+
+import java.io.Serializable;
+
+/**
+ * Converts the values of a map state to the BSON value of a document field and back.
+ * Codecs are part of the state factory, so they are serialized with the topology.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public interface ValueCodec<T> extends Serializable
+{
+    /**
+     * Encode a value
+     * @param value Value
+     * @return A value the driver can write: a document, a byte array or any BSON type
+     */
+    public Object encode(T value);
+
+    /**
+     * Decode a stored value
+     * @param stored Value read from the document, never null
+     * @return The value
+     */
+    public T decode(Object stored);
+}
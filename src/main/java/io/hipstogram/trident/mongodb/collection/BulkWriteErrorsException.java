@@ -0,0 +1,66 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.MongoException;
+
+import java.util.List;
+
+/**
+ * Thrown by bulk writers that know which operations of a bulk failed but, unlike the driver,
+ * cannot report them in a BulkWriteException. The code is the one of the first failed operation.
+ * @author Andrés Sánchez
+ */
+public class BulkWriteErrorsException extends MongoException
+{
+    // Serialization
+    private static final long serialVersionUID = 1L;
+
+    // Indexes of the failed operations in the bulk, in order
+    private final List<Integer> indexes;
+
+    // Error code of every failed operation
+    private final List<Integer> codes;
+
+    /**
+     * Create a new exception
+     * @param message Message
+     * @param indexes Indexes of the failed operations in the bulk, in order
+     * @param codes Error code of every failed operation
+     */
+    public BulkWriteErrorsException(String message, List<Integer> indexes, List<Integer> codes) {
+        super(codes.isEmpty() ? 0 : codes.get(0), message);
+        this.indexes = indexes;
+        this.codes = codes;
+    }
+
+    /**
+     * Get the failed operations
+     * @return Indexes of the failed operations in the bulk, in order
+     */
+    public List<Integer> getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * Get the errors of the failed operations
+     * @return Error code of every failed operation, in the order of the indexes
+     */
+    public List<Integer> getCodes() {
+        return codes;
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+
+/**
+ * Collects CRUD operations and writes them to a collection in a single bulk
+ * @author Andrés Sánchez
+ */
+public interface BulkWriter
+{
+    /**
+     * Add an operation to the bulk
+     * @param operation A CRUD operation
+     */
+    public void add(CRUDOperation operation);
+
+    /**
+     * Get the number of operations in the bulk
+     * @return Number of operations
+     */
+    public int size();
+
+    /**
+     * Write the bulk. Empty bulks are not sent.
+     * @return Document counts reported by the server
+     */
+    public WriteCounts execute();
+}
@@ -0,0 +1,89 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+import org.bson.types.BSONTimestamp;
+
+import java.util.List;
+
+/**
+ * The changes made to the documents of a collection, by any writer, in the order they were
+ * made. Positions are resume tokens: a feed can be read again from any position it returned,
+ * as long as it still holds the changes after it.
+ * @author Andrés Sánchez
+ */
+public interface ChangeFeed
+{
+    /**
+     * Get the position of the last change made so far, to read the feed from when there is
+     * nothing to resume from
+     * @return A position
+     */
+    public BSONTimestamp latest();
+
+    /**
+     * Read the changes after a position, without waiting for new ones
+     * @param after Position of the last change read
+     * @param maxChanges Maximum number of changes to return
+     * @return Changes in order, empty if there are none yet
+     * @throws FeedGapException If some changes after the position are no longer held
+     */
+    public List<Change> poll(BSONTimestamp after, int maxChanges);
+
+    /**
+     * A change to a document, or to the whole collection
+     */
+    public static class Change
+    {
+        // Position of the change
+        private final BSONTimestamp position;
+
+        // _id of the changed document, null if every document may have changed
+        private final Object id;
+
+        /**
+         * Create a new change
+         * @param position Position of the change
+         * @param id _id of the changed document, null if every document may have changed
+         */
+        public Change(BSONTimestamp position, Object id) {
+            this.position = position;
+            this.id = id;
+        }
+
+        /**
+         * Get the position of the change
+         * @return Resume position
+         */
+        public BSONTimestamp getPosition() {
+            return position;
+        }
+
+        /**
+         * Get the _id of the changed document
+         * @return An _id, or null if every document may have changed
+         */
+        public Object getId() {
+            return id;
+        }
+
+        @Override
+        public String toString() {
+            return "Change{" + position + ", " + (id == null ? "*" : id) + "}";
+        }
+    }
+}
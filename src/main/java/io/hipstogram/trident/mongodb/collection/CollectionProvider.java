@@ -0,0 +1,33 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+/**
+ * Supplies the collections used by the states instead of the MongoDB driver. Set its
+ * class name under {@link io.hipstogram.trident.mongodb.MongoDBStateFactory#MONGODB_COLLECTION_PROVIDER};
+ * it needs a public no-argument constructor.
+ * @author Andrés Sánchez
+ */
+public interface CollectionProvider
+{
+    /**
+     * Get a collection
+     * @param dbName Name of the database
+     * @param collName Name of the collection
+     * @return The collection
+     */
+    public MongoDBCollection getCollection(String dbName, String collName);
+}
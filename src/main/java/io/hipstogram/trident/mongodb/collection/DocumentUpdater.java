@@ -0,0 +1,149 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies MongoDB update statements to documents in memory. Supports replacement documents
+ * and $set, $unset, $inc, $min, $max, $setOnInsert, $push and $addToSet (with $each).
+ * @author Andrés Sánchez
+ */
+class DocumentUpdater
+{
+    private DocumentUpdater() {}
+
+    /**
+     * Check whether a statement is a replacement document
+     */
+    static boolean isReplacement(DBObject statement) {
+        for (String key : statement.keySet()) if (key.startsWith("$")) return false;
+        return true;
+    }
+
+    /**
+     * Apply an update statement to a document
+     * @param doc Document, modified in place
+     * @param statement Update statement or replacement document
+     * @param inserting True if the document is being created by an upsert
+     */
+    static void apply(DBObject doc, DBObject statement, boolean inserting) {
+        if (isReplacement(statement)) {
+            Object id = doc.get("_id");
+            for (String key : new ArrayList<String>(doc.keySet())) doc.removeField(key);
+            if (id != null) doc.put("_id", id);
+            for (String key : statement.keySet()) {
+                if (!"_id".equals(key) || id == null) doc.put(key, Documents.copy(statement.get(key)));
+            }
+            return;
+        }
+
+        for (String operator : statement.keySet()) {
+            DBObject fields = (DBObject) statement.get(operator);
+            for (String field : fields.keySet()) {
+                Object argument = fields.get(field);
+                if ("$set".equals(operator)) {
+                    Documents.set(doc, field, Documents.copy(argument));
+                } else if ("$setOnInsert".equals(operator)) {
+                    if (inserting) Documents.set(doc, field, Documents.copy(argument));
+                } else if ("$unset".equals(operator)) {
+                    Documents.unset(doc, field);
+                } else if ("$inc".equals(operator)) {
+                    Object current = Documents.get(doc, field);
+                    Documents.set(doc, field, sum(current == Documents.MISSING ? null : (Number) current, (Number) argument));
+                } else if ("$min".equals(operator) || "$max".equals(operator)) {
+                    Object current = Documents.get(doc, field);
+                    Integer comparison = current == Documents.MISSING ? null : Documents.compare(argument, current);
+                    int sign = "$min".equals(operator) ? -1 : 1;
+                    if (current == Documents.MISSING || (comparison != null && comparison * sign > 0)) {
+                        Documents.set(doc, field, Documents.copy(argument));
+                    }
+                } else if ("$push".equals(operator) || "$addToSet".equals(operator)) {
+                    List<Object> list = array(doc, field);
+                    for (Object element : elements(argument)) {
+                        if ("$push".equals(operator) || !contains(list, element)) list.add(Documents.copy(element));
+                    }
+                } else {
+                    throw new IllegalArgumentException("Unsupported update operator: " + operator);
+                }
+            }
+        }
+    }
+
+    /**
+     * Build the document inserted by an upsert from the equality fields of its query
+     */
+    static DBObject fromQuery(DBObject query) {
+        BasicDBObject doc = new BasicDBObject();
+        for (String key : query.keySet()) {
+            Object value = query.get(key);
+            if (key.startsWith("$")) continue;
+            if (value instanceof DBObject && !(value instanceof List)) {
+                DBObject condition = (DBObject) value;
+                if (condition.containsField("$eq")) {
+                    Documents.set(doc, key, Documents.copy(condition.get("$eq")));
+                    continue;
+                }
+                boolean operators = false;
+                for (String inner : condition.keySet()) if (inner.startsWith("$")) operators = true;
+                if (operators) continue;
+            }
+            Documents.set(doc, key, Documents.copy(value));
+        }
+        return doc;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> array(DBObject doc, String field) {
+        Object current = Documents.get(doc, field);
+        if (current == Documents.MISSING || current == null) {
+            BasicDBList list = new BasicDBList();
+            Documents.set(doc, field, list);
+            return list;
+        }
+        if (!(current instanceof List)) throw new IllegalArgumentException("Field is not an array: " + field);
+        return (List<Object>) current;
+    }
+
+    private static List<?> elements(Object argument) {
+        if (argument instanceof DBObject && !(argument instanceof List) && ((DBObject) argument).containsField("$each")) {
+            return (List<?>) ((DBObject) argument).get("$each");
+        }
+        List<Object> elements = new ArrayList<Object>(1);
+        elements.add(argument);
+        return elements;
+    }
+
+    private static boolean contains(List<Object> list, Object element) {
+        for (Object current : list) if (Documents.equal(current, element)) return true;
+        return false;
+    }
+
+    private static Number sum(Number a, Number b) {
+        if (a == null) return b;
+        if (Documents.isIntegral(a) && Documents.isIntegral(b)) {
+            long sum = a.longValue() + b.longValue();
+            if (a instanceof Long || b instanceof Long || sum != (int) sum) return sum;
+            return (int) sum;
+        }
+        return a.doubleValue() + b.doubleValue();
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Document helpers for the in-memory collection: copies, dotted paths, value
+ * comparison and projections. {@link #normalize(Object)} is also used wherever
+ * values are matched by hash, so they compare the way MongoDB compares them.
+ * @author Andrés Sánchez
+ */
+public class Documents
+{
+    // Value of a missing field
+    static final Object MISSING = new Object();
+
+    // First element of a normalized embedded document, telling it apart from an array
+    private enum Marker { DOCUMENT }
+
+    private Documents() {}
+
+    /**
+     * Deep copy a value, so stored documents are never shared with callers
+     */
+    static Object copy(Object value) {
+        if (value instanceof List) {
+            BasicDBList list = new BasicDBList();
+            for (Object element : (List<?>) value) list.add(copy(element));
+            return list;
+        }
+        if (value instanceof DBObject) {
+            DBObject doc = (DBObject) value;
+            BasicDBObject copy = new BasicDBObject();
+            for (String key : doc.keySet()) copy.put(key, copy(doc.get(key)));
+            return copy;
+        }
+        if (value instanceof Map) {
+            BasicDBObject copy = new BasicDBObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) copy.put(String.valueOf(entry.getKey()), copy(entry.getValue()));
+            return copy;
+        }
+        if (value instanceof Date) return new Date(((Date) value).getTime());
+        if (value instanceof byte[]) return ((byte[]) value).clone();
+        return value;
+    }
+
+    /**
+     * Get the value of a dotted path
+     * @return The value, or {@link #MISSING}
+     */
+    static Object get(DBObject doc, String path) {
+        Object current = doc;
+        for (String part : path.split("\\.")) {
+            if (current instanceof List) {
+                int index = index(part);
+                List<?> list = (List<?>) current;
+                if (index < 0 || index >= list.size()) return MISSING;
+                current = list.get(index);
+            } else if (current instanceof DBObject && ((DBObject) current).containsField(part)) {
+                current = ((DBObject) current).get(part);
+            } else {
+                return MISSING;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Set the value of a dotted path, creating the missing parents
+     */
+    static void set(DBObject doc, String path, Object value) {
+        String[] parts = path.split("\\.");
+        DBObject current = doc;
+        for (int i = 0; i < parts.length - 1; i++) {
+            Object child = current.get(parts[i]);
+            if (!(child instanceof DBObject)) {
+                if (child != null) throw new IllegalArgumentException("Cannot create field in non-document " + path);
+                child = new BasicDBObject();
+                current.put(parts[i], child);
+            }
+            current = (DBObject) child;
+        }
+        current.put(parts[parts.length - 1], value);
+    }
+
+    /**
+     * Remove a dotted path
+     */
+    static void unset(DBObject doc, String path) {
+        int dot = path.lastIndexOf('.');
+        Object parent = dot < 0 ? doc : get(doc, path.substring(0, dot));
+        if (parent instanceof DBObject && !(parent instanceof List)) {
+            ((DBObject) parent).removeField(path.substring(dot + 1));
+        }
+    }
+
+    /**
+     * Check whether two values are equal as MongoDB compares them
+     */
+    static boolean equal(Object a, Object b) {
+        if (a == MISSING) a = null;
+        if (b == MISSING) b = null;
+        if (a == null || b == null) return a == b;
+        if (a instanceof Number && b instanceof Number) return compareNumbers((Number) a, (Number) b) == 0;
+        if (a instanceof List && b instanceof List) {
+            List<?> la = (List<?>) a;
+            List<?> lb = (List<?>) b;
+            if (la.size() != lb.size()) return false;
+            for (int i = 0; i < la.size(); i++) if (!equal(la.get(i), lb.get(i))) return false;
+            return true;
+        }
+        if (a instanceof DBObject && b instanceof DBObject) {
+            // Embedded documents are equal only with the same fields in the same order
+            List<String> keys = new ArrayList<String>(((DBObject) a).keySet());
+            if (!keys.equals(new ArrayList<String>(((DBObject) b).keySet()))) return false;
+            for (String key : keys) if (!equal(((DBObject) a).get(key), ((DBObject) b).get(key))) return false;
+            return true;
+        }
+        if (a instanceof byte[] && b instanceof byte[]) return Arrays.equals((byte[]) a, (byte[]) b);
+        return a.equals(b);
+    }
+
+    /**
+     * Normalize a value into a key with the equality MongoDB uses: numbers by value whatever
+     * their type, arrays by element and embedded documents by field, in order
+     * @param value A value
+     * @return A value whose equals and hashCode match MongoDB equality
+     */
+    public static Object normalize(Object value) {
+        if (value instanceof Number) {
+            Number n = (Number) value;
+            if (isIntegral(n)) return n.longValue();
+            double d = n.doubleValue();
+            if (d == Math.rint(d) && Math.abs(d) < Long.MAX_VALUE) return (long) d;
+            return d;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> normalized = new ArrayList<Object>(list.size());
+            for (Object element : list) normalized.add(normalize(element));
+            return normalized;
+        }
+        if (value instanceof DBObject) {
+            DBObject doc = (DBObject) value;
+            List<Object> normalized = new ArrayList<Object>();
+            normalized.add(Marker.DOCUMENT);
+            for (String key : doc.keySet()) {
+                normalized.add(key);
+                normalized.add(normalize(doc.get(key)));
+            }
+            return normalized;
+        }
+        if (value instanceof byte[]) return ByteBuffer.wrap((byte[]) value);
+        return value;
+    }
+
+    /**
+     * Check whether a value was normalized from an embedded document
+     * @param normalized A value returned by {@link #normalize(Object)}
+     * @return True for embedded documents
+     */
+    public static boolean isNormalizedDocument(Object normalized) {
+        return normalized instanceof List && !((List<?>) normalized).isEmpty() && ((List<?>) normalized).get(0) == Marker.DOCUMENT;
+    }
+
+    /**
+     * Compare two values of the same kind
+     * @return The comparison, or null if they are not comparable
+     */
+    static Integer compare(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) return compareNumbers((Number) a, (Number) b);
+        if (a instanceof String && b instanceof String) return ((String) a).compareTo((String) b);
+        if (a instanceof Date && b instanceof Date) return ((Date) a).compareTo((Date) b);
+        if (a instanceof ObjectId && b instanceof ObjectId) return ((ObjectId) a).compareTo((ObjectId) b);
+        if (a instanceof Boolean && b instanceof Boolean) return ((Boolean) a).compareTo((Boolean) b);
+        return null;
+    }
+
+    private static int compareNumbers(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            long x = a.longValue();
+            long y = b.longValue();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+        return Double.compare(a.doubleValue(), b.doubleValue());
+    }
+
+    static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    /**
+     * Apply a projection to a copy of a document
+     * @param doc Stored document
+     * @param projection Projection, null for every field
+     * @return A new document
+     */
+    static DBObject project(DBObject doc, DBObject projection) {
+        if (projection == null || projection.keySet().isEmpty()) return (DBObject) copy(doc);
+
+        boolean inclusive = false;
+        boolean includeId = true;
+        for (String field : projection.keySet()) {
+            boolean included = isIncluded(projection.get(field));
+            if ("_id".equals(field)) {
+                includeId = included;
+            } else if (included) {
+                inclusive = true;
+            }
+        }
+
+        if (!inclusive) {
+            DBObject result = (DBObject) copy(doc);
+            for (String field : projection.keySet()) {
+                if (!isIncluded(projection.get(field))) unset(result, field);
+            }
+            return result;
+        }
+
+        BasicDBObject result = new BasicDBObject();
+        if (includeId && doc.containsField("_id")) result.put("_id", copy(doc.get("_id")));
+        for (String field : projection.keySet()) {
+            if ("_id".equals(field) || !isIncluded(projection.get(field))) continue;
+            Object value = get(doc, field);
+            if (value != MISSING) set(result, field, copy(value));
+        }
+        return result;
+    }
+
+    private static boolean isIncluded(Object value) {
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+        return true;
+    }
+
+    static int index(String part) {
+        try {
+            return Integer.parseInt(part);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
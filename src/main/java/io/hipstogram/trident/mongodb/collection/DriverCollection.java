@@ -0,0 +1,218 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Insert;
+import io.hipstogram.trident.mongodb.operation.TemplateEncoder;
+import io.hipstogram.trident.mongodb.operation.TemplateOperation;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A collection backed by the MongoDB Java driver
+ * @author Andrés Sánchez
+ */
+public class DriverCollection implements MongoDBCollection
+{
+    // Driver collection
+    private final DBCollection coll;
+
+    // Read preference of the queries, null for the collection default
+    private final ReadPreference readPreference;
+
+    // Replica set lag check, null when secondaries may lag behind without bound
+    private final StalenessGuard guard;
+
+    // Maximum lag of the secondaries in milliseconds
+    private final long maxStalenessMillis;
+
+    /**
+     * Create a new driver collection
+     * @param coll Driver collection
+     */
+    public DriverCollection(DBCollection coll) {
+        this(coll, null, null, 0);
+    }
+
+    private DriverCollection(DBCollection coll, ReadPreference readPreference, StalenessGuard guard, long maxStalenessMillis) {
+        this.coll = coll;
+        this.readPreference = readPreference;
+        this.guard = guard;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    @Override
+    public MongoDBCursor find(DBObject query, DBObject projection) {
+        return find(query, projection, null);
+    }
+
+    @Override
+    public MongoDBCursor find(DBObject query, DBObject projection, DBDecoderFactory decoder) {
+        DBCursor cursor = coll.find(query, projection);
+        if (decoder != null) {
+            cursor.setDecoderFactory(decoder);
+        }
+        if (readPreference != null) {
+            boolean stale = guard != null && guard.isStale(maxStalenessMillis);
+            cursor.setReadPreference(stale ? ReadPreference.primary() : readPreference);
+        }
+        return new DriverCursor(cursor);
+    }
+
+    /**
+     * Get a view of this collection whose queries use a read preference. The lag of the
+     * secondaries is checked with replSetGetStatus on the admin database of the client.
+     */
+    @Override
+    public MongoDBCollection withReadPreference(ReadPreference preference, long maxStalenessMillis) {
+        StalenessGuard guard = null;
+        if (maxStalenessMillis > 0 && !ReadPreference.primary().equals(preference)) {
+            guard = new StalenessGuard(coll.getDB().getSisterDB("admin"), StalenessGuard.DEFAULT_CHECK_INTERVAL_MILLIS);
+        }
+        return new DriverCollection(coll, preference, guard, maxStalenessMillis);
+    }
+
+    /**
+     * Get a feed reading the oplog of the replica set. Sharded collections have an oplog per
+     * shard, which it does not read.
+     */
+    @Override
+    public ChangeFeed changes() {
+        return new OplogFeed(coll.getDB().getSisterDB("local"), coll.getDB().getName(), coll.getName());
+    }
+
+    /**
+     * Get a writer of driver bulks. Bulks made only of inserts are written with a
+     * {@link TemplateEncoder}, passed to that write alone: the encoder of the driver
+     * collection, shared by every user of the client, is left as it is. Their documents
+     * get an ObjectId _id when they have none, as the driver does.
+     */
+    @Override
+    public BulkWriter newBulkWriter(BulkWriteOptions options) {
+        return new DriverBulkWriter(coll, options);
+    }
+
+    /**
+     * Get the driver collection
+     * @return Driver collection
+     */
+    public DBCollection getCollection() {
+        return coll;
+    }
+
+    /**
+     * Cursor over a driver cursor
+     */
+    private static class DriverCursor implements MongoDBCursor {
+        private final DBCursor cursor;
+
+        DriverCursor(DBCursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        @Override
+        public DBObject next() {
+            return cursor.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Bulk writer over a driver bulk operation, created once an operation is not an insert
+     */
+    private static class DriverBulkWriter implements BulkWriter {
+        private final DBCollection coll;
+        private final BulkWriteOptions options;
+        private BulkWriteOperation bulk = null;
+        private int size = 0;
+
+        // Documents of the operations while they are all inserts, null after any other operation
+        private List<DBObject> inserts = new ArrayList<DBObject>();
+
+        DriverBulkWriter(DBCollection coll, BulkWriteOptions options) {
+            this.coll = coll;
+            this.options = options;
+        }
+
+        @Override
+        public void add(CRUDOperation operation) {
+            size++;
+            if (inserts != null) {
+                if (operation instanceof Insert) {
+                    inserts.add(((Insert) operation).getDocument());
+                    return;
+                }
+                if (operation instanceof TemplateOperation && operation.getType() == CRUDOperation.Type.INSERT) {
+                    DBObject doc = ((TemplateOperation) operation).getQuery();
+                    if (doc.get("_id") == null) {
+                        doc.put("_id", new ObjectId());
+                    }
+                    inserts.add(doc);
+                    return;
+                }
+                bulk = options.initialize(coll);
+                for (DBObject doc : inserts) {
+                    bulk.insert(doc);
+                }
+                inserts = null;
+            }
+            operation.addToBulkOperation(bulk);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public WriteCounts execute() {
+            if (size == 0) {
+                return WriteCounts.NONE;
+            }
+            if (inserts != null) {
+                WriteConcern writeConcern = options.getWriteConcern(coll.getWriteConcern());
+                coll.insert(inserts, writeConcern.continueOnError(!options.ordered), new TemplateEncoder());
+                return new WriteCounts(inserts.size(), 0, 0, 0);
+            }
+            return WriteCounts.of(options.execute(coll, bulk));
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import org.bson.types.BSONTimestamp;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wraps a collection to add latency to every query, bulk and change feed read, and to fail a
+ * share of them before they reach the collection. Meant for load and failure testing.
+ * @author Andrés Sánchez
+ */
+public class FaultInjectingCollection implements MongoDBCollection
+{
+    // Wrapped collection
+    private final MongoDBCollection delegate;
+
+    // Added latency in nanoseconds
+    private final long latencyNanos;
+
+    // Share of failed calls, between 0 and 1
+    private final double failureRate;
+
+    private final Random random = new Random();
+
+    /**
+     * Create a new fault injecting collection
+     * @param delegate Wrapped collection
+     * @param latencyMicros Latency added to every call, in microseconds
+     * @param failureRate Share of failed calls, between 0 and 1
+     */
+    public FaultInjectingCollection(MongoDBCollection delegate, long latencyMicros, double failureRate) {
+        this.delegate = delegate;
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.failureRate = failureRate;
+    }
+
+    @Override
+    public MongoDBCursor find(DBObject query, DBObject projection) {
+        inject("find");
+        return delegate.find(query, projection);
+    }
+
+    @Override
+    public MongoDBCursor find(DBObject query, DBObject projection, DBDecoderFactory decoder) {
+        inject("find");
+        return delegate.find(query, projection, decoder);
+    }
+
+    @Override
+    public MongoDBCollection withReadPreference(ReadPreference preference, long maxStalenessMillis) {
+        return new FaultInjectingCollection(delegate.withReadPreference(preference, maxStalenessMillis),
+                TimeUnit.NANOSECONDS.toMicros(latencyNanos), failureRate);
+    }
+
+    @Override
+    public ChangeFeed changes() {
+        final ChangeFeed feed = delegate.changes();
+        return new ChangeFeed() {
+            @Override
+            public BSONTimestamp latest() {
+                inject("latest");
+                return feed.latest();
+            }
+
+            @Override
+            public List<Change> poll(BSONTimestamp after, int maxChanges) {
+                inject("poll");
+                return feed.poll(after, maxChanges);
+            }
+        };
+    }
+
+    @Override
+    public BulkWriter newBulkWriter(BulkWriteOptions options) {
+        final BulkWriter writer = delegate.newBulkWriter(options);
+        return new BulkWriter() {
+            public void add(CRUDOperation operation) {
+                writer.add(operation);
+            }
+
+            public int size() {
+                return writer.size();
+            }
+
+            public WriteCounts execute() {
+                if (writer.size() > 0) inject("bulk write");
+                return writer.execute();
+            }
+        };
+    }
+
+    private void inject(String call) {
+        if (latencyNanos > 0) {
+            LockSupport.parkNanos(latencyNanos);
+        }
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            throw new MongoException("Injected failure on " + call);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+/**
+ * Thrown when a change feed no longer holds the changes after a position, e.g. because the
+ * oplog rolled over while the reader was behind
+ * @author Andrés Sánchez
+ */
+public class FeedGapException extends RuntimeException
+{
+    // Serialization
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create a new exception
+     * @param message Message
+     */
+    public FeedGapException(String message) {
+        super(message);
+    }
+}
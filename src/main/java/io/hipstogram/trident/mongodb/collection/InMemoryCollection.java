@@ -0,0 +1,354 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+import io.hipstogram.trident.mongodb.operation.*;
+import org.bson.BSON;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.ObjectId;
+
+import java.util.*;
+
+/**
+ * A collection kept in memory, for running states without a MongoDB server. It has a unique
+ * index on _id, answers _id equality and $in queries by lookup and any other query by scan
+ * (see {@link QueryMatcher} and {@link DocumentUpdater} for the supported operators). Every
+ * operation is atomic; bulks are not, as in MongoDB. Ordered bulks stop at the first failed
+ * operation, unordered ones go on, and both then throw a MongoException. The last
+ * {@link #CHANGE_LOG_SIZE} changes are kept for the change feeds.
+ * @author Andrés Sánchez
+ */
+public class InMemoryCollection implements MongoDBCollection
+{
+    // Duplicate key error code, as the server reports it
+    public static final int DUPLICATE_KEY = BulkWriteOptions.DUPLICATE_KEY;
+
+    // Number of changes kept for the change feeds
+    public static final int CHANGE_LOG_SIZE = 100000;
+
+    // Collection name
+    private final String name;
+
+    // Documents by normalized _id, in insertion order
+    private final Map<Object, DBObject> documents = new LinkedHashMap<Object, DBObject>();
+
+    // Last changes, oldest first
+    private final ArrayDeque<ChangeFeed.Change> changes = new ArrayDeque<ChangeFeed.Change>();
+
+    // Position of the last change, and of the last one dropped from the log
+    private BSONTimestamp position = new BSONTimestamp(0, 0);
+    private BSONTimestamp dropped = null;
+
+    /**
+     * Create a new, empty collection
+     * @param name Collection name, for error messages
+     */
+    public InMemoryCollection(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public MongoDBCursor find(DBObject query, DBObject projection) {
+        return find(query, projection, null);
+    }
+
+    /**
+     * Find the documents matching a query. With a decoder, documents go through BSON
+     * as they would from a server.
+     */
+    @Override
+    public synchronized MongoDBCursor find(DBObject query, DBObject projection, DBDecoderFactory decoder) {
+        DBDecoder decoding = decoder == null ? null : decoder.create();
+        List<DBObject> results = new ArrayList<DBObject>();
+        for (DBObject doc : candidates(query)) {
+            if (!QueryMatcher.matches(doc, query)) continue;
+            DBObject result = Documents.project(doc, projection);
+            results.add(decoding == null ? result : decoding.decode(BSON.encode(result), (DBCollection) null));
+        }
+        return new ListCursor(results);
+    }
+
+    /**
+     * Get this collection: it has no secondaries
+     */
+    @Override
+    public MongoDBCollection withReadPreference(ReadPreference preference, long maxStalenessMillis) {
+        return this;
+    }
+
+    /**
+     * Get a feed reading the change log of this collection
+     */
+    @Override
+    public ChangeFeed changes() {
+        return new ChangeFeed() {
+            @Override
+            public BSONTimestamp latest() {
+                synchronized (InMemoryCollection.this) {
+                    return position;
+                }
+            }
+
+            @Override
+            public List<Change> poll(BSONTimestamp after, int maxChanges) {
+                return InMemoryCollection.this.poll(after, maxChanges);
+            }
+        };
+    }
+
+    @Override
+    public BulkWriter newBulkWriter(BulkWriteOptions options) {
+        return new InMemoryBulkWriter(options.ordered);
+    }
+
+    /**
+     * Insert a document
+     * @param doc Document, given an ObjectId if it has no _id
+     * @throws MongoException If the _id already exists
+     */
+    public synchronized void insert(DBObject doc) {
+        DBObject stored = (DBObject) Documents.copy(doc);
+        if (!stored.containsField("_id")) stored.put("_id", new ObjectId());
+        Object key = key(stored.get("_id"));
+        if (documents.containsKey(key)) {
+            throw new MongoException(DUPLICATE_KEY, "E11000 duplicate key error index: " + name + ".$_id_ dup key: " + stored.get("_id"));
+        }
+        documents.put(key, stored);
+        logChange(stored.get("_id"));
+    }
+
+    /**
+     * Update the documents matching a query
+     * @param query Query
+     * @param statement Update statement or replacement document
+     * @param upsert Insert a document if none matches
+     * @param multi Update every matching document, not only the first
+     * @return Matched and upserted documents; every matched document counts as modified
+     */
+    public synchronized WriteCounts update(DBObject query, DBObject statement, boolean upsert, boolean multi) {
+        if (multi && DocumentUpdater.isReplacement(statement)) {
+            throw new IllegalArgumentException("Multi updates need update operators: " + statement);
+        }
+
+        int updated = 0;
+        for (DBObject doc : candidates(query)) {
+            if (!QueryMatcher.matches(doc, query)) continue;
+            Object id = doc.get("_id");
+            DocumentUpdater.apply(doc, statement, false);
+            if (!Documents.equal(id, doc.get("_id"))) {
+                doc.put("_id", id);
+                throw new MongoException("The _id field cannot be changed");
+            }
+            logChange(id);
+            updated++;
+            if (!multi) break;
+        }
+
+        if (updated == 0 && upsert) {
+            DBObject doc = DocumentUpdater.fromQuery(query);
+            DocumentUpdater.apply(doc, statement, true);
+            insert(doc);
+            return new WriteCounts(0, 0, 0, 1);
+        }
+        return new WriteCounts(0, updated, updated, 0);
+    }
+
+    /**
+     * Get the number of documents
+     * @return Number of documents
+     */
+    public synchronized int size() {
+        return documents.size();
+    }
+
+    /**
+     * Remove every document
+     */
+    public synchronized void clear() {
+        documents.clear();
+        logChange(null);
+    }
+
+    /**
+     * Read the change log after a position
+     */
+    private synchronized List<ChangeFeed.Change> poll(BSONTimestamp after, int maxChanges) {
+        if (dropped != null && dropped.compareTo(after) > 0) {
+            throw new FeedGapException("The change log of " + name + " starts after " + after);
+        }
+        List<ChangeFeed.Change> found = new ArrayList<ChangeFeed.Change>();
+        Iterator<ChangeFeed.Change> iterator = changes.descendingIterator();
+        while (iterator.hasNext()) {
+            ChangeFeed.Change change = iterator.next();
+            if (change.getPosition().compareTo(after) <= 0) break;
+            found.add(change);
+        }
+        Collections.reverse(found);
+        return found.size() > maxChanges ? new ArrayList<ChangeFeed.Change>(found.subList(0, maxChanges)) : found;
+    }
+
+    /**
+     * Add a change to the log, at a position of the current second
+     * @param id _id of the changed document, null for every document
+     */
+    private void logChange(Object id) {
+        int now = (int) (System.currentTimeMillis() / 1000);
+        position = now > position.getTime() ? new BSONTimestamp(now, 1) : new BSONTimestamp(position.getTime(), position.getInc() + 1);
+        changes.addLast(new ChangeFeed.Change(position, id));
+        if (changes.size() > CHANGE_LOG_SIZE) {
+            dropped = changes.removeFirst().getPosition();
+        }
+    }
+
+    /**
+     * Get the documents that may match a query, looking them up by _id when possible
+     */
+    private Collection<DBObject> candidates(DBObject query) {
+        Object id = query == null ? null : query.get("_id");
+        if (id == null) return new ArrayList<DBObject>(documents.values());
+
+        List<?> ids;
+        if (id instanceof DBObject && !(id instanceof List)) {
+            DBObject condition = (DBObject) id;
+            if (condition.keySet().size() == 1 && condition.get("$in") instanceof List) {
+                ids = (List<?>) condition.get("$in");
+            } else if (condition.keySet().size() == 1 && condition.containsField("$eq")) {
+                ids = Collections.singletonList(condition.get("$eq"));
+            } else {
+                return new ArrayList<DBObject>(documents.values());
+            }
+        } else {
+            ids = Collections.singletonList(id);
+        }
+
+        Map<Object, DBObject> found = new LinkedHashMap<Object, DBObject>();
+        for (Object value : ids) {
+            Object key = key(value);
+            DBObject doc = documents.get(key);
+            if (doc != null) found.put(key, doc);
+        }
+        return found.values();
+    }
+
+    /**
+     * Normalize an _id, as MongoDB compares numbers by value
+     */
+    private static Object key(Object id) {
+        return Documents.normalize(id);
+    }
+
+    /**
+     * Cursor over a result list
+     */
+    private static class ListCursor implements MongoDBCursor {
+        private final Iterator<DBObject> iterator;
+
+        ListCursor(List<DBObject> results) {
+            this.iterator = results.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public DBObject next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Bulk writer applying the operations one by one
+     */
+    private class InMemoryBulkWriter implements BulkWriter {
+        private final boolean ordered;
+        private final List<CRUDOperation> operations = new ArrayList<CRUDOperation>();
+
+        InMemoryBulkWriter(boolean ordered) {
+            this.ordered = ordered;
+        }
+
+        @Override
+        public void add(CRUDOperation operation) {
+            if (!(operation instanceof Query)) {
+                operations.add(operation);
+            }
+        }
+
+        @Override
+        public int size() {
+            return operations.size();
+        }
+
+        @Override
+        public WriteCounts execute() {
+            List<String> errors = new ArrayList<String>();
+            List<Integer> indexes = new ArrayList<Integer>();
+            List<Integer> codes = new ArrayList<Integer>();
+            int inserted = 0, matched = 0, upserted = 0;
+            for (int i = 0; i < operations.size(); i++) {
+                try {
+                    WriteCounts counts = apply(operations.get(i));
+                    inserted += counts.getInserted();
+                    matched += counts.getMatched();
+                    upserted += counts.getUpserted();
+                } catch (RuntimeException e) {
+                    indexes.add(i);
+                    codes.add(e instanceof MongoException ? ((MongoException) e).getCode() : 0);
+                    errors.add("operation " + i + ": " + e.getMessage());
+                    if (ordered) break;
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new BulkWriteErrorsException("Bulk write failed on " + name + ": " + errors, indexes, codes);
+            }
+            return new WriteCounts(inserted, matched, matched, upserted);
+        }
+
+        private WriteCounts apply(CRUDOperation operation) {
+            if (operation instanceof TemplateOperation) {
+                operation = ((TemplateOperation) operation).toOperation();
+            }
+            if (operation instanceof Insert) {
+                insert(((Insert) operation).getDocument());
+                return new WriteCounts(1, 0, 0, 0);
+            } else if (operation instanceof Upsert) {
+                return update(((Upsert) operation).getQuery(), ((Upsert) operation).getStatement(), true, true);
+            } else if (operation instanceof Update) {
+                return update(((Update) operation).getQuery(), ((Update) operation).getStatement(), false, true);
+            } else {
+                throw new UnsupportedOperationException("Unsupported operation: " + operation.getType());
+            }
+        }
+    }
+}
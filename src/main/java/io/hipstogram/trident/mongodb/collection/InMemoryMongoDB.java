@@ -0,0 +1,71 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import io.hipstogram.trident.mongodb.MongoDBStateFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory collections shared by the whole JVM, so that the states of a LocalCluster
+ * topology and the code inspecting the results see the same data. Call
+ * {@link #configure(Map)} on the topology configuration to use them.
+ * @author Andrés Sánchez
+ */
+public class InMemoryMongoDB implements CollectionProvider
+{
+    // Collections by db/collection name
+    private static final ConcurrentMap<String, InMemoryCollection> COLLECTIONS = new ConcurrentHashMap<String, InMemoryCollection>();
+
+    @Override
+    public MongoDBCollection getCollection(String dbName, String collName) {
+        return collection(dbName, collName);
+    }
+
+    /**
+     * Get an in-memory collection, creating it if needed
+     * @param dbName Name of the database
+     * @param collName Name of the collection
+     * @return The collection
+     */
+    public static InMemoryCollection collection(String dbName, String collName) {
+        String name = dbName + "." + collName;
+        InMemoryCollection coll = COLLECTIONS.get(name);
+        if (coll == null) {
+            InMemoryCollection created = new InMemoryCollection(name);
+            coll = COLLECTIONS.putIfAbsent(name, created);
+            if (coll == null) coll = created;
+        }
+        return coll;
+    }
+
+    /**
+     * Make the states created with a configuration use the in-memory collections
+     * @param configuration Topology configuration
+     */
+    public static void configure(Map<String, Object> configuration) {
+        configuration.put(MongoDBStateFactory.MONGODB_COLLECTION_PROVIDER, InMemoryMongoDB.class.getName());
+    }
+
+    /**
+     * Drop every in-memory collection
+     */
+    public static void reset() {
+        COLLECTIONS.clear();
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+
+/**
+ * The operations the states run against a MongoDB collection. The driver implementation is
+ * {@link DriverCollection}; other implementations let the states run without a server.
+ * @author Andrés Sánchez
+ */
+public interface MongoDBCollection
+{
+    /**
+     * Find the documents matching a query
+     * @param query Query document
+     * @param projection Fields to return, null for every field
+     * @return A cursor over the matching documents, to be closed by the caller
+     */
+    public MongoDBCursor find(DBObject query, DBObject projection);
+
+    /**
+     * Find the documents matching a query, decoding them with a custom decoder
+     * @param query Query document
+     * @param projection Fields to return, null for every field
+     * @param decoder Decoder for the returned documents, null for the default one
+     * @return A cursor over the matching documents, to be closed by the caller
+     */
+    public MongoDBCursor find(DBObject query, DBObject projection, DBDecoderFactory decoder);
+
+    /**
+     * Get a view of this collection whose queries use a read preference. Writes are not affected.
+     * @param preference Read preference
+     * @param maxStalenessMillis Queries go to the primary while a secondary lags further behind
+     *                           it, 0 for no bound. Ignored by the primary read preference.
+     * @return A view of the same collection
+     */
+    public MongoDBCollection withReadPreference(ReadPreference preference, long maxStalenessMillis);
+
+    /**
+     * Get the feed of the changes made to this collection by any writer
+     * @return A change feed
+     */
+    public ChangeFeed changes();
+
+    /**
+     * Start a new bulk write
+     * @param options Bulk options
+     * @return An empty bulk writer
+     */
+    public BulkWriter newBulkWriter(BulkWriteOptions options);
+}
@@ -0,0 +1,32 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.DBObject;
+
+import java.util.Iterator;
+
+/**
+ * A cursor over the results of a query
+ * @author Andrés Sánchez
+ */
+public interface MongoDBCursor extends Iterator<DBObject>
+{
+    /**
+     * Release the cursor, whether or not it was fully read
+     */
+    public void close();
+}
@@ -0,0 +1,124 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import org.bson.types.BSONTimestamp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Change feed reading the oplog of a replica set. Every poll is a query for the entries of
+ * the collection after the position, with the oplog replay option so the server seeks to it
+ * instead of scanning. Only the _ids of the documents are read. Commands that drop, rename,
+ * empty or convert the collection, drop its database or apply a list of operations are
+ * changes to every document.
+ * @author Andrés Sánchez
+ */
+public class OplogFeed implements ChangeFeed
+{
+    // Commands replacing every document of the collection they name
+    private static final List<String> COLLECTION_COMMANDS = Arrays.asList("drop", "emptycapped", "convertToCapped", "collMod");
+
+    // Namespace of the admin commands, where collections are renamed
+    private static final String ADMIN_COMMANDS = "admin.$cmd";
+
+    // Oplog
+    private final DBCollection oplog;
+
+    // Namespace of the collection
+    private final String namespace;
+
+    // Name of the collection
+    private final String collection;
+
+    // Namespace of the commands on its database
+    private final String commands;
+
+    /**
+     * Create a new oplog feed
+     * @param local The local database of a replica set member
+     * @param db Database of the collection
+     * @param collection Name of the collection
+     */
+    public OplogFeed(DB local, String db, String collection) {
+        this.oplog = local.getCollection("oplog.rs");
+        this.namespace = db + "." + collection;
+        this.collection = collection;
+        this.commands = db + ".$cmd";
+    }
+
+    @Override
+    public BSONTimestamp latest() {
+        DBObject last = oplog.findOne(new BasicDBObject(), new BasicDBObject("ts", 1), new BasicDBObject("$natural", -1));
+        if (last == null) {
+            throw new MongoException("No oplog in " + oplog.getFullName() + ", the server is not a replica set member");
+        }
+        return (BSONTimestamp) last.get("ts");
+    }
+
+    @Override
+    public List<Change> poll(BSONTimestamp after, int maxChanges) {
+        DBObject first = oplog.findOne(new BasicDBObject(), new BasicDBObject("ts", 1), new BasicDBObject("$natural", 1));
+        if (first != null && ((BSONTimestamp) first.get("ts")).compareTo(after) > 0) {
+            throw new FeedGapException("The oplog starts at " + first.get("ts") + ", after " + after);
+        }
+
+        List<DBObject> matches = new ArrayList<DBObject>();
+        matches.add(new BasicDBObject("ns", namespace));
+        matches.add(new BasicDBObject("ns", commands).append("o.dropDatabase", new BasicDBObject("$exists", true)));
+        matches.add(new BasicDBObject("o.applyOps", new BasicDBObject("$exists", true)));
+        matches.add(new BasicDBObject("o.renameCollection", namespace));
+        matches.add(new BasicDBObject("o.to", namespace));
+        for (String command : COLLECTION_COMMANDS) {
+            matches.add(new BasicDBObject("ns", commands).append("o." + command, collection));
+        }
+        // Every returned entry is a change, so the position moves past all of them
+        BasicDBObject query = new BasicDBObject("ts", new BasicDBObject("$gt", after))
+                .append("ns", new BasicDBObject("$in", Arrays.asList(namespace, commands, ADMIN_COMMANDS)))
+                .append("$or", matches);
+        BasicDBObject fields = new BasicDBObject("ts", 1).append("op", 1).append("o2._id", 1).append("o._id", 1);
+
+        List<Change> changes = new ArrayList<Change>();
+        DBCursor cursor = oplog.find(query, fields).addOption(Bytes.QUERYOPTION_OPLOGREPLAY).limit(maxChanges);
+        try {
+            while (cursor.hasNext()) {
+                DBObject entry = cursor.next();
+                BSONTimestamp position = (BSONTimestamp) entry.get("ts");
+                String op = (String) entry.get("op");
+                if ("u".equals(op)) {
+                    changes.add(new Change(position, ((DBObject) entry.get("o2")).get("_id")));
+                } else if ("i".equals(op) || "d".equals(op)) {
+                    changes.add(new Change(position, ((DBObject) entry.get("o")).get("_id")));
+                } else {
+                    changes.add(new Change(position, null));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return changes;
+    }
+}
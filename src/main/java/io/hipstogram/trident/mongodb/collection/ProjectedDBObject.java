@@ -0,0 +1,178 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+
+import java.util.*;
+
+/**
+ * A document holding only a fixed set of fields, as decoded by {@link ProjectedDecoderFactory}.
+ * Fields are (possibly dotted) paths kept in two arrays, so values can be read by position
+ * without hashing, and missing fields are told apart from null ones. Other fields cannot be set.
+ * @author Andrés Sánchez
+ */
+public class ProjectedDBObject implements DBObject
+{
+    // Value of the fields missing from the document
+    private static final Object MISSING = new Object();
+
+    // Projected fields
+    private final String[] fields;
+
+    // Field values, MISSING if absent
+    private final Object[] values;
+
+    /**
+     * Create a document with every field missing
+     * @param fields Projected fields, (possibly dotted) paths
+     */
+    public ProjectedDBObject(String[] fields) {
+        this.fields = fields;
+        this.values = new Object[fields.length];
+        Arrays.fill(values, MISSING);
+    }
+
+    /**
+     * Get the projected fields
+     * @return Fields, in position order
+     */
+    public String[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Get the value of a field by position
+     * @param index Position in {@link #getFields()}
+     * @return Value, null if the field is missing
+     */
+    public Object get(int index) {
+        Object value = values[index];
+        return value == MISSING ? null : value;
+    }
+
+    /**
+     * Check whether the document has a field
+     * @param index Position in {@link #getFields()}
+     * @return True if the field is present, even with a null value
+     */
+    public boolean contains(int index) {
+        return values[index] != MISSING;
+    }
+
+    /**
+     * Set the value of a field by position
+     * @param index Position in {@link #getFields()}
+     * @param value Value
+     */
+    public void set(int index, Object value) {
+        values[index] = value;
+    }
+
+    @Override
+    public Object get(String key) {
+        int index = indexOf(key);
+        return index < 0 ? null : get(index);
+    }
+
+    @Override
+    public Object put(String key, Object v) {
+        int index = indexOf(key);
+        if (index < 0) {
+            throw new IllegalArgumentException("Field [" + key + "] is not projected");
+        }
+        Object previous = get(index);
+        values[index] = v;
+        return previous;
+    }
+
+    @Override
+    public void putAll(BSONObject o) {
+        for (String key : o.keySet()) put(key, o.get(key));
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void putAll(Map m) {
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) m).entrySet()) {
+            put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < fields.length; i++) {
+            if (contains(i)) map.put(fields[i], values[i]);
+        }
+        return map;
+    }
+
+    @Override
+    public Object removeField(String key) {
+        int index = indexOf(key);
+        if (index < 0) return null;
+        Object previous = get(index);
+        values[index] = MISSING;
+        return previous;
+    }
+
+    @Override
+    @Deprecated
+    public boolean containsKey(String s) {
+        return containsField(s);
+    }
+
+    @Override
+    public boolean containsField(String s) {
+        int index = indexOf(s);
+        return index >= 0 && contains(index);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new LinkedHashSet<String>();
+        for (int i = 0; i < fields.length; i++) {
+            if (contains(i)) keys.add(fields[i]);
+        }
+        return keys;
+    }
+
+    @Override
+    public void markAsPartialObject() {
+    }
+
+    @Override
+    public boolean isPartialObject() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return JSON.serialize(this);
+    }
+
+    private int indexOf(String key) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].equals(key)) return i;
+        }
+        return -1;
+    }
+}
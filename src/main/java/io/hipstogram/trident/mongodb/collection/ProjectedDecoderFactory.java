@@ -0,0 +1,404 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.*;
+import org.bson.BSON;
+import org.bson.BSONException;
+import org.bson.BSONObject;
+import org.bson.types.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Decoder factory reading a fixed set of fields from the raw BSON of every document into a
+ * {@link ProjectedDBObject}. Other fields are skipped by their encoded size without decoding
+ * them, and embedded documents are only entered along the requested dotted paths, so the cost
+ * of a document depends on the requested fields rather than on its size. Requested values are
+ * decoded like the driver does, except that {$ref, $id} documents are not turned into DBRefs.
+ * @author Andrés Sánchez
+ */
+public class ProjectedDecoderFactory implements DBDecoderFactory
+{
+    // Encoding of BSON strings
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Requested fields
+    private final String[] fields;
+
+    // Requested paths as a tree of field names
+    private final Node root = new Node(-1);
+
+    /**
+     * Create a new decoder factory
+     * @param fields Top-level or dotted field names
+     */
+    public ProjectedDecoderFactory(String... fields) {
+        this.fields = fields.clone();
+        for (int i = 0; i < fields.length; i++) {
+            Node node = root;
+            for (String part : fields[i].split("\\.")) {
+                node = node.child(part);
+            }
+            node.index = i;
+        }
+    }
+
+    /**
+     * Get the requested fields
+     * @return Fields, in {@link ProjectedDBObject} position order
+     */
+    public String[] getFields() {
+        return fields.clone();
+    }
+
+    @Override
+    public DBDecoder create() {
+        return new ProjectedDecoder();
+    }
+
+    /**
+     * A field name on the requested paths
+     */
+    private static class Node {
+        // Position of the field, -1 if it is only a prefix of requested fields
+        private int index;
+
+        // Field name encoded as UTF-8
+        private byte[] name;
+
+        // Requested sub-fields, null if none
+        private List<Node> children;
+
+        Node(int index) {
+            this.index = index;
+        }
+
+        Node child(String part) {
+            if (children == null) children = new ArrayList<Node>(2);
+            byte[] encoded = part.getBytes(UTF8);
+            for (Node child : children) {
+                if (Arrays.equals(child.name, encoded)) return child;
+            }
+            Node child = new Node(-1);
+            child.name = encoded;
+            children.add(child);
+            return child;
+        }
+
+        /**
+         * Find the child whose name is encoded in b[from, to)
+         */
+        Node find(byte[] b, int from, int to) {
+            if (children == null) return null;
+            int length = to - from;
+            for (int i = 0; i < children.size(); i++) {
+                Node child = children.get(i);
+                byte[] name = child.name;
+                if (name.length != length) continue;
+                int j = 0;
+                while (j < length && name[j] == b[from + j]) j++;
+                if (j == length) return child;
+            }
+            return null;
+        }
+
+        String getName() {
+            return new String(name, UTF8);
+        }
+    }
+
+    /**
+     * Decoder for a single cursor. The buffer is reused across the documents of a response,
+     * which are decoded one after another.
+     */
+    private class ProjectedDecoder extends DefaultDBDecoder {
+        private byte[] b = new byte[512];
+        private int pos;
+
+        @Override
+        public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+            readFully(in, b, 0, 4);
+            int length = int32(b, 0);
+            if (length > b.length) {
+                byte[] grown = new byte[Math.max(length, 2 * b.length)];
+                System.arraycopy(b, 0, grown, 0, 4);
+                b = grown;
+            }
+            readFully(in, b, 4, length - 4);
+            return decodeBuffer();
+        }
+
+        @Override
+        public DBObject decode(byte[] bytes, DBCollection collection) {
+            byte[] buffer = b;
+            b = bytes;
+            try {
+                return decodeBuffer();
+            } finally {
+                b = buffer;
+            }
+        }
+
+        private DBObject decodeBuffer() {
+            ProjectedDBObject doc = new ProjectedDBObject(fields);
+            pos = 4;
+            readFields(root, doc);
+            return doc;
+        }
+
+        /**
+         * Read the elements of a document up to its end, keeping the requested ones
+         */
+        private void readFields(Node node, ProjectedDBObject doc) {
+            while (true) {
+                byte type = b[pos++];
+                if (type == BSON.EOO) return;
+                int nameStart = pos;
+                while (b[pos] != 0) pos++;
+                Node child = node.find(b, nameStart, pos);
+                pos++;
+
+                if (child == null) {
+                    skip(type);
+                } else if (child.index >= 0) {
+                    Object value = readValue(type);
+                    doc.set(child.index, value);
+                    if (child.children != null) fill(child, value, doc);
+                } else if (type == BSON.OBJECT) {
+                    pos += 4;
+                    readFields(child, doc);
+                } else {
+                    skip(type);
+                }
+            }
+        }
+
+        /**
+         * Set the requested sub-fields of an already decoded value
+         */
+        private void fill(Node node, Object value, ProjectedDBObject doc) {
+            if (!(value instanceof BSONObject) || value instanceof List) return;
+            BSONObject object = (BSONObject) value;
+            for (Node child : node.children) {
+                String name = child.getName();
+                if (!object.containsField(name)) continue;
+                Object childValue = object.get(name);
+                if (child.index >= 0) doc.set(child.index, childValue);
+                if (child.children != null) fill(child, childValue, doc);
+            }
+        }
+
+        /**
+         * Skip a value by its encoded size
+         */
+        private void skip(byte type) {
+            switch (type) {
+                case BSON.UNDEFINED:
+                case BSON.NULL:
+                case BSON.MINKEY:
+                case BSON.MAXKEY:
+                    break;
+                case BSON.BOOLEAN:
+                    pos += 1;
+                    break;
+                case BSON.NUMBER_INT:
+                    pos += 4;
+                    break;
+                case BSON.NUMBER:
+                case BSON.DATE:
+                case BSON.TIMESTAMP:
+                case BSON.NUMBER_LONG:
+                    pos += 8;
+                    break;
+                case BSON.OID:
+                    pos += 12;
+                    break;
+                case BSON.STRING:
+                case BSON.CODE:
+                case BSON.SYMBOL:
+                    pos += 4 + int32(b, pos);
+                    break;
+                case BSON.OBJECT:
+                case BSON.ARRAY:
+                case BSON.CODE_W_SCOPE:
+                    pos += int32(b, pos);
+                    break;
+                case BSON.BINARY:
+                    pos += 4 + 1 + int32(b, pos);
+                    break;
+                case BSON.REGEX:
+                    while (b[pos] != 0) pos++;
+                    pos++;
+                    while (b[pos] != 0) pos++;
+                    pos++;
+                    break;
+                case BSON.REF:
+                    pos += 4 + int32(b, pos) + 12;
+                    break;
+                default:
+                    throw new BSONException("Unsupported BSON type " + type);
+            }
+        }
+
+        /**
+         * Decode a value the way the driver does
+         */
+        private Object readValue(byte type) {
+            switch (type) {
+                case BSON.UNDEFINED:
+                case BSON.NULL:
+                    return null;
+                case BSON.MINKEY:
+                    return new MinKey();
+                case BSON.MAXKEY:
+                    return new MaxKey();
+                case BSON.BOOLEAN:
+                    return b[pos++] != 0;
+                case BSON.NUMBER_INT:
+                    return readInt();
+                case BSON.NUMBER:
+                    return Double.longBitsToDouble(readLong());
+                case BSON.NUMBER_LONG:
+                    return readLong();
+                case BSON.DATE:
+                    return new Date(readLong());
+                case BSON.TIMESTAMP:
+                    int inc = readInt();
+                    return new BSONTimestamp(readInt(), inc);
+                case BSON.OID:
+                    return readObjectId();
+                case BSON.STRING:
+                case BSON.SYMBOL:
+                    return readString();
+                case BSON.CODE:
+                    return new Code(readString());
+                case BSON.CODE_W_SCOPE:
+                    pos += 4;
+                    String code = readString();
+                    return new CodeWScope(code, readDocument());
+                case BSON.OBJECT:
+                    return readDocument();
+                case BSON.ARRAY:
+                    return readArray();
+                case BSON.BINARY:
+                    return readBinary();
+                case BSON.REGEX:
+                    String pattern = readCString();
+                    return Pattern.compile(pattern, BSON.regexFlags(readCString()));
+                case BSON.REF:
+                    String ns = readString();
+                    return new BasicDBObject("$ns", ns).append("$id", readObjectId());
+                default:
+                    throw new BSONException("Unsupported BSON type " + type);
+            }
+        }
+
+        private BasicDBObject readDocument() {
+            BasicDBObject doc = new BasicDBObject();
+            pos += 4;
+            while (true) {
+                byte type = b[pos++];
+                if (type == BSON.EOO) return doc;
+                String name = readCString();
+                doc.put(name, readValue(type));
+            }
+        }
+
+        private BasicDBList readArray() {
+            BasicDBList list = new BasicDBList();
+            pos += 4;
+            while (true) {
+                byte type = b[pos++];
+                if (type == BSON.EOO) return list;
+                while (b[pos] != 0) pos++;
+                pos++;
+                list.add(readValue(type));
+            }
+        }
+
+        private Object readBinary() {
+            int length = readInt();
+            byte subtype = b[pos++];
+            if (subtype == BSON.B_BINARY) {
+                length = readInt();
+            } else if (subtype == BSON.B_UUID && length == 16) {
+                long mostSignificant = readLong();
+                return new UUID(mostSignificant, readLong());
+            }
+            byte[] data = Arrays.copyOfRange(b, pos, pos + length);
+            pos += length;
+            if (subtype == BSON.B_GENERAL || subtype == BSON.B_BINARY) return data;
+            return new Binary(subtype, data);
+        }
+
+        private ObjectId readObjectId() {
+            ObjectId id = new ObjectId(Arrays.copyOfRange(b, pos, pos + 12));
+            pos += 12;
+            return id;
+        }
+
+        private String readString() {
+            int length = readInt();
+            String s = new String(b, pos, length - 1, UTF8);
+            pos += length;
+            return s;
+        }
+
+        private String readCString() {
+            int start = pos;
+            while (b[pos] != 0) pos++;
+            String s = new String(b, start, pos - start, UTF8);
+            pos++;
+            return s;
+        }
+
+        private int readInt() {
+            int value = int32(b, pos);
+            pos += 4;
+            return value;
+        }
+
+        private long readLong() {
+            long low = int32(b, pos) & 0xFFFFFFFFL;
+            long high = int32(b, pos + 4);
+            pos += 8;
+            return (high << 32) | low;
+        }
+    }
+
+    /**
+     * Read a little-endian int32
+     */
+    private static int int32(byte[] b, int at) {
+        return (b[at] & 0xFF) | ((b[at + 1] & 0xFF) << 8) | ((b[at + 2] & 0xFF) << 16) | ((b[at + 3] & 0xFF) << 24);
+    }
+
+    private static void readFully(InputStream in, byte[] b, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(b, offset, length);
+            if (read < 0) throw new EOFException();
+            offset += read;
+            length -= read;
+        }
+    }
+}
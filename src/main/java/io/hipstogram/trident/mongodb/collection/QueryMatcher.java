@@ -0,0 +1,190 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.DBObject;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates MongoDB queries against documents in memory. Supports equality on dotted paths
+ * (matching array elements too), $and, $or, $nor, $eq, $ne, $gt, $gte, $lt, $lte, $in,
+ * $nin, $exists, $all, $size, $not, $regex and $elemMatch. Also used to match batched
+ * query results back to their queries.
+ * @author Andrés Sánchez
+ */
+public class QueryMatcher
+{
+    private QueryMatcher() {}
+
+    /**
+     * Check whether a document matches a query
+     * @param doc A document
+     * @param query A query, null or empty to match every document
+     * @return True if the document matches
+     */
+    public static boolean matches(DBObject doc, DBObject query) {
+        if (query == null) return true;
+        for (String key : query.keySet()) {
+            Object condition = query.get(key);
+            if ("$and".equals(key)) {
+                for (Object clause : (List<?>) condition) if (!matches(doc, (DBObject) clause)) return false;
+            } else if ("$or".equals(key)) {
+                if (!any(doc, (List<?>) condition)) return false;
+            } else if ("$nor".equals(key)) {
+                if (any(doc, (List<?>) condition)) return false;
+            } else if (key.startsWith("$")) {
+                throw new IllegalArgumentException("Unsupported query operator: " + key);
+            } else if (!matchesPath(doc, key.split("\\."), 0, condition)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check a dotted path against a condition. A path crossing an array matches if it matches
+     * through any of its embedded documents, as the server does.
+     */
+    private static boolean matchesPath(Object current, String[] parts, int from, Object condition) {
+        for (int i = from; i < parts.length; i++) {
+            if (current instanceof List && Documents.index(parts[i]) < 0) {
+                for (Object element : (List<?>) current) {
+                    if (element instanceof DBObject && !(element instanceof List)
+                            && matchesPath(element, parts, i, condition)) return true;
+                }
+                return false;
+            }
+            current = current instanceof DBObject ? Documents.get((DBObject) current, parts[i]) : Documents.MISSING;
+            if (current == Documents.MISSING) break;
+        }
+        return matchesField(current, condition);
+    }
+
+    private static boolean any(DBObject doc, List<?> clauses) {
+        for (Object clause : clauses) if (matches(doc, (DBObject) clause)) return true;
+        return false;
+    }
+
+    /**
+     * Check a field value against a condition: an operator document or a value
+     */
+    private static boolean matchesField(Object value, Object condition) {
+        if (isOperatorDocument(condition)) {
+            DBObject operators = (DBObject) condition;
+            for (String operator : operators.keySet()) {
+                if ("$options".equals(operator)) continue;
+                if (!matchesOperator(value, operator, operators.get(operator), operators)) return false;
+            }
+            return true;
+        }
+        if (condition instanceof Pattern) return matchesRegex(value, (Pattern) condition);
+        return equalsOrContains(value, condition);
+    }
+
+    private static boolean matchesOperator(Object value, String operator, Object argument, DBObject operators) {
+        if ("$eq".equals(operator)) return equalsOrContains(value, argument);
+        if ("$ne".equals(operator)) return !equalsOrContains(value, argument);
+        if ("$gt".equals(operator)) return compares(value, argument, 1, false);
+        if ("$gte".equals(operator)) return compares(value, argument, 1, true);
+        if ("$lt".equals(operator)) return compares(value, argument, -1, false);
+        if ("$lte".equals(operator)) return compares(value, argument, -1, true);
+        if ("$in".equals(operator)) return in(value, (List<?>) argument);
+        if ("$nin".equals(operator)) return !in(value, (List<?>) argument);
+        if ("$exists".equals(operator)) return (value != Documents.MISSING) == isTrue(argument);
+        if ("$size".equals(operator)) return value instanceof List && ((List<?>) value).size() == ((Number) argument).intValue();
+        if ("$not".equals(operator)) return !matchesField(value, argument);
+        if ("$all".equals(operator)) {
+            for (Object element : (List<?>) argument) if (!equalsOrContains(value, element)) return false;
+            return true;
+        }
+        if ("$regex".equals(operator)) {
+            Pattern pattern = argument instanceof Pattern ? (Pattern) argument
+                    : Pattern.compile((String) argument, flags((String) operators.get("$options")));
+            return matchesRegex(value, pattern);
+        }
+        if ("$elemMatch".equals(operator)) {
+            if (!(value instanceof List)) return false;
+            DBObject elementQuery = (DBObject) argument;
+            for (Object element : (List<?>) value) {
+                if (isOperatorDocument(elementQuery) ? matchesField(element, elementQuery)
+                        : element instanceof DBObject && matches((DBObject) element, elementQuery)) return true;
+            }
+            return false;
+        }
+        throw new IllegalArgumentException("Unsupported query operator: " + operator);
+    }
+
+    private static boolean equalsOrContains(Object value, Object expected) {
+        if (Documents.equal(value, expected)) return true;
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) if (Documents.equal(element, expected)) return true;
+        }
+        return false;
+    }
+
+    private static boolean in(Object value, List<?> candidates) {
+        for (Object candidate : candidates) {
+            if (candidate instanceof Pattern ? matchesRegex(value, (Pattern) candidate) : equalsOrContains(value, candidate)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compare a value (or any of its elements) with an argument
+     * @param sign 1 for greater than, -1 for less than
+     */
+    private static boolean compares(Object value, Object argument, int sign, boolean orEqual) {
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) if (compares(element, argument, sign, orEqual)) return true;
+            return false;
+        }
+        Integer comparison = Documents.compare(value, argument);
+        if (comparison == null) return false;
+        return comparison * sign > 0 || (orEqual && comparison == 0);
+    }
+
+    private static boolean matchesRegex(Object value, Pattern pattern) {
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) if (matchesRegex(element, pattern)) return true;
+            return false;
+        }
+        return value instanceof String && pattern.matcher((String) value).find();
+    }
+
+    private static boolean isOperatorDocument(Object condition) {
+        if (!(condition instanceof DBObject) || condition instanceof List) return false;
+        for (String key : ((DBObject) condition).keySet()) if (key.startsWith("$")) return true;
+        return false;
+    }
+
+    private static boolean isTrue(Object value) {
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+        return value != null;
+    }
+
+    private static int flags(String options) {
+        int flags = 0;
+        if (options == null) return flags;
+        if (options.indexOf('i') >= 0) flags |= Pattern.CASE_INSENSITIVE;
+        if (options.indexOf('m') >= 0) flags |= Pattern.MULTILINE;
+        if (options.indexOf('s') >= 0) flags |= Pattern.DOTALL;
+        if (options.indexOf('x') >= 0) flags |= Pattern.COMMENTS;
+        return flags;
+    }
+}
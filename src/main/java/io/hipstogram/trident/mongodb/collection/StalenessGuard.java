@@ -0,0 +1,134 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tracks how far the secondaries of a replica set lag behind its primary, from the optimes
+ * reported by replSetGetStatus. The status is fetched again at most once per check interval,
+ * by the first query that needs it. Secondaries count as stale when the lag cannot be known,
+ * e.g. when the command fails, except when there is no primary to compare them with.
+ * @author Andrés Sánchez
+ */
+public class StalenessGuard
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(StalenessGuard.class);
+
+    // Member states
+    private static final int PRIMARY = 1;
+    private static final int SECONDARY = 2;
+
+    // Default time between two status checks
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 5000;
+
+    // Admin database of the replica set
+    private final DB admin;
+
+    // Time between two status checks
+    private final long checkIntervalMillis;
+
+    // Lag of the furthest healthy secondary in milliseconds, -1 if unknown, 0 without a primary
+    private long lagMillis = -1;
+
+    // Time of the last check, 0 before the first one
+    private long lastCheckMillis = 0;
+
+    /**
+     * Create a new guard
+     * @param admin Admin database of the replica set
+     * @param checkIntervalMillis Time between two status checks
+     */
+    public StalenessGuard(DB admin, long checkIntervalMillis) {
+        this.admin = admin;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * Check whether any secondary may serve reads older than a bound
+     * @param maxStalenessMillis Maximum lag behind the primary, in milliseconds
+     * @return True if reads should go to the primary
+     */
+    public boolean isStale(long maxStalenessMillis) {
+        long lag = getLagMillis();
+        return lag < 0 || lag > maxStalenessMillis;
+    }
+
+    /**
+     * Get the lag of the furthest healthy secondary, checking the replica set status if due
+     * @return Lag in milliseconds, -1 if unknown
+     */
+    public synchronized long getLagMillis() {
+        long now = System.currentTimeMillis();
+        if (lastCheckMillis == 0 || now - lastCheckMillis >= checkIntervalMillis) {
+            lastCheckMillis = now;
+            long lag = check();
+            if ((lag < 0) != (lagMillis < 0)) {
+                LOG.info("Replica set lag is now [{}] ms", lag < 0 ? "unknown" : lag);
+            }
+            lagMillis = lag;
+        }
+        return lagMillis;
+    }
+
+    /**
+     * Compute the lag from replSetGetStatus
+     */
+    private long check() {
+        try {
+            CommandResult status = admin.command("replSetGetStatus");
+            if (!status.ok()) {
+                LOG.debug("replSetGetStatus failed: {}", status.getErrorMessage());
+                return -1;
+            }
+            Date primary = null;
+            Date oldest = null;
+            for (Object member : (List<?>) status.get("members")) {
+                DBObject doc = (DBObject) member;
+                int state = ((Number) doc.get("state")).intValue();
+                Object optime = doc.get("optimeDate");
+                if (!(optime instanceof Date)) continue;
+                if (state == PRIMARY) {
+                    primary = (Date) optime;
+                } else if (state == SECONDARY && isHealthy(doc)) {
+                    if (oldest == null || ((Date) optime).before(oldest)) oldest = (Date) optime;
+                }
+            }
+            if (primary == null || oldest == null) {
+                // Nothing to compare: no primary to fall back to, or no secondary to read from
+                return 0;
+            }
+            return Math.max(0, primary.getTime() - oldest.getTime());
+        } catch (RuntimeException e) {
+            LOG.debug("Cannot get the replica set status", e);
+            return -1;
+        }
+    }
+
+    private static boolean isHealthy(DBObject member) {
+        Object health = member.get("health");
+        return health == null || ((Number) health).intValue() == 1;
+    }
+}
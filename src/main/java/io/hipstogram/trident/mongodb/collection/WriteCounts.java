@@ -0,0 +1,76 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.BulkWriteResult;
+
+/**
+ * Number of documents inserted, matched, modified and upserted by a bulk write
+ * @author Andrés Sánchez
+ */
+public class WriteCounts
+{
+    // Counts of an unacknowledged or empty write
+    public static final WriteCounts NONE = new WriteCounts(0, 0, -1, 0);
+
+    private final int inserted;
+    private final int matched;
+    private final int modified;
+    private final int upserted;
+
+    /**
+     * Create new write counts
+     * @param inserted Inserted documents
+     * @param matched Documents matched by updates and upserts
+     * @param modified Documents actually changed, -1 if unknown
+     * @param upserted Documents inserted by upserts
+     */
+    public WriteCounts(int inserted, int matched, int modified, int upserted) {
+        this.inserted = inserted;
+        this.matched = matched;
+        this.modified = modified;
+        this.upserted = upserted;
+    }
+
+    /**
+     * Get the counts of a driver bulk result
+     * @param result Driver bulk result
+     * @return Its counts, {@link #NONE} if it was not acknowledged
+     */
+    public static WriteCounts of(BulkWriteResult result) {
+        if (result == null || !result.isAcknowledged()) {
+            return NONE;
+        }
+        return new WriteCounts(result.getInsertedCount(), result.getMatchedCount(),
+                result.isModifiedCountAvailable() ? result.getModifiedCount() : -1, result.getUpserts().size());
+    }
+
+    public int getInserted() {
+        return inserted;
+    }
+
+    public int getMatched() {
+        return matched;
+    }
+
+    public int getModified() {
+        return modified;
+    }
+
+    public int getUpserted() {
+        return upserted;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.mappers;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.hipstogram.trident.mongodb.codec.ValueCodec;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Query;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import storm.trident.tuple.TridentTuple;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Row mapper for map states storing every key as a document {_id: key, value field: value},
+ * the value written by a {@link ValueCodec}. Single-value keys are the _id, longer ones are
+ * an _id document of the key values. Reads only decode the value field.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class CodecRowMapper<T> implements ProjectedRowMapper<List<Object>, T>, Serializable
+{
+    // Serialization
+    private static final long serialVersionUID = 1L;
+
+    // Value codec
+    private final ValueCodec<T> codec;
+
+    // Field holding the value
+    private final String valueField;
+
+    // Field names of the _id documents of multi-value keys, by position when null
+    private final String[] keyFields;
+
+    /**
+     * Create a new mapper storing values under "v"
+     * @param codec Value codec
+     */
+    public CodecRowMapper(ValueCodec<T> codec) {
+        this(codec, "v");
+    }
+
+    /**
+     * Create a new mapper
+     * @param codec Value codec
+     * @param valueField Field holding the value
+     * @param keyFields Field names of the _id documents of multi-value keys, "0", "1"... if none
+     */
+    public CodecRowMapper(ValueCodec<T> codec, String valueField, String... keyFields) {
+        this.codec = codec;
+        this.valueField = valueField;
+        this.keyFields = keyFields.length == 0 ? null : keyFields;
+    }
+
+    @Override
+    public CRUDOperation map(List<Object> key, T value) {
+        return new Upsert(new BasicDBObject("_id", id(key)),
+                new BasicDBObject("$set", new BasicDBObject(valueField, codec.encode(value))));
+    }
+
+    /**
+     * Not supported: tuples are written by map states as key/value pairs
+     */
+    @Override
+    public CRUDOperation map(TridentTuple tuple) {
+        throw new UnsupportedOperationException("Codec mappers only map the keys and values of map states");
+    }
+
+    @Override
+    public Query retrieve(List<Object> key) {
+        return new Query(new BasicDBObject("_id", id(key)));
+    }
+
+    @Override
+    public T getValue(DBObject doc) {
+        Object stored = doc.get(valueField);
+        return stored == null ? null : codec.decode(stored);
+    }
+
+    @Override
+    public String[] getFields() {
+        return new String[] {valueField};
+    }
+
+    /**
+     * Get the field holding the value
+     * @return Field name
+     */
+    public String getValueField() {
+        return valueField;
+    }
+
+    private Object id(List<Object> key) {
+        if (key.size() == 1) return key.get(0);
+        BasicDBObject id = new BasicDBObject();
+        for (int i = 0; i < key.size(); i++) {
+            id.append(keyFields == null ? String.valueOf(i) : keyFields[i], key.get(i));
+        }
+        return id;
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.mappers;
+
+/**
+ * A row mapper that only reads a few fields of the stored documents. Map states decode just
+ * those fields from the raw BSON and pass a {@link io.hipstogram.trident.mongodb.collection.ProjectedDBObject}
+ * to {@link #getValue}, whose first values are the declared fields in order, so they can be
+ * read by position: <code>(Long) ((ProjectedDBObject) doc).get(0)</code>.
+ * @param <K> Key type
+ * @param <V> Value type
+ * @author Andrés Sánchez
+ */
+public interface ProjectedRowMapper<K, V> extends MongoDBRowMapper<K, V>
+{
+    /**
+     * Get the fields read by getValue
+     * @return Top-level or dotted field names, dotted ones only reach into embedded documents
+     */
+    public String[] getFields();
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.metrics;
+
+import backtype.storm.metric.api.MultiCountMetric;
+import backtype.storm.task.IMetricsContext;
+import io.hipstogram.trident.mongodb.collection.WriteCounts;
+
+/**
+ * Metrics of the bulk writes of a state: latency, size in operations and bytes, and the
+ * inserted, matched, modified and upserted counts. Safe to record from several threads.
+ * @author Andrés Sánchez
+ */
+public class BulkMetrics
+{
+    // Bulk execution time in microseconds
+    private final HistogramMetric latency = new HistogramMetric();
+
+    // Operations per bulk
+    private final HistogramMetric operations = new HistogramMetric();
+
+    // Estimated bytes per bulk
+    private final HistogramMetric bytes = new HistogramMetric();
+
+    // Document counts reported by the server, reset under the same lock they are recorded
+    private final MultiCountMetric results = new MultiCountMetric() {
+        @Override
+        public synchronized Object getValueAndReset() {
+            return super.getValueAndReset();
+        }
+    };
+
+    /**
+     * Register the metrics in Storm
+     * @param context Metrics context
+     * @param bucketSize Time bucket size in seconds
+     */
+    public void register(IMetricsContext context, int bucketSize) {
+        context.registerMetric("mongodb/bulkLatency", latency, bucketSize);
+        context.registerMetric("mongodb/bulkOperations", operations, bucketSize);
+        context.registerMetric("mongodb/bulkBytes", bytes, bucketSize);
+        context.registerMetric("mongodb/bulkResults", results, bucketSize);
+    }
+
+    /**
+     * Record an executed bulk
+     * @param operationCount Number of operations
+     * @param byteCount Estimated size in bytes
+     * @param startNanos Start time from System.nanoTime()
+     * @param counts Counts reported by the server
+     */
+    public void record(int operationCount, long byteCount, long startNanos, WriteCounts counts) {
+        latency.recordSince(startNanos);
+        operations.record(operationCount);
+        bytes.record(byteCount);
+        synchronized (results) {
+            results.scope("inserted").incrBy(counts.getInserted());
+            results.scope("matched").incrBy(counts.getMatched());
+            results.scope("upserted").incrBy(counts.getUpserted());
+            if (counts.getModified() >= 0) {
+                results.scope("modified").incrBy(counts.getModified());
+            }
+        }
+    }
+}
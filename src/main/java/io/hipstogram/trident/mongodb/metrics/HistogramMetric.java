@@ -0,0 +1,129 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.metrics;
+
+import backtype.storm.metric.api.IMetric;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Storm metric publishing the distribution of the values recorded since the last report:
+ * count, mean, p50, p99, p999 and max. Values go into HDR-style log-linear buckets with
+ * 64 sub-buckets per power of two, so percentiles are within 1.6% of the recorded values
+ * whatever their magnitude. Recording is lock-free and safe from any thread.
+ * @author Andrés Sánchez
+ */
+public class HistogramMetric implements IMetric
+{
+    // Sub-buckets per power of two, as a number of bits
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Values below this one get a bucket of their own
+    private static final long LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    // Enough buckets for any positive long
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    // Current recording period
+    private final AtomicReference<Period> current = new AtomicReference<Period>(new Period());
+
+    /**
+     * Record a value
+     * @param value A value, negative values are recorded as 0
+     */
+    public void record(long value) {
+        current.get().record(Math.max(0, value));
+    }
+
+    /**
+     * Record the time elapsed since a start time, in microseconds
+     * @param startNanos Start time from System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        Period period = current.getAndSet(new Period());
+        Map<String, Object> value = new HashMap<String, Object>();
+        long count = period.count.get();
+        value.put("count", count);
+        if (count > 0) {
+            value.put("mean", (double) period.sum.get() / count);
+            value.put("p50", period.percentile(count, 0.5));
+            value.put("p99", period.percentile(count, 0.99));
+            value.put("p999", period.percentile(count, 0.999));
+            value.put("max", period.max.get());
+        }
+        return value;
+    }
+
+    /**
+     * Get the bucket of a value
+     */
+    static int index(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (int) (LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + ((value >>> shift) - SUB_BUCKETS));
+    }
+
+    /**
+     * Get the highest value of a bucket
+     */
+    static long highest(int index) {
+        if (index < LINEAR_LIMIT) return index;
+        int shift = (int) ((index - LINEAR_LIMIT) / SUB_BUCKETS) + 1;
+        long sub = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        long highest = ((sub + 1) << shift) - 1;
+        return highest < 0 ? Long.MAX_VALUE : highest;
+    }
+
+    /**
+     * Values recorded in a reporting period
+     */
+    private static class Period {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            counts.incrementAndGet(index(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long previous;
+            while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+                // Retry until this value is stored or a bigger one is
+            }
+        }
+
+        long percentile(long total, double percentile) {
+            long rank = Math.max(1, (long) Math.ceil(total * percentile));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(highest(i), max.get());
+            }
+            return max.get();
+        }
+    }
+}
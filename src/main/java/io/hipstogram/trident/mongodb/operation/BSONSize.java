@@ -0,0 +1,125 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.operation;
+
+import org.bson.BSONObject;
+import org.bson.types.*;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Computes the encoded BSON size of documents without encoding them
+ * @author Andrés Sánchez
+ */
+public class BSONSize
+{
+    private BSONSize() {}
+
+    /**
+     * Get the encoded size of a document
+     * @param doc A document, may be null
+     * @return Size in bytes, 0 for null
+     */
+    public static int of(BSONObject doc) {
+        if (doc == null) return 0;
+        if (doc instanceof List) return ofList((List<?>) doc);
+        int size = 5;
+        for (String key : doc.keySet()) size += ofElement(key, doc.get(key));
+        return size;
+    }
+
+    private static int ofMap(Map<?, ?> map) {
+        int size = 5;
+        for (Map.Entry<?, ?> entry : map.entrySet()) size += ofElement(String.valueOf(entry.getKey()), entry.getValue());
+        return size;
+    }
+
+    private static int ofList(List<?> list) {
+        int size = 5;
+        for (int i = 0; i < list.size(); i++) size += ofElement(String.valueOf(i), list.get(i));
+        return size;
+    }
+
+    private static int ofArray(Object[] array) {
+        int size = 5;
+        for (int i = 0; i < array.length; i++) size += ofElement(String.valueOf(i), array[i]);
+        return size;
+    }
+
+    /**
+     * Size of an element: type byte, key as cstring and value
+     */
+    private static int ofElement(String key, Object value) {
+        return 1 + utf8Length(key) + 1 + ofValue(value);
+    }
+
+    /**
+     * Size of a value, without its type byte and name
+     */
+    static int ofValue(Object value) {
+        if (value == null || value instanceof MinKey || value instanceof MaxKey) return 0;
+        if (value instanceof Boolean) return 1;
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) return 4;
+        if (value instanceof Number || value instanceof Date || value instanceof BSONTimestamp) return 8;
+        if (value instanceof String || value instanceof Symbol || value instanceof Code && !(value instanceof CodeWScope)) {
+            return 4 + utf8Length(value instanceof Code ? ((Code) value).getCode() : value.toString()) + 1;
+        }
+        if (value instanceof CodeWScope) {
+            return 4 + 4 + utf8Length(((CodeWScope) value).getCode()) + 1 + of(((CodeWScope) value).getScope());
+        }
+        if (value instanceof ObjectId) return 12;
+        if (value instanceof BSONObject) return of((BSONObject) value);
+        if (value instanceof Map) return ofMap((Map<?, ?>) value);
+        if (value instanceof List) return ofList((List<?>) value);
+        if (value instanceof Object[]) return ofArray((Object[]) value);
+        if (value instanceof byte[]) return 4 + 1 + ((byte[]) value).length;
+        if (value instanceof Binary) return 4 + 1 + ((Binary) value).length();
+        if (value instanceof UUID) return 4 + 1 + 16;
+        if (value instanceof Pattern) return utf8Length(((Pattern) value).pattern()) + 1 + 4;
+        if (value instanceof Iterable) {
+            int size = 5;
+            int i = 0;
+            for (Object element : (Iterable<?>) value) size += ofElement(String.valueOf(i++), element);
+            return size;
+        }
+        return 4 + utf8Length(value.toString()) + 1;
+    }
+
+    /**
+     * Number of bytes of a string encoded as UTF-8
+     */
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -53,6 +53,14 @@ public abstract class CRUDOperation
         this.type = type;
     }
 
+    /**
+     * Get the estimated encoded size of this operation
+     * @return Size in bytes, 0 if unknown
+     */
+    public int getSize() {
+        return 0;
+    }
+
     /**
      * Add this operation to a bulk operation
      * @param bulk Bulk operation
@@ -36,6 +36,19 @@ public class Insert extends CRUDOperation
         this.dbObject = dbObject;
     }
 
+    /**
+     * Get Insert statement
+     * @return Insert statement
+     */
+    public BasicDBObject getDocument() {
+        return dbObject;
+    }
+
+    @Override
+    public int getSize() {
+        return BSONSize.of(dbObject);
+    }
+
     @Override
     public void addToBulkOperation(BulkWriteOperation bulk) {
         bulk.insert(dbObject);
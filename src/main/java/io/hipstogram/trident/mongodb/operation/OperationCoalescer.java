@@ -0,0 +1,262 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * Merges repeated updates and upserts on the same query document into a single operation.
+ * $inc values are added up, $set is last-writer-wins and $addToSet/$push lists are
+ * concatenated. Only the $setOnInsert of the first upsert is kept: the later ones find the
+ * document it inserted. Operations that cannot be merged (inserts, other
+ * operators, replacement documents or fields touched by different operators) are kept as they
+ * are and close the merge of their query, so the outcome for every document stays the same.
+ * Different query documents are assumed to address different documents. Updates and upserts
+ * bound from templates are turned into plain ones to be merged.
+ * @author Andrés Sánchez
+ */
+public class OperationCoalescer
+{
+    // Supported update operators
+    private static final String INC = "$inc";
+    private static final String SET = "$set";
+    private static final String SET_ON_INSERT = "$setOnInsert";
+    private static final String ADD_TO_SET = "$addToSet";
+    private static final String PUSH = "$push";
+    private static final String EACH = "$each";
+    private static final Set<String> OPERATORS = new HashSet<String>(Arrays.asList(INC, SET, SET_ON_INSERT, ADD_TO_SET, PUSH));
+
+    private OperationCoalescer() {}
+
+    /**
+     * Coalesce a list of operations
+     * @param operations Operations, in execution order
+     * @return Equivalent operations, at most one update or upsert per query and run
+     */
+    public static List<CRUDOperation> coalesce(List<CRUDOperation> operations) {
+        List<Object> slots = new ArrayList<Object>(operations.size());
+        Map<BasicDBObject, Merge> open = new HashMap<BasicDBObject, Merge>();
+
+        for (CRUDOperation operation : operations) {
+            if (operation instanceof TemplateOperation && operation.getType() != CRUDOperation.Type.INSERT) {
+                operation = ((TemplateOperation) operation).toOperation();
+            }
+            BasicDBObject query = null;
+            BasicDBObject statement = null;
+            if (operation instanceof Upsert) {
+                query = ((Upsert) operation).getQuery();
+                statement = ((Upsert) operation).getStatement();
+            } else if (operation instanceof Update) {
+                query = ((Update) operation).getQuery();
+                statement = ((Update) operation).getStatement();
+            }
+
+            if (query == null || statement == null || !isMergeable(statement)) {
+                if (query != null) open.remove(query);
+                slots.add(operation);
+                continue;
+            }
+
+            Merge merge = open.get(query);
+            if (merge == null || merge.type != operation.getType() || !merge.add(statement)) {
+                merge = new Merge(operation.getType(), query);
+                if (merge.add(statement)) {
+                    open.put(query, merge);
+                    slots.add(merge);
+                } else {
+                    open.remove(query);
+                    slots.add(operation);
+                }
+            }
+        }
+
+        List<CRUDOperation> coalesced = new ArrayList<CRUDOperation>(slots.size());
+        for (Object slot : slots) {
+            coalesced.add(slot instanceof Merge ? ((Merge) slot).toOperation() : (CRUDOperation) slot);
+        }
+        return coalesced;
+    }
+
+    /**
+     * Check whether an update statement only uses operators this class knows how to merge
+     */
+    private static boolean isMergeable(BasicDBObject statement) {
+        if (statement.isEmpty()) return false;
+        for (String operator : statement.keySet()) {
+            if (!OPERATORS.contains(operator)) return false;
+            Object fields = statement.get(operator);
+            if (!(fields instanceof DBObject) || fields instanceof List) return false;
+            DBObject values = (DBObject) fields;
+            for (String field : values.keySet()) {
+                Object value = values.get(field);
+                if (INC.equals(operator) && !(value instanceof Number)) return false;
+                if ((ADD_TO_SET.equals(operator) || PUSH.equals(operator)) && elements(value) == null) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the elements added by an $addToSet/$push value
+     * @return The elements, or null if the value uses modifiers other than $each
+     */
+    private static List<Object> elements(Object value) {
+        if (value instanceof DBObject && !(value instanceof List)) {
+            DBObject modifiers = (DBObject) value;
+            Set<String> keys = modifiers.keySet();
+            boolean hasModifiers = false;
+            for (String key : keys) if (key.startsWith("$")) hasModifiers = true;
+            if (hasModifiers) {
+                if (keys.size() != 1 || !(modifiers.get(EACH) instanceof List)) return null;
+                return new ArrayList<Object>((List<?>) modifiers.get(EACH));
+            }
+        }
+        List<Object> elements = new ArrayList<Object>(1);
+        elements.add(value);
+        return elements;
+    }
+
+    /**
+     * Add two $inc values, keeping integer types when possible
+     */
+    private static Number sum(Number a, Number b) {
+        if (isIntegral(a) && isIntegral(b)) {
+            long sum = a.longValue() + b.longValue();
+            if (a instanceof Long || b instanceof Long || sum != (int) sum) return sum;
+            return (int) sum;
+        }
+        return a.doubleValue() + b.doubleValue();
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    /**
+     * Check whether two field paths overlap, e.g. "a" and "a.b"
+     */
+    private static boolean overlaps(String a, String b) {
+        return a.equals(b) || a.startsWith(b + ".") || b.startsWith(a + ".");
+    }
+
+    /**
+     * A merged update or upsert
+     */
+    private static class Merge {
+        private final CRUDOperation.Type type;
+        private final BasicDBObject query;
+
+        // Merged values per operator
+        private final Map<String, LinkedHashMap<String, Object>> operators = new LinkedHashMap<String, LinkedHashMap<String, Object>>();
+
+        // Operator that owns every touched field
+        private final Map<String, String> owners = new HashMap<String, String>();
+
+        Merge(CRUDOperation.Type type, BasicDBObject query) {
+            this.type = type;
+            this.query = query;
+        }
+
+        /**
+         * Merge a statement into this operation
+         * @return False if it conflicts with the merged statements, which are left untouched
+         */
+        boolean add(BasicDBObject statement) {
+            if (!operators.isEmpty() && statement.containsField(SET_ON_INSERT)) {
+                // The document exists once the first statement ran, so this one inserts nothing
+                statement = new BasicDBObject(statement);
+                statement.removeField(SET_ON_INSERT);
+                if (statement.isEmpty()) return true;
+            }
+            for (String operator : statement.keySet()) {
+                DBObject fields = (DBObject) statement.get(operator);
+                for (String field : fields.keySet()) {
+                    String owner = owners.get(field);
+                    if (owner != null) {
+                        if (!owner.equals(operator)) return false;
+                        continue;
+                    }
+                    for (String touched : owners.keySet()) {
+                        if (overlaps(field, touched)) return false;
+                    }
+                    for (String other : statement.keySet()) {
+                        if (other.equals(operator)) continue;
+                        for (String otherField : ((DBObject) statement.get(other)).keySet()) {
+                            if (overlaps(field, otherField)) return false;
+                        }
+                    }
+                }
+            }
+
+            for (String operator : statement.keySet()) {
+                DBObject fields = (DBObject) statement.get(operator);
+                LinkedHashMap<String, Object> merged = operators.get(operator);
+                if (merged == null) {
+                    merged = new LinkedHashMap<String, Object>();
+                    operators.put(operator, merged);
+                }
+                for (String field : fields.keySet()) {
+                    Object value = fields.get(field);
+                    Object previous = merged.get(field);
+                    owners.put(field, operator);
+                    if (previous == null && !merged.containsKey(field)) {
+                        merged.put(field, (ADD_TO_SET.equals(operator) || PUSH.equals(operator)) ? elements(value) : value);
+                    } else if (INC.equals(operator)) {
+                        merged.put(field, sum((Number) previous, (Number) value));
+                    } else if (SET.equals(operator)) {
+                        merged.put(field, value);
+                    } else if (ADD_TO_SET.equals(operator) || PUSH.equals(operator)) {
+                        @SuppressWarnings("unchecked")
+                        List<Object> list = (List<Object>) previous;
+                        list.addAll(elements(value));
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Build the merged operation
+         */
+        CRUDOperation toOperation() {
+            BasicDBObject statement = new BasicDBObject();
+            for (Map.Entry<String, LinkedHashMap<String, Object>> entry : operators.entrySet()) {
+                String operator = entry.getKey();
+                BasicDBObject fields = new BasicDBObject();
+                for (Map.Entry<String, Object> field : entry.getValue().entrySet()) {
+                    Object value = field.getValue();
+                    if (ADD_TO_SET.equals(operator) || PUSH.equals(operator)) {
+                        List<?> elements = (List<?>) value;
+                        if (elements.size() == 1) {
+                            value = elements.get(0);
+                        } else {
+                            BasicDBList each = new BasicDBList();
+                            each.addAll(elements);
+                            value = new BasicDBObject(EACH, each);
+                        }
+                    }
+                    fields.put(field.getKey(), value);
+                }
+                statement.put(operator, fields);
+            }
+            return type == CRUDOperation.Type.UPSERT ? new Upsert(query, statement) : new Update(query, statement);
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import org.bson.BSONObject;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * The shape of an insert, update or upsert declared once, with {@link #SLOT} placeholders for
+ * the values bound per operation:
+ * <pre>
+ * OperationTemplate template = OperationTemplate.upsert(
+ *         new BasicDBObject("_id", OperationTemplate.SLOT),
+ *         new BasicDBObject("$inc", new BasicDBObject("count", OperationTemplate.SLOT)));
+ * CRUDOperation operation = template.bind(key, count);
+ * </pre>
+ * Slots are numbered in declaration order, query first. Bound operations hold the bound values
+ * only: their documents are views over the shape, their size is computed without walking them
+ * and {@link TemplateEncoder} writes them with the constant parts already encoded. Slots may
+ * be nested in documents but not in arrays.
+ * @author Andrés Sánchez
+ */
+public class OperationTemplate
+{
+    // Placeholder for a bound value
+    public static final Object SLOT = new Object() {
+        @Override
+        public String toString() {
+            return "?";
+        }
+    };
+
+    // Operation type
+    private final CRUDOperation.Type type;
+
+    // Query or inserted document
+    private final Shape query;
+
+    // Update statement, null for inserts
+    private final Shape statement;
+
+    // Number of slots
+    private final int slotCount;
+
+    // Size of the documents without the slot values
+    private final int fixedSize;
+
+    private OperationTemplate(CRUDOperation.Type type, BSONObject query, BSONObject statement) {
+        this.type = type;
+        int[] slots = new int[1];
+        this.query = new Shape(query, slots);
+        this.statement = statement == null ? null : new Shape(statement, slots);
+        this.slotCount = slots[0];
+        this.fixedSize = this.query.fixedSize + (this.statement == null ? 0 : this.statement.fixedSize);
+    }
+
+    /**
+     * Declare an insert
+     * @param document Inserted document, with slots
+     * @return A template
+     */
+    public static OperationTemplate insert(BSONObject document) {
+        return new OperationTemplate(CRUDOperation.Type.INSERT, document, null);
+    }
+
+    /**
+     * Declare an update
+     * @param query Query, with slots
+     * @param statement Update statement, with slots
+     * @return A template
+     */
+    public static OperationTemplate update(BSONObject query, BSONObject statement) {
+        return new OperationTemplate(CRUDOperation.Type.UPDATE, query, statement);
+    }
+
+    /**
+     * Declare an upsert
+     * @param query Query, with slots
+     * @param statement Update statement, with slots
+     * @return A template
+     */
+    public static OperationTemplate upsert(BSONObject query, BSONObject statement) {
+        return new OperationTemplate(CRUDOperation.Type.UPSERT, query, statement);
+    }
+
+    /**
+     * Bind the slots of this template
+     * @param values One value per slot, in slot order. The array is kept, not copied.
+     * @return An operation
+     * @throws IllegalArgumentException If the number of values does not match
+     */
+    public TemplateOperation bind(Object... values) {
+        if (values.length != slotCount) {
+            throw new IllegalArgumentException("Template has " + slotCount + " slots, got " + values.length + " values");
+        }
+        return new TemplateOperation(this, values);
+    }
+
+    /**
+     * Get the operation type
+     * @return Insert, update or upsert
+     */
+    public CRUDOperation.Type getType() {
+        return type;
+    }
+
+    /**
+     * Get the number of slots
+     * @return Number of values to bind
+     */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    Shape getQuery() {
+        return query;
+    }
+
+    Shape getStatement() {
+        return statement;
+    }
+
+    /**
+     * Encoded size of the documents of a bound operation
+     */
+    int size(Object[] values) {
+        int size = fixedSize;
+        for (Object value : values) size += BSONSize.ofValue(value);
+        return size;
+    }
+
+    /**
+     * A compiled document: constant elements are encoded once, slots and sub-documents
+     * holding slots are resolved on every use
+     */
+    static class Shape {
+        // Encoding of BSON names
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        // Field names, in order
+        final String[] keys;
+
+        // Field names as cstrings
+        final byte[][] names;
+
+        // Slot of every field, -1 if it is not a slot
+        final int[] slots;
+
+        // Sub-document of every field holding slots, null otherwise
+        final Shape[] children;
+
+        // Value of every constant field
+        final Object[] constants;
+
+        // Encoded element (type, name and value) of every constant field
+        final byte[][] encoded;
+
+        // Field names, shared by every view
+        final Set<String> keySet;
+
+        // Size of the document without the slot values
+        final int fixedSize;
+
+        Shape(BSONObject doc, int[] nextSlot) {
+            int n = doc.keySet().size();
+            keys = doc.keySet().toArray(new String[n]);
+            names = new byte[n][];
+            slots = new int[n];
+            children = new Shape[n];
+            constants = new Object[n];
+            encoded = new byte[n][];
+            int size = 4 + 1;
+            for (int i = 0; i < n; i++) {
+                Object value = doc.get(keys[i]);
+                names[i] = cstring(keys[i]);
+                slots[i] = -1;
+                if (value == SLOT) {
+                    slots[i] = nextSlot[0]++;
+                    size += 1 + names[i].length;
+                } else if (value instanceof BSONObject && !(value instanceof List) && hasSlots((BSONObject) value)) {
+                    children[i] = new Shape((BSONObject) value, nextSlot);
+                    size += 1 + names[i].length + children[i].fixedSize;
+                } else {
+                    if (hasSlots(value)) {
+                        throw new IllegalArgumentException("Slots inside arrays are not supported: " + keys[i]);
+                    }
+                    constants[i] = value;
+                    encoded[i] = element(keys[i], value);
+                    size += encoded[i].length;
+                }
+            }
+            keySet = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(keys)));
+            fixedSize = size;
+        }
+
+        /**
+         * Find a field
+         * @return Field index, -1 if missing
+         */
+        int indexOf(String key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Build a plain document with the bound values
+         */
+        BasicDBObject materialize(Object[] values) {
+            BasicDBObject doc = new BasicDBObject();
+            for (int i = 0; i < keys.length; i++) {
+                if (slots[i] >= 0) {
+                    doc.put(keys[i], values[slots[i]]);
+                } else if (children[i] != null) {
+                    doc.put(keys[i], children[i].materialize(values));
+                } else {
+                    doc.put(keys[i], constants[i]);
+                }
+            }
+            return doc;
+        }
+
+        private static boolean hasSlots(Object value) {
+            if (value == SLOT) return true;
+            if (value instanceof BSONObject) {
+                BSONObject doc = (BSONObject) value;
+                for (String key : doc.keySet()) {
+                    if (hasSlots(doc.get(key))) return true;
+                }
+            } else if (value instanceof Iterable) {
+                for (Object element : (Iterable<?>) value) {
+                    if (hasSlots(element)) return true;
+                }
+            }
+            return false;
+        }
+
+        private static byte[] cstring(String s) {
+            byte[] bytes = s.getBytes(UTF8);
+            return Arrays.copyOf(bytes, bytes.length + 1);
+        }
+
+        /**
+         * Encode a single element: a one-field document without its length and terminator
+         */
+        private static byte[] element(String key, Object value) {
+            DBObject doc = new BasicDBObject(key, value);
+            byte[] bytes = new DefaultDBEncoder().encode(doc);
+            return Arrays.copyOfRange(bytes, 4, bytes.length - 1);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+import io.hipstogram.trident.mongodb.collection.Documents;
+import io.hipstogram.trident.mongodb.collection.QueryMatcher;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A set of equality queries that can be sent to MongoDB as a few merged queries.
+ * Queries with a single common field are merged with $in, any other shape with $or.
+ * Returned documents are matched back to the original queries by the values of the
+ * queried fields, so only plain equality queries (no operators) can be batched. Values are
+ * compared as MongoDB compares them; documents with arrays on a queried path are matched
+ * with {@link QueryMatcher}, as the server matches any of their elements.
+ * @author Andrés Sánchez
+ */
+public class QueryBatch
+{
+    // Original queries
+    private List<Query> queries;
+
+    // Queried fields of every query, in query order
+    private List<List<String>> shapes = new ArrayList<List<String>>();
+
+    // Queries by shape and signature, in query order
+    private Map<List<String>, Map<List<Object>, List<Integer>>> index = new LinkedHashMap<List<String>, Map<List<Object>, List<Integer>>>();
+
+    /**
+     * Create a new batch of queries
+     * @param queries Equality queries, see {@link #canBatch(Query)}
+     */
+    public QueryBatch(List<Query> queries) {
+        this.queries = queries;
+        for (Query query : queries) {
+            if (!canBatch(query)) {
+                throw new IllegalArgumentException("Query cannot be batched: " + query.getQuery());
+            }
+            List<String> shape = new ArrayList<String>(query.getQuery().keySet());
+            List<Object> signature = signature(query.getQuery(), shape);
+            shapes.add(shape);
+
+            Map<List<Object>, List<Integer>> bySignature = index.get(shape);
+            if (bySignature == null) {
+                bySignature = new HashMap<List<Object>, List<Integer>>();
+                index.put(shape, bySignature);
+            }
+            List<Integer> indexes = bySignature.get(signature);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>(1);
+                bySignature.put(signature, indexes);
+            }
+            indexes.add(shapes.size() - 1);
+        }
+    }
+
+    /**
+     * Check whether a query can be merged with others
+     * @param query A query
+     * @return True if every condition of the query is a plain equality, without regular expressions
+     */
+    public static boolean canBatch(Query query) {
+        BasicDBObject q = query.getQuery();
+        if (q == null || q.isEmpty()) return false;
+        for (String field : q.keySet()) {
+            if (field.startsWith("$")) return false;
+            Object value = q.get(field);
+            if (value instanceof Pattern) return false;
+            if (value instanceof DBObject && !(value instanceof List)) {
+                for (String inner : ((DBObject) value).keySet()) {
+                    if (inner.startsWith("$")) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of queries in this batch
+     * @return Number of queries
+     */
+    public int size() {
+        return queries.size();
+    }
+
+    /**
+     * Get the fields queried by any query of this batch, which results must keep to be matched
+     * @return Queried fields
+     */
+    public Set<String> getFields() {
+        Set<String> fields = new LinkedHashSet<String>();
+        for (List<String> shape : index.keySet()) fields.addAll(shape);
+        return fields;
+    }
+
+    /**
+     * Merge a range of queries into a single query
+     * @param from First query (inclusive)
+     * @param to Last query (exclusive)
+     * @return A query matching every document of the range
+     */
+    public Query merge(int from, int to) {
+        BasicDBObject merged;
+        List<String> shape = shapes.get(from);
+        if (shape.size() == 1 && sameShape(from, to)) {
+            BasicDBList values = new BasicDBList();
+            for (int i = from; i < to; i++) values.add(queries.get(i).getQuery().get(shape.get(0)));
+            merged = new BasicDBObject(shape.get(0), new BasicDBObject(QueryOperators.IN, values));
+        } else {
+            BasicDBList clauses = new BasicDBList();
+            for (int i = from; i < to; i++) clauses.add(queries.get(i).getQuery());
+            merged = new BasicDBObject(QueryOperators.OR, clauses);
+        }
+        return new Query(merged, projection(from, to));
+    }
+
+    /**
+     * Find which queries of a range a document answers
+     * @param doc A document returned by the merged query
+     * @param from First query (inclusive)
+     * @param to Last query (exclusive)
+     * @return Indexes of the matching queries
+     */
+    public List<Integer> match(DBObject doc, int from, int to) {
+        List<Integer> matches = new ArrayList<Integer>(1);
+        for (Map.Entry<List<String>, Map<List<Object>, List<Integer>>> entry : index.entrySet()) {
+            List<String> shape = entry.getKey();
+            if (hasArray(doc, shape)) {
+                for (int i = from; i < to; i++) {
+                    if (shape.equals(shapes.get(i)) && QueryMatcher.matches(doc, queries.get(i).getQuery())) matches.add(i);
+                }
+                continue;
+            }
+            List<Integer> indexes = entry.getValue().get(signature(doc, shape));
+            if (indexes == null) continue;
+            for (int i : indexes) {
+                if (i >= from && i < to) matches.add(i);
+            }
+        }
+        if (index.size() > 1) Collections.sort(matches);
+        return matches;
+    }
+
+    /**
+     * Check whether every query in a range queries the same fields
+     */
+    private boolean sameShape(int from, int to) {
+        List<String> shape = shapes.get(from);
+        for (int i = from + 1; i < to; i++) {
+            if (!shape.equals(shapes.get(i))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Build a projection that keeps the queried fields, so results can be matched
+     */
+    private BasicDBObject projection(int from, int to) {
+        BasicDBObject original = queries.get(from).getProjection();
+        if (original == null) return null;
+
+        BasicDBObject projection = new BasicDBObject(original);
+        boolean inclusive = false;
+        for (String field : original.keySet()) {
+            if (!"_id".equals(field) && isIncluded(original.get(field))) inclusive = true;
+        }
+        for (int i = from; i < to; i++) {
+            for (String field : shapes.get(i)) {
+                if (inclusive) {
+                    projection.put(field, 1);
+                } else if (projection.containsField(field)) {
+                    projection.removeField(field);
+                }
+            }
+        }
+        if (inclusive && projection.containsField("_id") && !isIncluded(projection.get("_id"))) {
+            for (int i = from; i < to; i++) {
+                if (shapes.get(i).contains("_id")) {
+                    projection.removeField("_id");
+                    break;
+                }
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Check whether a projection value includes its field
+     */
+    private static boolean isIncluded(Object value) {
+        if (value instanceof Boolean) return (Boolean) value;
+        if (value instanceof Number) return ((Number) value).doubleValue() != 0;
+        return true;
+    }
+
+    /**
+     * Extract the normalized values of some fields of a document
+     */
+    private static List<Object> signature(DBObject doc, List<String> fields) {
+        List<Object> values = new ArrayList<Object>(fields.size());
+        for (String field : fields) values.add(Documents.normalize(extract(doc, field)));
+        return values;
+    }
+
+    /**
+     * Check whether any of some fields of a document is an array or crosses one
+     */
+    private static boolean hasArray(DBObject doc, List<String> fields) {
+        for (String field : fields) {
+            if (doc.containsField(field)) {
+                if (doc.get(field) instanceof List) return true;
+                continue;
+            }
+            Object current = doc;
+            for (String part : field.split("\\.")) {
+                if (current instanceof List) return true;
+                if (!(current instanceof DBObject)) break;
+                current = ((DBObject) current).get(part);
+            }
+            if (current instanceof List) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the value of a (possibly dotted) field of a document
+     */
+    private static Object extract(DBObject doc, String field) {
+        if (doc.containsField(field)) return doc.get(field);
+        Object current = doc;
+        for (String part : field.split("\\.")) {
+            if (!(current instanceof DBObject)) return null;
+            current = ((DBObject) current).get(part);
+        }
+        return current;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only document view of a template shape with bound values. Reading it allocates
+ * nothing but the views of its sub-documents holding slots. The only field that can be put
+ * is an _id missing from the shape, as the driver does before inserting a document.
+ * @author Andrés Sánchez
+ */
+class TemplateDocument implements DBObject
+{
+    // Compiled document
+    private final OperationTemplate.Shape shape;
+
+    // Bound values of the whole operation
+    private final Object[] values;
+
+    // _id put in a document whose shape has none, null until then
+    private Object id;
+
+    TemplateDocument(OperationTemplate.Shape shape, Object[] values) {
+        this.shape = shape;
+        this.values = values;
+    }
+
+    OperationTemplate.Shape getShape() {
+        return shape;
+    }
+
+    Object[] getValues() {
+        return values;
+    }
+
+    Object getId() {
+        return id;
+    }
+
+    @Override
+    public Object get(String key) {
+        if (id != null && "_id".equals(key)) return id;
+        int i = shape.indexOf(key);
+        if (i < 0) return null;
+        if (shape.slots[i] >= 0) return values[shape.slots[i]];
+        if (shape.children[i] != null) return new TemplateDocument(shape.children[i], values);
+        return shape.constants[i];
+    }
+
+    @Override
+    public boolean containsField(String s) {
+        return shape.indexOf(s) >= 0 || (id != null && "_id".equals(s));
+    }
+
+    @Override
+    @Deprecated
+    public boolean containsKey(String s) {
+        return containsField(s);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        if (id == null) return shape.keySet;
+        Set<String> keys = new LinkedHashSet<String>();
+        keys.add("_id");
+        keys.addAll(shape.keySet);
+        return keys;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Map toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        for (String key : keySet()) map.put(key, get(key));
+        return map;
+    }
+
+    @Override
+    public Object put(String key, Object v) {
+        if ("_id".equals(key) && v != null && id == null && shape.indexOf(key) < 0) {
+            id = v;
+            return null;
+        }
+        throw new UnsupportedOperationException("Bound template documents are read-only");
+    }
+
+    @Override
+    public void putAll(BSONObject o) {
+        throw new UnsupportedOperationException("Bound template documents are read-only");
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void putAll(Map m) {
+        throw new UnsupportedOperationException("Bound template documents are read-only");
+    }
+
+    @Override
+    public Object removeField(String key) {
+        throw new UnsupportedOperationException("Bound template documents are read-only");
+    }
+
+    @Override
+    public void markAsPartialObject() {
+    }
+
+    @Override
+    public boolean isPartialObject() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return JSON.serialize(this);
+    }
+}
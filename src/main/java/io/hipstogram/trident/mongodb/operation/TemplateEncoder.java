@@ -0,0 +1,96 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.DBEncoder;
+import com.mongodb.DBEncoderFactory;
+import com.mongodb.DefaultDBEncoder;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.io.OutputBuffer;
+
+/**
+ * Driver encoder writing bound template documents straight to BSON: constant elements are
+ * copied already encoded and only slot values are encoded. Any other document is encoded
+ * as the default encoder does. An _id put in a bound document is written first. Driver collections pass it to the inserts of bulks made only of
+ * inserts; the driver bulk API always uses the collection encoder, and update commands the default one.
+ * @author Andrés Sánchez
+ */
+public class TemplateEncoder extends DefaultDBEncoder
+{
+    // Factory for driver collections
+    public static final DBEncoderFactory FACTORY = new DBEncoderFactory() {
+        public DBEncoder create() {
+            return new TemplateEncoder();
+        }
+    };
+
+    @Override
+    public int writeObject(OutputBuffer buf, BSONObject o) {
+        if (!(o instanceof TemplateDocument)) {
+            return super.writeObject(buf, o);
+        }
+        set(buf);
+        try {
+            int start = buf.getPosition();
+            TemplateDocument doc = (TemplateDocument) o;
+            write(buf, doc.getShape(), doc.getValues(), doc.getId());
+            return buf.getPosition() - start;
+        } finally {
+            done();
+        }
+    }
+
+    @Override
+    protected int putObject(String name, BSONObject o) {
+        if (!(o instanceof TemplateDocument)) {
+            return super.putObject(name, o);
+        }
+        OutputBuffer buf = getOutputBuffer();
+        int start = buf.getPosition();
+        buf.write(BSON.OBJECT);
+        buf.writeCString(name);
+        TemplateDocument doc = (TemplateDocument) o;
+        write(buf, doc.getShape(), doc.getValues(), doc.getId());
+        return buf.getPosition() - start;
+    }
+
+    /**
+     * Write a document of a bound template
+     * @param id _id missing from the shape, null for none
+     */
+    private void write(OutputBuffer buf, OperationTemplate.Shape shape, Object[] values, Object id) {
+        int start = buf.getPosition();
+        buf.writeInt(0);
+        if (id != null) {
+            _putObjectField("_id", id);
+        }
+        for (int i = 0; i < shape.keys.length; i++) {
+            if (shape.encoded[i] != null) {
+                buf.write(shape.encoded[i]);
+            } else if (shape.children[i] != null) {
+                buf.write(BSON.OBJECT);
+                buf.write(shape.names[i]);
+                write(buf, shape.children[i], values, null);
+            } else {
+                _putObjectField(shape.keys[i], values[shape.slots[i]]);
+            }
+        }
+        buf.write(BSON.EOO);
+        buf.backpatchSize(buf.getPosition() - start);
+    }
+}
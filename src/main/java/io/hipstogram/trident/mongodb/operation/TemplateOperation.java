@@ -0,0 +1,105 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+
+/**
+ * An operation bound from an {@link OperationTemplate}
+ * @author Andrés Sánchez
+ */
+public class TemplateOperation extends CRUDOperation
+{
+    // Template
+    private final OperationTemplate template;
+
+    // Bound values, in slot order
+    private final Object[] values;
+
+    TemplateOperation(OperationTemplate template, Object[] values) {
+        super(template.getType());
+        this.template = template;
+        this.values = values;
+    }
+
+    /**
+     * Get the template
+     * @return Template
+     */
+    public OperationTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * Get the bound values
+     * @return Values, in slot order
+     */
+    public Object[] getValues() {
+        return values;
+    }
+
+    /**
+     * Get the query, or the document for inserts
+     * @return A read-only view
+     */
+    public DBObject getQuery() {
+        return new TemplateDocument(template.getQuery(), values);
+    }
+
+    /**
+     * Get the update statement
+     * @return A read-only view, null for inserts
+     */
+    public DBObject getStatement() {
+        return template.getStatement() == null ? null : new TemplateDocument(template.getStatement(), values);
+    }
+
+    /**
+     * Build the equivalent plain operation
+     * @return An insert, update or upsert with its own documents
+     */
+    public CRUDOperation toOperation() {
+        switch (getType()) {
+            case INSERT:
+                return new Insert(template.getQuery().materialize(values));
+            case UPDATE:
+                return new Update(template.getQuery().materialize(values), template.getStatement().materialize(values));
+            default:
+                return new Upsert(template.getQuery().materialize(values), template.getStatement().materialize(values));
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return template.size(values);
+    }
+
+    @Override
+    public void addToBulkOperation(BulkWriteOperation bulk) {
+        switch (getType()) {
+            case INSERT:
+                bulk.insert(getQuery());
+                break;
+            case UPDATE:
+                bulk.find(getQuery()).update(getStatement());
+                break;
+            default:
+                bulk.find(getQuery()).upsert().update(getStatement());
+        }
+    }
+}
@@ -41,6 +41,27 @@ public class Update extends CRUDOperation
         this.statement = statement;
     }
 
+    /**
+     * Get Update query
+     * @return Update query
+     */
+    public BasicDBObject getQuery() {
+        return query;
+    }
+
+    /**
+     * Get Update statement
+     * @return Update statement
+     */
+    public BasicDBObject getStatement() {
+        return statement;
+    }
+
+    @Override
+    public int getSize() {
+        return BSONSize.of(query) + BSONSize.of(statement);
+    }
+
     @Override
     public void addToBulkOperation(BulkWriteOperation bulk) {
         bulk.find(query).update(statement);
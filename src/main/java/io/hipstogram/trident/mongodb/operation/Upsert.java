@@ -41,6 +41,27 @@ public class Upsert extends CRUDOperation
         this.statement = statement;
     }
 
+    /**
+     * Get Upsert query
+     * @return Upsert query
+     */
+    public BasicDBObject getQuery() {
+        return query;
+    }
+
+    /**
+     * Get Upsert statement
+     * @return Upsert statement
+     */
+    public BasicDBObject getStatement() {
+        return statement;
+    }
+
+    @Override
+    public int getSize() {
+        return BSONSize.of(query) + BSONSize.of(statement);
+    }
+
     @Override
     public void addToBulkOperation(BulkWriteOperation bulk) {
         bulk.find(query).upsert().update(statement);
@@ -0,0 +1,308 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.tracing;
+
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Insert;
+import io.hipstogram.trident.mongodb.operation.TemplateOperation;
+import io.hipstogram.trident.mongodb.operation.Update;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import org.bson.BSONObject;
+
+import java.util.*;
+
+/**
+ * Timings of a single batch of a state, from beginCommit to commit. Every phase keeps its
+ * count, total and maximum time, and MongoDB calls are also grouped by query shape (the query
+ * with its values left out) so the slowest shapes can be reported. Safe to record from the
+ * worker threads of sliced and pipelined calls.
+ * @author Andrés Sánchez
+ */
+public class BatchTrace
+{
+    // Number of query shapes reported
+    private static final int SLOWEST_SHAPES = 5;
+
+    // Traced state
+    private final String state;
+
+    // Partition of the state
+    private final int partition;
+
+    // Transaction id, null for non-transactional batches
+    private final Object txid;
+
+    // Thread that began the batch
+    private final Thread owner;
+
+    // Wall clock and monotonic start times
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    // Total time, set once the batch ends
+    private long elapsedNanos = -1;
+
+    // Timings by phase and by phase and query shape
+    private final Map<String, Timing> phases = new LinkedHashMap<String, Timing>();
+    private final Map<String, Timing> shapes = new HashMap<String, Timing>();
+
+    /**
+     * Create a new trace, owned by the calling thread
+     * @param state Traced state
+     * @param partition Partition of the state
+     * @param txid Transaction id, may be null
+     */
+    BatchTrace(String state, int partition, Object txid) {
+        this.state = state;
+        this.partition = partition;
+        this.txid = txid;
+        this.owner = Thread.currentThread();
+    }
+
+    /**
+     * Record the time spent in a phase
+     * @param phase Phase name
+     * @param nanos Elapsed time in nanoseconds
+     */
+    public synchronized void phase(String phase, long nanos) {
+        timing(phases, phase).add(nanos);
+    }
+
+    /**
+     * Record a MongoDB call of a phase
+     * @param phase Phase name
+     * @param query Query or first operation of the call
+     * @param nanos Elapsed time in nanoseconds
+     */
+    public synchronized void call(String phase, BSONObject query, long nanos) {
+        timing(phases, phase).add(nanos);
+        timing(shapes, phase + " " + shape(query)).add(nanos);
+    }
+
+    /**
+     * Record a bulk write of a phase, grouped by the type and query shape of its first operation
+     * @param phase Phase name
+     * @param operations Written operations
+     * @param nanos Elapsed time in nanoseconds
+     */
+    public synchronized void bulk(String phase, List<? extends CRUDOperation> operations, long nanos) {
+        timing(phases, phase).add(nanos);
+        String shape = "";
+        if (!operations.isEmpty()) {
+            CRUDOperation first = operations.get(0);
+            BSONObject query = null;
+            if (first instanceof Upsert) {
+                query = ((Upsert) first).getQuery();
+            } else if (first instanceof Update) {
+                query = ((Update) first).getQuery();
+            } else if (first instanceof Insert) {
+                query = ((Insert) first).getDocument();
+            } else if (first instanceof TemplateOperation) {
+                query = ((TemplateOperation) first).getQuery();
+            }
+            shape = " " + first.getType() + " " + shape(query);
+        }
+        timing(shapes, phase + shape).add(nanos);
+    }
+
+    /**
+     * End this trace
+     * @return Total time in nanoseconds
+     */
+    synchronized long end() {
+        if (elapsedNanos < 0) {
+            elapsedNanos = System.nanoTime() - startNanos;
+        }
+        return elapsedNanos;
+    }
+
+    /**
+     * Get the thread that began the batch
+     * @return Owner thread
+     */
+    Thread getOwner() {
+        return owner;
+    }
+
+    /**
+     * Get the transaction id
+     * @return Transaction id, may be null
+     */
+    public Object getTxid() {
+        return txid;
+    }
+
+    /**
+     * Get the partition of the traced state
+     * @return Partition index
+     */
+    public int getPartition() {
+        return partition;
+    }
+
+    /**
+     * Get the wall clock time the batch began
+     * @return Time in milliseconds since the epoch
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Get the breakdown of this batch as plain values: state, partition, txid, start time,
+     * total time and, for every phase and for the slowest query shapes, count, total and max
+     * @return Map of values, times in milliseconds
+     */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> value = new LinkedHashMap<String, Object>();
+        value.put("state", state);
+        value.put("partition", partition);
+        value.put("txid", txid);
+        value.put("start", startMillis);
+        value.put("totalMs", millis(elapsed()));
+        Map<String, Object> phaseValues = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Timing> entry : phases.entrySet()) {
+            phaseValues.put(entry.getKey(), entry.getValue().toMap());
+        }
+        value.put("phases", phaseValues);
+        Map<String, Object> shapeValues = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Timing> entry : slowest()) {
+            shapeValues.put(entry.getKey(), entry.getValue().toMap());
+        }
+        value.put("slowest", shapeValues);
+        return value;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder s = new StringBuilder();
+        s.append("state=").append(state).append(" partition=").append(partition).append(" txid=").append(txid);
+        s.append(" total=").append(format(elapsed())).append(" phases={");
+        String separator = "";
+        for (Map.Entry<String, Timing> entry : phases.entrySet()) {
+            s.append(separator).append(entry.getKey()).append(": ").append(entry.getValue());
+            separator = ", ";
+        }
+        s.append("} slowest={");
+        separator = "";
+        for (Map.Entry<String, Timing> entry : slowest()) {
+            s.append(separator).append(entry.getKey()).append(": ").append(entry.getValue());
+            separator = ", ";
+        }
+        return s.append("}").toString();
+    }
+
+    /**
+     * Get the shape of a query: its fields and operators, with every value replaced by "?"
+     * and every array by the shape of its first element, e.g. {_id: {$in: [?]}}
+     * @param query A query, may be null
+     * @return Shape of the query
+     */
+    public static String shape(BSONObject query) {
+        StringBuilder s = new StringBuilder();
+        appendShape(s, query);
+        return s.toString();
+    }
+
+    private static void appendShape(StringBuilder s, Object value) {
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            s.append('[');
+            if (!list.isEmpty()) appendShape(s, list.get(0));
+            s.append(']');
+        } else if (value instanceof BSONObject) {
+            BSONObject doc = (BSONObject) value;
+            s.append('{');
+            String separator = "";
+            for (String key : doc.keySet()) {
+                s.append(separator).append(key).append(": ");
+                appendShape(s, doc.get(key));
+                separator = ", ";
+            }
+            s.append('}');
+        } else {
+            s.append('?');
+        }
+    }
+
+    /**
+     * Total time, or the time elapsed so far for a running batch
+     */
+    private long elapsed() {
+        return elapsedNanos >= 0 ? elapsedNanos : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Query shapes with the highest total time
+     */
+    private List<Map.Entry<String, Timing>> slowest() {
+        List<Map.Entry<String, Timing>> entries = new ArrayList<Map.Entry<String, Timing>>(shapes.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Timing>>() {
+            public int compare(Map.Entry<String, Timing> a, Map.Entry<String, Timing> b) {
+                long x = a.getValue().total;
+                long y = b.getValue().total;
+                return x > y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return entries.size() > SLOWEST_SHAPES ? entries.subList(0, SLOWEST_SHAPES) : entries;
+    }
+
+    private static Timing timing(Map<String, Timing> timings, String name) {
+        Timing timing = timings.get(name);
+        if (timing == null) {
+            timing = new Timing();
+            timings.put(name, timing);
+        }
+        return timing;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private static String format(long nanos) {
+        return millis(nanos) + "ms";
+    }
+
+    /**
+     * Count, total and maximum time of a phase or shape
+     */
+    private static class Timing {
+        private long count;
+        private long total;
+        private long max;
+
+        void add(long nanos) {
+            count++;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> value = new LinkedHashMap<String, Object>();
+            value.put("count", count);
+            value.put("totalMs", millis(total));
+            value.put("maxMs", millis(max));
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return count == 1 ? format(total) : count + "x " + format(total) + " (max " + format(max) + ")";
+        }
+    }
+}
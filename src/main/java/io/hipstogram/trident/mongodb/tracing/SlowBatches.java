@@ -0,0 +1,102 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.tracing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Worker-wide MBean merging the slow batches of every tracer, registered as
+ * io.hipstogram.trident.mongodb:type=SlowBatches along with the first tracer
+ * @author Andrés Sánchez
+ */
+public class SlowBatches implements SlowBatchesMBean
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(SlowBatches.class);
+
+    // Name of the MBean
+    public static final String OBJECT_NAME = "io.hipstogram.trident.mongodb:type=SlowBatches";
+
+    // Tracers of the worker
+    private static final List<Tracer> tracers = new ArrayList<Tracer>();
+
+    private SlowBatches() {}
+
+    /**
+     * Add a tracer, registering the MBean on the first call
+     * @param tracer A tracer
+     */
+    static void register(Tracer tracer) {
+        synchronized (tracers) {
+            if (tracers.isEmpty()) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(new SlowBatches(), new ObjectName(OBJECT_NAME));
+                } catch (Exception e) {
+                    LOG.warn("Unable to register " + OBJECT_NAME, e);
+                }
+            }
+            tracers.add(tracer);
+        }
+    }
+
+    /**
+     * Get the slow batches of every tracer
+     * @return Slow batches, oldest first
+     */
+    public static List<BatchTrace> getAll() {
+        List<BatchTrace> all = new ArrayList<BatchTrace>();
+        synchronized (tracers) {
+            for (Tracer tracer : tracers) all.addAll(tracer.getSlowBatches());
+        }
+        Collections.sort(all, new Comparator<BatchTrace>() {
+            public int compare(BatchTrace a, BatchTrace b) {
+                long x = a.getStartMillis();
+                long y = b.getStartMillis();
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return all;
+    }
+
+    @Override
+    public int getCount() {
+        return getAll().size();
+    }
+
+    @Override
+    public String[] getSlowBatches() {
+        List<BatchTrace> all = getAll();
+        String[] lines = new String[all.size()];
+        for (int i = 0; i < lines.length; i++) lines[i] = all.get(i).toString();
+        return lines;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (tracers) {
+            for (Tracer tracer : tracers) tracer.clear();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.tracing;
+
+/**
+ * JMX view of the slow batches kept by the tracers of a worker
+ * @author Andrés Sánchez
+ */
+public interface SlowBatchesMBean
+{
+    /**
+     * Get the number of slow batches kept
+     * @return Number of slow batches
+     */
+    int getCount();
+
+    /**
+     * Get the breakdown of the slow batches kept
+     * @return One line per slow batch, oldest first
+     */
+    String[] getSlowBatches();
+
+    /**
+     * Forget every slow batch
+     */
+    void clear();
+}
@@ -0,0 +1,144 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.tracing;
+
+import backtype.storm.metric.api.IMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traces the batches of a state partition. A batch begins with the state beginCommit and ends
+ * with its commit; batches slower than the threshold are logged with their breakdown and kept
+ * in a ring buffer of the last slow batches. The buffer is published as a Storm metric, with
+ * the batches that went slow since the last report, and through the {@link SlowBatchesMBean}.
+ * States without tracing have no tracer at all, so the only cost is a null check.
+ * @author Andrés Sánchez
+ */
+public class Tracer implements IMetric
+{
+    // Logger
+    private static final Logger LOG = LoggerFactory.getLogger(Tracer.class);
+
+    // Traced state
+    private final String state;
+
+    // Partition of the state
+    private final int partition;
+
+    // Threshold for slow batches
+    private final long slowNanos;
+
+    // Maximum number of slow batches kept
+    private final int capacity;
+
+    // Batch in progress, null between batches
+    private volatile BatchTrace current;
+
+    // Last slow batches, oldest first
+    private final LinkedList<BatchTrace> slowBatches = new LinkedList<BatchTrace>();
+
+    // Slow batches not reported to Storm yet
+    private final List<BatchTrace> unreported = new ArrayList<BatchTrace>();
+
+    /**
+     * Create a new tracer and publish it through JMX
+     * @param state Traced state, e.g. the database and collection names
+     * @param partition Partition of the state
+     * @param slowMillis Batches taking at least this time are logged and kept
+     * @param capacity Maximum number of slow batches kept
+     */
+    public Tracer(String state, int partition, long slowMillis, int capacity) {
+        this.state = state;
+        this.partition = partition;
+        this.slowNanos = slowMillis * 1000000L;
+        this.capacity = Math.max(1, capacity);
+        SlowBatches.register(this);
+    }
+
+    /**
+     * Begin a batch on the calling thread. A batch that did not end is dropped.
+     * @param txid Transaction id, may be null
+     */
+    public void begin(Object txid) {
+        current = new BatchTrace(state, partition, txid);
+    }
+
+    /**
+     * Get the batch in progress
+     * @return The batch began by the calling thread, or null from any other thread
+     */
+    public BatchTrace current() {
+        BatchTrace trace = current;
+        return trace != null && trace.getOwner() == Thread.currentThread() ? trace : null;
+    }
+
+    /**
+     * End the batch in progress, logging and keeping it if it was slow
+     */
+    public void end() {
+        BatchTrace trace = current();
+        if (trace == null) {
+            return;
+        }
+        current = null;
+        if (trace.end() < slowNanos) {
+            return;
+        }
+        LOG.warn("Slow batch: {}", trace);
+        synchronized (slowBatches) {
+            slowBatches.addLast(trace);
+            if (slowBatches.size() > capacity) slowBatches.removeFirst();
+            unreported.add(trace);
+            if (unreported.size() > capacity) unreported.remove(0);
+        }
+    }
+
+    /**
+     * Get the last slow batches
+     * @return Slow batches, oldest first
+     */
+    public List<BatchTrace> getSlowBatches() {
+        synchronized (slowBatches) {
+            return new ArrayList<BatchTrace>(slowBatches);
+        }
+    }
+
+    /**
+     * Forget every slow batch
+     */
+    public void clear() {
+        synchronized (slowBatches) {
+            slowBatches.clear();
+            unreported.clear();
+        }
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        List<Map<String, Object>> value = new ArrayList<Map<String, Object>>();
+        synchronized (slowBatches) {
+            for (BatchTrace trace : unreported) value.add(trace.toMap());
+            unreported.clear();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.tracing;
+
+import storm.trident.state.ValueUpdater;
+import storm.trident.state.map.MapState;
+import storm.trident.state.map.SnapshottableMap;
+import storm.trident.state.snapshot.Snapshottable;
+
+import java.util.List;
+
+/**
+ * Map state delimiting the traced batches of the backing map, which never sees the
+ * transaction ids. The time of every call includes the caches in front of the backing map.
+ * @param <T> Value type
+ * @author Andrés Sánchez
+ */
+public class TracingMapState<T> implements MapState<T>, Snapshottable<T>
+{
+    // Traced map state
+    private final SnapshottableMap<T> delegate;
+
+    // Tracer of the backing map
+    private final Tracer tracer;
+
+    /**
+     * Create a new tracing map state
+     * @param delegate Traced map state
+     * @param tracer Tracer of the backing map
+     */
+    public TracingMapState(SnapshottableMap<T> delegate, Tracer tracer) {
+        this.delegate = delegate;
+        this.tracer = tracer;
+    }
+
+    @Override
+    public void beginCommit(Long txid) {
+        tracer.begin(txid);
+        long start = System.nanoTime();
+        delegate.beginCommit(txid);
+        phase("beginCommit", start);
+    }
+
+    @Override
+    public void commit(Long txid) {
+        long start = System.nanoTime();
+        try {
+            delegate.commit(txid);
+        } finally {
+            phase("commit", start);
+            tracer.end();
+        }
+    }
+
+    @Override
+    public List<T> multiGet(List<List<Object>> keys) {
+        long start = System.nanoTime();
+        try {
+            return delegate.multiGet(keys);
+        } finally {
+            phase("multiGet", start);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public List<T> multiUpdate(List<List<Object>> keys, List<ValueUpdater> updaters) {
+        long start = System.nanoTime();
+        try {
+            return delegate.multiUpdate(keys, updaters);
+        } finally {
+            phase("multiUpdate", start);
+        }
+    }
+
+    @Override
+    public void multiPut(List<List<Object>> keys, List<T> values) {
+        long start = System.nanoTime();
+        try {
+            delegate.multiPut(keys, values);
+        } finally {
+            phase("multiPut", start);
+        }
+    }
+
+    @Override
+    public T get() {
+        return delegate.get();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public T update(ValueUpdater updater) {
+        return delegate.update(updater);
+    }
+
+    @Override
+    public void set(T value) {
+        delegate.set(value);
+    }
+
+    /**
+     * Record a phase of the batch in progress
+     */
+    private void phase(String phase, long startNanos) {
+        BatchTrace trace = tracer.current();
+        if (trace != null) {
+            trace.phase(phase, System.nanoTime() - startNanos);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import io.hipstogram.trident.mongodb.cache.CacheSnapshot;
+import io.hipstogram.trident.mongodb.cache.LruCache;
+import io.hipstogram.trident.mongodb.codec.DocumentCodec;
+import io.hipstogram.trident.mongodb.collection.InMemoryMongoDB;
+import io.hipstogram.trident.mongodb.mappers.CodecRowMapper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import storm.trident.state.JSONOpaqueSerializer;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.Serializer;
+import storm.trident.state.StateType;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cache misses answered from the snapshot of a previous run once MongoDB holds the same txid
+ * @author Andrés Sánchez
+ */
+public class CacheSnapshotMapTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Serializer of the opaque values
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private final Serializer<OpaqueValue> serializer = (Serializer) new JSONOpaqueSerializer();
+
+    // Map state storing opaque values
+    private MongoDBMapState<OpaqueValue> state;
+
+    // Snapshot file
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        InMemoryMongoDB.reset();
+        Map<String, Object> conf = TestContext.configuration("counts");
+        MongoDBMapState.Options<OpaqueValue> options = new MongoDBMapState.Options<OpaqueValue>();
+        options.db = TestContext.DB;
+        options.collection = "counts";
+        state = new MongoDBMapState<OpaqueValue>(new MongoDBClient(conf),
+                new CodecRowMapper<OpaqueValue>(DocumentCodec.<OpaqueValue>verbose(StateType.OPAQUE)), options, conf);
+        state.registerMetrics(conf, new TestContext());
+        file = new File(folder.getRoot(), "counts.cache");
+
+        // The previous run cached a, b and the missing key d after committing txid 1
+        state.multiPut(keys("a", "b"), Arrays.asList(opaque(1L, 10L), opaque(1L, 20L)));
+        LruCache<OpaqueValue> cache = new LruCache<OpaqueValue>(1 << 20, 0, null);
+        cache.put(key("a"), opaque(1L, 10L));
+        cache.put(key("b"), opaque(1L, 20L));
+        cache.put(key("d"), null);
+        CacheSnapshot.write(file, cache.entries(), serializer, 1L);
+    }
+
+    @Test
+    public void usesEntriesStillStoredAndRejectsStaleOnes() {
+        // Another run wrote b and d since
+        state.multiPut(keys("b", "d"), Arrays.asList(opaque(2L, 25L), opaque(2L, 1L)));
+
+        CacheSnapshotMap<OpaqueValue> map = new CacheSnapshotMap<OpaqueValue>(state, state, file, serializer, "v.txid", 60000, 100);
+        List<OpaqueValue> values = map.multiGet(keys("a", "b", "c", "d"));
+
+        assertEquals(10L, values.get(0).getCurr());
+        assertEquals(25L, values.get(1).getCurr());
+        assertNull(values.get(2));
+        assertEquals(1L, values.get(3).getCurr());
+        assertEquals(1, map.getRestoredCount());
+        assertEquals(2, map.getRejectedCount());
+
+        // Every entry was looked up
+        assertFalse(map.isRestoring());
+    }
+
+    @Test
+    public void missingKeysStayMissing() {
+        CacheSnapshotMap<OpaqueValue> map = new CacheSnapshotMap<OpaqueValue>(state, state, file, serializer, "v.txid", 60000, 100);
+        assertEquals(Arrays.asList((OpaqueValue) null), map.multiGet(keys("d")));
+        assertEquals(1, map.getRestoredCount());
+        assertEquals(0, map.getRejectedCount());
+        assertTrue(map.isRestoring());
+    }
+
+    @Test
+    public void dropsTheSnapshotAfterSomeBatches() {
+        CacheSnapshotMap<OpaqueValue> map = new CacheSnapshotMap<OpaqueValue>(state, state, file, serializer, "v.txid", 60000, 2);
+        map.multiPut(keys("c"), Arrays.asList(opaque(2L, 1L)));
+        map.multiPut(keys("e"), Arrays.asList(opaque(2L, 1L)));
+        assertTrue(map.isRestoring());
+        map.multiPut(keys("c"), Arrays.asList(opaque(3L, 2L)));
+        assertFalse(map.isRestoring());
+
+        assertEquals(10L, map.multiGet(keys("a")).get(0).getCurr());
+        assertEquals(0, map.getRestoredCount());
+    }
+
+    private static OpaqueValue opaque(long txid, long value) {
+        return new OpaqueValue<Object>(txid, value);
+    }
+
+    private static List<List<Object>> keys(String... values) {
+        List<List<Object>> keys = new ArrayList<List<Object>>();
+        for (String value : values) keys.add(key(value));
+        return keys;
+    }
+
+    private static List<Object> key(String value) {
+        return new ArrayList<Object>(Arrays.asList((Object) value));
+    }
+}
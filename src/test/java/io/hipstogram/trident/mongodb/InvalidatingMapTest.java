@@ -0,0 +1,120 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import com.mongodb.BasicDBObject;
+import io.hipstogram.trident.mongodb.cache.CachingMap;
+import io.hipstogram.trident.mongodb.cache.LruCache;
+import io.hipstogram.trident.mongodb.codec.DocumentCodec;
+import io.hipstogram.trident.mongodb.collection.InMemoryMongoDB;
+import io.hipstogram.trident.mongodb.mappers.CodecRowMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.StateType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Invalidation of cached keys from the change feed of the collection
+ * @author Andrés Sánchez
+ */
+public class InvalidatingMapTest
+{
+    // Map state storing opaque values with a txid field
+    private MongoDBMapState<OpaqueValue> state;
+
+    // Map under test, polling the feed every few milliseconds
+    private InvalidatingMap<OpaqueValue> map;
+
+    // Cache invalidated by the map
+    private LruCache<OpaqueValue> cache;
+
+    // Cache over the map
+    private CachingMap<OpaqueValue> cached;
+
+    @Before
+    public void setUp() {
+        InMemoryMongoDB.reset();
+        Map<String, Object> conf = TestContext.configuration("counts");
+        MongoDBMapState.Options<OpaqueValue> options = new MongoDBMapState.Options<OpaqueValue>();
+        options.db = TestContext.DB;
+        options.collection = "counts";
+        options.txidField = "v.txid";
+        state = new MongoDBMapState<OpaqueValue>(new MongoDBClient(conf),
+                new CodecRowMapper<OpaqueValue>(DocumentCodec.<OpaqueValue>verbose(StateType.OPAQUE)), options, conf);
+        state.registerMetrics(conf, new TestContext());
+
+        map = new InvalidatingMap<OpaqueValue>(state, state, state.changes(), "counts", options.txidField,
+                5, 100, 60000, 1000);
+        cache = new LruCache<OpaqueValue>(1 << 20, 0, null);
+        cached = new CachingMap<OpaqueValue>(map, cache);
+        map.setCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        map.close();
+    }
+
+    @Test
+    public void ownWritesKeepTheCachedValues() throws InterruptedException {
+        cached.multiPut(Arrays.asList(key("a"), key("b")),
+                Arrays.asList(new OpaqueValue<Object>(1L, 1L), new OpaqueValue<Object>(1L, 2L)));
+        awaitFeed();
+
+        assertNotNull(cache.get(key("a")));
+        assertNotNull(cache.get(key("b")));
+        assertEquals(0L, ((Map<?, ?>) map.getValueAndReset()).get("invalidatedCount"));
+    }
+
+    @Test
+    public void foreignWritesInvalidateTheCachedValues() throws InterruptedException {
+        cached.multiPut(Arrays.asList(key("a"), key("b")),
+                Arrays.asList(new OpaqueValue<Object>(1L, 1L), new OpaqueValue<Object>(1L, 2L)));
+        InMemoryMongoDB.collection(TestContext.DB, "counts").update(new BasicDBObject("_id", "a"),
+                new BasicDBObject("$set", new BasicDBObject("v.txid", 7L).append("v.curr", 5L)), false, false);
+        awaitFeed();
+
+        assertNull(cache.get(key("a")));
+        assertNotNull(cache.get(key("b")));
+        assertEquals(Arrays.asList(5L, 2L), Arrays.asList(
+                cached.multiGet(Arrays.asList(key("a"))).get(0).getCurr(),
+                cached.multiGet(Arrays.asList(key("b"))).get(0).getCurr()));
+    }
+
+    /**
+     * Wait until the map has read every change of the collection
+     */
+    private void awaitFeed() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!state.changes().latest().equals(map.getPosition())) {
+            assertTrue("The feed was not read in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static List<Object> key(String value) {
+        return new ArrayList<Object>(Arrays.asList((Object) value));
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import backtype.storm.Config;
+import backtype.storm.LocalCluster;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.hipstogram.trident.mongodb.codec.DocumentCodec;
+import io.hipstogram.trident.mongodb.collection.InMemoryCollection;
+import io.hipstogram.trident.mongodb.collection.InMemoryMongoDB;
+import io.hipstogram.trident.mongodb.collection.MongoDBCursor;
+import io.hipstogram.trident.mongodb.mappers.CodecRowMapper;
+import io.hipstogram.trident.mongodb.mappers.MongoDBRowMapper;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Query;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import storm.trident.TridentTopology;
+import storm.trident.operation.builtin.Count;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.StateType;
+import storm.trident.testing.FixedBatchSpout;
+import storm.trident.tuple.TridentTuple;
+
+import java.io.Serializable;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The states running in a LocalCluster Trident topology against the in-memory collections
+ * @author Andrés Sánchez
+ */
+public class LocalTopologyTest
+{
+    // Time to wait for the topology to process every batch
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    // Local cluster
+    private LocalCluster cluster;
+
+    @Before
+    public void setUp() {
+        InMemoryMongoDB.reset();
+        cluster = new LocalCluster();
+    }
+
+    @After
+    public void tearDown() {
+        if (cluster != null) cluster.shutdown();
+    }
+
+    @Test
+    public void statesStoreEveryBatch() throws InterruptedException {
+        Config conf = new Config();
+        InMemoryMongoDB.configure(conf);
+        conf.put(MongoDBStateFactory.MONGODB_DB, TestContext.DB);
+        conf.put(MongoDBStateFactory.MONGODB_COLLECTION, "seen");
+
+        MongoDBMapState.Options<OpaqueValue> options = new MongoDBMapState.Options<OpaqueValue>();
+        options.db = TestContext.DB;
+        options.collection = "counts";
+
+        TridentTopology topology = new TridentTopology();
+        topology.newStream("counted", spout())
+                .groupBy(new Fields("word"))
+                .persistentAggregate(MongoDBMapState.opaque(
+                        new CodecRowMapper<OpaqueValue>(DocumentCodec.<OpaqueValue>compact(StateType.OPAQUE)), options),
+                        new Count(), new Fields("count"));
+        topology.newStream("seen", spout())
+                .partitionPersist(new MongoDBStateFactory(), new Fields("word"),
+                        new MongoDBStateUpdater<List<Object>, Object>(new SeenMapper()));
+        cluster.submitTopology("words", conf, topology.build());
+
+        InMemoryCollection counts = InMemoryMongoDB.collection(TestContext.DB, "counts");
+        InMemoryCollection seen = InMemoryMongoDB.collection(TestContext.DB, "seen");
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline && !(count(counts, "a") == 3 && count(seen, "a") == 3)) {
+            Thread.sleep(100);
+        }
+        cluster.killTopology("words");
+
+        assertEquals(3, count(counts, "a"));
+        assertEquals(2, count(counts, "b"));
+        assertEquals(1, count(counts, "c"));
+        assertEquals(3, count(seen, "a"));
+        assertEquals(2, count(seen, "b"));
+        assertEquals(1, count(seen, "c"));
+    }
+
+    private static FixedBatchSpout spout() {
+        FixedBatchSpout spout = new FixedBatchSpout(new Fields("word"), 2,
+                new Values("a"), new Values("b"), new Values("a"), new Values("c"), new Values("b"), new Values("a"));
+        spout.setCycle(false);
+        return spout;
+    }
+
+    /**
+     * Read the count of a word, the current value of an opaque document or a seen counter
+     */
+    private static long count(InMemoryCollection coll, String word) {
+        MongoDBCursor cursor = coll.find(new BasicDBObject("_id", word), null);
+        if (!cursor.hasNext()) return 0;
+        DBObject doc = cursor.next();
+        Object value = doc.containsField("seen") ? doc.get("seen") : ((DBObject) doc.get("v")).get("c");
+        return ((Number) value).longValue();
+    }
+
+    /**
+     * Counts every tuple of a word with an $inc upsert
+     */
+    private static class SeenMapper implements MongoDBRowMapper<List<Object>, Object>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public CRUDOperation map(TridentTuple tuple) {
+            return new Upsert(new BasicDBObject("_id", tuple.getString(0)),
+                    new BasicDBObject("$inc", new BasicDBObject("seen", 1)));
+        }
+
+        @Override
+        public CRUDOperation map(List<Object> key, Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Query retrieve(List<Object> key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object getValue(DBObject doc) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+import io.hipstogram.trident.mongodb.cache.CachePolicy;
+import io.hipstogram.trident.mongodb.codec.DocumentCodec;
+import io.hipstogram.trident.mongodb.collection.BulkWriteErrorsException;
+import io.hipstogram.trident.mongodb.collection.BulkWriter;
+import io.hipstogram.trident.mongodb.collection.ChangeFeed;
+import io.hipstogram.trident.mongodb.collection.CollectionProvider;
+import io.hipstogram.trident.mongodb.collection.InMemoryCollection;
+import io.hipstogram.trident.mongodb.collection.InMemoryMongoDB;
+import io.hipstogram.trident.mongodb.collection.MongoDBCollection;
+import io.hipstogram.trident.mongodb.collection.MongoDBCursor;
+import io.hipstogram.trident.mongodb.collection.WriteCounts;
+import io.hipstogram.trident.mongodb.mappers.CodecRowMapper;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Query;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import org.junit.Before;
+import org.junit.Test;
+import storm.trident.operation.builtin.Count;
+import storm.trident.state.CombinerValueUpdater;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.StateType;
+import storm.trident.state.TransactionalValue;
+import storm.trident.state.ValueUpdater;
+import storm.trident.state.map.MapState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Trident map states over the in-memory collections, across committed and replayed batches
+ * @author Andrés Sánchez
+ */
+public class MapStatesTest
+{
+    // Topology configuration
+    private Map<String, Object> conf;
+
+    @Before
+    public void setUp() {
+        InMemoryMongoDB.reset();
+        conf = TestContext.configuration("counts");
+    }
+
+    @Test
+    public void opaqueReplaysCountOnce() {
+        MongoDBMapState.Options<OpaqueValue> options = options(new MongoDBMapState.Options<OpaqueValue>());
+        MongoDBMapStateFactory factory = (MongoDBMapStateFactory) MongoDBMapState.opaque(
+                new CodecRowMapper<OpaqueValue>(DocumentCodec.<OpaqueValue>compact(StateType.OPAQUE)), options);
+        checkReplays(factory);
+    }
+
+    @Test
+    public void transactionalReplaysCountOnce() {
+        MongoDBMapState.Options<TransactionalValue> options = options(new MongoDBMapState.Options<TransactionalValue>());
+        MongoDBMapStateFactory factory = (MongoDBMapStateFactory) MongoDBMapState.transactional(
+                new CodecRowMapper<TransactionalValue>(DocumentCodec.<TransactionalValue>compact(StateType.TRANSACTIONAL)), options);
+        checkReplays(factory);
+    }
+
+    @Test
+    public void opaqueIncrementReplaysCountOnce() {
+        MongoDBMapState.Options<OpaqueValue> options = options(new MongoDBMapState.Options<OpaqueValue>());
+        options.incrementField = "count";
+        MongoDBMapStateFactory factory = (MongoDBMapStateFactory) MongoDBMapState.opaque(
+                new CodecRowMapper<OpaqueValue>(DocumentCodec.<OpaqueValue>verbose(StateType.OPAQUE), "count"), options);
+        checkReplays(factory);
+    }
+
+    @Test
+    public void nonTransactionalStatesStoreTheValues() {
+        MongoDBMapState.Options<Object> options = options(new MongoDBMapState.Options<Object>());
+        MongoDBMapStateFactory factory = (MongoDBMapStateFactory) MongoDBMapState.nonTransactional(
+                new CodecRowMapper<Object>(DocumentCodec.compact(StateType.NON_TRANSACTIONAL)), options);
+        MapState<Object> state = state(factory);
+        count(state, 1L, "a", "a", "b");
+        assertEquals(Arrays.<Object>asList(2L, 1L), state(factory).multiGet(keys("a", "b")));
+    }
+
+    @Test
+    public void conditionalStatesRejectKeyQueriesOffTheId() {
+        MongoDBMapState.Options<OpaqueValue> options = options(new MongoDBMapState.Options<OpaqueValue>());
+        options.incrementField = "count";
+        MongoDBMapStateFactory factory = (MongoDBMapStateFactory) MongoDBMapState.opaque(new WordMapper(), options);
+        try {
+            count(state(factory), 1L, "a");
+            fail("A replay could insert a second document of the key");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        assertEquals(0, InMemoryMongoDB.collection(TestContext.DB, "counts").size());
+
+        options.uniqueKeyIndex = true;
+        count(state(factory), 1L, "a");
+        assertEquals(1, InMemoryMongoDB.collection(TestContext.DB, "counts").size());
+    }
+
+    @Test
+    public void incrementsRetryOnlyTheUpsertsThatLostARace() {
+        RacingMongoDB.RACED.set(false);
+        conf.put(MongoDBStateFactory.MONGODB_COLLECTION_PROVIDER, RacingMongoDB.class.getName());
+        MongoDBMapState.Options<Object> options = options(new MongoDBMapState.Options<Object>());
+        options.incrementField = "count";
+        MongoDBMapStateFactory factory = (MongoDBMapStateFactory) MongoDBMapState.nonTransactional(
+                new CodecRowMapper<Object>(DocumentCodec.compact(StateType.NON_TRANSACTIONAL), "count"), options);
+        count(state(factory), 1L, "a", "b", "b");
+
+        assertTrue(RacingMongoDB.RACED.get());
+        assertEquals(Arrays.<Object>asList(11L, 2L), state(factory).multiGet(keys("a", "b")));
+    }
+
+    @Test
+    public void nonUniqueKeysReadAsNull() {
+        MongoDBMapState.Options<Object> options = options(new MongoDBMapState.Options<Object>());
+        MongoDBMapStateFactory factory = (MongoDBMapStateFactory) MongoDBMapState.nonTransactional(
+                new CodecRowMapper<Object>(DocumentCodec.compact(StateType.NON_TRANSACTIONAL)) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    public Query retrieve(List<Object> key) {
+                        return new Query(new BasicDBObject("word", key.get(0)));
+                    }
+                }, options);
+        InMemoryCollection coll = InMemoryMongoDB.collection(TestContext.DB, "counts");
+        coll.insert(new BasicDBObject("_id", 1).append("word", "a").append("v", 1L));
+        coll.insert(new BasicDBObject("_id", 2).append("word", "a").append("v", 2L));
+        coll.insert(new BasicDBObject("_id", 3).append("word", "b").append("v", 3L));
+        assertEquals(Arrays.<Object>asList(null, 3L, null), state(factory).multiGet(keys("a", "b", "c")));
+    }
+
+    @Test
+    public void sharedCachesKeepTheValuesOfEachStateApart() {
+        MongoDBMapState.Options<OpaqueValue> opaqueOptions = options(new MongoDBMapState.Options<OpaqueValue>());
+        opaqueOptions.sharedCache = true;
+        opaqueOptions.cachePolicy = CachePolicy.LRU;
+        MongoDBMapStateFactory opaque = (MongoDBMapStateFactory) MongoDBMapState.opaque(
+                new CodecRowMapper<OpaqueValue>(DocumentCodec.<OpaqueValue>compact(StateType.OPAQUE), "o"), opaqueOptions);
+        MongoDBMapState.Options<Object> options = options(new MongoDBMapState.Options<Object>());
+        options.sharedCache = true;
+        options.cachePolicy = CachePolicy.LRU;
+        MongoDBMapStateFactory nonTransactional = (MongoDBMapStateFactory) MongoDBMapState.nonTransactional(
+                new CodecRowMapper<Object>(DocumentCodec.compact(StateType.NON_TRANSACTIONAL), "n"), options);
+
+        MapState<Object> opaqueState = state(opaque);
+        MapState<Object> state = state(nonTransactional);
+        count(opaqueState, 1L, "shared", "shared", "shared");
+        assertEquals(Arrays.asList((Object) null), state.multiGet(keys("shared")));
+        count(state, 1L, "shared");
+
+        opaqueState.beginCommit(2L);
+        assertEquals(Arrays.<Object>asList(3L), opaqueState.multiGet(keys("shared")));
+        opaqueState.commit(2L);
+        assertEquals(Arrays.<Object>asList(1L), state.multiGet(keys("shared")));
+    }
+
+    /**
+     * Count some keys, replay the batch as if it failed after the write, and count again
+     */
+    private void checkReplays(MongoDBMapStateFactory factory) {
+        MapState<Object> state = state(factory);
+        count(state, 1L, "a", "a", "b");
+        count(state, 1L, "a", "a", "b");
+        count(state, 2L, "a", "c");
+
+        MapState<Object> restarted = state(factory);
+        restarted.beginCommit(3L);
+        assertEquals(Arrays.<Object>asList(3L, 1L, 1L, null), restarted.multiGet(keys("a", "b", "c", "d")));
+        restarted.commit(3L);
+    }
+
+    /**
+     * Run a batch counting every occurrence of some keys, grouped as Trident would
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void count(MapState<Object> state, long txid, String... words) {
+        List<String> distinct = new ArrayList<String>();
+        List<ValueUpdater> updaters = new ArrayList<ValueUpdater>();
+        for (String word : words) {
+            if (!distinct.contains(word)) {
+                distinct.add(word);
+                updaters.add(new CombinerValueUpdater(new Count(), (long) Collections.frequency(Arrays.asList(words), word)));
+            }
+        }
+        state.beginCommit(txid);
+        state.multiUpdate(keys(distinct.toArray(new String[distinct.size()])), updaters);
+        state.commit(txid);
+    }
+
+    @SuppressWarnings("unchecked")
+    private MapState<Object> state(MongoDBMapStateFactory factory) {
+        return (MapState<Object>) factory.makeState(conf, new TestContext(), 0, 1);
+    }
+
+    private static <T> MongoDBMapState.Options<T> options(MongoDBMapState.Options<T> options) {
+        options.db = TestContext.DB;
+        options.collection = "counts";
+        return options;
+    }
+
+    private static List<List<Object>> keys(String... words) {
+        List<List<Object>> keys = new ArrayList<List<Object>>();
+        for (String word : words) keys.add(new ArrayList<Object>(Arrays.asList((Object) word)));
+        return keys;
+    }
+
+    /**
+     * In-memory collections where, in the first bulk, another writer inserts the document of
+     * the first upsert just before that upsert does, which then fails on a duplicate key
+     */
+    public static class RacingMongoDB implements CollectionProvider {
+        // Whether the race was run
+        static final AtomicBoolean RACED = new AtomicBoolean();
+
+        @Override
+        public MongoDBCollection getCollection(String dbName, String collName) {
+            final InMemoryCollection coll = InMemoryMongoDB.collection(dbName, collName);
+            return new MongoDBCollection() {
+                @Override
+                public MongoDBCursor find(DBObject query, DBObject projection) {
+                    return coll.find(query, projection);
+                }
+
+                @Override
+                public MongoDBCursor find(DBObject query, DBObject projection, DBDecoderFactory decoder) {
+                    return coll.find(query, projection, decoder);
+                }
+
+                @Override
+                public MongoDBCollection withReadPreference(ReadPreference preference, long maxStalenessMillis) {
+                    return this;
+                }
+
+                @Override
+                public ChangeFeed changes() {
+                    return coll.changes();
+                }
+
+                @Override
+                public BulkWriter newBulkWriter(final BulkWriteOptions options) {
+                    return new BulkWriter() {
+                        private final List<CRUDOperation> operations = new ArrayList<CRUDOperation>();
+
+                        @Override
+                        public void add(CRUDOperation operation) {
+                            operations.add(operation);
+                        }
+
+                        @Override
+                        public int size() {
+                            return operations.size();
+                        }
+
+                        @Override
+                        public WriteCounts execute() {
+                            boolean race = RACED.compareAndSet(false, true);
+                            BulkWriter others = coll.newBulkWriter(options);
+                            for (int i = race ? 1 : 0; i < operations.size(); i++) others.add(operations.get(i));
+                            WriteCounts counts = others.execute();
+                            if (!race) return counts;
+                            coll.insert(new BasicDBObject(((Upsert) operations.get(0)).getQuery()).append("count", 10L));
+                            throw new BulkWriteErrorsException("E11000 duplicate key", Arrays.asList(0),
+                                    Arrays.asList(BulkWriteOptions.DUPLICATE_KEY));
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Looks keys up by a word field instead of the _id
+     */
+    private static class WordMapper extends CodecRowMapper<OpaqueValue> {
+        private static final long serialVersionUID = 1L;
+
+        WordMapper() {
+            super(DocumentCodec.<OpaqueValue>verbose(StateType.OPAQUE), "count");
+        }
+
+        @Override
+        public Query retrieve(List<Object> key) {
+            return new Query(new BasicDBObject("word", key.get(0)));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import backtype.storm.metric.api.IMetric;
+import com.mongodb.BasicDBObject;
+import com.mongodb.MongoException;
+import io.hipstogram.trident.mongodb.collection.InMemoryCollection;
+import io.hipstogram.trident.mongodb.collection.InMemoryMongoDB;
+import io.hipstogram.trident.mongodb.operation.Insert;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Buffering of the MongoDBState operations across failed and replayed batches
+ * @author Andrés Sánchez
+ */
+public class MongoDBStateTest
+{
+    // Collection of the state
+    private InMemoryCollection coll;
+
+    // State under test, flushing every two operations
+    private MongoDBState state;
+
+    // Metrics of the state
+    private TestContext context;
+
+    @Before
+    public void setUp() {
+        InMemoryMongoDB.reset();
+        Map<String, Object> conf = TestContext.configuration("state");
+        coll = InMemoryMongoDB.collection(TestContext.DB, "state");
+        MongoDBState.Options options = new MongoDBState.Options();
+        options.maxBufferedOperations = 2;
+        context = new TestContext();
+        state = (MongoDBState) new MongoDBStateFactory(options).makeState(conf, context, 0, 1);
+    }
+
+    @Test
+    public void failedFlushEmptiesTheBuffer() {
+        coll.insert(new BasicDBObject("_id", 1));
+        state.beginCommit(1L);
+        state.addOperation(new Insert(new BasicDBObject("_id", 2)));
+        try {
+            state.addOperation(new Insert(new BasicDBObject("_id", 1)));
+            fail("Duplicate key expected");
+        } catch (MongoException e) {
+            assertEquals(InMemoryCollection.DUPLICATE_KEY, e.getCode());
+        }
+
+        // The replay must not write the operations of the failed attempt again
+        coll.clear();
+        state.beginCommit(1L);
+        state.addOperation(new Insert(new BasicDBObject("_id", 3)));
+        state.commit(1L);
+        assertEquals(1, coll.size());
+    }
+
+    @Test
+    public void failedCommitEmptiesTheBuffer() {
+        coll.insert(new BasicDBObject("_id", 1));
+        state.beginCommit(1L);
+        state.addOperation(new Insert(new BasicDBObject("_id", 1)));
+        try {
+            state.commit(1L);
+            fail("Duplicate key expected");
+        } catch (MongoException e) {
+            assertEquals(InMemoryCollection.DUPLICATE_KEY, e.getCode());
+        }
+
+        state.beginCommit(2L);
+        state.addOperation(new Insert(new BasicDBObject("_id", 2)));
+        state.commit(2L);
+        assertEquals(2, coll.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pipelinedCommitsRejectOrderedWrites() {
+        MongoDBState.Options options = new MongoDBState.Options();
+        options.pipelineDepth = 2;
+        new MongoDBStateFactory(options).makeState(TestContext.configuration("state"), new TestContext(), 0, 1);
+    }
+
+    @Test
+    public void pipelinedCommitsWriteEveryChunk() {
+        MongoDBState.Options options = new MongoDBState.Options();
+        options.pipelineDepth = 2;
+        options.maxBatchSize = 3;
+        options.writeOptions.ordered = false;
+        MongoDBState pipelined = (MongoDBState) new MongoDBStateFactory(options)
+                .makeState(TestContext.configuration("state"), new TestContext(), 0, 1);
+        pipelined.beginCommit(1L);
+        for (int i = 0; i < 10; i++) pipelined.addOperation(new Insert(new BasicDBObject("_id", i)));
+        pipelined.commit(1L);
+        assertEquals(10, coll.size());
+    }
+
+    @Test
+    public void commitsWriteEachOperationOnce() {
+        int batches = 5, operations = 3;
+        for (long txid = 1; txid <= batches; txid++) {
+            state.beginCommit(txid);
+            for (int i = 0; i < operations; i++) {
+                state.addOperation(new Upsert(new BasicDBObject("_id", i), new BasicDBObject("$inc", new BasicDBObject("n", 1))));
+            }
+            state.commit(txid);
+        }
+
+        Map<?, ?> results = (Map<?, ?>) ((IMetric) context.getMetric("mongodb/bulkResults")).getValueAndReset();
+        assertEquals((long) batches * operations, ((Number) results.get("matched")).longValue()
+                + ((Number) results.get("upserted")).longValue());
+        Map<?, ?> bulks = (Map<?, ?>) ((IMetric) context.getMetric("mongodb/bulkOperations")).getValueAndReset();
+        assertEquals((double) batches * operations,
+                ((Number) bulks.get("count")).longValue() * ((Number) bulks.get("mean")).doubleValue(), 0.0);
+        for (int i = 0; i < operations; i++) {
+            assertEquals(batches, ((Number) coll.find(new BasicDBObject("_id", i), null).next().get("n")).intValue());
+        }
+    }
+
+    @Test
+    public void beginCommitDropsOperationsOfAnAbortedBatch() {
+        state.beginCommit(1L);
+        state.addOperation(new Insert(new BasicDBObject("_id", 1)));
+
+        // The update failed before the commit, so the batch is replayed
+        state.beginCommit(1L);
+        state.addOperation(new Insert(new BasicDBObject("_id", 2)));
+        state.commit(1L);
+        assertEquals(1, coll.size());
+        assertNotNull(coll.find(new BasicDBObject("_id", 2), null).next());
+    }
+}
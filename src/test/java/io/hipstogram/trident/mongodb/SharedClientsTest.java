@@ -0,0 +1,64 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import io.hipstogram.trident.mongodb.codec.DocumentCodec;
+import io.hipstogram.trident.mongodb.mappers.CodecRowMapper;
+import org.junit.After;
+import org.junit.Test;
+import storm.trident.state.StateType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lifecycle of the clients shared by the states of a worker
+ * @author Andrés Sánchez
+ */
+public class SharedClientsTest
+{
+    @After
+    public void tearDown() {
+        SharedClients.closeAll();
+    }
+
+    @Test
+    public void statesConnectOnFirstUseAndReleaseOnClose() {
+        // Connecting to a host that cannot be resolved would fail
+        Map<String, Object> conf = new HashMap<String, Object>();
+        conf.put(MongoDBStateFactory.MONGODB_HOSTS, "mongodb.invalid:27017");
+
+        MongoDBMapState<Object> first = mapState(conf);
+        MongoDBMapState<Object> second = mapState(conf);
+        MongoDBState third = new MongoDBState(new MongoDBClient(conf), new MongoDBState.Options(), conf);
+        assertEquals(1, SharedClients.size());
+
+        first.close();
+        second.close();
+        assertEquals(1, SharedClients.size());
+        third.close();
+        assertEquals(0, SharedClients.size());
+    }
+
+    private static MongoDBMapState<Object> mapState(Map<String, Object> conf) {
+        return new MongoDBMapState<Object>(new MongoDBClient(conf),
+                new CodecRowMapper<Object>(DocumentCodec.compact(StateType.NON_TRANSACTIONAL)),
+                new MongoDBMapState.Options<Object>(), conf);
+    }
+}
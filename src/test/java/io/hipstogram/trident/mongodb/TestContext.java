@@ -0,0 +1,81 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import backtype.storm.Config;
+import backtype.storm.metric.api.*;
+import backtype.storm.task.IMetricsContext;
+import io.hipstogram.trident.mongodb.collection.InMemoryMongoDB;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configuration and metrics context for states running against the in-memory collections
+ * @author Andrés Sánchez
+ */
+public class TestContext implements IMetricsContext
+{
+    // Test database
+    public static final String DB = "test";
+
+    // Registered metrics by name
+    private final Map<String, Object> metrics = new HashMap<String, Object>();
+
+    /**
+     * Create a configuration using the in-memory collections
+     * @param collection Collection of the states
+     * @return A topology configuration
+     */
+    public static Map<String, Object> configuration(String collection) {
+        Map<String, Object> conf = new HashMap<String, Object>();
+        InMemoryMongoDB.configure(conf);
+        conf.put(MongoDBStateFactory.MONGODB_DB, DB);
+        conf.put(MongoDBStateFactory.MONGODB_COLLECTION, collection);
+        conf.put(Config.TOPOLOGY_BUILTIN_METRICS_BUCKET_SIZE_SECS, 60);
+        return conf;
+    }
+
+    /**
+     * Get a registered metric
+     * @param name Metric name
+     * @return The metric, or null
+     */
+    public Object getMetric(String name) {
+        return metrics.get(name);
+    }
+
+    @Override
+    public <T extends IMetric> T registerMetric(String name, T metric, int timeBucketSizeInSecs) {
+        metrics.put(name, metric);
+        return metric;
+    }
+
+    @Override
+    public ReducedMetric registerMetric(String name, IReducer reducer, int timeBucketSizeInSecs) {
+        ReducedMetric metric = new ReducedMetric(reducer);
+        metrics.put(name, metric);
+        return metric;
+    }
+
+    @Override
+    public CombinedMetric registerMetric(String name, ICombiner combiner, int timeBucketSizeInSecs) {
+        CombinedMetric metric = new CombinedMetric(combiner);
+        metrics.put(name, metric);
+        return metric;
+    }
+}
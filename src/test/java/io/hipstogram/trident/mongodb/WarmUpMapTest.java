@@ -0,0 +1,164 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import io.hipstogram.trident.mongodb.cache.CachingMap;
+import io.hipstogram.trident.mongodb.cache.LruCache;
+import io.hipstogram.trident.mongodb.codec.JavaCodec;
+import io.hipstogram.trident.mongodb.collection.InMemoryMongoDB;
+import io.hipstogram.trident.mongodb.mappers.CodecRowMapper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hot keys kept across restarts and loaded into the cache before the first batch
+ * @author Andrés Sánchez
+ */
+public class WarmUpMapTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Map state under the warm-up maps
+    private MongoDBMapState<Object> state;
+
+    // Hot keys file
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        InMemoryMongoDB.reset();
+        Map<String, Object> conf = TestContext.configuration("counts");
+        MongoDBMapState.Options<Object> options = new MongoDBMapState.Options<Object>();
+        options.db = TestContext.DB;
+        options.collection = "counts";
+        state = new MongoDBMapState<Object>(new MongoDBClient(conf),
+                new CodecRowMapper<Object>(new JavaCodec<Object>()), options, conf);
+        state.registerMetrics(conf, new TestContext());
+        file = new File(folder.getRoot(), "counts.hot");
+    }
+
+    @Test
+    public void restartedMapsLoadTheKeysReadAndWritten() {
+        WarmUpMap<Object> map = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        map.multiPut(keys("a", "b"), Arrays.<Object>asList(1L, 2L));
+        state.multiPut(keys("c"), Arrays.<Object>asList(3L));
+        map.multiGet(keys("c", "d"));
+        map.snapshot();
+
+        LruCache<Object> cache = new LruCache<Object>(1 << 20, 0, null);
+        WarmUpMap<Object> restarted = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        assertEquals(4, restarted.preload(new CachingMap<Object>(restarted, cache), cache, 3, 10000, 0));
+        assertEquals(1L, cache.get(key("a")).getValue());
+        assertEquals(2L, cache.get(key("b")).getValue());
+        assertEquals(3L, cache.get(key("c")).getValue());
+        assertNull(cache.get(key("d")).getValue());
+    }
+
+    @Test
+    public void keepsTheMostRecentKeys() {
+        WarmUpMap<Object> map = new WarmUpMap<Object>(state, state, file, 2, 60000);
+        map.multiPut(keys("a", "b", "c"), Arrays.<Object>asList(1L, 2L, 3L));
+        map.multiGet(keys("b"));
+        map.snapshot();
+
+        LruCache<Object> cache = new LruCache<Object>(1 << 20, 0, null);
+        WarmUpMap<Object> restarted = new WarmUpMap<Object>(state, state, file, 2, 60000);
+        assertEquals(2, restarted.preload(new CachingMap<Object>(restarted, cache), cache, 10, 10000, 0));
+        assertNull(cache.get(key("a")));
+        assertNotNull(cache.get(key("b")));
+        assertNotNull(cache.get(key("c")));
+    }
+
+    @Test
+    public void preloadStopsAtTheMemoryBudget() {
+        WarmUpMap<Object> map = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        List<List<Object>> keys = new ArrayList<List<Object>>();
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < 20; i++) {
+            keys.add(key("key-" + i));
+            values.add(new long[64]);
+        }
+        map.multiPut(keys, values);
+        map.snapshot();
+
+        LruCache<Object> cache = new LruCache<Object>(1 << 20, 0, null);
+        WarmUpMap<Object> restarted = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        int loaded = restarted.preload(new CachingMap<Object>(restarted, cache), cache, 2, 10000, 1000);
+        assertTrue("Loaded " + loaded + " keys", loaded > 0 && loaded < 20);
+        assertEquals(0, loaded % 2);
+        assertEquals(loaded, cache.size());
+        assertNotNull(cache.get(key("key-19")));
+        assertNull(cache.get(key("key-0")));
+    }
+
+    @Test
+    public void preloadStopsAtTheTimeBudget() {
+        WarmUpMap<Object> map = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        map.multiPut(keys("a", "b"), Arrays.<Object>asList(1L, 2L));
+        map.snapshot();
+
+        LruCache<Object> cache = new LruCache<Object>(1 << 20, 0, null);
+        WarmUpMap<Object> restarted = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        assertEquals(0, restarted.preload(new CachingMap<Object>(restarted, cache), cache, 1, 0, 0));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void startsColdWithoutAFile() {
+        LruCache<Object> cache = new LruCache<Object>(1 << 20, 0, null);
+        WarmUpMap<Object> map = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        assertEquals(0, map.preload(new CachingMap<Object>(map, cache), cache, 10, 10000, 0));
+    }
+
+    @Test
+    public void restartedMapsReplaceTheShutdownSnapshot() {
+        int registered = ShutdownSnapshots.size();
+        WarmUpMap<Object> map = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        new WarmUpMap<Object>(state, state, file, 100, 60000);
+        WarmUpMap<Object> restarted = new WarmUpMap<Object>(state, state, file, 100, 60000);
+        assertEquals(registered + 1, ShutdownSnapshots.size());
+
+        map.close();
+        assertEquals(registered + 1, ShutdownSnapshots.size());
+        restarted.multiPut(keys("a"), Arrays.<Object>asList(1L));
+        restarted.close();
+        assertEquals(registered, ShutdownSnapshots.size());
+        assertTrue(file.exists());
+    }
+
+    private static List<List<Object>> keys(String... values) {
+        List<List<Object>> keys = new ArrayList<List<Object>>();
+        for (String value : values) keys.add(key(value));
+        return keys;
+    }
+
+    private static List<Object> key(String value) {
+        return new ArrayList<Object>(Arrays.asList((Object) value));
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb;
+
+import backtype.storm.topology.FailedException;
+import io.hipstogram.trident.mongodb.codec.JavaCodec;
+import io.hipstogram.trident.mongodb.collection.InMemoryMongoDB;
+import io.hipstogram.trident.mongodb.mappers.CodecRowMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import storm.trident.state.map.IBackingMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Write-behind buffering of map state writes that fail
+ * @author Andrés Sánchez
+ */
+public class WriteBehindMapTest
+{
+    // Map state writing through a collection that fails every call
+    private MongoDBMapState<Object> failing;
+
+    // Map state writing through the same collection without failures
+    private MongoDBMapState<Object> healthy;
+
+    // Map state the write-behind map currently writes to
+    private volatile IBackingMap<Object> current;
+
+    // Writes to the current map state
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    // Switches between the map states and counts the writes
+    private IBackingMap<Object> delegate;
+
+    // Map under test, only flushed by hand
+    private WriteBehindMap<Object> map;
+
+    @Before
+    public void setUp() {
+        InMemoryMongoDB.reset();
+        Map<String, Object> conf = TestContext.configuration("counts");
+        Map<String, Object> faulty = new HashMap<String, Object>(conf);
+        faulty.put(MongoDBStateFactory.MONGODB_INJECT_FAILURE_RATE, 1.0);
+
+        MongoDBMapState.Options<Object> options = new MongoDBMapState.Options<Object>();
+        options.db = TestContext.DB;
+        options.collection = "counts";
+        failing = mapState(faulty, options);
+        healthy = mapState(conf, options);
+        current = failing;
+
+        delegate = new IBackingMap<Object>() {
+            @Override
+            public List<Object> multiGet(List<List<Object>> keys) {
+                return current.multiGet(keys);
+            }
+
+            @Override
+            public void multiPut(List<List<Object>> keys, List<Object> values) {
+                attempts.incrementAndGet();
+                current.multiPut(keys, values);
+            }
+        };
+        map = new WriteBehindMap<Object>(delegate, 60000, 1000, 1000);
+    }
+
+    @After
+    public void tearDown() {
+        current = healthy;
+        map.close();
+    }
+
+    @Test
+    public void failedFlushesKeepTheValues() {
+        map.multiPut(Arrays.asList(key("a"), key("b")), Arrays.<Object>asList(1L, 2L));
+        try {
+            map.flush();
+            fail("The injected failure was swallowed");
+        } catch (FailedException e) {
+            // Expected
+        }
+        assertEquals(2, map.getPending());
+        assertEquals(Arrays.<Object>asList(1L, 2L), map.multiGet(Arrays.asList(key("a"), key("b"))));
+
+        current = healthy;
+        map.flush();
+        assertEquals(0, map.getPending());
+        assertEquals(Arrays.<Object>asList(1L, 2L), healthy.multiGet(Arrays.asList(key("a"), key("b"))));
+    }
+
+    @Test
+    public void newerValuesWinOverRebufferedOnes() {
+        map.multiPut(Arrays.asList(key("a")), Arrays.<Object>asList(1L));
+        try {
+            map.flush();
+            fail("The injected failure was swallowed");
+        } catch (FailedException e) {
+            // Expected
+        }
+        map.multiPut(Arrays.asList(key("a")), Arrays.<Object>asList(5L));
+
+        current = healthy;
+        map.flush();
+        assertEquals(Arrays.<Object>asList(5L), healthy.multiGet(Arrays.asList(key("a"))));
+    }
+
+    @Test
+    public void failedFlushesBackOff() throws InterruptedException {
+        WriteBehindMap<Object> flushed = new WriteBehindMap<Object>(delegate, 20, 1, 1000);
+        try {
+            flushed.multiPut(Arrays.asList(key("a")), Arrays.<Object>asList(1L));
+            Thread.sleep(250);
+            // Flushes at 0, 20, 60, 140 and 300 ms, not as fast as the collection fails
+            int failed = attempts.get();
+            assertTrue("Flushed " + failed + " times", failed >= 2 && failed <= 6);
+            assertEquals(1, flushed.getPending());
+        } finally {
+            current = healthy;
+            flushed.close();
+        }
+        assertEquals(Arrays.<Object>asList(1L), healthy.multiGet(Arrays.asList(key("a"))));
+    }
+
+    private static MongoDBMapState<Object> mapState(Map<String, Object> conf, MongoDBMapState.Options<Object> options) {
+        MongoDBMapState<Object> state = new MongoDBMapState<Object>(new MongoDBClient(conf),
+                new CodecRowMapper<Object>(new JavaCodec<Object>()), options, conf);
+        state.registerMetrics(conf, new TestContext());
+        return state;
+    }
+
+    private static List<Object> key(String value) {
+        return new ArrayList<Object>(Arrays.asList((Object) value));
+    }
+}
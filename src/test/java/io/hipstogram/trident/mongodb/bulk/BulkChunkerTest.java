@@ -0,0 +1,118 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.bulk;
+
+import com.mongodb.BasicDBObject;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Insert;
+import org.bson.BSON;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Splitting of operations into chunks bounded by count and size
+ * @author Andrés Sánchez
+ */
+public class BulkChunkerTest
+{
+    @Test
+    public void estimatesTheEncodedSize() {
+        BasicDBObject doc = new BasicDBObject("_id", 1).append("payload", payload(100))
+                .append("nested", new BasicDBObject("n", 2L).append("list", Arrays.asList(1, "two", 3.0)));
+        assertEquals(BSON.encode(doc).length, new Insert(doc).getSize());
+    }
+
+    @Test
+    public void splitsByNumberOfOperations() {
+        List<BulkChunker.Chunk> chunks = new BulkChunker(3, 0).split(inserts(10, 10));
+        assertEquals(Arrays.asList(3, 3, 3, 1), sizes(chunks));
+        checkContiguous(chunks, 10);
+    }
+
+    @Test
+    public void splitsBySize() {
+        List<CRUDOperation> operations = inserts(10, 100);
+        long size = operations.get(0).getSize() + BulkChunker.OPERATION_OVERHEAD;
+        List<BulkChunker.Chunk> chunks = new BulkChunker(0, 3 * size + size / 2).split(operations);
+
+        assertEquals(Arrays.asList(3, 3, 3, 1), sizes(chunks));
+        checkContiguous(chunks, 10);
+        for (BulkChunker.Chunk chunk : chunks) {
+            assertEquals(chunk.size() * size, chunk.getBytes());
+        }
+    }
+
+    @Test
+    public void boundsByWhicheverLimitComesFirst() {
+        List<CRUDOperation> operations = inserts(10, 100);
+        long size = operations.get(0).getSize() + BulkChunker.OPERATION_OVERHEAD;
+        assertEquals(Arrays.asList(2, 2, 2, 2, 2), sizes(new BulkChunker(2, 4 * size).split(operations)));
+        assertEquals(Arrays.asList(2, 2, 2, 2, 2), sizes(new BulkChunker(4, 2 * size).split(operations)));
+    }
+
+    @Test
+    public void oversizedOperationsGetAChunkOfTheirOwn() {
+        List<CRUDOperation> operations = inserts(4, 10);
+        operations.add(2, new Insert(new BasicDBObject("_id", "big").append("payload", payload(1000))));
+        List<BulkChunker.Chunk> chunks = new BulkChunker(0, 500).split(operations);
+
+        assertEquals(Arrays.asList(2, 1, 2), sizes(chunks));
+        assertTrue(chunks.get(1).getBytes() > 500);
+        checkContiguous(chunks, 5);
+    }
+
+    @Test
+    public void emptyListsHaveNoChunks() {
+        assertTrue(new BulkChunker(10, 1000).split(Collections.<CRUDOperation>emptyList()).isEmpty());
+    }
+
+    private static void checkContiguous(List<BulkChunker.Chunk> chunks, int operations) {
+        int next = 0;
+        for (BulkChunker.Chunk chunk : chunks) {
+            assertEquals(next, chunk.getFrom());
+            assertEquals(chunk.size(), chunk.getOperations().size());
+            next = chunk.getTo();
+        }
+        assertEquals(operations, next);
+    }
+
+    private static List<Integer> sizes(List<BulkChunker.Chunk> chunks) {
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (BulkChunker.Chunk chunk : chunks) sizes.add(chunk.size());
+        return sizes;
+    }
+
+    private static List<CRUDOperation> inserts(int count, int payloadSize) {
+        List<CRUDOperation> operations = new ArrayList<CRUDOperation>();
+        for (int i = 0; i < count; i++) {
+            operations.add(new Insert(new BasicDBObject("_id", i).append("payload", payload(payloadSize))));
+        }
+        return operations;
+    }
+
+    private static String payload(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+}
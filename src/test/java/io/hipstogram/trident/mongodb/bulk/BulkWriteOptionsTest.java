@@ -0,0 +1,63 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.bulk;
+
+import com.mongodb.WriteConcern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Write concerns of bulk writes set over the collection default
+ * @author Andrés Sánchez
+ */
+public class BulkWriteOptionsTest
+{
+    @Test
+    public void usesTheCollectionDefaultWhenNothingIsSet() {
+        assertSame(WriteConcern.MAJORITY, new BulkWriteOptions().getWriteConcern(WriteConcern.MAJORITY));
+    }
+
+    @Test
+    public void journalKeepsTheDefaultNodes() {
+        BulkWriteOptions options = new BulkWriteOptions();
+        options.journal = true;
+        WriteConcern writeConcern = options.getWriteConcern(new WriteConcern("majority", 500, false, false));
+        assertEquals("majority", writeConcern.getWObject());
+        assertEquals(500, writeConcern.getWtimeout());
+        assertTrue(writeConcern.getJ());
+    }
+
+    @Test
+    public void timeoutKeepsTheDefaultNodesAndJournal() {
+        BulkWriteOptions options = new BulkWriteOptions();
+        options.wtimeout = 1000;
+        WriteConcern writeConcern = options.getWriteConcern(new WriteConcern(2, 0, false, true));
+        assertEquals(2, writeConcern.getW());
+        assertEquals(1000, writeConcern.getWtimeout());
+        assertTrue(writeConcern.getJ());
+    }
+
+    @Test
+    public void nodesOverrideTheDefault() {
+        BulkWriteOptions options = new BulkWriteOptions();
+        options.w = "3";
+        WriteConcern writeConcern = options.getWriteConcern(WriteConcern.MAJORITY);
+        assertEquals(3, writeConcern.getW());
+        assertFalse(writeConcern.getJ());
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import storm.trident.state.JSONOpaqueSerializer;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.Serializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Memory-mapped snapshots of opaque cache entries
+ * @author Andrés Sánchez
+ */
+public class CacheSnapshotTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Serializer of the opaque values
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private final Serializer<Object> serializer = (Serializer) new JSONOpaqueSerializer();
+
+    @Test
+    public void readsBackTheCommittedEntries() throws IOException {
+        LruCache<Object> cache = new LruCache<Object>(1 << 24, 0, null);
+        for (int i = 0; i < 1000; i++) cache.put(key(i), new OpaqueValue<Object>(1L + i % 3, (long) i, (long) i - 1));
+        cache.put(key("missing"), null);
+        cache.put(key("plain"), 5L);
+        File file = folder.newFile("counts.cache");
+
+        // Entries of txid 3 may belong to a batch that is not committed yet
+        int written = CacheSnapshot.write(file, cache.entries(), serializer, 2L);
+        CacheSnapshot<Object> snapshot = CacheSnapshot.open(file, serializer);
+        assertEquals(written, snapshot.size());
+        assertEquals(667 + 1, written);
+
+        for (int i = 0; i < 1000; i++) {
+            CacheSnapshot.Entry<Object> entry = snapshot.get(key(i));
+            if (i % 3 == 2) {
+                assertNull(entry);
+                continue;
+            }
+            assertEquals(1L + i % 3, entry.getTxid());
+            OpaqueValue<?> value = (OpaqueValue<?>) entry.getValue();
+            assertEquals(((Number) value.getCurr()).longValue(), i);
+            assertEquals(((Number) value.getPrev()).longValue(), i - 1);
+        }
+        CacheSnapshot.Entry<Object> missing = snapshot.get(key("missing"));
+        assertEquals(CacheSnapshot.ABSENT, missing.getTxid());
+        assertNull(missing.getValue());
+        assertNull(snapshot.get(key("plain")));
+        assertNull(snapshot.get(key("unknown")));
+    }
+
+    @Test
+    public void replacesTheFileAtomically() throws IOException {
+        LruCache<Object> cache = new LruCache<Object>(1 << 20, 0, null);
+        cache.put(key("a"), new OpaqueValue<Object>(1L, 1L));
+        File file = new File(folder.getRoot(), "counts.cache");
+        CacheSnapshot.write(file, cache.entries(), serializer, 1L);
+        cache.put(key("a"), new OpaqueValue<Object>(2L, 2L, 1L));
+        CacheSnapshot.write(file, cache.entries(), serializer, 2L);
+
+        assertEquals(2L, CacheSnapshot.open(file, serializer).get(key("a")).getTxid());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void missingFilesOpenAsNull() throws IOException {
+        assertNull(CacheSnapshot.open(new File(folder.getRoot(), "none.cache"), serializer));
+    }
+
+    @Test
+    public void rejectsOtherVersions() throws IOException {
+        LruCache<Object> cache = new LruCache<Object>(1 << 20, 0, null);
+        cache.put(key("a"), new OpaqueValue<Object>(1L, 1L));
+        File file = folder.newFile("counts.cache");
+        CacheSnapshot.write(file, cache.entries(), serializer, 1L);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4);
+            raf.writeInt(99);
+        } finally {
+            raf.close();
+        }
+        try {
+            CacheSnapshot.open(file, serializer);
+            fail("A snapshot of another version was read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFiles() throws IOException {
+        LruCache<Object> cache = new LruCache<Object>(1 << 20, 0, null);
+        cache.put(key("a"), new OpaqueValue<Object>(1L, 1L));
+        File file = folder.newFile("counts.cache");
+        CacheSnapshot.write(file, cache.entries(), serializer, 1L);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 1);
+        } finally {
+            raf.close();
+        }
+        try {
+            CacheSnapshot.open(file, serializer);
+            fail("A truncated snapshot was read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static List<Object> key(Object value) {
+        return Arrays.asList(value);
+    }
+}
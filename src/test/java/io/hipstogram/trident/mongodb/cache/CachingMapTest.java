@@ -0,0 +1,109 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.cache;
+import backtype.storm.topology.FailedException;
+import org.junit.Test;
+import storm.trident.state.map.IBackingMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Read-through and write-through caching of a backing map
+ * @author Andrés Sánchez
+ */
+public class CachingMapTest
+{
+    @Test
+    public void readFillsKeepNewerWrites() {
+        final StoreMap store = new StoreMap();
+        store.values.put(key(1), "old");
+        final CachingMap<String> map = new CachingMap<String>(store, new LruCache<String>(1 << 20, 0, null));
+
+        // A write lands between the read of the backing map and the cache fill
+        store.onGet = new Runnable() {
+            public void run() {
+                store.onGet = null;
+                map.multiPut(Arrays.asList(key(1)), Arrays.asList("new"));
+            }
+        };
+        assertEquals(Arrays.asList("old"), map.multiGet(Arrays.asList(key(1))));
+        assertEquals(Arrays.asList("new"), map.multiGet(Arrays.asList(key(1))));
+    }
+
+    @Test
+    public void failedWritesInvalidateTheKeys() {
+        StoreMap store = new StoreMap();
+        store.values.put(key(1), "stored");
+        CachingMap<String> map = new CachingMap<String>(store, new LruCache<String>(1 << 20, 0, null));
+        assertEquals(Arrays.asList("stored"), map.multiGet(Arrays.asList(key(1))));
+
+        store.fail = true;
+        try {
+            map.multiPut(Arrays.asList(key(1)), Arrays.asList("lost"));
+            fail("The write failure was swallowed");
+        } catch (FailedException e) {
+            // Expected
+        }
+        assertNull(map.getCache().get(key(1)));
+    }
+
+    @Test
+    public void scopedClearKeepsOtherNamespaces() {
+        MapStateCache<Object> shared = new SegmentedCache<Object>(CachePolicy.LRU, 1 << 20, 0, 4);
+        ScopedCache<String> a = new ScopedCache<String>(shared, "db/a");
+        ScopedCache<String> b = new ScopedCache<String>(shared, "db/b");
+        a.put(key(1), "a");
+        b.put(key(1), "b");
+
+        a.clear();
+        assertNull(a.get(key(1)));
+        assertEquals("b", b.get(key(1)).getValue());
+    }
+
+    private static List<Object> key(int i) {
+        return new ArrayList<Object>(Arrays.asList((Object) i));
+    }
+
+    /**
+     * A backing map held in memory
+     */
+    private static class StoreMap implements IBackingMap<String> {
+        final Map<List<Object>, String> values = new HashMap<List<Object>, String>();
+        Runnable onGet;
+        boolean fail;
+
+        @Override
+        public List<String> multiGet(List<List<Object>> keys) {
+            List<String> found = new ArrayList<String>();
+            for (List<Object> key : keys) found.add(values.get(key));
+            if (onGet != null) onGet.run();
+            return found;
+        }
+
+        @Override
+        public void multiPut(List<List<Object>> keys, List<String> vals) {
+            if (fail) throw new FailedException("Write failed");
+            for (int i = 0; i < keys.size(); i++) values.put(keys.get(i), vals.get(i));
+        }
+    }
+}
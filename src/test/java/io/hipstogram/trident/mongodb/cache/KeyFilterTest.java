@@ -0,0 +1,102 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.cache;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import io.hipstogram.trident.mongodb.collection.ChangeFeed;
+import io.hipstogram.trident.mongodb.collection.FeedGapException;
+import io.hipstogram.trident.mongodb.collection.InMemoryCollection;
+import org.bson.types.BSONTimestamp;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Hashing of _ids and restarts of the key filters kept on disk
+ * @author Andrés Sánchez
+ */
+public class KeyFilterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void embeddedNumbersHashByValue() {
+        assertEquals(KeyFilter.hash(new BasicDBObject("day", 3).append("n", list(1, 2.5))),
+                KeyFilter.hash(new BasicDBObject("day", 3.0).append("n", list(1L, 2.5))));
+        assertEquals(KeyFilter.hash(list(1, "a")), KeyFilter.hash(list(1L, "a")));
+        assertFalse(KeyFilter.hash(list(1, 2)) == KeyFilter.hash(new BasicDBObject("1", 2)));
+    }
+
+    @Test
+    public void restoredFiltersAddTheIdsChangedSince() throws IOException {
+        InMemoryCollection coll = new InMemoryCollection("test.keys");
+        File file = new File(folder.getRoot(), "keys");
+        KeyFilter filter = new KeyFilter(1000, 0.01, file, 0, coll.changes());
+        filter.add("a");
+        filter.snapshot();
+
+        // Written by another writer while the worker was down
+        coll.insert(new BasicDBObject("_id", "b"));
+
+        KeyFilter restored = new KeyFilter(1000, 0.01, file, 0, coll.changes());
+        assertTrue(restored.isRestored());
+        assertTrue(restored.mightContain("a"));
+        assertTrue(restored.mightContain("b"));
+    }
+
+    @Test
+    public void filtersAreFilledAgainWhenTheChangesAreGone() throws IOException {
+        File file = new File(folder.getRoot(), "keys");
+        KeyFilter filter = new KeyFilter(1000, 0.01, file, 0, new GapFeed());
+        filter.add("a");
+        filter.snapshot();
+
+        KeyFilter restored = new KeyFilter(1000, 0.01, file, 0, new GapFeed());
+        assertFalse(restored.isRestored());
+        assertFalse(restored.mightContain("a"));
+    }
+
+    private static BasicDBList list(Object... values) {
+        BasicDBList list = new BasicDBList();
+        list.addAll(Arrays.asList(values));
+        return list;
+    }
+
+    /**
+     * A feed that no longer holds any change
+     */
+    private static class GapFeed implements ChangeFeed {
+        @Override
+        public BSONTimestamp latest() {
+            return new BSONTimestamp(1, 1);
+        }
+
+        @Override
+        public List<Change> poll(BSONTimestamp after, int maxChanges) {
+            throw new FeedGapException("Rolled over");
+        }
+    }
+}
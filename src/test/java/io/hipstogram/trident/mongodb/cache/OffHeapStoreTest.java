@@ -0,0 +1,103 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.cache;
+
+import org.junit.Test;
+import storm.trident.state.Serializer;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Off-heap storage of the weighted caches
+ * @author Andrés Sánchez
+ */
+public class OffHeapStoreTest
+{
+    // Chunk size of a store of up to 2 MB
+    private static final int CHUNK = 1 << 20;
+
+    @Test
+    public void emptiedChunksServeOtherSizes() {
+        LruCache<String> cache = new LruCache<String>(Long.MAX_VALUE, 0, new OffHeapStore<String>(new StringSerializer(), 2 * CHUNK));
+
+        // Fill both chunks with 64-byte blocks
+        int small = 2 * CHUNK / 64;
+        for (int i = 0; i < small; i++) cache.put(key(i), value(64));
+        assertEquals(small, cache.size());
+
+        // Evicting the oldest half empties a chunk, which takes the big value
+        cache.put(key(-1), value(CHUNK / 2 + 1));
+        assertNotNull(cache.get(key(-1)));
+        assertEquals(small / 2 + 1, cache.size());
+        assertNull(cache.get(key(small / 2 - 1)));
+        assertNotNull(cache.get(key(small / 2)));
+    }
+
+    @Test
+    public void valuesHeavierThanTheCacheEvictNothing() {
+        LruCache<String> cache = new LruCache<String>(16 * 1024, 0, new OffHeapStore<String>(new StringSerializer(), CHUNK));
+        for (int i = 0; i < 10; i++) cache.put(key(i), value(64));
+
+        cache.put(key(-1), value(20 * 1024));
+        assertNull(cache.get(key(-1)));
+        assertEquals(10, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void releasedBlocksAreReused() {
+        OffHeapStore<String> store = new OffHeapStore<String>(new StringSerializer(), CHUNK);
+        LruCache<String> cache = new LruCache<String>(Long.MAX_VALUE, 0, store);
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 100; i++) cache.put(key(i), value(64 << (round % 4)));
+        }
+        assertEquals(CHUNK, store.getAllocatedBytes());
+        assertEquals(value(64 << 3), cache.get(key(99)).value);
+    }
+
+    private static List<Object> key(int i) {
+        return Arrays.<Object>asList(i);
+    }
+
+    private static String value(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    /**
+     * Stores strings as their UTF-8 bytes, so values take exactly their length
+     */
+    private static class StringSerializer implements Serializer<String>
+    {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        @Override
+        public byte[] serialize(String value) {
+            return value.getBytes(UTF8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes) {
+            return new String(bytes, UTF8);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.codec;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.bson.BSON;
+import org.junit.Test;
+import storm.trident.state.OpaqueValue;
+import storm.trident.state.StateType;
+import storm.trident.state.TransactionalValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Values written to a document field by every codec and read back
+ * @author Andrés Sánchez
+ */
+public class ValueCodecTest
+{
+    @Test
+    public void opaqueValuesRoundTrip() throws Exception {
+        checkOpaque(DocumentCodec.<OpaqueValue>verbose(StateType.OPAQUE));
+        checkOpaque(DocumentCodec.<OpaqueValue>compact(StateType.OPAQUE));
+        checkOpaque(new KryoCodec<OpaqueValue>(HashMap.class));
+        checkOpaque(new JavaCodec<OpaqueValue>());
+    }
+
+    @Test
+    public void transactionalValuesRoundTrip() throws Exception {
+        checkTransactional(DocumentCodec.<TransactionalValue>verbose(StateType.TRANSACTIONAL));
+        checkTransactional(DocumentCodec.<TransactionalValue>compact(StateType.TRANSACTIONAL));
+        checkTransactional(new KryoCodec<TransactionalValue>(HashMap.class));
+        checkTransactional(new JavaCodec<TransactionalValue>());
+    }
+
+    @Test
+    public void plainValuesRoundTrip() throws Exception {
+        for (ValueCodec<Object> codec : plainCodecs()) {
+            assertEquals(42L, roundTrip(codec, 42L));
+            assertEquals("text", roundTrip(codec, "text"));
+            assertEquals(counts(), roundTrip(codec, counts()));
+        }
+    }
+
+    @Test
+    public void kryoCodecsWorkOnceDeserialized() throws Exception {
+        KryoCodec<OpaqueValue> codec = new KryoCodec<OpaqueValue>(HashMap.class);
+        Object stored = codec.encode(new OpaqueValue<Object>(7L, counts(), null));
+        KryoCodec<OpaqueValue> copy = serialized(codec);
+        assertEquals(counts(), copy.decode(stored).getCurr());
+        checkOpaque(copy);
+    }
+
+    private static void checkOpaque(ValueCodec<OpaqueValue> codec) throws Exception {
+        OpaqueValue<?> first = roundTrip(codec, new OpaqueValue<Object>(1L, 5L));
+        assertEquals(Long.valueOf(1L), first.getCurrTxid());
+        assertEquals(5L, first.getCurr());
+        assertNull(first.getPrev());
+
+        OpaqueValue<?> map = roundTrip(codec, new OpaqueValue<Object>(1234567L, counts(), new HashMap<String, Long>()));
+        assertEquals(Long.valueOf(1234567L), map.getCurrTxid());
+        assertEquals(counts(), map.getCurr());
+        assertEquals(new HashMap<String, Long>(), map.getPrev());
+    }
+
+    private static void checkTransactional(ValueCodec<TransactionalValue> codec) throws Exception {
+        TransactionalValue<?> value = roundTrip(codec, new TransactionalValue<Object>(3L, counts()));
+        assertEquals(Long.valueOf(3L), value.getTxid());
+        assertEquals(counts(), value.getVal());
+    }
+
+    /**
+     * Encode a value, write it in a document, read the document back as the driver does and
+     * decode the value
+     */
+    private static <T> T roundTrip(ValueCodec<T> codec, T value) {
+        byte[] bytes = BSON.encode(new BasicDBObject("v", codec.encode(value)));
+        DBObject doc = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+        return codec.decode(doc.get("v"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T serialized(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return (T) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ValueCodec<Object>[] plainCodecs() {
+        return new ValueCodec[] {
+                DocumentCodec.verbose(StateType.NON_TRANSACTIONAL),
+                new KryoCodec<Object>(HashMap.class),
+                new JavaCodec<Object>()
+        };
+    }
+
+    private static Map<String, Long> counts() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        for (int i = 0; i < 10; i++) counts.put("country-" + i, 1000L + i);
+        return counts;
+    }
+}
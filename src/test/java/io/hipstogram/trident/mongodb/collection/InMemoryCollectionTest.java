@@ -0,0 +1,147 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+import io.hipstogram.trident.mongodb.operation.CRUDOperation;
+import io.hipstogram.trident.mongodb.operation.Insert;
+import io.hipstogram.trident.mongodb.operation.Upsert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queries, updates and bulk writes of the in-memory collection
+ * @author Andrés Sánchez
+ */
+public class InMemoryCollectionTest
+{
+    // Collection under test
+    private InMemoryCollection coll;
+
+    @Before
+    public void setUp() {
+        coll = new InMemoryCollection("test.docs");
+        coll.insert(new BasicDBObject("_id", 1).append("n", 5).append("tags", list("a", "b"))
+                .append("items", list(new BasicDBObject("sku", "x").append("qty", 2))));
+        coll.insert(new BasicDBObject("_id", 2).append("n", 10L).append("tags", list("c")));
+        coll.insert(new BasicDBObject("_id", 3).append("n", 15.0));
+    }
+
+    @Test
+    public void queryOperators() {
+        assertEquals(Arrays.asList(2, 3), ids(new BasicDBObject("n", new BasicDBObject("$gt", 5))));
+        assertEquals(Arrays.asList(1, 2), ids(new BasicDBObject("n", new BasicDBObject("$in", list(5.0, 10)))));
+        assertEquals(Arrays.asList(3), ids(new BasicDBObject("tags", new BasicDBObject("$exists", false))));
+        assertEquals(Arrays.asList(1), ids(new BasicDBObject("tags", "b")));
+        assertEquals(Arrays.asList(1), ids(new BasicDBObject("items.sku", "x")));
+        assertEquals(Arrays.asList(1), ids(new BasicDBObject("items", new BasicDBObject("$elemMatch",
+                new BasicDBObject("sku", "x").append("qty", new BasicDBObject("$gte", 2))))));
+        assertEquals(Arrays.asList(2, 3), ids(new BasicDBObject("$or", list(
+                new BasicDBObject("_id", 3), new BasicDBObject("tags", new BasicDBObject("$size", 1))))));
+    }
+
+    @Test
+    public void projectionsKeepTheIdAndTheListedFields() {
+        MongoDBCursor cursor = coll.find(new BasicDBObject("_id", 1), new BasicDBObject("n", 1));
+        DBObject doc = cursor.next();
+        assertFalse(cursor.hasNext());
+        assertEquals(new BasicDBObject("_id", 1).append("n", 5), doc);
+    }
+
+    @Test
+    public void upsertsSeedTheDocumentFromTheQuery() {
+        DBObject statement = new BasicDBObject("$inc", new BasicDBObject("count", 1))
+                .append("$setOnInsert", new BasicDBObject("created", true));
+        assertEquals(1, coll.update(new BasicDBObject("_id", 4), statement, true, false).getUpserted());
+        assertEquals(1, coll.update(new BasicDBObject("_id", 4), statement, true, false).getMatched());
+
+        DBObject doc = coll.find(new BasicDBObject("_id", 4), null).next();
+        assertEquals(2, ((Number) doc.get("count")).intValue());
+        assertEquals(true, doc.get("created"));
+    }
+
+    @Test
+    public void arrayUpdates() {
+        coll.update(new BasicDBObject("_id", 2), new BasicDBObject("$push", new BasicDBObject("tags", "c")), false, false);
+        coll.update(new BasicDBObject("_id", 2), new BasicDBObject("$addToSet", new BasicDBObject("tags", "c")), false, false);
+        assertEquals(list("c", "c"), coll.find(new BasicDBObject("_id", 2), null).next().get("tags"));
+    }
+
+    @Test
+    public void duplicateIdsFailWithTheServerCode() {
+        try {
+            coll.insert(new BasicDBObject("_id", 1L));
+            fail("Numeric ids of other types must collide");
+        } catch (MongoException e) {
+            assertEquals(InMemoryCollection.DUPLICATE_KEY, e.getCode());
+        }
+    }
+
+    @Test
+    public void orderedBulksStopAtTheFirstFailure() {
+        try {
+            write(true, new Insert(new BasicDBObject("_id", 1)), new Insert(new BasicDBObject("_id", 5)));
+            fail("Duplicate key expected");
+        } catch (MongoException e) {
+            assertEquals(InMemoryCollection.DUPLICATE_KEY, e.getCode());
+        }
+        assertEquals(3, coll.size());
+    }
+
+    @Test
+    public void unorderedBulksApplyTheOtherOperations() {
+        try {
+            write(false, new Insert(new BasicDBObject("_id", 1)), new Insert(new BasicDBObject("_id", 5)),
+                    new Upsert(new BasicDBObject("_id", 6), new BasicDBObject("$set", new BasicDBObject("n", 1))));
+            fail("Duplicate key expected");
+        } catch (MongoException e) {
+            assertEquals(InMemoryCollection.DUPLICATE_KEY, e.getCode());
+        }
+        assertEquals(5, coll.size());
+    }
+
+    private void write(boolean ordered, CRUDOperation... operations) {
+        BulkWriteOptions options = new BulkWriteOptions();
+        options.ordered = ordered;
+        BulkWriter writer = coll.newBulkWriter(options);
+        for (CRUDOperation operation : operations) writer.add(operation);
+        writer.execute();
+    }
+
+    private List<Object> ids(DBObject query) {
+        List<Object> ids = new ArrayList<Object>();
+        MongoDBCursor cursor = coll.find(query, new BasicDBObject("_id", 1));
+        while (cursor.hasNext()) ids.add(cursor.next().get("_id"));
+        return ids;
+    }
+
+    private static BasicDBList list(Object... values) {
+        BasicDBList list = new BasicDBList();
+        list.addAll(Arrays.asList(values));
+        return list;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.collection;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.BSON;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decoding of the requested fields of raw BSON documents
+ * @author Andrés Sánchez
+ */
+public class ProjectedDecoderFactoryTest
+{
+    @Test
+    public void decodesTheRequestedFields() {
+        ObjectId id = new ObjectId();
+        ObjectId ref = new ObjectId();
+        DBObject doc = new BasicDBObject("_id", id)
+                .append("skipped", "x")
+                .append("ref", new BasicDBObject("id", ref).append("n", 7L));
+
+        ProjectedDBObject decoded = (ProjectedDBObject) new ProjectedDecoderFactory("ref.id", "_id", "missing")
+                .create().decode(BSON.encode(doc), (DBCollection) null);
+        assertEquals(ref, decoded.get(0));
+        assertEquals(id, decoded.get(1));
+        assertFalse(decoded.contains(2));
+        assertNull(decoded.get("skipped"));
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import io.hipstogram.trident.mongodb.bulk.BulkWriteOptions;
+import io.hipstogram.trident.mongodb.collection.InMemoryCollection;
+import io.hipstogram.trident.mongodb.collection.MongoDBCursor;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merging of repeated updates and upserts on the same query
+ * @author Andrés Sánchez
+ */
+public class OperationCoalescerTest
+{
+    @Test
+    public void addsUpIncrements() {
+        List<CRUDOperation> coalesced = checkEquivalent(
+                upsert(1, "$inc", "n", 1),
+                upsert(1, "$inc", "n", 2),
+                upsert(1, "$inc", "total", 5L),
+                upsert(1, "$inc", "n", 4L));
+
+        assertEquals(1, coalesced.size());
+        BasicDBObject inc = (BasicDBObject) ((Upsert) coalesced.get(0)).getStatement().get("$inc");
+        assertEquals(7L, inc.get("n"));
+        assertEquals(5L, inc.get("total"));
+    }
+
+    @Test
+    public void keepsTheLastSetAndTheSetOnInsertOfTheFirstUpsert() {
+        List<CRUDOperation> coalesced = checkEquivalent(
+                new Upsert(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("name", "a"))
+                        .append("$setOnInsert", new BasicDBObject("created", 1))),
+                upsert(1, "$setOnInsert", "created", 2),
+                upsert(1, "$set", "name", "b"),
+                upsert(1, "$setOnInsert", "updated", 3));
+
+        assertEquals(1, coalesced.size());
+        BasicDBObject statement = ((Upsert) coalesced.get(0)).getStatement();
+        assertEquals("b", ((DBObject) statement.get("$set")).get("name"));
+        assertEquals(new BasicDBObject("created", 1), statement.get("$setOnInsert"));
+    }
+
+    @Test
+    public void concatenatesPushes() {
+        BasicDBList each = new BasicDBList();
+        each.addAll(Arrays.asList("b", "c"));
+        List<CRUDOperation> coalesced = checkEquivalent(
+                upsert(1, "$push", "tags", "a"),
+                upsert(1, "$push", "tags", new BasicDBObject("$each", each)),
+                upsert(1, "$push", "tags", "d"));
+
+        assertEquals(1, coalesced.size());
+        DBObject push = (DBObject) ((Upsert) coalesced.get(0)).getStatement().get("$push");
+        assertEquals(Arrays.asList("a", "b", "c", "d"), ((DBObject) push.get("tags")).get("$each"));
+    }
+
+    @Test
+    public void keepsOperationsTouchingAFieldWithAnotherOperator() {
+        List<CRUDOperation> coalesced = checkEquivalent(
+                upsert(1, "$inc", "n", 1),
+                upsert(1, "$set", "n", 10),
+                upsert(1, "$inc", "n", 1),
+                upsert(1, "$set", "a", new BasicDBObject("x", 1)),
+                upsert(1, "$inc", "a.x", 1));
+        assertEquals(4, coalesced.size());
+    }
+
+    @Test
+    public void otherOperatorsCloseTheMerge() {
+        List<CRUDOperation> coalesced = checkEquivalent(
+                upsert(1, "$inc", "n", 1),
+                new Update(new BasicDBObject("_id", 1), new BasicDBObject("$unset", new BasicDBObject("n", ""))),
+                upsert(1, "$inc", "n", 1),
+                upsert(1, "$inc", "n", 1));
+
+        assertEquals(3, coalesced.size());
+        assertEquals(2, ((DBObject) ((Upsert) coalesced.get(2)).getStatement().get("$inc")).get("n"));
+    }
+
+    @Test
+    public void mergesEachQueryApart() {
+        List<CRUDOperation> coalesced = checkEquivalent(
+                upsert(1, "$inc", "n", 1),
+                upsert(2, "$inc", "n", 1),
+                new Insert(new BasicDBObject("_id", 3)),
+                upsert(1, "$inc", "n", 1),
+                new Update(new BasicDBObject("_id", 2), new BasicDBObject("$inc", new BasicDBObject("n", 1))));
+
+        assertEquals(4, coalesced.size());
+        assertEquals(new BasicDBObject("_id", 1), ((Upsert) coalesced.get(0)).getQuery());
+        assertEquals(new BasicDBObject("_id", 2), ((Upsert) coalesced.get(1)).getQuery());
+        assertTrue(coalesced.get(2) instanceof Insert);
+        assertTrue(coalesced.get(3) instanceof Update);
+    }
+
+    /**
+     * Coalesce some operations and check that they leave a collection as the originals do
+     * @return Coalesced operations
+     */
+    private static List<CRUDOperation> checkEquivalent(CRUDOperation... operations) {
+        List<CRUDOperation> coalesced = OperationCoalescer.coalesce(Arrays.asList(operations));
+        assertEquals(documents(Arrays.asList(operations)), documents(coalesced));
+        return coalesced;
+    }
+
+    private static List<DBObject> documents(List<CRUDOperation> operations) {
+        InMemoryCollection coll = new InMemoryCollection("coalesced");
+        new BulkWriteOptions().write(coll, operations);
+        List<DBObject> docs = new ArrayList<DBObject>();
+        MongoDBCursor cursor = coll.find(new BasicDBObject(), null);
+        try {
+            while (cursor.hasNext()) docs.add(cursor.next());
+        } finally {
+            cursor.close();
+        }
+        return docs;
+    }
+
+    private static Upsert upsert(int id, String operator, String field, Object value) {
+        return new Upsert(new BasicDBObject("_id", id), new BasicDBObject(operator, new BasicDBObject(field, value)));
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matching of batched query results back to their queries
+ * @author Andrés Sánchez
+ */
+public class QueryBatchTest
+{
+    @Test
+    public void matchesNumbersByValue() {
+        QueryBatch batch = batch(new BasicDBObject("_id", 1), new BasicDBObject("_id", 2L));
+        assertEquals(Arrays.asList(0), batch.match(new BasicDBObject("_id", 1L), 0, 2));
+        assertEquals(Arrays.asList(1), batch.match(new BasicDBObject("_id", 2.0), 0, 2));
+    }
+
+    @Test
+    public void matchesNumbersInEmbeddedDocuments() {
+        QueryBatch batch = batch(new BasicDBObject("_id", new BasicDBObject("a", 1).append("b", "x")));
+        assertEquals(Arrays.asList(0), batch.match(new BasicDBObject("_id", new BasicDBObject("a", 1.0).append("b", "x")), 0, 1));
+    }
+
+    @Test
+    public void embeddedDocumentsMatchInFieldOrder() {
+        QueryBatch batch = batch(new BasicDBObject("_id", new BasicDBObject("a", 1).append("b", 2)));
+        assertEquals(Collections.<Integer>emptyList(), batch.match(new BasicDBObject("_id", new BasicDBObject("b", 2).append("a", 1)), 0, 1));
+    }
+
+    @Test
+    public void matchesArrayElements() {
+        QueryBatch batch = batch(new BasicDBObject("tags", "a"), new BasicDBObject("tags", "b"), new BasicDBObject("tags", "c"));
+        BasicDBList tags = new BasicDBList();
+        tags.add("a");
+        tags.add("c");
+        assertEquals(Arrays.asList(0, 2), batch.match(new BasicDBObject("tags", tags), 0, 3));
+        assertEquals(Arrays.asList(2), batch.match(new BasicDBObject("tags", tags), 1, 3));
+    }
+
+    @Test
+    public void matchesDottedPathsThroughArrays() {
+        QueryBatch batch = batch(new BasicDBObject("items.sku", 7));
+        BasicDBList items = new BasicDBList();
+        items.add(new BasicDBObject("sku", 3));
+        items.add(new BasicDBObject("sku", 7L));
+        assertEquals(Arrays.asList(0), batch.match(new BasicDBObject("items", items), 0, 1));
+    }
+
+    @Test
+    public void matchesWholeArrays() {
+        BasicDBList key = new BasicDBList();
+        key.add(1);
+        key.add(2);
+        QueryBatch batch = batch(new BasicDBObject("k", key));
+        BasicDBList value = new BasicDBList();
+        value.add(1L);
+        value.add(2L);
+        assertEquals(Arrays.asList(0), batch.match(new BasicDBObject("k", value), 0, 1));
+    }
+
+    @Test
+    public void regularExpressionsCannotBeBatched() {
+        assertFalse(QueryBatch.canBatch(new Query(new BasicDBObject("name", Pattern.compile("^a")))));
+        assertFalse(QueryBatch.canBatch(new Query(new BasicDBObject("n", new BasicDBObject("$gt", 1)))));
+        assertTrue(QueryBatch.canBatch(new Query(new BasicDBObject("n", 1))));
+    }
+
+    private static QueryBatch batch(BasicDBObject... queries) {
+        Query[] list = new Query[queries.length];
+        for (int i = 0; i < queries.length; i++) list[i] = new Query(queries[i]);
+        return new QueryBatch(Arrays.asList(list));
+    }
+}
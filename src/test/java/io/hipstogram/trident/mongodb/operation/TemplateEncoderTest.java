@@ -0,0 +1,93 @@
+/**
+ *  Copyright 2014 Andrés Sánchez Pascual
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+
+package io.hipstogram.trident.mongodb.operation;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.BSON;
+import org.bson.BSONObject;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encoding of bound template documents
+ * @author Andrés Sánchez
+ */
+public class TemplateEncoderTest
+{
+    // Insert of a document without _id, with a constant and a slot in a sub-document
+    private static final OperationTemplate EVENT = OperationTemplate.insert(new BasicDBObject("type", "click")
+            .append("at", new BasicDBObject("page", OperationTemplate.SLOT)));
+
+    @Test
+    public void encodesLikeTheMaterializedDocument() {
+        TemplateOperation operation = EVENT.bind("home");
+        assertEquals(BSON.decode(BSON.encode(((Insert) operation.toOperation()).getDocument())), decode(operation.getQuery()));
+    }
+
+    @Test
+    public void insertsWithoutIdGetTheOneThatIsPut() {
+        DBObject doc = EVENT.bind("home").getQuery();
+        assertNull(doc.get("_id"));
+        ObjectId id = new ObjectId();
+        doc.put("_id", id);
+
+        assertEquals(id, doc.get("_id"));
+        assertEquals(Arrays.asList("_id", "type", "at"), Arrays.asList(doc.keySet().toArray()));
+        BSONObject decoded = decode(doc);
+        assertEquals(Arrays.asList("_id", "type", "at"), Arrays.asList(decoded.keySet().toArray()));
+        assertEquals(id, decoded.get("_id"));
+        assertEquals("home", ((BSONObject) decoded.get("at")).get("page"));
+    }
+
+    @Test
+    public void onlyAMissingIdCanBePut() {
+        DBObject doc = EVENT.bind("home").getQuery();
+        try {
+            doc.put("type", "view");
+            fail("Bound documents are read-only");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        doc.put("_id", 1);
+        try {
+            doc.put("_id", 2);
+            fail("The _id was replaced");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+
+        DBObject keyed = OperationTemplate.insert(new BasicDBObject("_id", OperationTemplate.SLOT)).bind(3).getQuery();
+        try {
+            keyed.put("_id", 4);
+            fail("The _id slot was replaced");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    private static BSONObject decode(DBObject doc) {
+        BasicOutputBuffer buf = new BasicOutputBuffer();
+        new TemplateEncoder().writeObject(buf, doc);
+        return BSON.decode(buf.toByteArray());
+    }
+}